@@ -3,7 +3,6 @@ package com.will.cellseg;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
-import ij.Prefs;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -88,6 +87,54 @@ public class CellSegmentationCommand implements Command {
     )
     private String edgeMethod = "Sobel (Gradient)";
 
+    @Parameter(
+            label = "Gradient magnitude",
+            choices = {
+                    "Euclidean (exact)",
+                    "|gx| + |gy| (fastest)",
+                    "Alpha-max + beta-min (approx.)"
+            }
+    )
+    private String gradientMagnitude = "Euclidean (exact)";
+
+    @Parameter(
+            label = "Local threshold",
+            choices = {
+                    "None",
+                    "Niblack",
+                    "Sauvola",
+                    "Mean (contrast)"
+            }
+    )
+    private String localMethod = "None";
+
+    @Parameter(label = "Local radius (px)", min = "1")
+    private int localRadius = 15;
+
+    @Parameter(label = "Local k (0 = method default)")
+    private double localK = 0.0;
+
+    @Parameter(label = "Local offset")
+    private double localOffset = 0.0;
+
+    @Parameter(label = "Watershed tolerance", min = "0")
+    private double watershedTolerance = 0.5;
+
+    @Parameter(
+            label = "Watershed method",
+            choices = {
+                    "ImageJ (Binary > Watershed)",
+                    "Distance transform (parallel, experimental)"
+            }
+    )
+    private String watershedMethod = "ImageJ (Binary > Watershed)";
+
+    @Parameter(label = "Label image first (skip ParticleAnalyzer)")
+    private boolean labelImageFirst = false;
+
+    @Parameter(label = "Threads (0 = all cores)", min = "0")
+    private int threads = 0;
+
     private boolean measureArea = true;
     private boolean measureMean = true;
     private boolean measureMinMax = true;
@@ -130,27 +177,24 @@ public class CellSegmentationCommand implements Command {
                 measurements,
                 labelsLut,
                 true,
-                true
+                true,
+                EdgeFilter.Magnitude.fromLabel(gradientMagnitude),
+                threads,
+                LocalThreshold.Settings.fromLabel(localMethod, localRadius, localK, localOffset),
+                watershedTolerance,
+                Watershed.Method.fromLabel(watershedMethod),
+                labelImageFirst
         );
 
-        // Store global background polarity pref
-        final boolean prevBlackBg = Prefs.blackBackground;
-        try {
-            // Ensure black defines background
-            Prefs.blackBackground = true;
-
-            // The pipeline returns display-ready images plus the ROI/measurement state
-            // accumulated during analysis.
-            CellSegmentationResult r = CellSegmentationPipeline.run(imp, p);
+        // The pipeline returns display-ready images plus the ROI/measurement state
+        // accumulated during analysis. The binary background option no longer affects
+        // it, so it is not forced around the call.
+        CellSegmentationResult r = CellSegmentationPipeline.run(imp, p);
 
-            if (r.mask != null) r.mask.show();
-            if (r.labels != null) r.labels.show();
+        if (r.mask != null) r.mask.show();
+        if (r.labels != null) r.labels.show();
 
-            IJ.log("[CellSegmentation] Done: " + r.roiCount + " ROIs");
-        } finally {
-            // Restore background color pref
-            Prefs.blackBackground = prevBlackBg;
-        }
+        IJ.log("[CellSegmentation] Done: " + r.roiCount + " ROIs");
 
 
     }
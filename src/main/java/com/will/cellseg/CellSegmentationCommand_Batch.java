@@ -7,22 +7,38 @@ import com.will.cellseg.batch.InputResolver;
 import com.will.cellseg.batch.MeasUnit;
 import com.will.cellseg.batch.MeasurementPlan;
 import com.will.cellseg.batch.PairedUnit;
+import com.will.cellseg.batch.PlaneBufferPool;
+import com.will.cellseg.batch.PlaneCache;
+import com.will.cellseg.batch.PlanePrefetcher;
 import com.will.cellseg.batch.SegUnit;
 import com.will.cellseg.batch.SeriesMetadata;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
-import ij.io.FileSaver;
+import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.filter.Analyzer;
-import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 import javax.swing.SwingUtilities;
 import org.scijava.ItemVisibility;
 import org.scijava.Context;
@@ -124,6 +140,80 @@ public class CellSegmentationCommand_Batch implements Command {
     )
     private String edgeMethod = "Sobel (Gradient)";
 
+    @Parameter(
+            label = "Gradient magnitude",
+            choices = {
+                    "Euclidean (exact)",
+                    "|gx| + |gy| (fastest)",
+                    "Alpha-max + beta-min (approx.)"
+            }
+    )
+    private String gradientMagnitude = "Euclidean (exact)";
+
+    @Parameter(
+            label = "Local threshold",
+            choices = {
+                    "None",
+                    "Niblack",
+                    "Sauvola",
+                    "Mean (contrast)"
+            }
+    )
+    private String localMethod = "None";
+
+    @Parameter(label = "Local radius (px)", min = "1")
+    private int localRadius = 15;
+
+    @Parameter(label = "Local k (0 = method default)")
+    private double localK = 0.0;
+
+    @Parameter(label = "Local offset")
+    private double localOffset = 0.0;
+
+    @Parameter(label = "Watershed tolerance", min = "0")
+    private double watershedTolerance = 0.5;
+
+    @Parameter(
+            label = "Watershed method",
+            choices = {
+                    "ImageJ (Binary > Watershed)",
+                    "Distance transform (parallel, experimental)"
+            }
+    )
+    private String watershedMethod = "ImageJ (Binary > Watershed)";
+
+    @Parameter(label = "Label image first (skip ParticleAnalyzer)")
+    private boolean labelImageFirst = false;
+
+    @Parameter(label = "Threads (0 = all cores)", min = "0")
+    private int threads = 0;
+
+    @Parameter(label = "Measurement frames in parallel", min = "1")
+    private int parallelFrames = 1;
+
+    @Parameter(label = "Pairs in parallel", min = "1")
+    private int parallelPairs = 1;
+
+    @Parameter(label = "Plane reader threads (0 = read inline)", min = "0")
+    private int readerThreads = 2;
+
+    @Parameter(label = "Planes read ahead", min = "0")
+    private int readAhead = 8;
+
+    @Parameter(label = "Read-ahead memory (MB)", min = "1")
+    private int readAheadMB = 512;
+
+    // Off by default: a plain batch reads each plane once, and caching would only copy
+    // every plane. Worth enabling when planes are read again (previews, stop-points).
+    @Parameter(label = "Plane cache (MB, 0 = off)", min = "0")
+    private int planeCacheMB = 0;
+
+    @Parameter(label = "Output writer threads (0 = write inline)", min = "0")
+    private int writerThreads = 2;
+
+    @Parameter(label = "Queued output writes", min = "1")
+    private int outputQueue = 16;
+
     @Parameter(
             label = "Labels LUT",
             choices = {
@@ -148,7 +238,7 @@ public class CellSegmentationCommand_Batch implements Command {
     private boolean saveLabels = true;
 
     @Parameter(label = "Save label overlay")
-    private boolean saveLabelOverlay = false;
+    private boolean saveLabelOverlay = true;
 
     @Parameter(label = "Save ROIs (ZIP)")
     private boolean saveRois = true;
@@ -166,8 +256,10 @@ public class CellSegmentationCommand_Batch implements Command {
     private boolean measureFeret = true;
     private boolean measureShape = true;
     private boolean measureIntDen = true;
-    private final Map<String, CachedSegmentationResult> segmentationCache =
-            new HashMap<String, CachedSegmentationResult>();
+    // Keyed by RICM source. Reviewed decisions are stored complete; unreviewed ones
+    // complete when the pair that owns the segmentation finishes it on the pool.
+    private final Map<String, CompletableFuture<CachedSegmentationResult>> segmentationCache =
+            new HashMap<String, CompletableFuture<CachedSegmentationResult>>();
     private final Map<String, ThresholdConfig> thresholdConfigCache =
             new HashMap<String, ThresholdConfig>();
 
@@ -176,12 +268,15 @@ public class CellSegmentationCommand_Batch implements Command {
 
         // This command is the real batch engine: validate inputs, load planes, segment
         // the RICM source once per pair, then measure the paired fluorescence planes.
-        final boolean prevBlackBg = Prefs.blackBackground;
         BatchStopController stopController = null;
+        ExecutorService framePool = null;
+        ExecutorService pairPool = null;
+        ExecutorService readPool = null;
+        OutputWriter outputs = null;
+        BioFormatsPlaneReader planeReader = null;
+        PlanePrefetcher prefetcher = null;
 
         try {
-            Prefs.blackBackground = true;
-
             if (outputDir == null) {
                 IJ.error("No output directory selected.");
                 return;
@@ -201,7 +296,8 @@ public class CellSegmentationCommand_Batch implements Command {
 
             final BioFormatsPlaneReader reader;
             try {
-                reader = new BioFormatsPlaneReader();
+                reader = new BioFormatsPlaneReader(planeCacheMB * 1024L * 1024L);
+                planeReader = reader;
             } catch (BioFormatsPlaneReader.BioFormatsUnavailableException e) {
                 IJ.error("Bio-Formats not available",
                         "Bio-Formats is required for batch reading (ND2/CZI/LIF/etc.).\n"
@@ -265,7 +361,13 @@ public class CellSegmentationCommand_Batch implements Command {
                     measurements,
                     labelsLut,
                     false,
-                    false
+                    false,
+                    EdgeFilter.Magnitude.fromLabel(gradientMagnitude),
+                    threads,
+                    LocalThreshold.Settings.fromLabel(localMethod, localRadius, localK, localOffset),
+                    watershedTolerance,
+                    Watershed.Method.fromLabel(watershedMethod),
+                    labelImageFirst
             );
 
             // Stop-point state is intentionally kept outside the pipeline so the core
@@ -273,179 +375,253 @@ public class CellSegmentationCommand_Batch implements Command {
             stopController = new BatchStopController();
             segmentationCache.clear();
             thresholdConfigCache.clear();
-            ThresholdConfig sharedThresholdConfig = ThresholdConfig.auto(thrMethod, darkObjects);
+            ThresholdConfig sharedThresholdConfig = ThresholdConfig.forParams(p);
             boolean thresholdStopUsed = false;
             boolean aborted = false;
-            int processedPairs = 0;
-            int failedPairs = 0;
-            int skippedPairs = 0;
+            if (parallelFrames > 1) {
+                framePool = Executors.newFixedThreadPool(parallelFrames);
+            }
+            if (parallelPairs > 1) {
+                pairPool = Executors.newFixedThreadPool(parallelPairs);
+            }
+            final PairTracker tracker = new PairTracker(pairedUnits.size(), 2 * Math.max(1, parallelPairs));
+            final int measurementFlags = measurements;
+            if (readerThreads > 0) {
+                readPool = Executors.newFixedThreadPool(readerThreads);
+            }
+            outputs = new OutputWriter(writerThreads, outputQueue);
+            final ExecutorService measurePool = framePool;
+            // Measured frames hand their pixel arrays back here for the next read of the
+            // same shape; enough for every frame read ahead or measuring at once.
+            final PlaneBufferPool frameBuffers =
+                    new PlaneBufferPool(readAhead + Math.max(1, parallelPairs) * parallelFrames + 1);
+            prefetcher = new PlanePrefetcher(readPool, readAhead, readAheadMB * 1024L * 1024L, frameBuffers);
+            final List<PairPlanes> plans;
+            try {
+                plans = planPairs(pairedUnits, reader, prefetcher, frameBuffers);
+            } catch (Exception e) {
+                IJ.error("Batch validation failed", e.getMessage());
+                return;
+            }
 
-            for (int i = 0; i < pairedUnits.size(); i++) {
-                final PairedUnit pair = pairedUnits.get(i);
-                final SegUnit seg = pair.getSegUnit();
-                final MeasUnit meas = pair.getMeasUnit();
-                final String pairBase = buildPairBaseName(pair, i);
-                final String segKey = buildSegUnitKey(seg);
-                final String segBase = buildSegmentationBaseName(seg);
-                final CachedSegmentationResult cachedSegmentation = segmentationCache.get(segKey);
-
-                // If a previous pairing already reviewed this exact RICM source, reuse
-                // that decision (continue/skip/abort plus any edited ROIs).
-                if (cachedSegmentation != null) {
-                    if (cachedSegmentation.isAbort()) {
-                        aborted = true;
-                        break;
-                    }
-                    if (cachedSegmentation.isSkip()) {
-                        skippedPairs++;
-                        IJ.log("[CellSegmentation Batch] Skip pair " + (i + 1) + " due to cached ROI skip: " + segKey);
-                        continue;
+            try {
+                for (int i = 0; i < pairedUnits.size(); i++) {
+                    final PairedUnit pair = pairedUnits.get(i);
+                    final SegUnit seg = pair.getSegUnit();
+                    final MeasUnit meas = pair.getMeasUnit();
+                    final String pairBase = buildPairBaseName(pair, i);
+                    final String segKey = buildSegUnitKey(seg);
+                    final String segBase = buildSegmentationBaseName(seg);
+                    final PairLog log = new PairLog();
+                    final OutputWriter.Group writes = outputs.group();
+                    final PairPlanes plan = plans.get(i);
+                    final CompletableFuture<CachedSegmentationResult> cachedSegmentation = segmentationCache.get(segKey);
+
+                    // If a previous pairing already reviewed this exact RICM source, reuse
+                    // that decision (continue/skip/abort plus any edited ROIs). Reviews run
+                    // on this thread, so a skip or abort is always complete by now.
+                    final CachedSegmentationResult decided = cachedSegmentation != null
+                            && !cachedSegmentation.isCompletedExceptionally()
+                            ? cachedSegmentation.getNow(null)
+                            : null;
+                    if (decided != null) {
+                        if (decided.isAbort()) {
+                            aborted = true;
+                            break;
+                        }
+                        if (decided.isSkip()) {
+                            log.log("[CellSegmentation Batch] Skip pair " + (i + 1) + " due to cached ROI skip: " + segKey);
+                            plan.planes.close();
+                            tracker.add(null, i, log, writes, PairTracker.result(PairStatus.SKIPPED));
+                            continue;
+                        }
                     }
-                }
-
-                ImagePlus segImp = null;
-                ImagePlus overlay = null;
-                CellSegmentationResult result = null;
 
-                try {
-                    IJ.showStatus("Cell Segmentation batch pair " + (i + 1) + "/" + pairedUnits.size());
-                    IJ.showProgress(i, pairedUnits.size());
-
-                    IJ.log("[CellSegmentation Batch] Pair " + (i + 1) + "/" + pairedUnits.size()
+                    log.log("[CellSegmentation Batch] Pair " + (i + 1) + "/" + pairedUnits.size()
                             + " mode=" + mode.name()
                             + " seg=" + seg.getSource().getName() + " S" + (seg.getSeriesIndex() + 1)
                             + " C" + (seg.getSegChannelIndex() + 1)
                             + " meas=" + meas.getSource().getName() + " S" + (meas.getSeriesIndex() + 1));
 
-                    CachedSegmentationResult finalSegmentation = cachedSegmentation;
-                    if (finalSegmentation == null) {
-                        // Load exactly one segmentation plane per unique RICM: series + channel, Z=0, T=0.
-                        segImp = reader.openPlane(seg.getSource(), seg.getSeriesIndex(), seg.getSegChannelIndex(), 0);
-                        final boolean stopForThreshold = shouldStopForThreshold(segKey, thresholdStopUsed);
-                        final ThresholdSelection thresholdSelection = chooseThresholdConfig(
-                                stopController,
-                                segImp,
-                                segKey,
-                                sharedThresholdConfig,
-                                stopForThreshold,
-                                i + 1,
-                                pairedUnits.size(),
-                                seg);
-
-                        if (thresholdSelection.isAbort()) {
-                            aborted = true;
-                            IJ.log("[CellSegmentation Batch] Aborted by user during threshold selection: " + segKey);
-                            segmentationCache.put(segKey, CachedSegmentationResult.abort());
-                            break;
-                        }
-                        if (thresholdSelection.isSkip()) {
-                            skippedPairs++;
-                            IJ.log("[CellSegmentation Batch] Skipping pair " + (i + 1) + " during threshold selection: " + segKey);
-                            segmentationCache.put(segKey, CachedSegmentationResult.skip());
-                            continue;
-                        }
+                    CompletableFuture<CachedSegmentationResult> segmentation = cachedSegmentation;
+                    CompletableFuture<CachedSegmentationResult> ownedSegmentation = null;
+                    ThresholdConfig pairThresholdConfig = null;
+                    final boolean stopForThreshold = segmentation == null
+                            && shouldStopForThreshold(segKey, thresholdStopUsed);
+
+                    if (segmentation == null && (stopForThreshold || isRoiReviewEnabled())) {
+                        // Pairs that stop for the user segment here, in pair order; only
+                        // their measurements go to the pool.
+                        ImagePlus segImp = null;
+                        CellSegmentationResult result = null;
+                        try {
+                            // Load exactly one segmentation plane per unique RICM: series + channel, Z=0, T=0.
+                            segImp = plan.segPlane(reader, seg);
+                            final ThresholdSelection thresholdSelection = chooseThresholdConfig(
+                                    stopController,
+                                    segImp,
+                                    p,
+                                    segKey,
+                                    sharedThresholdConfig,
+                                    stopForThreshold,
+                                    i + 1,
+                                    pairedUnits.size(),
+                                    seg);
+
+                            if (thresholdSelection.isAbort()) {
+                                aborted = true;
+                                log.log("[CellSegmentation Batch] Aborted by user during threshold selection: " + segKey);
+                                segmentationCache.put(segKey, CompletableFuture.completedFuture(CachedSegmentationResult.abort()));
+                                plan.planes.close();
+                                tracker.add(null, i, log, writes, PairTracker.result(PairStatus.ABORTED));
+                                break;
+                            }
+                            if (thresholdSelection.isSkip()) {
+                                log.log("[CellSegmentation Batch] Skipping pair " + (i + 1) + " during threshold selection: " + segKey);
+                                segmentationCache.put(segKey, CompletableFuture.completedFuture(CachedSegmentationResult.skip()));
+                                plan.planes.close();
+                                tracker.add(null, i, log, writes, PairTracker.result(PairStatus.SKIPPED));
+                                continue;
+                            }
 
-                        final ThresholdConfig pairThresholdConfig = thresholdSelection.getConfig();
-                        if (stopForThreshold && isThresholdStopOnce()) {
-                            sharedThresholdConfig = pairThresholdConfig;
-                            thresholdStopUsed = true;
-                        }
+                            final ThresholdConfig selectedConfig = thresholdSelection.getConfig();
+                            if (stopForThreshold && isThresholdStopOnce()) {
+                                sharedThresholdConfig = selectedConfig;
+                                thresholdStopUsed = true;
+                            }
 
-                        // Segmentation always runs before ROI review; ROI review can then
-                        // accept, modify, or reject the proposed ROI set.
-                        result = CellSegmentationPipeline.run(segImp, p, pairThresholdConfig);
-
-                        final Roi[] proposedRois = result.roiManager != null ? cloneRois(result.roiManager.getRoisAsArray()) : new Roi[0];
-                        finalSegmentation = resolveSegmentationResult(
-                                stopController,
-                                segKey,
-                                segImp,
-                                proposedRois,
-                                i + 1,
-                                pairedUnits.size(),
-                                seg);
-                        segmentationCache.put(segKey, finalSegmentation);
-
-                        if (finalSegmentation.isAbort()) {
-                            aborted = true;
-                            IJ.log("[CellSegmentation Batch] Aborted by user during ROI review: " + segKey);
-                            break;
-                        }
-                        if (finalSegmentation.isSkip()) {
-                            skippedPairs++;
-                            IJ.log("[CellSegmentation Batch] Skipping pair " + (i + 1) + " after ROI review: " + segKey);
+                            // Segmentation always runs before ROI review; ROI review can then
+                            // accept, modify, or reject the proposed ROI set.
+                            result = CellSegmentationPipeline.run(segImp, p, selectedConfig);
+
+                            final Roi[] proposedRois = result != null ? cloneRois(result.getRois()) : new Roi[0];
+                            final CachedSegmentationResult finalSegmentation = resolveSegmentationResult(
+                                    stopController,
+                                    segKey,
+                                    segImp,
+                                    proposedRois,
+                                    i + 1,
+                                    pairedUnits.size(),
+                                    seg);
+                            segmentationCache.put(segKey, CompletableFuture.completedFuture(finalSegmentation));
+
+                            if (finalSegmentation.isAbort()) {
+                                aborted = true;
+                                log.log("[CellSegmentation Batch] Aborted by user during ROI review: " + segKey);
+                                plan.planes.close();
+                                tracker.add(null, i, log, writes, PairTracker.result(PairStatus.ABORTED));
+                                break;
+                            }
+                            if (finalSegmentation.isSkip()) {
+                                log.log("[CellSegmentation Batch] Skipping pair " + (i + 1) + " after ROI review: " + segKey);
+                                plan.planes.close();
+                                tracker.add(null, i, log, writes, PairTracker.result(PairStatus.SKIPPED));
+                                continue;
+                            }
+
+                            // Without review the accepted set is the proposal, so a label-image
+                            // run can write its ROIs straight from the label contours.
+                            final LabelImage unreviewedLabels = !isRoiReviewEnabled() && result != null
+                                    ? result.labelImage
+                                    : null;
+                            saveSegmentationOutputs(writes, segImp, segBase, finalSegmentation.getRois(), unreviewedLabels);
+                            segmentation = segmentationCache.get(segKey);
+                        } catch (Exception pairEx) {
+                            plan.planes.close();
+                            tracker.add(null, i, log, writes, PairTracker.failure(pairEx));
                             continue;
+                        } finally {
+                            closeImage(result != null ? result.mask : null);
+                            closeImage(result != null ? result.labels : null);
+                            closeImage(segImp);
                         }
-
-                        saveSegmentationOutputs(segImp, segBase, finalSegmentation.getRois());
+                    } else if (segmentation == null) {
+                        // No stop-point for this RICM: the pair segments it on the pool, and
+                        // later pairs sharing it wait for that result instead of redoing it.
+                        pairThresholdConfig = chooseThresholdConfig(stopController, null, p, segKey,
+                                sharedThresholdConfig, false, i + 1, pairedUnits.size(), seg).getConfig();
+                        ownedSegmentation = new CompletableFuture<CachedSegmentationResult>();
+                        segmentationCache.put(segKey, ownedSegmentation);
+                        segmentation = ownedSegmentation;
                     }
 
-                    final Roi[] finalRois = finalSegmentation.getRois();
-
-                    if (saveMeasurements) {
-                        final SeriesMetadata measMeta = reader.getSeriesMetadata(meas.getSource(), meas.getSeriesIndex());
-                        final List<FrameSpec> frames = MeasurementPlan.planFrames(meas, measMeta);
-                        final boolean singleFrame = frames.size() == 1;
-
-                        for (FrameSpec frame : frames) {
-                            ImagePlus measImp = null;
+                    final CompletableFuture<CachedSegmentationResult> pairSegmentation = segmentation;
+                    final CompletableFuture<CachedSegmentationResult> pairOwnedSegmentation = ownedSegmentation;
+                    final ThresholdConfig pairConfig = pairThresholdConfig;
+                    final int pairIndex0 = i;
+                    tracker.add(pairPool, i, log, writes, new Callable<PairStatus>() {
+                        @Override
+                        public PairStatus call() throws Exception {
                             try {
-                                IJ.log("[CellSegmentation Batch] Measure pair=" + (i + 1)
-                                        + " file=" + meas.getSource().getName()
-                                        + " S" + (meas.getSeriesIndex() + 1)
-                                        + " C" + (frame.getChannelIndex() + 1)
-                                        + " T" + (frame.getTimeIndex() + 1));
-
-                                measImp = reader.openPlane(
-                                        meas.getSource(),
-                                        meas.getSeriesIndex(),
-                                        frame.getChannelIndex(),
-                                        frame.getTimeIndex());
-
-                                // Measurements always use the final accepted ROI set,
-                                // including any edits cached from a prior shared RICM.
-                                final ResultsTable measured = measureRoisOnImage(finalRois, measImp, measurements);
-                                final String frameSuffix = singleFrame
-                                        ? "_measurements.csv"
-                                        : "_C" + (frame.getChannelIndex() + 1)
-                                        + "_T" + (frame.getTimeIndex() + 1) + "_measurements.csv";
-                                measured.save(new File(outputDir, pairBase + frameSuffix).getAbsolutePath());
-                            } catch (Exception frameEx) {
-                                throw new RuntimeException("Measurement failed for file=" + meas.getSource().getName()
-                                        + " series=" + (meas.getSeriesIndex() + 1)
-                                        + " channel=" + (frame.getChannelIndex() + 1)
-                                        + " time=" + (frame.getTimeIndex() + 1), frameEx);
+                                if (pairOwnedSegmentation != null) {
+                                    segmentAndSave(plan, reader, seg, writes, segBase, p, pairConfig,
+                                            pairOwnedSegmentation);
+                                }
+                                final Roi[] finalRois = awaitSegmentation(pairSegmentation).getRois();
+
+                                if (saveMeasurements) {
+                                    // Measurements always use the final accepted ROI set,
+                                    // including any edits cached from a prior shared RICM.
+                                    measureFrames(plan.planes, meas, plan.measMeta, plan.frames, finalRois,
+                                            measurementFlags, pairBase, measurePool, frameBuffers, writes, log,
+                                            pairIndex0);
+                                }
                             } finally {
-                                closeImage(measImp);
+                                plan.planes.close();
                             }
+                            return PairStatus.PROCESSED;
                         }
-                    }
-
-                    processedPairs++;
-
-                } catch (Exception pairEx) {
-                    failedPairs++;
-                    IJ.log("[CellSegmentation Batch] ERROR pair " + (i + 1) + ": " + pairEx.getMessage());
-                    IJ.handleException(pairEx);
-                } finally {
-                    closeImage(overlay);
-                    closeImage(result != null ? result.mask : null);
-                    closeImage(result != null ? result.labels : null);
-                    closeImage(segImp);
+                    });
                 }
+                tracker.finish();
+                outputs.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                aborted = true;
+                IJ.log("[CellSegmentation Batch] Interrupted; pairs still running were cancelled.");
             }
 
             IJ.showProgress(1.0);
             IJ.showStatus(aborted ? "Batch Cell Segmentation aborted." : "Batch Cell Segmentation complete.");
-            IJ.log("[CellSegmentation Batch] Done. processedPairs=" + processedPairs
-                    + " failedPairs=" + failedPairs
-                    + " skippedPairs=" + skippedPairs
+            final PlaneCache planeCache = reader.getPlaneCache();
+            if (planeCache.isEnabled()) {
+                IJ.log("[CellSegmentation Batch] Plane cache hits=" + planeCache.getHits()
+                        + " misses=" + planeCache.getMisses()
+                        + " evictions=" + planeCache.getEvictions());
+            }
+            IJ.log("[CellSegmentation Batch] Done. processedPairs=" + tracker.processed
+                    + " failedPairs=" + tracker.failed
+                    + " skippedPairs=" + tracker.skipped
                     + " aborted=" + aborted);
         } finally {
             if (stopController != null) {
                 stopController.dispose();
             }
-            Prefs.blackBackground = prevBlackBg;
+            if (pairPool != null) {
+                pairPool.shutdownNow();
+            }
+            if (prefetcher != null) {
+                // Planes of pairs that never ran (after an abort) are still in the plan.
+                prefetcher.close();
+            }
+            if (readPool != null) {
+                readPool.shutdownNow();
+            }
+            if (outputs != null) {
+                try {
+                    outputs.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (planeReader != null) {
+                // After a normal run every read has finished; on an early exit a read
+                // still running on a pool thread just fails.
+                planeReader.close();
+            }
+            if (framePool != null) {
+                framePool.shutdownNow();
+            }
         }
     }
 
@@ -516,20 +692,193 @@ public class CellSegmentationCommand_Batch implements Command {
         }
     }
 
-    private static ResultsTable measureRoisOnImage(Roi[] rois, ImagePlus image, int measurements) {
-        final ResultsTable rt = new ResultsTable();
+    /**
+     * Every plane the batch will read, pair by pair in the order the pairs take them:
+     * the RICM plane for the first pair of each unique RICM source, then the pair's
+     * measurement frames. Handed to the reader stage up front so it can read across
+     * pair boundaries.
+     */
+    private List<PairPlanes> planPairs(
+            List<PairedUnit> pairs,
+            BioFormatsPlaneReader reader,
+            PlanePrefetcher prefetcher,
+            PlaneBufferPool frameBuffers) throws Exception {
+        final List<PairPlanes> plans = new ArrayList<PairPlanes>(pairs.size());
+        final Set<String> segKeys = new HashSet<String>();
+        for (PairedUnit pair : pairs) {
+            final SegUnit seg = pair.getSegUnit();
+            final MeasUnit meas = pair.getMeasUnit();
+            final SeriesMetadata measMeta = reader.getSeriesMetadata(meas.getSource(), meas.getSeriesIndex());
+            final List<FrameSpec> frames = saveMeasurements
+                    ? MeasurementPlan.planFrames(meas, measMeta)
+                    : new ArrayList<FrameSpec>();
+            final List<Callable<ImagePlus>> reads = new ArrayList<Callable<ImagePlus>>();
+            // Later pairs sharing a RICM reuse its cached segmentation, so only the first reads it.
+            final boolean segPlanned = segKeys.add(buildSegUnitKey(seg));
+            if (segPlanned) {
+                // Exactly one segmentation plane per unique RICM: series + channel, Z=0, T=0.
+                reads.add(PlanePrefetcher.plane(reader, seg.getSource(), seg.getSeriesIndex(),
+                        seg.getSegChannelIndex(), 0, null));
+            }
+            for (FrameSpec frame : frames) {
+                reads.add(PlanePrefetcher.plane(reader, meas.getSource(), meas.getSeriesIndex(),
+                        frame.getChannelIndex(), frame.getTimeIndex(), frameBuffers));
+            }
+            plans.add(new PairPlanes(measMeta, frames, segPlanned, prefetcher.add(reads)));
+        }
+        return plans;
+    }
+
+    /**
+     * Measures every frame of a pair against one ROI set. The ROIs are indexed into label
+     * spans once, outline columns are computed once and shared, and each frame then only
+     * costs a pass over the labelled pixels. Planes come from the reader stage in plan
+     * order and each frame's CSV goes to the writer stage. With a frame pool, up to
+     * {@code parallelFrames} frames are measured at once. Frames are logged in plan order
+     * before they run, so the log does not depend on which finishes first.
+     */
+    private void measureFrames(
+            PlanePrefetcher.Sequence planes,
+            final MeasUnit meas,
+            SeriesMetadata measMeta,
+            List<FrameSpec> frames,
+            Roi[] finalRois,
+            final int measurements,
+            final String pairBase,
+            ExecutorService framePool,
+            final PlaneBufferPool buffers,
+            final OutputWriter.Group writes,
+            PairLog log,
+            int pairIndex0) throws Exception {
+        final boolean singleFrame = frames.size() == 1;
+        final Roi[] rois = nonNullRois(finalRois);
+        final int w = measMeta.getSizeX();
+        final int h = measMeta.getSizeY();
+        // Null means overlapping ROIs, which are measured with Analyzer instead.
+        final int[] roiLabels = LabelMeasurements.rasterize(rois, w, h);
+        final LabelSpans spans = roiLabels != null ? LabelSpans.fromLabels(roiLabels, w, h, rois.length) : null;
+        final SharedOutlineColumns outline = spans != null
+                ? new SharedOutlineColumns(rois, spans, measurements, RowBands.pool(threads))
+                : null;
+
+        if (framePool == null || singleFrame) {
+            for (FrameSpec frame : frames) {
+                log.log(buildMeasureLogLine(meas, frame, pairIndex0));
+                measureFrame(readFrame(planes, meas, frame), meas, frame, singleFrame, rois, spans, outline,
+                        measurements, pairBase, buffers, writes);
+            }
+            return;
+        }
+
+        // Planes already read wait in the reader stage, not in the frame pool's queue.
+        final Semaphore measuring = new Semaphore(parallelFrames);
+        final List<Future<?>> pending = new ArrayList<Future<?>>(frames.size());
+        try {
+            for (final FrameSpec frame : frames) {
+                log.log(buildMeasureLogLine(meas, frame, pairIndex0));
+                measuring.acquire();
+                final ImagePlus measImp;
+                try {
+                    measImp = readFrame(planes, meas, frame);
+                } catch (Exception e) {
+                    measuring.release();
+                    throw e;
+                }
+                pending.add(framePool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            measureFrame(measImp, meas, frame, false, rois, spans, outline, measurements, pairBase,
+                                    buffers, writes);
+                        } finally {
+                            measuring.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        } finally {
+            // On failure, frames that have not started are dropped like the serial loop would.
+            for (Future<?> future : pending) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static ImagePlus readFrame(PlanePrefetcher.Sequence planes, MeasUnit meas, FrameSpec frame) {
+        try {
+            return planes.next();
+        } catch (Exception readEx) {
+            throw frameFailure(meas, frame, readEx);
+        }
+    }
+
+    private void measureFrame(
+            ImagePlus measImp,
+            MeasUnit meas,
+            FrameSpec frame,
+            boolean singleFrame,
+            Roi[] rois,
+            LabelSpans spans,
+            SharedOutlineColumns outline,
+            int measurements,
+            String pairBase,
+            PlaneBufferPool buffers,
+            OutputWriter.Group writes) {
+        try {
+            final ResultsTable measured = measureRoisOnImage(rois, spans, outline, measImp, measurements);
+            final String frameSuffix = singleFrame
+                    ? "_measurements.csv"
+                    : "_C" + (frame.getChannelIndex() + 1)
+                    + "_T" + (frame.getTimeIndex() + 1) + "_measurements.csv";
+            writes.table(measured, new File(outputDir, pairBase + frameSuffix));
+        } catch (Exception frameEx) {
+            throw frameFailure(meas, frame, frameEx);
+        } finally {
+            // Only numbers are kept from the frame, so its pixels can be reused.
+            buffers.release(measImp);
+        }
+    }
+
+    private static RuntimeException frameFailure(MeasUnit meas, FrameSpec frame, Exception cause) {
+        return new RuntimeException("Measurement failed for file=" + meas.getSource().getName()
+                + " series=" + (meas.getSeriesIndex() + 1)
+                + " channel=" + (frame.getChannelIndex() + 1)
+                + " time=" + (frame.getTimeIndex() + 1), cause);
+    }
+
+    private static String buildMeasureLogLine(MeasUnit meas, FrameSpec frame, int pairIndex0) {
+        return "[CellSegmentation Batch] Measure pair=" + (pairIndex0 + 1)
+                + " file=" + meas.getSource().getName()
+                + " S" + (meas.getSeriesIndex() + 1)
+                + " C" + (frame.getChannelIndex() + 1)
+                + " T" + (frame.getTimeIndex() + 1);
+    }
+
+    private static ResultsTable measureRoisOnImage(
+            Roi[] rois, LabelSpans spans, SharedOutlineColumns outline, ImagePlus image, int measurements) {
         if (image == null) {
+            return new ResultsTable();
+        }
+        final ImageProcessor ip = image.getProcessor();
+        if (spans != null && spans.width == ip.getWidth() && spans.height == ip.getHeight()
+                && LabelMeasurements.supports(ip, measurements)) {
+            final ResultsTable rt = LabelMeasurements.measure(spans, ip, measurements, image.getCalibration());
+            LabelMeasurements.copyOutlineColumns(outline.get(image), rt);
             return rt;
         }
 
         // Analyzer measures whichever ROI is currently set on the image, so we replay
         // the ROI array one-by-one against a fresh table.
+        final ResultsTable rt = new ResultsTable();
         final Analyzer analyzer = new Analyzer(image, measurements, rt);
-        final Roi[] safeRois = rois != null ? rois : new Roi[0];
-        for (Roi roi : safeRois) {
-            if (roi == null) {
-                continue;
-            }
+        for (Roi roi : rois) {
             image.setRoi(roi);
             analyzer.measure();
         }
@@ -537,6 +886,20 @@ public class CellSegmentationCommand_Batch implements Command {
         return rt;
     }
 
+    /** Drops null entries so table rows line up with label numbers. */
+    private static Roi[] nonNullRois(Roi[] rois) {
+        if (rois == null) {
+            return new Roi[0];
+        }
+        final List<Roi> out = new ArrayList<Roi>(rois.length);
+        for (Roi roi : rois) {
+            if (roi != null) {
+                out.add(roi);
+            }
+        }
+        return out.toArray(new Roi[0]);
+    }
+
     private String buildPairBaseName(PairedUnit pair, int pairIndex0) {
         final SegUnit seg = pair.getSegUnit();
         final MeasUnit meas = pair.getMeasUnit();
@@ -595,29 +958,6 @@ public class CellSegmentationCommand_Batch implements Command {
         return meas;
     }
 
-    private static void saveImage(ImagePlus imp, File out) {
-        if (imp == null || out == null) return;
-        FileSaver saver = new FileSaver(imp);
-        saver.saveAsTiff(out.getAbsolutePath());
-    }
-
-    private static void saveRois(Roi[] rois, File out) {
-        if (out == null) return;
-        // Use a temporary hidden manager for ZIP export so we do not disturb the shared
-        // on-screen ROI Manager used during interactive review.
-        final RoiManager roiManager = new RoiManager(false);
-        try {
-            for (Roi roi : cloneRois(rois)) {
-                if (roi != null) {
-                    roiManager.addRoi(roi);
-                }
-            }
-            roiManager.runCommand("Save", out.getAbsolutePath());
-        } finally {
-            roiManager.close();
-        }
-    }
-
     private static void closeImage(ImagePlus imp) {
         if (imp == null) return;
         if (imp.getWindow() != null && !SwingUtilities.isEventDispatchThread()) {
@@ -669,6 +1009,7 @@ public class CellSegmentationCommand_Batch implements Command {
     private ThresholdSelection chooseThresholdConfig(
             BatchStopController stopController,
             ImagePlus segImp,
+            CellSegmentationParams p,
             String segKey,
             ThresholdConfig currentConfig,
             boolean shouldStop,
@@ -688,7 +1029,7 @@ public class CellSegmentationCommand_Batch implements Command {
             return ThresholdSelection.continueWith(currentConfig);
         }
 
-        final ImagePlus preview = CellSegmentationPipeline.prepareThresholdPreview(segImp, EdgeDetector.fromLabel(edgeMethod), true);
+        final ImagePlus preview = CellSegmentationPipeline.prepareThresholdPreview(segImp, p, true);
         try {
             preview.setTitle(buildThresholdImageTitle(pairIndex1, totalPairs, seg));
             final BatchStopController.ThresholdSelectionResult selected = stopController.maybeSelectThreshold(
@@ -736,40 +1077,87 @@ public class CellSegmentationCommand_Batch implements Command {
         return CachedSegmentationResult.continueWith(reviewed.getRois());
     }
 
-    private void saveSegmentationOutputs(ImagePlus segImp, String segBase, Roi[] finalRois) {
+    /**
+     * Segments one RICM source without stop-points and publishes the result to
+     * {@code segmentation} as soon as it exists, so pairs waiting on the same source can
+     * measure while the outputs are still being written.
+     */
+    private void segmentAndSave(
+            PairPlanes plan,
+            BioFormatsPlaneReader reader,
+            SegUnit seg,
+            OutputWriter.Group writes,
+            String segBase,
+            CellSegmentationParams p,
+            ThresholdConfig config,
+            CompletableFuture<CachedSegmentationResult> segmentation) throws Exception {
+        ImagePlus segImp = null;
+        CellSegmentationResult result = null;
+        try {
+            segImp = plan.segPlane(reader, seg);
+            result = CellSegmentationPipeline.run(segImp, p, config);
+            final CachedSegmentationResult finalSegmentation = CachedSegmentationResult.continueWith(
+                    result != null ? result.getRois() : null);
+            segmentation.complete(finalSegmentation);
+            saveSegmentationOutputs(writes, segImp, segBase, finalSegmentation.getRois(),
+                    result != null ? result.labelImage : null);
+        } catch (Throwable t) {
+            // Waiting pairs must never block on a segmentation that will not come.
+            segmentation.completeExceptionally(t);
+            throw t instanceof Exception ? (Exception) t : new RuntimeException(t);
+        } finally {
+            closeImage(result != null ? result.mask : null);
+            closeImage(result != null ? result.labels : null);
+            closeImage(segImp);
+        }
+    }
+
+    private static CachedSegmentationResult awaitSegmentation(Future<CachedSegmentationResult> segmentation)
+            throws Exception {
+        try {
+            return segmentation.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Builds the segmentation outputs of one RICM source and hands them to the writer
+     * stage, which owns the images from then on.
+     */
+    private void saveSegmentationOutputs(
+            OutputWriter.Group writes,
+            ImagePlus segImp,
+            String segBase,
+            Roi[] finalRois,
+            LabelImage labelImage) throws InterruptedException {
         if ((!saveMask && !saveLabels && !saveLabelOverlay && !saveRois) || segImp == null) {
             return;
         }
 
-        ImagePlus outputMask = null;
-        ImagePlus outputLabels = null;
-        ImagePlus outputOverlay = null;
-        try {
-            if (saveMask || saveLabelOverlay) {
-                outputMask = CellSegmentationPipeline.buildMaskFromRois(finalRois, segImp.getWidth(), segImp.getHeight());
-            }
-            if (saveLabels || saveLabelOverlay) {
-                outputLabels = CellSegmentationPipeline.buildLabelsFromRois(finalRois, segImp.getWidth(), segImp.getHeight(), labelsLut);
-            }
-            if (saveMask && outputMask != null) {
-                saveImage(outputMask, new File(outputDir, segBase + "_mask.tif"));
-            }
-            if (saveLabels && outputLabels != null) {
-                saveImage(outputLabels, new File(outputDir, segBase + "_labels.tif"));
-            }
-            if (saveLabelOverlay && outputLabels != null) {
-                outputOverlay = CellSegmentationPipeline.createLabelOverlay(segImp, outputLabels, labelsLut);
-                if (outputOverlay != null) {
-                    saveImage(outputOverlay, new File(outputDir, segBase + "_overlay.tif"));
-                }
-            }
-            if (saveRois) {
-                saveRois(finalRois, new File(outputDir, segBase + "_rois.zip"));
+        if (saveMask) {
+            writes.tiff(CellSegmentationPipeline.buildMaskFromRois(finalRois, segImp.getWidth(), segImp.getHeight()),
+                    new File(outputDir, segBase + "_mask.tif"));
+        }
+        if (saveLabels || saveLabelOverlay) {
+            final ImagePlus outputLabels = CellSegmentationPipeline.buildLabelsFromRois(
+                    finalRois, segImp.getWidth(), segImp.getHeight(), labelsLut);
+            // The overlay reads the labels, so it is built before they are handed over.
+            final ImagePlus outputOverlay = saveLabelOverlay && outputLabels != null
+                    ? CellSegmentationPipeline.createLabelOverlay(segImp, outputLabels, labelsLut, RowBands.pool(threads))
+                    : null;
+            if (saveLabels) {
+                writes.tiff(outputLabels, new File(outputDir, segBase + "_labels.tif"));
+            } else {
+                closeImage(outputLabels);
             }
-        } finally {
-            closeImage(outputOverlay);
-            closeImage(outputLabels);
-            closeImage(outputMask);
+            writes.tiff(outputOverlay, new File(outputDir, segBase + "_overlay.tif"));
+        }
+        if (saveRois) {
+            // Written directly as a ZIP; no hidden RoiManager, so the shared on-screen one
+            // used during interactive review is never touched.
+            writes.rois(finalRois, labelImage, new File(outputDir, segBase + "_rois.zip"));
         }
     }
 
@@ -812,6 +1200,232 @@ public class CellSegmentationCommand_Batch implements Command {
         return cloned;
     }
 
+    /**
+     * Outline columns for one ROI set, computed on the first frame and reused by the
+     * rest: they depend only on the ROIs and the calibration, which frames of a series
+     * share. Unedited traced ROIs are measured from their labels; any other ROI set
+     * (reviewed, drawn or composite ROIs) goes through Analyzer so the values follow the
+     * ROI outlines rather than the labels rasterized from them.
+     */
+    private static final class SharedOutlineColumns {
+        private final Roi[] rois;
+        private final LabelSpans spans;
+        private final int measurements;
+        private final ForkJoinPool pool;
+        private final boolean fromLabels;
+        private Calibration calibration;
+        private ResultsTable table;
+
+        private SharedOutlineColumns(Roi[] rois, LabelSpans spans, int measurements, ForkJoinPool pool) {
+            this.rois = rois;
+            this.spans = spans;
+            this.measurements = measurements;
+            this.pool = pool;
+            this.fromLabels = LabelMeasurements.outlinesMatchLabels(rois, spans);
+        }
+
+        private synchronized ResultsTable get(ImagePlus image) {
+            final Calibration cal = image.getCalibration();
+            if (calibration == null || !calibration.equals(cal)) {
+                table = fromLabels
+                        ? LabelShapes.measure(spans, measurements, cal, pool)
+                        : measureOutlines(cal);
+                calibration = cal.copy();
+            }
+            return table;
+        }
+
+        private ResultsTable measureOutlines(Calibration cal) {
+            final int outlineMeasurements = measurements & LabelMeasurements.OUTLINE_MEASUREMENTS;
+            if (outlineMeasurements == 0) {
+                return null;
+            }
+            // Outline columns ignore pixel values, so a blank plane of the same size will do.
+            final ImagePlus view = new ImagePlus("outlines", new ByteProcessor(spans.width, spans.height));
+            view.setCalibration(cal);
+            final ResultsTable rt = new ResultsTable();
+            final Analyzer analyzer = new Analyzer(view, outlineMeasurements, rt);
+            for (Roi roi : rois) {
+                view.setRoi(roi);
+                analyzer.measure();
+            }
+            return rt;
+        }
+    }
+
+    /** The planes one pair reads, as planned by {@link #planPairs}. */
+    private static final class PairPlanes {
+        private final SeriesMetadata measMeta;
+        private final List<FrameSpec> frames;
+        private final boolean segPlanned;
+        private final PlanePrefetcher.Sequence planes;
+
+        private PairPlanes(SeriesMetadata measMeta, List<FrameSpec> frames, boolean segPlanned,
+                           PlanePrefetcher.Sequence planes) {
+            this.measMeta = measMeta;
+            this.frames = frames;
+            this.segPlanned = segPlanned;
+            this.planes = planes;
+        }
+
+        /**
+         * The RICM plane: the planned read, or a direct one when an earlier pair was
+         * planned to segment this RICM but failed before caching a result.
+         */
+        private ImagePlus segPlane(BioFormatsPlaneReader reader, SegUnit seg) throws Exception {
+            if (segPlanned) {
+                return planes.next();
+            }
+            return reader.openPlane(seg.getSource(), seg.getSeriesIndex(), seg.getSegChannelIndex(), 0);
+        }
+    }
+
+    private enum PairStatus {
+        PROCESSED,
+        FAILED,
+        SKIPPED,
+        ABORTED
+    }
+
+    /**
+     * Log lines of one pair. Lines are held back until every earlier pair has been
+     * reported, then written in order; after that they pass straight through, so the
+     * pair being waited on still logs live.
+     */
+    private static final class PairLog {
+        private List<String> held = new ArrayList<String>();
+
+        private synchronized void log(String line) {
+            if (held != null) {
+                held.add(line);
+            } else {
+                IJ.log(line);
+            }
+        }
+
+        private synchronized void release() {
+            if (held == null) return;
+            for (String line : held) {
+                IJ.log(line);
+            }
+            held = null;
+        }
+    }
+
+    /**
+     * Pairs in submission order. Pairs may finish in any order on the pool, but their
+     * logs, progress and counters are reported strictly in pair order. A pair is only
+     * reported once its outputs are on disk, and a failed write fails the pair. At most
+     * {@code window} unreported pairs are in flight, so a long batch does not queue
+     * every pair up front.
+     */
+    private static final class PairTracker {
+        private final ArrayDeque<PairJob> jobs = new ArrayDeque<PairJob>();
+        private final int totalPairs;
+        private final int window;
+        private int processed;
+        private int failed;
+        private int skipped;
+
+        private PairTracker(int totalPairs, int window) {
+            this.totalPairs = totalPairs;
+            this.window = window;
+        }
+
+        private static Callable<PairStatus> result(final PairStatus status) {
+            return new Callable<PairStatus>() {
+                @Override
+                public PairStatus call() {
+                    return status;
+                }
+            };
+        }
+
+        private static Callable<PairStatus> failure(final Exception e) {
+            return new Callable<PairStatus>() {
+                @Override
+                public PairStatus call() throws Exception {
+                    throw e;
+                }
+            };
+        }
+
+        /** Runs {@code work} on {@code pool}, or right here if there is none. */
+        private void add(ExecutorService pool, int pairIndex0, PairLog log, OutputWriter.Group writes,
+                         Callable<PairStatus> work) throws InterruptedException {
+            final FutureTask<PairStatus> task = new FutureTask<PairStatus>(work);
+            jobs.add(new PairJob(pairIndex0, log, writes, task));
+            if (pool != null) {
+                pool.execute(task);
+            } else {
+                task.run();
+            }
+            while (!jobs.isEmpty() && (jobs.peek().isDone() || jobs.size() > window)) {
+                report(jobs.poll());
+            }
+            if (!jobs.isEmpty()) {
+                start(jobs.peek());
+            }
+        }
+
+        private void finish() throws InterruptedException {
+            while (!jobs.isEmpty()) {
+                report(jobs.poll());
+            }
+        }
+
+        private void start(PairJob job) {
+            if (job.started) return;
+            job.started = true;
+            IJ.showStatus("Cell Segmentation batch pair " + (job.pairIndex0 + 1) + "/" + totalPairs);
+            IJ.showProgress(job.pairIndex0, totalPairs);
+            job.log.release();
+        }
+
+        private void report(PairJob job) throws InterruptedException {
+            start(job);
+            Throwable error = null;
+            try {
+                final PairStatus status = job.task.get();
+                job.writes.await();
+                if (status == PairStatus.PROCESSED) {
+                    processed++;
+                } else if (status == PairStatus.SKIPPED) {
+                    skipped++;
+                }
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            } catch (IOException e) {
+                error = e;
+            }
+            if (error != null) {
+                failed++;
+                IJ.log("[CellSegmentation Batch] ERROR pair " + (job.pairIndex0 + 1) + ": " + error.getMessage());
+                IJ.handleException(error);
+            }
+        }
+    }
+
+    private static final class PairJob {
+        private final int pairIndex0;
+        private final PairLog log;
+        private final OutputWriter.Group writes;
+        private final FutureTask<PairStatus> task;
+        private boolean started;
+
+        private PairJob(int pairIndex0, PairLog log, OutputWriter.Group writes, FutureTask<PairStatus> task) {
+            this.pairIndex0 = pairIndex0;
+            this.log = log;
+            this.writes = writes;
+            this.task = task;
+        }
+
+        /** Computed and written; checked in that order, as no writes follow the task. */
+        private boolean isDone() {
+            return task.isDone() && writes.isDone();
+        }
+    }
+
     private static final class CachedSegmentationResult {
         private final BatchStopController.RoiReviewAction action;
         private final Roi[] rois;
@@ -14,6 +14,17 @@ public final class CellSegmentationParams {
     public final String labelsLut;
     public final boolean showResultsTable;
     public final boolean showRoiManager;
+    public final EdgeFilter.Magnitude gradientMagnitude;
+    /** Worker threads for plane-level parallel stages; 0 uses all cores. */
+    public final int threads;
+    /** Adaptive threshold settings; null keeps the global auto/manual threshold. */
+    public final LocalThreshold.Settings localThreshold;
+    /** EDT maxima must stand out by more than this to seed their own object. */
+    public final double watershedTolerance;
+    /** Which watershed splits touching objects; ImageJ's Binary &gt; Watershed by default. */
+    public final Watershed.Method watershedMethod;
+    /** Build labels straight from the mask and trace ROIs only on request (no ParticleAnalyzer). */
+    public final boolean labelImageFirst;
 
     public CellSegmentationParams(
             int minArea,
@@ -28,6 +39,31 @@ public final class CellSegmentationParams {
             String labelsLut,
             boolean showResultsTable,
             boolean showRoiManager) {
+        this(minArea, thrMethod, darkObjects, pauseThreshold, showSteps, showLabelOverlay, clearRM,
+                edgeDetector, measurements, labelsLut, showResultsTable, showRoiManager,
+                EdgeFilter.Magnitude.EUCLIDEAN, 0, null, Watershed.DEFAULT_TOLERANCE,
+                Watershed.Method.IMAGEJ, false);
+    }
+
+    public CellSegmentationParams(
+            int minArea,
+            String thrMethod,
+            boolean darkObjects,
+            boolean pauseThreshold,
+            boolean showSteps,
+            boolean showLabelOverlay,
+            boolean clearRM,
+            EdgeDetector edgeDetector,
+            int measurements,
+            String labelsLut,
+            boolean showResultsTable,
+            boolean showRoiManager,
+            EdgeFilter.Magnitude gradientMagnitude,
+            int threads,
+            LocalThreshold.Settings localThreshold,
+            double watershedTolerance,
+            Watershed.Method watershedMethod,
+            boolean labelImageFirst) {
 
         this.minArea = minArea;
         this.thrMethod = thrMethod;
@@ -41,5 +77,11 @@ public final class CellSegmentationParams {
         this.labelsLut = labelsLut;
         this.showResultsTable = showResultsTable;
         this.showRoiManager = showRoiManager;
+        this.gradientMagnitude = gradientMagnitude != null ? gradientMagnitude : EdgeFilter.Magnitude.EUCLIDEAN;
+        this.threads = Math.max(0, threads);
+        this.localThreshold = localThreshold;
+        this.watershedTolerance = Math.max(0.0, watershedTolerance);
+        this.watershedMethod = watershedMethod != null ? watershedMethod : Watershed.Method.IMAGEJ;
+        this.labelImageFirst = labelImageFirst;
     }
 }
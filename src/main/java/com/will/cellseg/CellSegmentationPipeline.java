@@ -8,13 +8,8 @@ import ij.CompositeImage;
 import ij.measure.ResultsTable;
 import ij.plugin.Duplicator;
 import ij.plugin.filter.Analyzer;
-import ij.plugin.filter.ParticleAnalyzer;
 import ij.plugin.frame.RoiManager;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageConverter;
-import ij.process.ColorProcessor;
-import ij.process.ShortProcessor;
 import ij.ImageStack;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
@@ -25,6 +20,7 @@ import java.awt.Window;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import ij.process.ByteProcessor;
@@ -39,46 +35,10 @@ public final class CellSegmentationPipeline {
 
     private CellSegmentationPipeline() {}
 
-    private static final float[] SOBEL_X = {
-            -1, 0, 1,
-            -2, 0, 2,
-            -1, 0, 1
-    };
-    private static final float[] SOBEL_Y = {
-            -1, -2, -1,
-             0,  0,  0,
-             1,  2,  1
-    };
-    private static final float[] PREWITT_X = {
-            -1, 0, 1,
-            -1, 0, 1,
-            -1, 0, 1
-    };
-    private static final float[] PREWITT_Y = {
-            -1, -1, -1,
-             0,  0,  0,
-             1,  1,  1
-    };
-    private static final float[] SCHARR_X = {
-            -3, 0, 3,
-            -10, 0, 10,
-            -3, 0, 3
-    };
-    private static final float[] SCHARR_Y = {
-            -3, -10, -3,
-             0,   0,  0,
-             3,  10,  3
-    };
-    private static final float[] LAPLACIAN_3X3 = {
-             0, -1,  0,
-            -1,  4, -1,
-             0, -1,  0
-    };
-
     public static CellSegmentationResult run(ImagePlus imp, CellSegmentationParams p) {
         // The simple entry point derives a reusable threshold config from the command
         // parameters, then delegates to the more general overload used by batch mode.
-        return run(imp, p, ThresholdConfig.auto(p.thrMethod, p.darkObjects));
+        return run(imp, p, ThresholdConfig.forParams(p));
     }
 
     public static CellSegmentationResult run(ImagePlus imp, CellSegmentationParams p, ThresholdConfig thresholdConfig) {
@@ -87,13 +47,24 @@ public final class CellSegmentationPipeline {
             return new CellSegmentationResult(null, null, 0, null, null);
         }
 
+        if (!p.pauseThreshold && !p.showSteps && canSegmentHeadless(imp, thresholdConfig)) {
+            // Nothing to show or pause on: the engine segments the plane's arrays directly
+            // and only the final mask becomes an image again.
+            final ThresholdConfig config = thresholdConfig != null
+                    ? thresholdConfig
+                    : ThresholdConfig.auto("Default", true);
+            final byte[] mask = SegmentationEngine.mask(
+                    SegmentationEngine.Plane.of(imp.getProcessor()), p, config, RowBands.pool(p.threads));
+            return completeFromMask(maskImage(mask, imp.getWidth(), imp.getHeight()), imp, p);
+        }
+
         // Threshold preview and segmentation are done on a duplicate so the source image
         // stays untouched and can still be used for intensity measurements.
         // Show work image only if threshold UI needs a window, or if user wants steps.
         final boolean showWork = p.pauseThreshold || p.showSteps;
 
         // Work on a duplicate so the original image stays untouched.
-        ImagePlus work = prepareThresholdPreview(imp, p.edgeDetector, showWork);
+        ImagePlus work = prepareThresholdPreview(imp, p, showWork);
 
         // Capture gradient *now*, but do not show it yet (avoid breaking threshold pause)
         ImagePlus gradientSnap = null;
@@ -106,10 +77,23 @@ public final class CellSegmentationPipeline {
     }
 
     public static ImagePlus prepareThresholdPreview(ImagePlus imp, EdgeDetector edgeDetector, boolean show) {
+        return prepareThresholdPreview(imp, edgeDetector, EdgeFilter.Magnitude.EUCLIDEAN, 0, show);
+    }
+
+    public static ImagePlus prepareThresholdPreview(ImagePlus imp, CellSegmentationParams p, boolean show) {
+        return prepareThresholdPreview(imp, p.edgeDetector, p.gradientMagnitude, p.threads, show);
+    }
+
+    private static ImagePlus prepareThresholdPreview(
+            ImagePlus imp,
+            EdgeDetector edgeDetector,
+            EdgeFilter.Magnitude magnitude,
+            int threads,
+            boolean show) {
         // Batch mode uses this to stop after edge detection but before thresholding.
         // That mirrors the same logical stop-point used in the interactive pipeline.
         ImagePlus work = duplicateForProcessing(imp, show);
-        applyEdgeDetector(work, edgeDetector);
+        applyEdgeDetector(work, edgeDetector, magnitude, RowBands.pool(threads));
         // Gradient images often start with stale display limits inherited from the
         // source image, so reset them to the actual gradient dynamic range.
         autoAdjustDisplayRange(work);
@@ -137,6 +121,12 @@ public final class CellSegmentationPipeline {
             return fallback;
         }
 
+        if (fallback != null && fallback.isLocal()) {
+            // A local preview is already binary, so slider positions on it say nothing
+            // about the gradient image; keep the adaptive settings.
+            return fallback;
+        }
+
         final ThresholdConfig base = fallback != null ? fallback : ThresholdConfig.auto("Default", true);
         return ThresholdConfig.manual(base.getMethod(), base.isDarkObjects(), minThreshold, maxThreshold);
     }
@@ -178,13 +168,13 @@ public final class CellSegmentationPipeline {
         // From this point on, `work` is the full segmentation scratch image and `imp`
         // remains the untouched source used for measurements/overlays.
         // 2) Threshold + optional pause
-        if (!applyThreshold(work, thresholdConfig, pauseThreshold)) {
+        if (!applyThreshold(work, thresholdConfig, pauseThreshold, RowBands.pool(p.threads))) {
             closeIfVisible(work);
             return new CellSegmentationResult(null, null, 0, null, null);
         }
 
         // Convert current threshold to a binary mask.
-        IJ.run(work, "Convert to Mask", "");
+        convertToMask(work, RowBands.pool(p.threads));
         // Now safe to show Gradient (Step 1)
         if (gradientSnap != null) gradientSnap.show();
 
@@ -192,14 +182,12 @@ public final class CellSegmentationPipeline {
         showStepSnapshot(work, "2 - Edge Mask", p.showSteps);
 
         // 3) Fill holes and close small gaps while preserving edge structure.
-        ImagePlus filled = fillEdgeOpenHolesHybrid(work);
-        work.setProcessor(filled.getProcessor().duplicate());
-        closeAlways(filled);
+        fillEdgeOpenHolesInPlace(work);
         // Show Edge Mask Filled
         showStepSnapshot(work, "3 - Edge Mask Filled", p.showSteps);
 
         // 4) Watershed
-        IJ.run(work, "Watershed", "");
+        watershedInPlace(work, p.watershedTolerance, p.watershedMethod, RowBands.pool(p.threads));
         // Show Watershed
         showStepSnapshot(work, "4 - Watershed", p.showSteps);
 
@@ -207,23 +195,73 @@ public final class CellSegmentationPipeline {
         // still includes components that may later be filtered out by min-area.
         showStepSnapshot(work, "5 - Pre-Label Mask", p.showSteps);
 
+        return completeFromMask(work, imp, p);
+    }
+
+    /** Particles of the watershed mask in {@code work} become labels, ROIs and measurements. */
+    private static CellSegmentationResult completeFromMask(
+            ImagePlus work,
+            ImagePlus imp,
+            CellSegmentationParams p) {
+        if (p.labelImageFirst) {
+            return completeFromLabelImage(work, imp, p);
+        }
+
         // 5) Analyze particles on mask, then measure on the original image.
         AnalysisResult analysis = analyzeParticlesAndMeasureOnOriginal(
-                work, imp, p.minArea, p.clearRM, p.measurements, p.showResultsTable, p.showRoiManager);
-        RoiManager rm = analysis.roiManager;
+                work, imp, p.minArea, p.clearRM, p.measurements, p.showResultsTable, p.showRoiManager,
+                RowBands.pool(p.threads));
+        final Roi[] rois = analysis.rois;
         ResultsTable rt = analysis.resultsTable;
 
         // Final output mask should match the accepted ROI set rather than the raw
         // watershed mask, so filtered-out particles disappear from the saved/displayed mask.
         final int w = work.getWidth();
         final int h = work.getHeight();
-        ImagePlus mask = buildMaskFromRois(rm != null ? rm.getRoisAsArray() : null, w, h);
+        ImagePlus mask = buildMaskFromRois(rois, w, h);
         mask.setTitle("Cell Mask");
 
         // 6) Labels image (1-based label per ROI)
-        ImagePlus labels = buildLabelsFromRois(rm, w, h);
+        ImagePlus labels = buildLabelsFromRoisArray(rois, w, h);
         labels.setTitle("Labels");
 
+        finishLabelOutputs(imp, labels, p);
+
+        closeIfVisible(work);
+
+        return new CellSegmentationResult(mask, labels, rois.length, analysis.roiManager, rt, null, rois);
+    }
+
+    /**
+     * Label-image-first ending: the labels come straight from connected components of the
+     * watershed mask (min-area filtered) and the mask is derived from them, so no ROI is
+     * rasterized and the ROI Manager is only touched when it is to be shown.
+     */
+    private static CellSegmentationResult completeFromLabelImage(
+            ImagePlus work,
+            ImagePlus imp,
+            CellSegmentationParams p) {
+        final LabelImage labelImage = LabelImage.fromMask(work.getProcessor(), p.minArea, RowBands.pool(p.threads));
+
+        ImagePlus mask = new ImagePlus("Cell Mask", labelImage.toMask());
+        ImagePlus labels = new ImagePlus("Labels", labelImage.toProcessor());
+
+        // The label raster is the measurement mask and the source of outline columns;
+        // ROIs are only traced for the Analyzer fallback.
+        ResultsTable rt = measureLabelsOnOriginal(imp, labelImage, p.measurements, RowBands.pool(p.threads));
+        if (p.showResultsTable) {
+            rt.show("Results");
+        }
+
+        RoiManager rm = p.showRoiManager ? showInRoiManager(labelImage.getRois(), p.clearRM) : null;
+
+        finishLabelOutputs(imp, labels, p);
+
+        closeIfVisible(work);
+        return new CellSegmentationResult(mask, labels, labelImage.count, rm, rt, labelImage);
+    }
+
+    private static void finishLabelOutputs(ImagePlus imp, ImagePlus labels, CellSegmentationParams p) {
         // Optional display LUT
         try {
             applyLabelsLut(labels, p.labelsLut);
@@ -232,17 +270,46 @@ public final class CellSegmentationPipeline {
 
         // 10) Optional overlay merge
         if (p.showLabelOverlay) {
-            ImagePlus overlay = createLabelOverlay(imp, labels, p.labelsLut);
+            ImagePlus overlay = createLabelOverlay(imp, labels, p.labelsLut, RowBands.pool(p.threads));
             if (overlay != null) {
                 overlay.setTitle("LabelsOverlay");
                 overlay.show();
             }
         }
+    }
 
-        closeIfVisible(work);
+    private static boolean canSegmentHeadless(ImagePlus imp, ThresholdConfig thresholdConfig) {
+        // A selection makes the staged path work on a cropped duplicate; keep that behaviour.
+        return imp.getRoi() == null
+                && SegmentationEngine.Plane.supports(imp.getProcessor())
+                && SegmentationEngine.supports(thresholdConfig);
+    }
+
+    /** Binary mask image (255 = foreground), thresholded at 255 as "Convert to Mask" leaves it. */
+    private static ImagePlus maskImage(byte[] mask, int w, int h) {
+        final ByteProcessor ip = new ByteProcessor(w, h, mask);
+        ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        return new ImagePlus("Mask", ip);
+    }
 
-        int roiCount = rm.getCount();
-        return new CellSegmentationResult(mask, labels, roiCount, rm, rt);
+    private static void convertToMask(ImagePlus work, ForkJoinPool pool) {
+        final ImageProcessor ip = work.getProcessor();
+        if (!SegmentationEngine.Plane.supports(ip) || ip.getMinThreshold() == ImageProcessor.NO_THRESHOLD) {
+            IJ.run(work, "Convert to Mask", "");
+            return;
+        }
+        // Same pixels as "Convert to Mask", without Thresholder's global state. The mask
+        // keeps a normal LUT whatever the black-background preference says. Only the
+        // current plane is segmented, so a stacked scratch image becomes that one plane.
+        final byte[] mask = SegmentationEngine.threshold(
+                SegmentationEngine.Plane.of(ip), ip.getMinThreshold(), ip.getMaxThreshold(), pool);
+        final ImagePlus converted = maskImage(mask, ip.getWidth(), ip.getHeight());
+        if (work.getStackSize() > 1) {
+            work.setStack(converted.getStack());
+        } else {
+            work.setProcessor(converted.getProcessor());
+        }
+        work.updateAndDraw();
     }
 
     private static ImagePlus duplicateForProcessing(ImagePlus imp, boolean show) {
@@ -257,58 +324,19 @@ public final class CellSegmentationPipeline {
         return work;
     }
 
-    private static void applyEdgeDetector(ImagePlus work, EdgeDetector edgeDetector) {
+    private static void applyEdgeDetector(
+            ImagePlus work,
+            EdgeDetector edgeDetector,
+            EdgeFilter.Magnitude magnitude,
+            ForkJoinPool pool) {
         if (edgeDetector == null) edgeDetector = EdgeDetector.SOBEL;
-
-        switch (edgeDetector) {
-            case NONE:
-                // no-op
-                break;
-            case SOBEL:
-                applyGradientMagnitude(work, SOBEL_X, SOBEL_Y);
-                break;
-            case PREWITT:
-                applyGradientMagnitude(work, PREWITT_X, PREWITT_Y);
-                break;
-            case SCHARR:
-                applyGradientMagnitude(work, SCHARR_X, SCHARR_Y);
-                break;
-            case LAPLACIAN_3X3:
-                applyLaplacian(work, LAPLACIAN_3X3);
-                break;
-            default:
-                applyGradientMagnitude(work, SOBEL_X, SOBEL_Y);
-                break;
-        }
-    }
-
-    private static void applyGradientMagnitude(ImagePlus work, float[] kx, float[] ky) {
-        FloatProcessor base = work.getProcessor().convertToFloatProcessor();
-        FloatProcessor gx = (FloatProcessor) base.duplicate();
-        FloatProcessor gy = (FloatProcessor) base.duplicate();
-
-        gx.convolve(kx, 3, 3);
-        gy.convolve(ky, 3, 3);
-
-        float[] px = (float[]) gx.getPixels();
-        float[] py = (float[]) gy.getPixels();
-        float[] out = (float[]) base.getPixels();
-
-        for (int i = 0; i < out.length; i++) {
-            out[i] = (float) Math.hypot(px[i], py[i]);
+        if (edgeDetector == EdgeDetector.NONE) {
+            return;
         }
 
-        work.setProcessor(base);
-    }
-
-    private static void applyLaplacian(ImagePlus work, float[] kernel) {
-        FloatProcessor base = work.getProcessor().convertToFloatProcessor();
-        base.convolve(kernel, 3, 3);
-        float[] out = (float[]) base.getPixels();
-        for (int i = 0; i < out.length; i++) {
-            out[i] = Math.abs(out[i]);
-        }
-        work.setProcessor(base);
+        // One fused sweep over the source pixels replaces the float conversion, two
+        // duplicates and two convolutions the gradient used to cost.
+        work.setProcessor(EdgeFilter.apply(work.getProcessor(), edgeDetector, magnitude, pool));
     }
 
     private static void autoAdjustDisplayRange(ImagePlus work) {
@@ -320,14 +348,18 @@ public final class CellSegmentationPipeline {
         work.updateAndDraw();
     }
 
-    private static boolean applyThreshold(ImagePlus work, ThresholdConfig thresholdConfig, boolean pauseThreshold) {
+    private static boolean applyThreshold(
+            ImagePlus work,
+            ThresholdConfig thresholdConfig,
+            boolean pauseThreshold,
+            ForkJoinPool pool) {
         final ThresholdConfig config = thresholdConfig != null
                 ? thresholdConfig
                 : ThresholdConfig.auto("Default", true);
 
         // Applying the config here keeps threshold selection deterministic for batch mode
         // while still supporting the original interactive "pause and adjust" flow.
-        config.applyTo(work);
+        config.applyTo(work, pool);
 
         if (pauseThreshold) {
             // Needs an image window; if work wasn't shown, show it now.
@@ -444,55 +476,78 @@ public final class CellSegmentationPipeline {
             boolean clearRM,
             int measurements,
             boolean showResultsTable,
-            boolean showRoiManager) {
-
-        // ROI Manager is global state in IJ1. `clearRM` decides whether this run should
-        // start from an empty manager or append to whatever is already there.
-        final boolean useVisibleRoiManager = showRoiManager;
-        RoiManager rm = useVisibleRoiManager ? RoiManager.getInstance() : null;
-        if (rm == null) {
-            // Use a hidden manager when the caller only needs ROI storage and not the
-            // floating ROI Manager window.
-            rm = useVisibleRoiManager ? new RoiManager() : new RoiManager(false);
-        }
-        rm.setVisible(showRoiManager);
-        if (clearRM) rm.reset();
-
-        // ResultsTable for the final measurement pass (on the original image).
-        ResultsTable rt = new ResultsTable();
-
-        int paOptions = ParticleAnalyzer.ADD_TO_MANAGER;
-
-        // NOTE: setRoiManager is static in IJ1 -> call it statically
-        ParticleAnalyzer.setRoiManager(rm);
+            boolean showRoiManager,
+            ForkJoinPool pool) {
 
-        // Use ParticleAnalyzer only to populate the ROI Manager (skip its measurements).
-        ResultsTable dummyRt = new ResultsTable();
-        // minArea auto-widens int -> double; no cast needed
-        ParticleAnalyzer pa = new ParticleAnalyzer(paOptions, 0, dummyRt, minArea, Double.POSITIVE_INFINITY);
-        pa.analyze(binaryMask);
+        // Particles are traced from a label raster of this call's mask instead of through
+        // ParticleAnalyzer, whose ROI Manager hand-off is a static that concurrent runs
+        // would race on. Outlines and their order are the ones ParticleAnalyzer produces.
+        final Roi[] rois = LabelImage.fromMask(binaryMask.getProcessor(), minArea, pool).getRois();
+        final RoiManager rm = showRoiManager ? showInRoiManager(rois, clearRM) : null;
 
         // Measure on the original grayscale image rather than the binary mask, because
         // intensity statistics on the mask would be meaningless.
-        Analyzer analyzer = new Analyzer(original, measurements, rt);
-
-        Roi[] roisForMeasure = rm.getRoisAsArray();
-        for (Roi roi : roisForMeasure) {
-            original.setRoi(roi);
-            analyzer.measure();
-        }
-        original.deleteRoi();
+        ResultsTable rt = measureRoisOnOriginal(original, rois, measurements, pool);
 
         if (showResultsTable) {
             rt.show("Results");
         }
 
-        return new AnalysisResult(rm, rt);
+        return new AnalysisResult(rois, rm, rt);
+    }
+
+    /**
+     * Adds {@code rois} to the visible ROI Manager. This is the only place a run touches
+     * the shared manager, and only when it was asked to show its ROIs.
+     */
+    private static RoiManager showInRoiManager(Roi[] rois, boolean clear) {
+        RoiManager rm = RoiManager.getInstance();
+        if (rm == null) rm = new RoiManager();
+        rm.setVisible(true);
+        if (clear) rm.reset();
+        for (Roi roi : rois) {
+            rm.addRoi(roi);
+        }
+        return rm;
+    }
+
+    private static ResultsTable measureLabelsOnOriginal(
+            ImagePlus original, LabelImage labelImage, int measurements, ForkJoinPool pool) {
+        final ImageProcessor ip = original.getProcessor();
+        if (!LabelMeasurements.supports(ip, measurements)
+                || ip.getWidth() != labelImage.width || ip.getHeight() != labelImage.height) {
+            return measureRoisWithAnalyzer(original, labelImage.getRois(), measurements);
+        }
+        return LabelMeasurements.measure(original, labelImage.toSpans(), measurements, pool);
+    }
+
+    private static ResultsTable measureRoisOnOriginal(
+            ImagePlus original, Roi[] rois, int measurements, ForkJoinPool pool) {
+        // One sweep over a label raster of the ROIs instead of one Analyzer call per ROI;
+        // overlapping ROIs and other measurement flags keep the Analyzer path.
+        final ImageProcessor ip = original.getProcessor();
+        if (LabelMeasurements.supports(ip, measurements)) {
+            final int[] labels = LabelMeasurements.rasterize(rois, ip.getWidth(), ip.getHeight());
+            if (labels != null) {
+                final LabelSpans spans = LabelSpans.fromLabels(labels, ip.getWidth(), ip.getHeight(), rois.length);
+                return LabelMeasurements.measure(original, spans, measurements, pool);
+            }
+        }
+        return measureRoisWithAnalyzer(original, rois, measurements);
     }
 
-    private static ImagePlus buildLabelsFromRois(RoiManager rm, int w, int h) {
-        Roi[] rois = (rm == null) ? new Roi[0] : rm.getRoisAsArray();
-        return buildLabelsFromRoisArray(rois, w, h);
+    private static ResultsTable measureRoisWithAnalyzer(ImagePlus original, Roi[] rois, int measurements) {
+        // Selections go on a private view of the plane, not on the caller's image, so
+        // runs that share a source image do not move each other's ROI.
+        final ImagePlus view = new ImagePlus(original.getTitle(), original.getProcessor().duplicate());
+        view.setCalibration(original.getCalibration());
+        ResultsTable rt = new ResultsTable();
+        Analyzer analyzer = new Analyzer(view, measurements, rt);
+        for (Roi roi : rois) {
+            view.setRoi(roi);
+            analyzer.measure();
+        }
+        return rt;
     }
 
     private static ImagePlus buildLabelsFromRoisArray(Roi[] rois, int w, int h) {
@@ -513,95 +568,21 @@ public final class CellSegmentationPipeline {
     }
 
     public static ImagePlus createLabelOverlay(ImagePlus imp, ImagePlus labelsOut, String labelsLut) {
-        if (imp == null || labelsOut == null) return null;
-        ImagePlus base = imp.duplicate();
-        ImagePlus labels = labelsOut.duplicate();
-
-        // Ensure labels are colored before RGB conversion.
-        applyLabelsLut(labels, labelsLut);
+        return createLabelOverlay(imp, labelsOut, labelsLut, RowBands.pool(0));
+    }
 
-        ImagePlus blended = alphaBlendRgb(base, labels, labelsOut, 0.5f, true);
-        closeAlways(base);
-        closeAlways(labels);
-        return blended;
+    public static ImagePlus createLabelOverlay(ImagePlus imp, ImagePlus labelsOut, String labelsLut, ForkJoinPool pool) {
+        if (imp == null || labelsOut == null) return null;
+        // Colours come from lookup tables, so neither image is duplicated or converted.
+        return new ImagePlus("LabelsOverlay",
+                LabelOverlay.render(imp, labelsOut.getProcessor(), labelsLut, LabelOverlay.DEFAULT_ALPHA, pool));
     }
 
     private static void applyLabelsLut(ImagePlus labels, String labelsLut) {
-        String lut = (labelsLut == null || labelsLut.trim().isEmpty()) ? "Rainbow RGB" : labelsLut.trim();
+        String lut = (labelsLut == null || labelsLut.trim().isEmpty()) ? LabelOverlay.DEFAULT_LUT : labelsLut.trim();
         IJ.run(labels, lut, "");
     }
 
-    private static ImagePlus alphaBlendRgb(ImagePlus base, ImagePlus overlay, ImagePlus zeroMaskSource, float alpha, boolean transparentZeroOverlay) {
-        if (alpha < 0f || alpha > 1f) {
-            throw new IllegalArgumentException("alpha must be in [0,1]");
-        }
-        ImagePlus baseRgb = base.duplicate();
-        ImagePlus overlayRgb = overlay.duplicate();
-
-        new ImageConverter(baseRgb).convertToRGB();
-        new ImageConverter(overlayRgb).convertToRGB();
-
-        ColorProcessor bp = (ColorProcessor) baseRgb.getProcessor();
-        ColorProcessor op = (ColorProcessor) overlayRgb.getProcessor();
-
-        int[] bpx = (int[]) bp.getPixels();
-        int[] opx = (int[]) op.getPixels();
-
-        int w = bp.getWidth();
-        int h = bp.getHeight();
-        int[] out = new int[w * h];
-
-        ImageProcessor zp = (zeroMaskSource != null) ? zeroMaskSource.getProcessor() : null;
-        byte[] zb = null;
-        short[] zs = null;
-        float[] zf = null;
-        if (zp != null && zp.getWidth() == w && zp.getHeight() == h) {
-            if (zp instanceof ByteProcessor) zb = (byte[]) zp.getPixels();
-            else if (zp instanceof ShortProcessor) zs = (short[]) zp.getPixels();
-            else if (zp instanceof FloatProcessor) zf = (float[]) zp.getPixels();
-        }
-
-        float inv = 1.0f - alpha;
-        for (int i = 0; i < out.length; i++) {
-            if (transparentZeroOverlay) {
-                if (zb != null && (zb[i] & 0xFF) == 0) {
-                    out[i] = bpx[i];
-                    continue;
-                }
-                if (zs != null && (zs[i] & 0xFFFF) == 0) {
-                    out[i] = bpx[i];
-                    continue;
-                }
-                if (zf != null && Math.round(zf[i]) == 0) {
-                    out[i] = bpx[i];
-                    continue;
-                }
-                if (zb == null && zs == null && zf == null && (opx[i] & 0x00FFFFFF) == 0) {
-                    out[i] = bpx[i];
-                    continue;
-                }
-            }
-
-            int bc = bpx[i];
-            int br = (bc >> 16) & 0xFF;
-            int bg = (bc >> 8) & 0xFF;
-            int bb = bc & 0xFF;
-
-            int oc = opx[i];
-            int or = (oc >> 16) & 0xFF;
-            int og = (oc >> 8) & 0xFF;
-            int ob = oc & 0xFF;
-
-            int r = Math.round(br * inv + or * alpha);
-            int g = Math.round(bg * inv + og * alpha);
-            int b = Math.round(bb * inv + ob * alpha);
-
-            out[i] = (0xFF << 24) | (r << 16) | (g << 8) | b;
-        }
-
-        return new ImagePlus("LabelsOverlay", new ColorProcessor(w, h, out));
-    }
-
     private static void showStepSnapshot(ImagePlus img, String title, boolean show) {
         if (!show || img == null) return;
         ImagePlus snap = img.duplicate();
@@ -615,11 +596,6 @@ public final class CellSegmentationPipeline {
         }
     }
 
-    private static void closeAlways(ImagePlus imp) {
-        if (imp == null) return;
-        closeImageSafely(imp); // safe whether visible or not
-    }
-
     private static void closeImageSafely(final ImagePlus imp) {
         if (imp == null) return;
         if (imp.getWindow() != null && !SwingUtilities.isEventDispatchThread()) {
@@ -637,10 +613,13 @@ public final class CellSegmentationPipeline {
     }
 
     private static final class AnalysisResult {
+        final Roi[] rois;
+        /** Null unless the ROI Manager was requested. */
         final RoiManager roiManager;
         final ResultsTable resultsTable;
 
-        private AnalysisResult(RoiManager roiManager, ResultsTable resultsTable) {
+        private AnalysisResult(Roi[] rois, RoiManager roiManager, ResultsTable resultsTable) {
+            this.rois = rois;
             this.roiManager = roiManager;
             this.resultsTable = resultsTable;
         }
@@ -649,90 +628,32 @@ public final class CellSegmentationPipeline {
     public static ImagePlus fillEdgeOpenHolesHybrid(ImagePlus edgeMask) {
         if (edgeMask == null) return null;
 
-        final int w = edgeMask.getWidth();
-        final int h = edgeMask.getHeight();
-
-        // I1: closed edges with 1px padding to reduce border effects.
-        ImagePlus I1 = edgeMask.duplicate();
-        IJ.run(I1, "8-bit", "");
-
-        // pad by 1px
-        IJ.run(I1, "Canvas Size...", "width=" + (w+2) + " height=" + (h+2) + " position=Center");
-        // close
-        IJ.run(I1, "Close-", "");
-        // crop back
-        IJ.run(I1, "Canvas Size...", "width=" + w + " height=" + h + " position=Center");
-
-
-        // I2: global fill holes of I1.
-        ImagePlus I2 = I1.duplicate();
-        IJ.run(I2, "Fill Holes", "");
-        closeAlways(I1);
-
-        // I3: complement of I2.
-        ImagePlus I3 = I2.duplicate();
-        IJ.run(I3, "Invert", "");
-
-        // I4: fill background holes of I3.
-        ImagePlus I4 = I3.duplicate();
-        IJ.run(I4, "Fill Holes", "");
-        closeAlways(I3);
-
-        // I5: remove any 4-connected components that touch 3+ image edges.
-        ImagePlus I5 = removeBorderComponents(I4, 3);
-        closeAlways(I4);
-
-        // Final mask = I2 OR I5.
-        ImagePlus out = orBinary(I2, I5);
-        out.setTitle("FilledMask");
-        closeAlways(I2);
-        closeAlways(I5);
-        return out;
+        // Same result as the old pad/close/fill/invert/fill/remove/OR chain, computed
+        // in place on one byte plane instead of six ImagePlus copies.
+        ByteProcessor ip = edgeMask.getProcessor().convertToByteProcessor();
+        HoleFiller.fillEdgeOpenHoles((byte[]) ip.getPixels(), ip.getWidth(), ip.getHeight());
+        return new ImagePlus("FilledMask", ip);
     }
 
-    private static ImagePlus removeBorderComponents(ImagePlus binary, int minBorderCount) {
-        final int w = binary.getWidth();
-        final int h = binary.getHeight();
-
-        if (minBorderCount < 1 || minBorderCount > 4) {
-            throw new IllegalArgumentException("minBorderCount must be in [1,4]");
+    private static void fillEdgeOpenHolesInPlace(ImagePlus mask) {
+        ImageProcessor ip = mask.getProcessor();
+        if (!(ip instanceof ByteProcessor)) {
+            ip = ip.convertToByteProcessor();
+            mask.setProcessor(ip);
         }
-
-        // Work on a byte copy so we can safely clear components in-place.
-        ByteProcessor ip = binary.getProcessor().convertToByteProcessor(); // independent copy
-        final byte[] pix = (byte[]) ip.getPixels();
-
-        ConnectedComponents.forEachForegroundComponent(pix, w, h, false, new ConnectedComponents.ComponentHandler() {
-            @Override public void handle(ConnectedComponents.ComponentView c) {
-                if (c.stats().borderCount() >= minBorderCount) {
-                    c.clear(); // clears in-place on pix
-                }
-            }
-        });
-
-        return new ImagePlus("I5", ip);
+        SegmentationEngine.fillHoles((byte[]) ip.getPixels(), ip.getWidth(), ip.getHeight());
+        mask.updateAndDraw();
     }
 
-    /** OR two binary images (nonzero => 255). Assumes same w/h. */
-    private static ImagePlus orBinary(ImagePlus a, ImagePlus b) {
-        final int w = a.getWidth();
-        final int h = a.getHeight();
-
-        ByteProcessor ipa = (ByteProcessor) a.getProcessor().convertToByteProcessor();
-        ByteProcessor ipb = (ByteProcessor) b.getProcessor().convertToByteProcessor();
-
-        byte[] pa = (byte[]) ipa.getPixels();
-        byte[] pb = (byte[]) ipb.getPixels();
-
-        ByteProcessor out = new ByteProcessor(w, h);
-        byte[] po = (byte[]) out.getPixels();
-
-        for (int i = 0; i < w * h; i++) {
-            int va = pa[i] & 0xFF;
-            int vb = pb[i] & 0xFF;
-            po[i] = (byte) ((va != 0 || vb != 0) ? 255 : 0);
+    private static void watershedInPlace(ImagePlus mask, double tolerance, Watershed.Method method,
+                                         ForkJoinPool pool) {
+        ImageProcessor ip = mask.getProcessor();
+        if (!(ip instanceof ByteProcessor)) {
+            ip = ip.convertToByteProcessor();
+            mask.setProcessor(ip);
         }
-
-        return new ImagePlus("I2_OR_I5", out);
+        SegmentationEngine.watershed((byte[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), tolerance, method,
+                pool);
+        mask.updateAndDraw();
     }
 }
@@ -1,6 +1,7 @@
 package com.will.cellseg;
 
 import ij.ImagePlus;
+import ij.gui.Roi;
 import ij.measure.ResultsTable;
 import ij.plugin.frame.RoiManager;
 
@@ -9,14 +10,42 @@ public final class CellSegmentationResult {
     public final ImagePlus mask;
     public final ImagePlus labels;
     public final int roiCount;
+    /** The shared ROI Manager the ROIs were added to; null unless it was requested. */
     public final RoiManager roiManager;
     public final ResultsTable resultsTable;
+    /** Label raster of a label-image-first run; null otherwise. */
+    public final LabelImage labelImage;
+    /** ROIs of this run, in label order; null when they come from {@link #labelImage}. */
+    private final Roi[] rois;
 
     public CellSegmentationResult(ImagePlus mask, ImagePlus labels, int roiCount, RoiManager roiManager, ResultsTable resultsTable) {
+        this(mask, labels, roiCount, roiManager, resultsTable, null);
+    }
+
+    public CellSegmentationResult(ImagePlus mask, ImagePlus labels, int roiCount, RoiManager roiManager,
+                                  ResultsTable resultsTable, LabelImage labelImage) {
+        this(mask, labels, roiCount, roiManager, resultsTable, labelImage, null);
+    }
+
+    public CellSegmentationResult(ImagePlus mask, ImagePlus labels, int roiCount, RoiManager roiManager,
+                                  ResultsTable resultsTable, LabelImage labelImage, Roi[] rois) {
         this.mask = mask;
         this.labels = labels;
         this.roiCount = roiCount;
         this.roiManager = roiManager;
         this.resultsTable = resultsTable;
+        this.labelImage = labelImage;
+        this.rois = rois;
+    }
+
+    /**
+     * This run's ROIs in label order; traced on demand for label-image-first runs. A
+     * shown ROI Manager may hold more (earlier runs), so it is not read back here.
+     */
+    public Roi[] getRois() {
+        if (rois != null) return rois.clone();
+        if (labelImage != null) return labelImage.getRois();
+        if (roiManager != null) return roiManager.getRoisAsArray();
+        return new Roi[0];
     }
 }
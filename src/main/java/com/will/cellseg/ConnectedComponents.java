@@ -4,9 +4,12 @@ import ij.ImagePlus;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public final class ConnectedComponents {
 
@@ -149,8 +152,14 @@ public final class ConnectedComponents {
 
     /** Collect style on raw byte raster. */
     public static List<Component> findForegroundComponents(byte[] pix, int w, int h, boolean eightConnected) {
+        return findForegroundComponents(pix, w, h, eightConnected, null);
+    }
+
+    /** Collect style, labeling in parallel tiles on {@code pool} (null = serial). */
+    public static List<Component> findForegroundComponents(byte[] pix, final int w, final int h,
+                                                           boolean eightConnected, ForkJoinPool pool) {
         final ArrayList<Component> out = new ArrayList<>();
-        forEachForegroundComponent(pix, w, h, eightConnected, new ComponentHandler() {
+        forEachForegroundComponent(pix, w, h, eightConnected, pool, new ComponentHandler() {
             @Override public void handle(ComponentView c) {
                 // Freeze pixels into an int[] for storage
                 int[] arr = c.pixels.pixelsToArray();
@@ -167,107 +176,299 @@ public final class ConnectedComponents {
 
     /** Streaming style: connectivity option. */
     public static void forEachForegroundComponent(byte[] pix, int w, int h, boolean eightConnected, ComponentHandler handler) {
+        forEachForegroundComponent(pix, w, h, eightConnected, null, handler);
+    }
+
+    /**
+     * Streaming style with the labeling run in parallel tiles on {@code pool} (null =
+     * serial). Handlers are still called one at a time, in raster order.
+     */
+    public static void forEachForegroundComponent(byte[] pix, int w, int h, boolean eightConnected,
+                                                  ForkJoinPool pool, ComponentHandler handler) {
         if (pix == null || pix.length != w * h) throw new IllegalArgumentException("pix must be length w*h");
         if (handler == null) throw new IllegalArgumentException("handler must not be null");
 
-        // Track visited pixels to avoid revisiting components.
-        final boolean[] visited = new boolean[w * h];
-        final ArrayDeque<Integer> q = new ArrayDeque<>();
+        final Labels labels = label(pix, w, h, eightConnected, pool);
+        final int[] raster = labels.raster;
+        final int count = labels.count;
+
+        // Bucket pixel indices by label (counting sort) so each component's pixels are
+        // contiguous, in raster order.
+        final int[] start = new int[count + 2];
+        for (int l = 1; l <= count; l++) start[l + 1] = start[l] + labels.stats[l].area;
+        final int[] order = new int[start[count + 1]];
+        final int[] fill = start.clone();
+        for (int i = 0; i < raster.length; i++) {
+            final int l = raster[i];
+            if (l != 0) order[fill[l]++] = i;
+        }
+
         final IntList comp = new IntList(1024);
+        for (int l = 1; l <= count; l++) {
+            comp.clear();
+            for (int k = start[l]; k < start[l + 1]; k++) comp.add(order[k]);
+            handler.handle(new ComponentView(w, h, comp, labels.stats[l], pix));
+        }
+    }
 
-        for (int y0 = 0; y0 < h; y0++) {
-            final int row0 = y0 * w;
-            for (int x0 = 0; x0 < w; x0++) {
-                final int seed = row0 + x0;
-                if (pix[seed] == 0 || visited[seed]) continue;
-
-                // Reset per-component accumulators.
-                comp.clear();
-                q.clear();
-
-                visited[seed] = true;
-                q.add(seed);
-
-                int borderMask = 0;
-                int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
-                int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
-                long sumX = 0, sumY = 0;
-                int area = 0;
-
-                // BFS flood fill of the current component.
-                while (!q.isEmpty()) {
-                    final int p = q.removeFirst();
-                    comp.add(p);
-
-                    final int py = p / w;
-                    final int px = p - py * w;
-
-                    // Measurements (pixel-based, computed during BFS)
-                    area++;
-                    sumX += px;
-                    sumY += py;
-                    if (px < minX) minX = px;
-                    if (py < minY) minY = py;
-                    if (px > maxX) maxX = px;
-                    if (py > maxY) maxY = py;
-
-                    // Border touches (bitmask)
-                    if (py == 0)     borderMask |= TOP;
-                    if (py == h - 1) borderMask |= BOTTOM;
-                    if (px == 0)     borderMask |= LEFT;
-                    if (px == w - 1) borderMask |= RIGHT;
-
-                    // 4-connected neighbors.
-                    if (py > 0) {
-                        int up = p - w;
-                        if (!visited[up] && pix[up] != 0) { visited[up] = true; q.add(up); }
-                    }
-                    if (py < h - 1) {
-                        int dn = p + w;
-                        if (!visited[dn] && pix[dn] != 0) { visited[dn] = true; q.add(dn); }
-                    }
-                    if (px > 0) {
-                        int lt = p - 1;
-                        if (!visited[lt] && pix[lt] != 0) { visited[lt] = true; q.add(lt); }
-                    }
-                    if (px < w - 1) {
-                        int rt = p + 1;
-                        if (!visited[rt] && pix[rt] != 0) { visited[rt] = true; q.add(rt); }
+    /**
+     * Label raster plus per-label stats. Labels run 1..count (0 = background) in raster
+     * order of each component's first pixel, the order the streaming API visits them.
+     */
+    public static final class Labels {
+        public final int w, h;
+        /** Label per pixel, linear index y*w + x. */
+        public final int[] raster;
+        public final int count;
+        /** Stats per label; index 0 is unused. */
+        final Stats[] stats;
+
+        Labels(int w, int h, int[] raster, int count, Stats[] stats) {
+            this.w = w;
+            this.h = h;
+            this.raster = raster;
+            this.count = count;
+            this.stats = stats;
+        }
+
+        public Stats stats(int label) {
+            if (label < 1 || label > count) throw new IllegalArgumentException("label out of range: " + label);
+            return stats[label];
+        }
+    }
+
+    /**
+     * Two-pass union-find labeling of foreground pixels (pix != 0). The first pass gives
+     * each pixel a provisional label from its already-scanned neighbours and records
+     * equivalences; the second resolves them to compact labels and accumulates Stats.
+     */
+    public static Labels label(byte[] pix, int w, int h, boolean eightConnected) {
+        return label(pix, w, h, eightConnected, null);
+    }
+
+    /**
+     * As {@link #label(byte[], int, int, boolean)}, with the first pass run on horizontal
+     * tiles in parallel. Each tile labels its rows on its own; equivalences across tile
+     * seams are then merged in one union-find. Provisional labels are numbered tile by
+     * tile, so they still increase in raster order and the final labels are identical
+     * for any pool or thread count (null = serial).
+     */
+    public static Labels label(byte[] pix, int w, int h, boolean eightConnected, ForkJoinPool pool) {
+        return label(pix, w, h, eightConnected, pool, RowBands.DEFAULT_MIN_ROWS);
+    }
+
+    /** As above with tiles of at least {@code minRows} rows; 1 allows single-row tiles. */
+    static Labels label(final byte[] pix, final int w, final int h, final boolean eightConnected,
+                        ForkJoinPool pool, int minRows) {
+        if (pix == null || pix.length != w * h) throw new IllegalArgumentException("pix must be length w*h");
+
+        final int[] raster = new int[w * h];
+        final List<Tile> tiles = new ArrayList<>();
+        RowBands.forEach(pool, h, minRows, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                final Tile tile = labelTile(pix, w, y0, y1, eightConnected, raster);
+                synchronized (tiles) {
+                    tiles.add(tile);
+                }
+            }
+        });
+        Collections.sort(tiles, new Comparator<Tile>() {
+            @Override
+            public int compare(Tile a, Tile b) {
+                return Integer.compare(a.y0, b.y0);
+            }
+        });
+
+        // Global provisional label = tile offset + local label.
+        final int[] rowOffset = new int[h];
+        int total = 0;
+        for (Tile t : tiles) {
+            t.offset = total;
+            total += t.uf.size();
+            Arrays.fill(rowOffset, t.y0, t.y1, t.offset);
+        }
+        final UnionFind uf = new UnionFind(total);
+        for (int i = 0; i < total; i++) uf.add();
+        for (Tile t : tiles) {
+            for (int l = 1; l <= t.uf.size(); l++) {
+                final int root = t.uf.find(l);
+                if (root != l) uf.union(t.offset + l, t.offset + root);
+            }
+        }
+
+        // Seams: the first row of each tile against the last row of the one above.
+        for (Tile t : tiles) {
+            if (t.y0 == 0) continue;
+            final int row = t.y0 * w;
+            final int above = row - w;
+            final int offAbove = rowOffset[t.y0 - 1];
+            for (int x = 0; x < w; x++) {
+                final int p = row + x;
+                if (raster[p] == 0) continue;
+                final int g = t.offset + raster[p];
+                final int x0 = eightConnected ? Math.max(0, x - 1) : x;
+                final int x1 = eightConnected ? Math.min(w - 1, x + 1) : x;
+                for (int xx = x0; xx <= x1; xx++) {
+                    final int q = raster[above + xx];
+                    if (q != 0) uf.union(g, offAbove + q);
+                }
+            }
+        }
+
+        // Roots are the smallest provisional label of each set, i.e. the one given to the
+        // component's first pixel, so numbering roots in order keeps raster order.
+        final int[] finalLabel = new int[total + 1];
+        int count = 0;
+        for (int l = 1; l <= total; l++) {
+            final int root = uf.find(l);
+            finalLabel[l] = root == l ? ++count : finalLabel[root];
+        }
+
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    final int off = rowOffset[y];
+                    for (int p = y * w, end = p + w; p < end; p++) {
+                        if (raster[p] != 0) raster[p] = finalLabel[off + raster[p]];
                     }
+                }
+            }
+        });
+        return new Labels(w, h, raster, count, accumulateStats(raster, w, h, count));
+    }
+
+    /** Provisional labels of one tile; they live in the shared raster for rows [y0, y1). */
+    private static final class Tile {
+        final int y0, y1;
+        final UnionFind uf;
+        int offset;
+
+        Tile(int y0, int y1, UnionFind uf) {
+            this.y0 = y0;
+            this.y1 = y1;
+            this.uf = uf;
+        }
+    }
 
-                    // Optional 8-connected diagonals.
+    private static Tile labelTile(byte[] pix, int w, int y0, int y1, boolean eightConnected, int[] raster) {
+        final UnionFind uf = new UnionFind(256);
+        for (int y = y0; y < y1; y++) {
+            final int row = y * w;
+            for (int x = 0; x < w; x++) {
+                final int p = row + x;
+                if (pix[p] == 0) continue;
+
+                // Neighbours already visited: left and up (plus up-left / up-right when
+                // 8-connected). Rows above the tile are left to the seam merge.
+                int l = 0;
+                if (x > 0) l = join(uf, l, raster[p - 1]);
+                if (y > y0) {
+                    l = join(uf, l, raster[p - w]);
                     if (eightConnected) {
-                        if (py > 0 && px > 0) {
-                            int ul = p - w - 1;
-                            if (!visited[ul] && pix[ul] != 0) { visited[ul] = true; q.add(ul); }
-                        }
-                        if (py > 0 && px < w - 1) {
-                            int ur = p - w + 1;
-                            if (!visited[ur] && pix[ur] != 0) { visited[ur] = true; q.add(ur); }
-                        }
-                        if (py < h - 1 && px > 0) {
-                            int dl = p + w - 1;
-                            if (!visited[dl] && pix[dl] != 0) { visited[dl] = true; q.add(dl); }
-                        }
-                        if (py < h - 1 && px < w - 1) {
-                            int dr = p + w + 1;
-                            if (!visited[dr] && pix[dr] != 0) { visited[dr] = true; q.add(dr); }
-                        }
+                        if (x > 0) l = join(uf, l, raster[p - w - 1]);
+                        if (x < w - 1) l = join(uf, l, raster[p - w + 1]);
                     }
                 }
+                raster[p] = l != 0 ? l : uf.add();
+            }
+        }
+        return new Tile(y0, y1, uf);
+    }
 
-                // Package stats + call handler immediately (streaming).
-                Stats stats = new Stats(area, borderMask, minX, minY, maxX, maxY, sumX, sumY);
-                ComponentView view = new ComponentView(w, h, comp, stats, pix);
-                handler.handle(view);
+    private static Stats[] accumulateStats(int[] raster, int w, int h, int count) {
+        final int[] area = new int[count + 1];
+        final int[] border = new int[count + 1];
+        final int[] minX = new int[count + 1];
+        final int[] minY = new int[count + 1];
+        final int[] maxX = new int[count + 1];
+        final int[] maxY = new int[count + 1];
+        final long[] sumX = new long[count + 1];
+        final long[] sumY = new long[count + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, Integer.MIN_VALUE);
+        Arrays.fill(maxY, Integer.MIN_VALUE);
+
+        for (int y = 0; y < h; y++) {
+            final int row = y * w;
+            final int rowBorder = (y == 0 ? TOP : 0) | (y == h - 1 ? BOTTOM : 0);
+            for (int x = 0; x < w; x++) {
+                final int l = raster[row + x];
+                if (l == 0) continue;
+                area[l]++;
+                sumX[l] += x;
+                sumY[l] += y;
+                if (x < minX[l]) minX[l] = x;
+                if (x > maxX[l]) maxX[l] = x;
+                if (y < minY[l]) minY[l] = y;
+                if (y > maxY[l]) maxY[l] = y;
+                border[l] |= rowBorder | (x == 0 ? LEFT : 0) | (x == w - 1 ? RIGHT : 0);
             }
         }
+
+        final Stats[] stats = new Stats[count + 1];
+        for (int l = 1; l <= count; l++) {
+            stats[l] = new Stats(area[l], border[l], minX[l], minY[l], maxX[l], maxY[l], sumX[l], sumY[l]);
+        }
+        return stats;
+    }
+
+    /** Merges a neighbour's provisional label into the current one (0 = none yet). */
+    private static int join(UnionFind uf, int current, int neighbour) {
+        if (neighbour == 0) return current;
+        if (current == 0) return neighbour;
+        if (current != neighbour) uf.union(current, neighbour);
+        return current;
     }
 
     // ---------------------------
     // Internal utilities
     // ---------------------------
 
+    /**
+     * Union-find over provisional labels 1..size with path halving. Union links the
+     * larger root under the smaller, so a set's root is always its smallest label.
+     */
+    static final class UnionFind {
+        private int[] parent;
+        private int n;
+
+        UnionFind(int initialCapacity) {
+            parent = new int[Math.max(16, initialCapacity) + 1];
+        }
+
+        int size() { return n; }
+
+        /** Adds a singleton set and returns its label. */
+        int add() {
+            if (n + 1 == parent.length) {
+                int[] b = new int[parent.length * 2];
+                System.arraycopy(parent, 0, b, 0, parent.length);
+                parent = b;
+            }
+            n++;
+            parent[n] = n;
+            return n;
+        }
+
+        int find(int x) {
+            while (parent[x] != x) {
+                parent[x] = parent[parent[x]];
+                x = parent[x];
+            }
+            return x;
+        }
+
+        void union(int a, int b) {
+            final int ra = find(a);
+            final int rb = find(b);
+            if (ra < rb) parent[rb] = ra;
+            else if (rb < ra) parent[ra] = rb;
+        }
+    }
+
     /** Growable int list (stores pixel indices for current component). */
     private static final class IntList {
         private int[] a;
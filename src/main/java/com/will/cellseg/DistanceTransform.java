@@ -0,0 +1,146 @@
+package com.will.cellseg;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Exact Euclidean distance transform of a binary mask (Felzenszwalb &amp; Huttenlocher):
+ * a 1D squared-distance pass down every column, then a lower-envelope-of-parabolas pass
+ * along every row. Columns and rows are independent, so each pass runs in bands on a
+ * fork-join pool.
+ */
+public final class DistanceTransform {
+
+    private DistanceTransform() {}
+
+    /** Squared distance used for pixels with no background anywhere in reach. */
+    private static final float INF = Float.MAX_VALUE;
+
+    /**
+     * Distance from every foreground pixel (nonzero) to the nearest background pixel;
+     * background pixels are 0. With {@code edgesAreBackground} the area outside the
+     * image counts as background, otherwise objects are treated as extending past the
+     * edge, as ImageJ's EDM does for Watershed.
+     */
+    public static float[] edt(byte[] mask, int w, int h, boolean edgesAreBackground, ForkJoinPool pool) {
+        final float[] sq = squaredEdt(mask, w, h, edgesAreBackground, pool);
+        for (int i = 0; i < sq.length; i++) {
+            // Only an all-foreground image without background edges is left at INF.
+            sq[i] = sq[i] == INF ? INF : (float) Math.sqrt(sq[i]);
+        }
+        return sq;
+    }
+
+    /** Squared distances, exact as integers up to float precision. */
+    public static float[] squaredEdt(final byte[] mask, final int w, final int h,
+                                     final boolean edgesAreBackground, ForkJoinPool pool) {
+        if (mask == null || w <= 0 || h <= 0 || mask.length != w * h) {
+            throw new IllegalArgumentException("mask must be length w*h");
+        }
+        final float[] d = new float[w * h];
+
+        // Columns: distance to the nearest background pixel above or below. The band
+        // helper splits any index range, here the x range.
+        RowBands.forEach(pool, w, 8, new RowBands.Task() {
+            @Override
+            public void run(int x0, int x1) {
+                for (int x = x0; x < x1; x++) columnPass(mask, w, h, x, edgesAreBackground, d);
+            }
+        });
+
+        // Rows: the minimum over each column's parabola, i.e. the full 2D distance.
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                final float[] f = new float[w];
+                final int[] v = new int[w];
+                final float[] z = new float[w + 1];
+                for (int y = y0; y < y1; y++) rowPass(d, w, y, edgesAreBackground, f, v, z);
+            }
+        });
+        return d;
+    }
+
+    private static void columnPass(byte[] mask, int w, int h, int x, boolean edgesAreBackground, float[] d) {
+        // Two sweeps of "distance since the last background pixel", down then up.
+        int last = edgesAreBackground ? -1 : Integer.MIN_VALUE;
+        for (int y = 0; y < h; y++) {
+            final int i = y * w + x;
+            if (mask[i] == 0) {
+                last = y;
+                d[i] = 0f;
+            } else {
+                d[i] = last == Integer.MIN_VALUE ? INF : sq(y - last);
+            }
+        }
+        last = edgesAreBackground ? h : Integer.MAX_VALUE;
+        for (int y = h - 1; y >= 0; y--) {
+            final int i = y * w + x;
+            if (mask[i] == 0) {
+                last = y;
+            } else if (last != Integer.MAX_VALUE) {
+                final float down = sq(last - y);
+                if (down < d[i]) d[i] = down;
+            }
+        }
+    }
+
+    /**
+     * Lower envelope of the parabolas {@code f[q] + (x - q)^2} over the finite entries of
+     * one row. {@code v} holds the envelope's parabola positions and {@code z} the
+     * boundaries between them.
+     */
+    private static void rowPass(float[] d, int w, int y, boolean edgesAreBackground, float[] f, int[] v, float[] z) {
+        final int row = y * w;
+        System.arraycopy(d, row, f, 0, w);
+
+        int k = -1;
+        for (int q = 0; q < w; q++) {
+            if (f[q] == INF) continue;
+            if (k < 0) {
+                k = 0;
+                v[0] = q;
+                z[0] = Float.NEGATIVE_INFINITY;
+                z[1] = Float.POSITIVE_INFINITY;
+                continue;
+            }
+            float s = intersection(f, v[k], q);
+            while (s <= z[k]) {
+                k--;
+                if (k < 0) break;
+                s = intersection(f, v[k], q);
+            }
+            if (k < 0) {
+                k = 0;
+                v[0] = q;
+                z[0] = Float.NEGATIVE_INFINITY;
+            } else {
+                k++;
+                v[k] = q;
+                z[k] = s;
+            }
+            z[k + 1] = Float.POSITIVE_INFINITY;
+        }
+
+        int j = 0;
+        for (int x = 0; x < w; x++) {
+            float best = INF;
+            if (k >= 0) {
+                while (z[j + 1] < x) j++;
+                best = sq(x - v[j]) + f[v[j]];
+            }
+            if (edgesAreBackground) {
+                // Background just past the left and right edges.
+                best = Math.min(best, Math.min(sq(x + 1), sq(w - x)));
+            }
+            d[row + x] = best;
+        }
+    }
+
+    private static float intersection(float[] f, int p, int q) {
+        return (float) (((double) f[q] + (double) q * q - f[p] - (double) p * p) / (2.0 * (q - p)));
+    }
+
+    private static float sq(int v) {
+        return (float) v * v;
+    }
+}
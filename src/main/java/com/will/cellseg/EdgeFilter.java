@@ -0,0 +1,293 @@
+package com.will.cellseg;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fused 3x3 edge filters. Each source row is converted to float exactly once and the
+ * filter response is written in a single sweep, instead of duplicating the plane and
+ * running one ImageJ convolution per kernel.
+ */
+public final class EdgeFilter {
+
+    private EdgeFilter() {}
+
+    /** How the x/y gradient responses are combined into one magnitude, with UI labels. */
+    public enum Magnitude {
+        /** sqrt(gx^2 + gy^2); matches the previous Math.hypot output. */
+        EUCLIDEAN("Euclidean (exact)"),
+        /** |gx| + |gy|; cheapest, overestimates diagonal edges by up to ~41%. */
+        L1("|gx| + |gy| (fastest)"),
+        /** alpha*max + beta*min approximation of the Euclidean norm (max error ~4%). */
+        ALPHA_MAX_BETA_MIN("Alpha-max + beta-min (approx.)");
+
+        public final String label;
+
+        Magnitude(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        /** Unknown or missing labels fall back to the exact Euclidean magnitude. */
+        public static Magnitude fromLabel(String s) {
+            if (s == null) return EUCLIDEAN;
+            for (Magnitude m : values()) {
+                if (m.label.equalsIgnoreCase(s.trim())) return m;
+            }
+            return EUCLIDEAN;
+        }
+    }
+
+    private static final float ALPHA = 0.96043387f;
+    private static final float BETA = 0.39782473f;
+
+    static final float[] SOBEL_X = {
+            -1, 0, 1,
+            -2, 0, 2,
+            -1, 0, 1
+    };
+    static final float[] SOBEL_Y = {
+            -1, -2, -1,
+             0,  0,  0,
+             1,  2,  1
+    };
+    static final float[] PREWITT_X = {
+            -1, 0, 1,
+            -1, 0, 1,
+            -1, 0, 1
+    };
+    static final float[] PREWITT_Y = {
+            -1, -1, -1,
+             0,  0,  0,
+             1,  1,  1
+    };
+    static final float[] SCHARR_X = {
+            -3, 0, 3,
+            -10, 0, 10,
+            -3, 0, 3
+    };
+    static final float[] SCHARR_Y = {
+            -3, -10, -3,
+             0,   0,  0,
+             3,  10,  3
+    };
+    static final float[] LAPLACIAN_3X3 = {
+             0, -1,  0,
+            -1,  4, -1,
+             0, -1,  0
+    };
+
+    /**
+     * Applies the detector to a processor and returns a new float result. Returns null
+     * for {@link EdgeDetector#NONE} so callers can keep the source unchanged.
+     */
+    public static FloatProcessor apply(ImageProcessor ip, EdgeDetector edgeDetector, Magnitude magnitude) {
+        return apply(ip, edgeDetector, magnitude, null);
+    }
+
+    /** As {@link #apply(ImageProcessor, EdgeDetector, Magnitude)}, split into row bands on {@code pool}. */
+    public static FloatProcessor apply(ImageProcessor ip, EdgeDetector edgeDetector, Magnitude magnitude,
+                                       ForkJoinPool pool) {
+        if (ip == null || edgeDetector == EdgeDetector.NONE) {
+            return null;
+        }
+        final float[] out = apply(readablePixels(ip), ip.getWidth(), ip.getHeight(), edgeDetector, magnitude, pool);
+        // Keep the source color model so an inverted LUT still flips threshold polarity
+        // exactly as it did with convertToFloatProcessor().
+        return new FloatProcessor(ip.getWidth(), ip.getHeight(), out, ip.getColorModel());
+    }
+
+    /**
+     * Applies the detector to a raw byte[], short[] (unsigned) or float[] plane.
+     * Returns null for {@link EdgeDetector#NONE}.
+     */
+    public static float[] apply(Object pixels, int w, int h, EdgeDetector edgeDetector, Magnitude magnitude) {
+        return apply(pixels, w, h, edgeDetector, magnitude, null);
+    }
+
+    /**
+     * Row-band parallel variant. Each band reads a one-row halo above and below from
+     * the shared source and writes only its own rows, so the output is bit-identical
+     * to the serial path for any pool size. A null pool runs serially.
+     */
+    public static float[] apply(final Object pixels, final int w, final int h, final EdgeDetector edgeDetector,
+                                final Magnitude magnitude, ForkJoinPool pool) {
+        if (edgeDetector == EdgeDetector.NONE) {
+            return null;
+        }
+        checkPlane(pixels, w, h);
+        final float[] out = new float[w * h];
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                filterRows(pixels, w, h, edgeDetector, magnitude, out, y0, y1);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Filters rows [y0, y1) of the plane into {@code out}. Rows just outside the range
+     * are read from the shared source, so disjoint row ranges can run independently.
+     */
+    static void filterRows(Object pixels, int w, int h, EdgeDetector edgeDetector, Magnitude magnitude,
+                           float[] out, int y0, int y1) {
+        switch (edgeDetector == null ? EdgeDetector.SOBEL : edgeDetector) {
+            case PREWITT:
+                gradientRows(pixels, w, h, PREWITT_X, PREWITT_Y, magnitude, out, y0, y1);
+                break;
+            case SCHARR:
+                gradientRows(pixels, w, h, SCHARR_X, SCHARR_Y, magnitude, out, y0, y1);
+                break;
+            case LAPLACIAN_3X3:
+                absoluteRows(pixels, w, h, LAPLACIAN_3X3, out, y0, y1);
+                break;
+            case NONE:
+                break;
+            case SOBEL:
+            default:
+                gradientRows(pixels, w, h, SOBEL_X, SOBEL_Y, magnitude, out, y0, y1);
+                break;
+        }
+    }
+
+    private static void gradientRows(Object pixels, int w, int h, float[] kx, float[] ky, Magnitude magnitude,
+                                     float[] out, int y0, int y1) {
+        final double sx = kernelScale(kx);
+        final double sy = kernelScale(ky);
+        final Magnitude mode = magnitude != null ? magnitude : Magnitude.EUCLIDEAN;
+
+        // Three padded row buffers roll down the plane; edges are replicated like
+        // ImageJ's Convolver so border pixels match the previous two-pass result.
+        float[] above = new float[w + 2];
+        float[] center = new float[w + 2];
+        float[] below = new float[w + 2];
+        readRow(pixels, w, clamp(y0 - 1, h), above);
+        readRow(pixels, w, y0, center);
+
+        for (int y = y0; y < y1; y++) {
+            readRow(pixels, w, clamp(y + 1, h), below);
+            final int row = y * w;
+            for (int x = 0; x < w; x++) {
+                final float p0 = above[x], p1 = above[x + 1], p2 = above[x + 2];
+                final float p3 = center[x], p4 = center[x + 1], p5 = center[x + 2];
+                final float p6 = below[x], p7 = below[x + 1], p8 = below[x + 2];
+
+                // Same accumulation as Convolver.convolveFloat: float products summed
+                // in double, then scaled and rounded to float.
+                double sumX = 0.0;
+                sumX += p0 * kx[0]; sumX += p1 * kx[1]; sumX += p2 * kx[2];
+                sumX += p3 * kx[3]; sumX += p4 * kx[4]; sumX += p5 * kx[5];
+                sumX += p6 * kx[6]; sumX += p7 * kx[7]; sumX += p8 * kx[8];
+                double sumY = 0.0;
+                sumY += p0 * ky[0]; sumY += p1 * ky[1]; sumY += p2 * ky[2];
+                sumY += p3 * ky[3]; sumY += p4 * ky[4]; sumY += p5 * ky[5];
+                sumY += p6 * ky[6]; sumY += p7 * ky[7]; sumY += p8 * ky[8];
+
+                final float gx = (float) (sumX * sx);
+                final float gy = (float) (sumY * sy);
+                out[row + x] = magnitude(gx, gy, mode);
+            }
+            final float[] recycled = above;
+            above = center;
+            center = below;
+            below = recycled;
+        }
+    }
+
+    private static void absoluteRows(Object pixels, int w, int h, float[] k, float[] out, int y0, int y1) {
+        final double scale = kernelScale(k);
+
+        float[] above = new float[w + 2];
+        float[] center = new float[w + 2];
+        float[] below = new float[w + 2];
+        readRow(pixels, w, clamp(y0 - 1, h), above);
+        readRow(pixels, w, y0, center);
+
+        for (int y = y0; y < y1; y++) {
+            readRow(pixels, w, clamp(y + 1, h), below);
+            final int row = y * w;
+            for (int x = 0; x < w; x++) {
+                double sum = 0.0;
+                sum += above[x] * k[0]; sum += above[x + 1] * k[1]; sum += above[x + 2] * k[2];
+                sum += center[x] * k[3]; sum += center[x + 1] * k[4]; sum += center[x + 2] * k[5];
+                sum += below[x] * k[6]; sum += below[x + 1] * k[7]; sum += below[x + 2] * k[8];
+                out[row + x] = Math.abs((float) (sum * scale));
+            }
+            final float[] recycled = above;
+            above = center;
+            center = below;
+            below = recycled;
+        }
+    }
+
+    private static float magnitude(float gx, float gy, Magnitude mode) {
+        switch (mode) {
+            case L1:
+                return Math.abs(gx) + Math.abs(gy);
+            case ALPHA_MAX_BETA_MIN: {
+                final float ax = Math.abs(gx);
+                final float ay = Math.abs(gy);
+                return ax > ay ? ALPHA * ax + BETA * ay : ALPHA * ay + BETA * ax;
+            }
+            case EUCLIDEAN:
+            default:
+                // float squares are exact in double, so this rounds to the same float
+                // as Math.hypot without its overflow/underflow handling cost.
+                return (float) Math.sqrt((double) gx * gx + (double) gy * gy);
+        }
+    }
+
+    /** Reads one source row into dst[1..w] and replicates the edge pixels into dst[0] and dst[w+1]. */
+    private static void readRow(Object pixels, int w, int y, float[] dst) {
+        final int offset = y * w;
+        if (pixels instanceof float[]) {
+            System.arraycopy((float[]) pixels, offset, dst, 1, w);
+        } else if (pixels instanceof short[]) {
+            final short[] s = (short[]) pixels;
+            for (int x = 0; x < w; x++) dst[x + 1] = s[offset + x] & 0xFFFF;
+        } else {
+            final byte[] b = (byte[]) pixels;
+            for (int x = 0; x < w; x++) dst[x + 1] = b[offset + x] & 0xFF;
+        }
+        dst[0] = dst[1];
+        dst[w + 1] = dst[w];
+    }
+
+    private static Object readablePixels(ImageProcessor ip) {
+        // Calibrated (e.g. signed 16-bit) and RGB data need ImageJ's own float
+        // conversion; plain byte/short/float pixels are read in place.
+        final boolean raw = ip instanceof FloatProcessor
+                || ((ip instanceof ByteProcessor || ip instanceof ShortProcessor) && ip.getCalibrationTable() == null);
+        return raw ? ip.getPixels() : ip.convertToFloatProcessor().getPixels();
+    }
+
+    private static double kernelScale(float[] kernel) {
+        // Mirrors Convolver's normalization; all built-in kernels sum to zero (scale 1).
+        double sum = 0.0;
+        for (float k : kernel) sum += k;
+        return sum != 0.0 ? 1.0 / sum : 1.0;
+    }
+
+    private static int clamp(int y, int h) {
+        return y < 0 ? 0 : (y >= h ? h - 1 : y);
+    }
+
+    static void checkPlane(Object pixels, int w, int h) {
+        final int length;
+        if (pixels instanceof byte[]) length = ((byte[]) pixels).length;
+        else if (pixels instanceof short[]) length = ((short[]) pixels).length;
+        else if (pixels instanceof float[]) length = ((float[]) pixels).length;
+        else throw new IllegalArgumentException("pixels must be byte[], short[] or float[]");
+        if (w <= 0 || h <= 0 || length != w * h) {
+            throw new IllegalArgumentException("pixels must be length w*h");
+        }
+    }
+}
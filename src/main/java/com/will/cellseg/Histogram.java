@@ -0,0 +1,175 @@
+package com.will.cellseg;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Intensity histogram built straight from a raw pixel array. Binning follows ImageJ's
+ * 8-bit conversion so a 256-bin histogram of 16-bit or float data matches what
+ * {@code ImageProcessor.setAutoThreshold} derives from the scaled display copy.
+ */
+public final class Histogram {
+
+    public static final int DEFAULT_BINS = 256;
+
+    /** Bin counts; 8-bit data always uses 256 bins, one per grey level. */
+    public final int[] counts;
+    /** Data range mapped onto the bins (0..255 for 8-bit data). */
+    public final double min;
+    public final double max;
+    /** 8, 16 or 32, matching ImageJ's bit depth of the source pixels. */
+    public final int bitDepth;
+
+    private Histogram(int[] counts, double min, double max, int bitDepth) {
+        this.counts = counts;
+        this.min = min;
+        this.max = max;
+        this.bitDepth = bitDepth;
+    }
+
+    public int bins() {
+        return counts.length;
+    }
+
+    /** ImageJ-compatible 256-bin histogram of a byte[], short[] (unsigned) or float[] plane. */
+    public static Histogram of(Object pixels, int w, int h) {
+        return of(pixels, w, h, DEFAULT_BINS, null);
+    }
+
+    public static Histogram of(Object pixels, int w, int h, int bins) {
+        return of(pixels, w, h, bins, null);
+    }
+
+    /**
+     * Histogram with {@code bins} bins spanning the data range. The bin count only
+     * applies to 16-bit and float data; 8-bit data is never rebinned.
+     *
+     * <p>With a pool, each row band counts into its own private bins and the bands are
+     * summed at the end, so the result is identical to the serial build. A null pool
+     * runs serially.
+     */
+    public static Histogram of(Object pixels, int w, int h, int bins, ForkJoinPool pool) {
+        EdgeFilter.checkPlane(pixels, w, h);
+        if (bins < 2) {
+            throw new IllegalArgumentException("bins must be >= 2");
+        }
+        if (pixels instanceof byte[]) {
+            return new Histogram(countBytes((byte[]) pixels, w, h, pool), 0, 255, 8);
+        }
+        if (pixels instanceof short[]) {
+            final short[] p = (short[]) pixels;
+            final double[] range = shortRange(p, w, h, pool);
+            final int min = (int) range[0];
+            final int max = (int) range[1];
+            return new Histogram(countShorts(p, w, h, bins, min, max, pool), min, max, 16);
+        }
+        final float[] p = (float[]) pixels;
+        final double[] range = floatRange(p, w, h, pool);
+        return new Histogram(countFloats(p, w, h, bins, range[0], range[1], pool), range[0], range[1], 32);
+    }
+
+    private static int[] countBytes(final byte[] p, final int w, int h, ForkJoinPool pool) {
+        final int[] total = new int[256];
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                final int[] counts = new int[256];
+                for (int i = y0 * w, end = y1 * w; i < end; i++) counts[p[i] & 0xFF]++;
+                merge(total, counts);
+            }
+        });
+        return total;
+    }
+
+    private static int[] countShorts(final short[] p, final int w, int h, final int bins,
+                                     final int min, int max, ForkJoinPool pool) {
+        // Same mapping as TypeConverter.convertShortToByte with scaling on.
+        final double scale = (double) bins / (max - min + 1);
+        final int top = bins - 1;
+        final int[] total = new int[bins];
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                final int[] counts = new int[bins];
+                for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                    int v = (int) (((p[i] & 0xFFFF) - min) * scale + 0.5);
+                    if (v > top) v = top;
+                    counts[v]++;
+                }
+                merge(total, counts);
+            }
+        });
+        return total;
+    }
+
+    private static int[] countFloats(final float[] p, final int w, int h, final int bins,
+                                     final double min, double max, ForkJoinPool pool) {
+        // Same mapping as FloatProcessor.create8BitImage: NaN lands in bin 0.
+        final double scale = (bins - 1) / (max - min);
+        final int top = bins - 1;
+        final int[] total = new int[bins];
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                final int[] counts = new int[bins];
+                for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                    double v = p[i] - min;
+                    if (v < 0.0) v = 0.0;
+                    int bin = (int) (v * scale + 0.5);
+                    if (bin > top) bin = top;
+                    counts[bin]++;
+                }
+                merge(total, counts);
+            }
+        });
+        return total;
+    }
+
+    private static double[] shortRange(final short[] p, final int w, int h, ForkJoinPool pool) {
+        final double[] range = {p[0] & 0xFFFF, p[0] & 0xFFFF};
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                int min = 0xFFFF, max = 0;
+                for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                    final int v = p[i] & 0xFFFF;
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+                mergeRange(range, min, max);
+            }
+        });
+        return range;
+    }
+
+    private static double[] floatRange(final float[] p, final int w, int h, ForkJoinPool pool) {
+        // NaN-seeded like FloatProcessor.findMinAndMax: NaN pixels never set the range.
+        final double[] range = {Double.NaN, Double.NaN};
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                float min = Float.NaN, max = Float.NaN;
+                for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                    final float v = p[i];
+                    if (Float.isNaN(v)) continue;
+                    if (!(v >= min)) min = v;
+                    if (!(v <= max)) max = v;
+                }
+                if (!Float.isNaN(min)) mergeRange(range, min, max);
+            }
+        });
+        return range;
+    }
+
+    private static void merge(int[] total, int[] counts) {
+        synchronized (total) {
+            for (int i = 0; i < counts.length; i++) total[i] += counts[i];
+        }
+    }
+
+    private static void mergeRange(double[] range, double min, double max) {
+        synchronized (range) {
+            if (!(range[0] <= min)) range[0] = min;
+            if (!(range[1] >= max)) range[1] = max;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.will.cellseg;
+
+import java.util.Arrays;
+
+/**
+ * In-place equivalent of the ImageJ command chain that used to back
+ * {@link CellSegmentationPipeline#fillEdgeOpenHolesHybrid}:
+ * pad/Close-/crop, Fill Holes, Invert, Fill Holes, drop 4-connected components that
+ * touch 3+ edges, OR with the filled mask.
+ *
+ * <p>Working that chain through gives a direct rule: after the closing, a pixel ends up
+ * background only if it is background connected to the image border <em>and</em> its
+ * component in the inverted/filled image touches at least three edges. Everything is
+ * computed on the caller's {@code byte[]}; the closing runs on a bit-packed copy and the
+ * intermediate sets are tracked as codes in the mask itself.
+ */
+public final class HoleFiller {
+
+    private HoleFiller() {}
+
+    private static final int FG = 255;
+    private static final int BG = 0;
+    // Working codes. None of them are 0 or 255, so a fill can never revisit its own output.
+    private static final int BORDER_BG = 1;   // background 4-connected to the border (I2 complement)
+    private static final int BORDER_FG = 2;   // I2 foreground component touching the border
+    private static final int KEPT_BG = 3;     // border background in an I4 component touching < 3 edges
+    private static final int INNER = 4;       // visited I2 foreground (holes or closed mask) inside I4
+    private static final int REMOVED_BG = 5;  // border background in an I4 component touching 3+ edges
+    private static final int REMOVED_IN = 6;  // INNER pixel revisited while marking a removed component
+
+    /** Edges a component must touch before its background is left unfilled. */
+    public static final int DEFAULT_MIN_BORDER_COUNT = 3;
+
+    /**
+     * Fills {@code mask} (nonzero = foreground) in place and leaves it as 0/255.
+     * Out-of-image pixels count as background for the closing, which is what the
+     * old Canvas Size padding produced with ImageJ's default black background color.
+     */
+    public static void fillEdgeOpenHoles(byte[] mask, int w, int h) {
+        fillEdgeOpenHoles(mask, w, h, false, DEFAULT_MIN_BORDER_COUNT);
+    }
+
+    /**
+     * @param outsideForeground treat pixels beyond the image as foreground during the
+     *                          closing (the old chain with a white background color)
+     * @param minBorderCount    components of the filled complement touching at least
+     *                          this many edges keep their background
+     */
+    public static void fillEdgeOpenHoles(byte[] mask, int w, int h, boolean outsideForeground, int minBorderCount) {
+        if (mask == null || w <= 0 || h <= 0 || mask.length != w * h) {
+            throw new IllegalArgumentException("mask must be length w*h");
+        }
+        if (minBorderCount < 1 || minBorderCount > 4) {
+            throw new IllegalArgumentException("minBorderCount must be in [1,4]");
+        }
+        // Close- on a 1px padded canvas, cropped back; unpacking leaves the mask as 0/255.
+        BitMask.fromBytes(mask, w, h).close(1, BitMask.Shape.SQUARE, outsideForeground, null).toBytes(mask);
+
+        final SpanFiller filler = new SpanFiller(mask, w, h);
+        final int[] map = new int[256];
+
+        // Fill Holes on the closed mask: background reachable from the border stays
+        // background, every other background pixel is a hole.
+        clearMap(map);
+        map[BG] = BORDER_BG;
+        fillFromBorder(filler, map, BG);
+
+        // Inverting and filling again keeps only the I2 foreground components that
+        // reach the border out of I4.
+        clearMap(map);
+        map[FG] = BORDER_FG;
+        map[BG] = BORDER_FG;
+        fillFromBorder(filler, map, FG);
+
+        // I4 is now every pixel still coded BORDER_BG, BG (hole) or FG. Walk its
+        // 4-connected components and re-code them depending on how many edges they touch.
+        final int[] visit = new int[256];
+        clearMap(visit);
+        visit[BORDER_BG] = KEPT_BG;
+        visit[BG] = INNER;
+        visit[FG] = INNER;
+        final int[] remove = new int[256];
+        clearMap(remove);
+        remove[KEPT_BG] = REMOVED_BG;
+        remove[INNER] = REMOVED_IN;
+
+        for (int i = 0; i < mask.length; i++) {
+            final int v = mask[i] & 0xFF;
+            if (visit[v] < 0) continue;
+            final int borderMask = filler.fill(i, visit);
+            if (Integer.bitCount(borderMask) >= minBorderCount) {
+                filler.fill(i, remove);
+            }
+        }
+
+        // Final mask = I2 OR I5: only the background of removed components stays 0.
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = (mask[i] & 0xFF) == REMOVED_BG ? (byte) BG : (byte) FG;
+        }
+    }
+
+    private static void fillFromBorder(SpanFiller filler, int[] map, int seedValue) {
+        final int w = filler.w;
+        final int h = filler.h;
+        for (int x = 0; x < w; x++) {
+            seed(filler, map, seedValue, x);
+            seed(filler, map, seedValue, (h - 1) * w + x);
+        }
+        for (int y = 1; y < h - 1; y++) {
+            seed(filler, map, seedValue, y * w);
+            seed(filler, map, seedValue, y * w + w - 1);
+        }
+    }
+
+    private static void seed(SpanFiller filler, int[] map, int seedValue, int index) {
+        if ((filler.pixels[index] & 0xFF) == seedValue) {
+            filler.fill(index, map);
+        }
+    }
+
+    private static void clearMap(int[] map) {
+        Arrays.fill(map, -1);
+    }
+
+    /**
+     * 4-connected scanline flood fill driven by a value map: pixels whose value maps to
+     * a code >= 0 are part of the region and are rewritten to that code. Spans keep the
+     * seed stack small compared with per-pixel BFS.
+     */
+    private static final class SpanFiller {
+        final byte[] pixels;
+        final int w;
+        final int h;
+        private int[] stack = new int[1024];
+        private int size;
+
+        SpanFiller(byte[] pixels, int w, int h) {
+            this.pixels = pixels;
+            this.w = w;
+            this.h = h;
+        }
+
+        /** Fills the region containing {@code seed}; returns its ConnectedComponents border mask. */
+        int fill(int seed, int[] map) {
+            int borderMask = 0;
+            size = 0;
+            push(seed);
+            while (size > 0) {
+                final int p = stack[--size];
+                final int y = p / w;
+                final int row = y * w;
+                int x1 = p - row;
+                if (map[pixels[p] & 0xFF] < 0) continue;
+
+                while (x1 > 0 && map[pixels[row + x1 - 1] & 0xFF] >= 0) x1--;
+                int x2 = x1;
+                while (x2 < w && map[pixels[row + x2] & 0xFF] >= 0) {
+                    pixels[row + x2] = (byte) map[pixels[row + x2] & 0xFF];
+                    x2++;
+                }
+                x2--;
+
+                if (y == 0) borderMask |= ConnectedComponents.TOP;
+                if (y == h - 1) borderMask |= ConnectedComponents.BOTTOM;
+                if (x1 == 0) borderMask |= ConnectedComponents.LEFT;
+                if (x2 == w - 1) borderMask |= ConnectedComponents.RIGHT;
+
+                if (y > 0) pushRuns(row - w, x1, x2, map);
+                if (y < h - 1) pushRuns(row + w, x1, x2, map);
+            }
+            return borderMask;
+        }
+
+        private void pushRuns(int row, int x1, int x2, int[] map) {
+            boolean inRun = false;
+            for (int x = x1; x <= x2; x++) {
+                final boolean match = map[pixels[row + x] & 0xFF] >= 0;
+                if (match && !inRun) push(row + x);
+                inRun = match;
+            }
+        }
+
+        private void push(int p) {
+            if (size == stack.length) {
+                final int[] grown = new int[stack.length * 2];
+                System.arraycopy(stack, 0, grown, 0, size);
+                stack = grown;
+            }
+            stack[size++] = p;
+        }
+    }
+}
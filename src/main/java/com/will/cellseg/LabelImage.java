@@ -0,0 +1,141 @@
+package com.will.cellseg;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Segmentation result held as a label raster (1..count, 0 = background) straight from
+ * connected-component labeling, instead of ROIs from ParticleAnalyzer that then have to
+ * be filled back into mask and label images. The mask and label images are derived from
+ * the raster; ROIs are traced only when {@link #getRois()} is first called.
+ */
+public final class LabelImage {
+
+    /** Largest label count a 16-bit label image can hold; above this a 32-bit image is used. */
+    public static final int MAX_16BIT_LABELS = 65535;
+
+    public final int width;
+    public final int height;
+    /** Label per pixel, linear index y*w + x. */
+    final int[] labels;
+    public final int count;
+    /** Stats per label; index 0 is unused. */
+    private final ConnectedComponents.Stats[] stats;
+
+    private ImageProcessor labelProcessor;
+    private Roi[] rois;
+
+    private LabelImage(int width, int height, int[] labels, int count, ConnectedComponents.Stats[] stats) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.count = count;
+        this.stats = stats;
+    }
+
+    /**
+     * Labels the 8-connected particles of a binary mask (nonzero = foreground), the same
+     * connectivity ParticleAnalyzer traces, and drops those smaller than {@code minArea}
+     * pixels. ParticleAnalyzer's size is the same count: its 8-connected flood fill of the
+     * particle, holes and nested particles excluded. Remaining labels are renumbered 1..count in raster order of each particle's
+     * first pixel, which is also ParticleAnalyzer's ROI order.
+     */
+    public static LabelImage fromMask(byte[] mask, int w, int h, int minArea, ForkJoinPool pool) {
+        final ConnectedComponents.Labels all = ConnectedComponents.label(mask, w, h, true, pool);
+        final int[] keep = new int[all.count + 1];
+        int count = 0;
+        for (int l = 1; l <= all.count; l++) {
+            if (all.stats(l).area >= minArea) keep[l] = ++count;
+        }
+        final ConnectedComponents.Stats[] stats = new ConnectedComponents.Stats[count + 1];
+        for (int l = 1; l <= all.count; l++) {
+            if (keep[l] != 0) stats[keep[l]] = all.stats(l);
+        }
+        final int[] raster = all.raster;
+        if (count != all.count) {
+            for (int i = 0; i < raster.length; i++) raster[i] = keep[raster[i]];
+        }
+        return new LabelImage(w, h, raster, count, stats);
+    }
+
+    public static LabelImage fromMask(ImageProcessor mask, int minArea, ForkJoinPool pool) {
+        final ByteProcessor bp = mask instanceof ByteProcessor ? (ByteProcessor) mask : mask.convertToByteProcessor(false);
+        return fromMask((byte[]) bp.getPixels(), bp.getWidth(), bp.getHeight(), minArea, pool);
+    }
+
+    public ConnectedComponents.Stats stats(int label) {
+        if (label < 1 || label > count) throw new IllegalArgumentException("label out of range: " + label);
+        return stats[label];
+    }
+
+    public int labelAt(int x, int y) {
+        return labels[y * width + x];
+    }
+
+    /** Binary mask of every kept particle (255 = foreground). */
+    public ByteProcessor toMask() {
+        final byte[] out = new byte[width * height];
+        for (int i = 0; i < out.length; i++) {
+            if (labels[i] != 0) out[i] = (byte) 255;
+        }
+        return new ByteProcessor(width, height, out);
+    }
+
+    /**
+     * Label image as a new processor: 16-bit while the labels fit, otherwise 32-bit float
+     * (exact up to 2^24 labels).
+     */
+    public ImageProcessor toProcessor() {
+        if (count <= MAX_16BIT_LABELS) {
+            final short[] out = new short[labels.length];
+            for (int i = 0; i < out.length; i++) out[i] = (short) labels[i];
+            return new ShortProcessor(width, height, out, null);
+        }
+        final float[] out = new float[labels.length];
+        for (int i = 0; i < out.length; i++) out[i] = labels[i];
+        return new FloatProcessor(width, height, out, null);
+    }
+
+    /** Run-length index of the labels, for measuring or tracing without ROIs. */
+    public LabelSpans toSpans() {
+        return LabelSpans.fromLabels(labels, width, height, count);
+    }
+
+    /**
+     * One traced ROI per label, index {@code label - 1}. Traced on first call with
+     * ImageJ's Wand, the way ParticleAnalyzer outlines particles, then cached.
+     */
+    public synchronized Roi[] getRois() {
+        if (rois == null) {
+            rois = traceRois();
+        }
+        return rois.clone();
+    }
+
+    private Roi[] traceRois() {
+        if (labelProcessor == null) {
+            labelProcessor = toProcessor();
+        }
+        final Wand wand = new Wand(labelProcessor);
+        final Roi[] out = new Roi[count];
+        for (int l = 1; l <= count; l++) {
+            final ConnectedComponents.Stats s = stats[l];
+            // First pixel of the label in raster order: top row, leftmost pixel.
+            final int row = s.minY * width;
+            int x = s.minX;
+            while (labels[row + x] != l) x++;
+            wand.autoOutline(x, s.minY, l, l, Wand.LEGACY_MODE);
+            // The Wand reuses its point arrays between traces.
+            out[l - 1] = new PolygonRoi(Arrays.copyOf(wand.xpoints, wand.npoints),
+                    Arrays.copyOf(wand.ypoints, wand.npoints), wand.npoints, Roi.TRACED_ROI);
+        }
+        return out;
+    }
+}
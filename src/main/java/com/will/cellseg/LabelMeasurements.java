@@ -0,0 +1,268 @@
+package com.will.cellseg;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Per-label measurements from one sweep over an intensity plane and a label raster,
+ * replacing {@code setRoi(roi); analyzer.measure()} per ROI. Accumulators live in
+ * primitive arrays indexed by label, and the table uses ImageJ's standard columns so
+ * it reads the same as Analyzer output.
+ *
+ * <p>Area, mean, std-dev, min/max, centroid, bounding rectangle and integrated density
+ * come from the sweep. Outline-based columns (perimeter, Feret, shape descriptors) come
+ * from {@link LabelShapes}, which only needs the label raster.
+ */
+public final class LabelMeasurements {
+
+    private LabelMeasurements() {}
+
+    /** Measurements the label sweep computes itself. */
+    public static final int SWEEP_MEASUREMENTS = Measurements.AREA | Measurements.MEAN
+            | Measurements.STD_DEV | Measurements.MIN_MAX | Measurements.CENTROID
+            | Measurements.RECT | Measurements.INTEGRATED_DENSITY;
+
+    /** Outline measurements, computed per label by {@link LabelShapes}. */
+    public static final int OUTLINE_MEASUREMENTS = Measurements.PERIMETER | Measurements.FERET
+            | Measurements.SHAPE_DESCRIPTORS;
+
+    /**
+     * True if the sweep plus outline pass covers {@code measurements} on this processor:
+     * grayscale pixels and no flags beyond {@link #SWEEP_MEASUREMENTS} and
+     * {@link #OUTLINE_MEASUREMENTS}. Anything else goes through Analyzer.
+     */
+    public static boolean supports(ImageProcessor ip, int measurements) {
+        final boolean grayscale = ip instanceof ByteProcessor || ip instanceof ShortProcessor
+                || ip instanceof FloatProcessor;
+        return grayscale && (measurements & ~(SWEEP_MEASUREMENTS | OUTLINE_MEASUREMENTS)) == 0;
+    }
+
+    /**
+     * Sweep plus outline columns for the current plane of {@code image}, one row per label
+     * of {@code spans}. Outline columns run on {@code pool} (null = serial).
+     */
+    public static ResultsTable measure(ImagePlus image, LabelSpans spans, int measurements, ForkJoinPool pool) {
+        final Calibration cal = image.getCalibration();
+        final ResultsTable rt = measure(spans, image.getProcessor(), measurements, cal);
+        copyOutlineColumns(LabelShapes.measure(spans, measurements, cal, pool), rt);
+        return rt;
+    }
+
+    /**
+     * Measures every label 1..count of {@code labels} on {@code ip}, one table row per
+     * label in label order. Labels with no pixels get a row of NaN so rows stay aligned
+     * with ROI indices. Only {@link #SWEEP_MEASUREMENTS} flags are honoured here.
+     */
+    public static ResultsTable measure(int[] labels, int count, ImageProcessor ip, int measurements, Calibration cal) {
+        return measure(LabelSpans.fromLabels(labels, ip.getWidth(), ip.getHeight(), count), ip, measurements, cal);
+    }
+
+    /**
+     * As {@link #measure(int[], int, ImageProcessor, int, Calibration)} from a prebuilt
+     * span index, which is what to reuse when many planes share one segmentation. Only
+     * the intensity sums are per plane; geometry comes from the index.
+     */
+    public static ResultsTable measure(LabelSpans spans, ImageProcessor ip, int measurements, Calibration cal) {
+        if (!supports(ip, measurements & SWEEP_MEASUREMENTS)) {
+            throw new IllegalArgumentException("8-bit, 16-bit or 32-bit image required");
+        }
+        final int w = ip.getWidth();
+        if (w != spans.width || ip.getHeight() != spans.height) {
+            throw new IllegalArgumentException("image size " + w + "x" + ip.getHeight()
+                    + " does not match labels " + spans.width + "x" + spans.height);
+        }
+        final Calibration c = cal != null ? cal : new Calibration();
+
+        final Accumulator acc = new Accumulator(spans.count);
+        final Object pixels = ip.getPixels();
+        // ImageJ calibrates 8/16-bit statistics through the calibration table.
+        final float[] cTable = ip instanceof FloatProcessor ? null : c.getCTable();
+        for (int l = 1; l <= spans.count; l++) {
+            for (int s = spans.start[l], end = spans.start[l + 1]; s < end; s++) {
+                final int row = spans.spanY[s] * w;
+                final int i1 = row + spans.spanX1[s];
+                if (pixels instanceof byte[]) {
+                    final byte[] p = (byte[]) pixels;
+                    for (int i = row + spans.spanX0[s]; i < i1; i++) {
+                        final int v = p[i] & 0xFF;
+                        acc.add(l, v, cTable != null ? cTable[v] : v);
+                    }
+                } else if (pixels instanceof short[]) {
+                    final short[] p = (short[]) pixels;
+                    for (int i = row + spans.spanX0[s]; i < i1; i++) {
+                        final int v = p[i] & 0xFFFF;
+                        // ShortStatistics' "uncalibrated" mean is the calibrated one, so
+                        // Analyzer's RawIntDen of a calibrated 16-bit plane is calibrated too.
+                        final double cv = cTable != null ? cTable[v] : v;
+                        acc.add(l, cv, cv);
+                    }
+                } else {
+                    final float[] p = (float[]) pixels;
+                    for (int i = row + spans.spanX0[s]; i < i1; i++) {
+                        acc.add(l, p[i], p[i]);
+                    }
+                }
+            }
+        }
+        return acc.toTable(spans, measurements, c);
+    }
+
+    /** Copies every column of {@code outline} (may be null) into {@code rt} row by row. */
+    public static void copyOutlineColumns(ResultsTable outline, ResultsTable rt) {
+        if (outline == null) {
+            return;
+        }
+        for (String heading : outline.getHeadings()) {
+            final int column = outline.getColumnIndex(heading);
+            for (int row = 0; row < outline.size() && row < rt.size(); row++) {
+                rt.setValue(heading, row, outline.getValueAsDouble(column, row));
+            }
+        }
+    }
+
+    /**
+     * True if {@link LabelShapes} gives Analyzer's outline columns for {@code rois}: each
+     * ROI is a traced polygon with exactly the vertices traced from its label in
+     * {@code spans}, as segmentation output is before any review. Ovals, freehand,
+     * composite and edited or moved polygons have other outlines, so their outline
+     * columns have to come from Analyzer.
+     */
+    public static boolean outlinesMatchLabels(Roi[] rois, LabelSpans spans) {
+        if (rois == null || rois.length != spans.count) return false;
+        final LabelShapes.Contour contour = new LabelShapes.Contour();
+        for (int i = 0; i < rois.length; i++) {
+            final Roi roi = rois[i];
+            final int l = i + 1;
+            if (roi == null || roi.getType() != Roi.TRACED_ROI || spans.stats(l) == null) return false;
+            final int first = spans.start[l];
+            LabelShapes.traceOuterContour(spans.labels, spans.width, spans.height, l,
+                    spans.spanX1[first], spans.spanY[first], contour);
+            final Polygon polygon = roi.getPolygon();
+            if (polygon.npoints != contour.n) return false;
+            for (int k = 0; k < contour.n; k++) {
+                if (polygon.xpoints[k] != contour.x[k] || polygon.ypoints[k] != contour.y[k]) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Label raster from an ROI array, label {@code i + 1} for {@code rois[i]}, filled
+     * with each ROI's mask. Returns null if two ROIs share a pixel: Analyzer would count
+     * that pixel for both, which one raster can't express.
+     */
+    public static int[] rasterize(Roi[] rois, int w, int h) {
+        final int[] labels = new int[w * h];
+        if (rois == null) return labels;
+        for (int i = 0; i < rois.length; i++) {
+            final Roi roi = rois[i];
+            if (roi == null) continue;
+            final Rectangle r = roi.getBounds();
+            final ImageProcessor mask = roi.getMask();
+            final int x0 = Math.max(0, r.x);
+            final int y0 = Math.max(0, r.y);
+            final int x1 = Math.min(w, r.x + r.width);
+            final int y1 = Math.min(h, r.y + r.height);
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    if (mask != null && mask.get(x - r.x, y - r.y) == 0) continue;
+                    final int p = y * w + x;
+                    if (labels[p] != 0) return null;
+                    labels[p] = i + 1;
+                }
+            }
+        }
+        return labels;
+    }
+
+    /** Per-label intensity sums; index 0 is unused. */
+    private static final class Accumulator {
+        final double[] sum;
+        final double[] sumSq;
+        final double[] rawSum;
+        final double[] min;
+        final double[] max;
+
+        Accumulator(int count) {
+            sum = new double[count + 1];
+            sumSq = new double[count + 1];
+            rawSum = new double[count + 1];
+            min = new double[count + 1];
+            max = new double[count + 1];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        void add(int l, double raw, double v) {
+            sum[l] += v;
+            sumSq[l] += v * v;
+            rawSum[l] += raw;
+            if (v < min[l]) min[l] = v;
+            if (v > max[l]) max[l] = v;
+        }
+
+        /** Same formulas and calibration calls as ImageStatistics / Analyzer. */
+        ResultsTable toTable(LabelSpans spans, int measurements, Calibration cal) {
+            final ResultsTable rt = new ResultsTable();
+            // Standard column names (Area, Mean, ...) as Analyzer's tables have them.
+            rt.setDefaultHeadings();
+            final int imageHeight = spans.height;
+            final double pw = cal.pixelWidth;
+            final double ph = cal.pixelHeight;
+            for (int l = 1; l <= spans.count; l++) {
+                rt.incrementCounter();
+                final ConnectedComponents.Stats g = spans.stats(l);
+                final boolean empty = g == null;
+                final long cnt = empty ? 0 : g.area;
+                final double area = cnt * pw * ph;
+                final double mean = empty ? Double.NaN : sum[l] / cnt;
+                if ((measurements & Measurements.AREA) != 0) {
+                    rt.addValue(ResultsTable.AREA, area);
+                }
+                if ((measurements & Measurements.MEAN) != 0) {
+                    rt.addValue(ResultsTable.MEAN, mean);
+                }
+                if ((measurements & Measurements.STD_DEV) != 0) {
+                    double sd = Double.NaN;
+                    if (!empty) {
+                        final double var = (cnt * sumSq[l] - sum[l] * sum[l]) / cnt;
+                        sd = var > 0.0 ? Math.sqrt(var / (cnt - 1.0)) : 0.0;
+                    }
+                    rt.addValue(ResultsTable.STD_DEV, sd);
+                }
+                if ((measurements & Measurements.MIN_MAX) != 0) {
+                    rt.addValue(ResultsTable.MIN, empty ? Double.NaN : min[l]);
+                    rt.addValue(ResultsTable.MAX, empty ? Double.NaN : max[l]);
+                }
+                if ((measurements & Measurements.CENTROID) != 0) {
+                    // Pixel centres are at +0.5.
+                    rt.addValue(ResultsTable.X_CENTROID, empty ? Double.NaN : cal.getX((double) g.sumX / cnt + 0.5));
+                    rt.addValue(ResultsTable.Y_CENTROID,
+                            empty ? Double.NaN : cal.getY((double) g.sumY / cnt + 0.5, imageHeight));
+                }
+                if ((measurements & Measurements.RECT) != 0) {
+                    rt.addValue(ResultsTable.ROI_X, empty ? Double.NaN : cal.getX(g.minX));
+                    rt.addValue(ResultsTable.ROI_Y, empty ? Double.NaN : cal.getY(g.minY, imageHeight));
+                    rt.addValue(ResultsTable.ROI_WIDTH, empty ? 0.0 : g.width() * pw);
+                    rt.addValue(ResultsTable.ROI_HEIGHT, empty ? 0.0 : g.height() * ph);
+                }
+                if ((measurements & Measurements.INTEGRATED_DENSITY) != 0) {
+                    rt.addValue(ResultsTable.INTEGRATED_DENSITY, area * mean);
+                    rt.addValue(ResultsTable.RAW_INTEGRATED_DENSITY, empty ? Double.NaN : rawSum[l]);
+                }
+            }
+            return rt;
+        }
+    }
+}
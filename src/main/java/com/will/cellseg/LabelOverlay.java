@@ -0,0 +1,243 @@
+package com.will.cellseg;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.LutLoader;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders a label image alpha-blended over its source as one RGB plane. Source pixels
+ * go through the source's LUT and display range, label ids through a colour table built
+ * from the label LUT (and the display range of 16- and 32-bit labels), and both meet in
+ * a single parallel pass over one {@code int[]}: no duplicates, no RGB conversions, no
+ * {@code IJ.run}.
+ *
+ * <p>Colours are the ones ImageJ's RGB conversion gives the same images, so the result
+ * matches converting source and LUT-coloured labels to RGB and blending them.
+ */
+public final class LabelOverlay {
+
+    private LabelOverlay() {}
+
+    public static final String DEFAULT_LUT = "Rainbow RGB";
+    public static final float DEFAULT_ALPHA = 0.5f;
+
+    // LUTs are looked up by menu name, which can mean reading a .lut file; cache them.
+    private static final ConcurrentHashMap<String, int[]> LUTS = new ConcurrentHashMap<String, int[]>();
+
+    /**
+     * Blends {@code labels} over the displayed current plane of {@code source}. Label 0 is
+     * transparent; other labels are coloured by {@code lutName} (blank = Rainbow RGB).
+     */
+    public static ColorProcessor render(ImagePlus source, ImageProcessor labels, String lutName, float alpha,
+                                        ForkJoinPool pool) {
+        if (alpha < 0f || alpha > 1f) {
+            throw new IllegalArgumentException("alpha must be in [0,1]");
+        }
+        final int w = source.getWidth();
+        final int h = source.getHeight();
+        if (labels.getWidth() != w || labels.getHeight() != h) {
+            throw new IllegalArgumentException("labels " + labels.getWidth() + "x" + labels.getHeight()
+                    + " do not match image " + w + "x" + h);
+        }
+        // A multi-channel composite is displayed as its channel merge; take that view.
+        final ImageProcessor base = source.isComposite() && source.getNChannels() > 1
+                ? new ColorProcessor(source.getImage())
+                : source.getProcessor();
+        final int[] out = new int[w * h];
+        final SourceColors sourceColors = new SourceColors(base);
+        final LabelColors labelColors = new LabelColors(labels, lut(lutName), alpha);
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                sourceColors.fill(out, y0 * w, y1 * w);
+                labelColors.blend(out, y0 * w, y1 * w);
+            }
+        });
+        return new ColorProcessor(w, h, out);
+    }
+
+    /** The 256 opaque RGB entries of a LUT from the Lookup Tables menu. */
+    static int[] lut(String name) {
+        final String key = name == null || name.trim().isEmpty() ? DEFAULT_LUT : name.trim();
+        int[] rgb = LUTS.get(key);
+        if (rgb == null) {
+            rgb = loadLut(key);
+            final int[] raced = LUTS.putIfAbsent(key, rgb);
+            if (raced != null) rgb = raced;
+        }
+        return rgb;
+    }
+
+    private static int[] loadLut(String name) {
+        ColorModel cm = LutLoader.getLut(name);
+        if (cm == null) {
+            // Not built in and not in the luts folder: it may be a plugin command, so
+            // apply it to a ramp the way the menu would and read back the colour model.
+            final ImagePlus ramp = new ImagePlus("LUT", rampProcessor());
+            IJ.run(ramp, name, "");
+            cm = ramp.getProcessor().getColorModel();
+        }
+        return rgbTable(cm);
+    }
+
+    private static ByteProcessor rampProcessor() {
+        final byte[] ramp = new byte[256];
+        for (int i = 0; i < ramp.length; i++) ramp[i] = (byte) i;
+        return new ByteProcessor(256, 1, ramp, null);
+    }
+
+    private static int[] rgbTable(ColorModel cm) {
+        final int[] rgb = new int[256];
+        final IndexColorModel icm = cm instanceof IndexColorModel ? (IndexColorModel) cm : null;
+        for (int i = 0; i < rgb.length; i++) {
+            final int c = icm != null && i < icm.getMapSize() ? icm.getRGB(i) : (i << 16) | (i << 8) | i;
+            rgb[i] = 0xFF000000 | c;
+        }
+        return rgb;
+    }
+
+    /**
+     * 8-bit display index of a 16-bit value, as ImageJ scales 16-bit images to 8 bits:
+     * {@code (v - min) * 256 / (max - min + 1)}, clamped.
+     */
+    private static int shortIndex(int v, int min, double scale) {
+        int value = v - min;
+        if (value < 0) value = 0;
+        value = (int) (value * scale + 0.5);
+        return value > 255 ? 255 : value;
+    }
+
+    /** 8-bit display index of a float value: {@code (v - min) * 255 / (max - min)}, clamped. */
+    private static int floatIndex(float v, double min, double scale) {
+        double value = v - min;
+        if (value < 0.0) value = 0.0;
+        final int index = (int) (value * scale + 0.5);
+        return index > 255 ? 255 : index;
+    }
+
+    /** Displayed RGB of each source pixel. Integer sources go through one lookup table. */
+    private static final class SourceColors {
+        private final Object pixels;
+        private final int[] table;
+        private final int[] lut;
+        private final double min;
+        private final double scale;
+
+        SourceColors(ImageProcessor ip) {
+            pixels = ip.getPixels();
+            if (ip instanceof ByteProcessor) {
+                // The current colour model already folds in the display range.
+                table = rgbTable(ip.getCurrentColorModel());
+                lut = null;
+                min = scale = 0.0;
+            } else if (ip instanceof ShortProcessor) {
+                final int[] colors = rgbTable(ip.getCurrentColorModel());
+                final int lo = (int) ip.getMin();
+                final double s = 256.0 / ((int) ip.getMax() - lo + 1);
+                table = new int[65536];
+                for (int v = 0; v < table.length; v++) table[v] = colors[shortIndex(v, lo, s)];
+                lut = null;
+                min = scale = 0.0;
+            } else if (ip instanceof FloatProcessor) {
+                table = null;
+                lut = rgbTable(ip.getColorModel());
+                min = ip.getMin();
+                scale = 255.0 / (ip.getMax() - min);
+            } else {
+                table = lut = null;
+                min = scale = 0.0;
+            }
+        }
+
+        void fill(int[] out, int i0, int i1) {
+            if (pixels instanceof byte[]) {
+                final byte[] p = (byte[]) pixels;
+                for (int i = i0; i < i1; i++) out[i] = table[p[i] & 0xFF];
+            } else if (pixels instanceof short[]) {
+                final short[] p = (short[]) pixels;
+                for (int i = i0; i < i1; i++) out[i] = table[p[i] & 0xFFFF];
+            } else if (pixels instanceof float[]) {
+                final float[] p = (float[]) pixels;
+                for (int i = i0; i < i1; i++) out[i] = lut[floatIndex(p[i], min, scale)];
+            } else {
+                System.arraycopy((int[]) pixels, i0, out, i0, i1 - i0);
+            }
+        }
+    }
+
+    /** Blends label colours into the source RGB; label 0 leaves the source pixel as is. */
+    private static final class LabelColors {
+        private final Object pixels;
+        /** Colour per label id for 8/16-bit labels; float labels index {@link #lut} per pixel. */
+        private final int[] table;
+        private final int[] lut;
+        private final double min;
+        private final double scale;
+        private final float alpha;
+        private final float inv;
+
+        LabelColors(ImageProcessor ip, int[] lut, float alpha) {
+            this.alpha = alpha;
+            this.inv = 1.0f - alpha;
+            pixels = ip.getPixels();
+            if (ip instanceof ByteProcessor) {
+                // Applying a LUT to an 8-bit image drops its display-range remap, so the
+                // label LUT colours ids directly whatever the labels' display range.
+                table = lut;
+                this.lut = null;
+                min = scale = 0.0;
+            } else if (ip instanceof ShortProcessor) {
+                final int lo = (int) ip.getMin();
+                final double s = 256.0 / ((int) ip.getMax() - lo + 1);
+                table = new int[65536];
+                for (int v = 0; v < table.length; v++) table[v] = lut[shortIndex(v, lo, s)];
+                this.lut = null;
+                min = scale = 0.0;
+            } else if (ip instanceof FloatProcessor) {
+                table = null;
+                this.lut = lut;
+                min = ip.getMin();
+                scale = 255.0 / (ip.getMax() - min);
+            } else {
+                throw new IllegalArgumentException("8-bit, 16-bit or 32-bit label image required");
+            }
+        }
+
+        void blend(int[] out, int i0, int i1) {
+            if (pixels instanceof byte[]) {
+                final byte[] p = (byte[]) pixels;
+                for (int i = i0; i < i1; i++) {
+                    final int v = p[i] & 0xFF;
+                    if (v != 0) out[i] = mix(out[i], table[v]);
+                }
+            } else if (pixels instanceof short[]) {
+                final short[] p = (short[]) pixels;
+                for (int i = i0; i < i1; i++) {
+                    final int v = p[i] & 0xFFFF;
+                    if (v != 0) out[i] = mix(out[i], table[v]);
+                }
+            } else {
+                final float[] p = (float[]) pixels;
+                for (int i = i0; i < i1; i++) {
+                    if (Math.round(p[i]) != 0) out[i] = mix(out[i], lut[floatIndex(p[i], min, scale)]);
+                }
+            }
+        }
+
+        private int mix(int bc, int oc) {
+            final int r = Math.round(((bc >> 16) & 0xFF) * inv + ((oc >> 16) & 0xFF) * alpha);
+            final int g = Math.round(((bc >> 8) & 0xFF) * inv + ((oc >> 8) & 0xFF) * alpha);
+            final int b = Math.round((bc & 0xFF) * inv + (oc & 0xFF) * alpha);
+            return (0xFF << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.will.cellseg;
+
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Perimeter, Feret and shape descriptors straight from a label raster, without building
+ * an ROI per label. Each label's outer contour is traced the way ImageJ's Wand outlines
+ * a particle, and the columns use the formulas Analyzer applies to that traced polygon
+ * (traced perimeter, convex hull, ellipse of concentration), so values match
+ * ParticleAnalyzer ROIs measured with Analyzer. Labels are processed in parallel.
+ */
+public final class LabelShapes {
+
+    private LabelShapes() {}
+
+    /** Same constant as ImageJ's EllipseFitter. */
+    private static final double HALFPI = 1.5707963267949;
+
+    /**
+     * Outline columns for every label of {@code spans}, one row per label in label order,
+     * or null when none of {@link LabelMeasurements#OUTLINE_MEASUREMENTS} is requested.
+     * Labels without pixels get NaN. Pool null = serial.
+     */
+    public static ResultsTable measure(final LabelSpans spans, int measurements, Calibration cal, ForkJoinPool pool) {
+        if ((measurements & LabelMeasurements.OUTLINE_MEASUREMENTS) == 0) {
+            return null;
+        }
+        final Calibration c = cal != null ? cal : new Calibration();
+        final double pw = c.pixelWidth;
+        final double ph = c.pixelHeight;
+        final Features f = new Features(spans.count);
+
+        // Ranges of labels rather than rows, but the same split-and-join applies.
+        RowBands.forEach(pool, spans.count, 16, new RowBands.Task() {
+            @Override
+            public void run(int l0, int l1) {
+                final Contour contour = new Contour();
+                for (int l = l0 + 1; l <= l1; l++) {
+                    measureLabel(spans, l, pw, ph, contour, f);
+                }
+            }
+        });
+        return f.toTable(measurements);
+    }
+
+    private static void measureLabel(LabelSpans spans, int l, double pw, double ph, Contour contour, Features f) {
+        final ConnectedComponents.Stats s = spans.stats(l);
+        if (s == null) {
+            return;
+        }
+        // The first span starts at the label's first pixel in raster order, where
+        // ParticleAnalyzer starts its Wand; the Wand then walks right to the span's end.
+        final int first = spans.start[l];
+        traceOuterContour(spans.labels, spans.width, spans.height, l, spans.spanX1[first], spans.spanY[first],
+                contour);
+
+        final double area = s.area * pw * ph;
+        final double perimeter = tracedPerimeter(contour.x, contour.y, contour.n, pw, ph);
+        f.perimeter[l] = perimeter;
+        double circularity = perimeter == 0.0 ? 0.0 : 4.0 * Math.PI * (area / (perimeter * perimeter));
+        if (circularity > 1.0) circularity = 1.0;
+        f.circularity[l] = circularity;
+
+        final int[] hull = convexHull(contour);
+        final int m = hull.length / 2;
+        f.solidity[l] = s.area / polygonArea(hull, m);
+        feret(hull, m, pw, ph, f, l);
+
+        final double[] axes = ellipseAxes(spans, l, s);
+        // ImageStatistics only calibrates the ellipse for (nearly) square pixels.
+        final double psize = (Math.abs(pw - ph) / pw) < .01 ? pw : 0.0;
+        final double major = axes[0] * psize;
+        final double minor = axes[1] * psize;
+        f.aspectRatio[l] = major / minor;
+        f.roundness[l] = 4.0 * area / (Math.PI * major * major);
+    }
+
+    /**
+     * Outer contour of label {@code l} as polygon corner vertices, traced like ImageJ's
+     * Wand in legacy threshold mode (8-connected, outside kept on the left). The start
+     * vertex is the top-right corner of pixel (startX - 1, startY), heading down.
+     */
+    static void traceOuterContour(int[] labels, int w, int h, int l, int startX, int startY, Contour out) {
+        out.n = 0;
+        final int y0 = startY + 1;
+        int x = startX;
+        int y = y0;
+        int direction = 3;
+        do {
+            int newDirection = direction + 1;
+            do {
+                if (inside(labels, w, h, l, x, y, newDirection)) break;
+                newDirection--;
+            } while (newDirection >= direction);
+            if (newDirection != direction) {
+                out.add(x, y);
+            }
+            switch (newDirection & 3) {
+                case 0: x++; break;
+                case 1: y--; break;
+                case 2: x--; break;
+                default: y++; break;
+            }
+            direction = newDirection;
+        } while (x != startX || y != y0 || (direction & 3) != 3);
+        if (out.x[0] != x) {
+            out.add(x, y);
+        }
+    }
+
+    /** Pixel diagonal to vertex (x, y) in a walking direction, as in Wand.inside(x, y, direction). */
+    private static boolean inside(int[] labels, int w, int h, int l, int x, int y, int direction) {
+        switch (direction & 3) {
+            case 0: break;
+            case 1: y--; break;
+            case 2: x--; y--; break;
+            default: x--; break;
+        }
+        return x >= 0 && x < w && y >= 0 && y < h && labels[y * w + x] == l;
+    }
+
+    /** PolygonRoi's traced perimeter: corner pixels are cut diagonally. */
+    static double tracedPerimeter(int[] xp, int[] yp, int n, double pw, double ph) {
+        if (n < 4) return 0;
+        int sumdx = 0;
+        int sumdy = 0;
+        int nCorners = 0;
+        int dx1 = xp[0] - xp[n - 1];
+        int dy1 = yp[0] - yp[n - 1];
+        int side1 = Math.abs(dx1) + Math.abs(dy1);
+        boolean corner = false;
+        for (int i = 0; i < n; i++) {
+            final int next = i + 1 == n ? 0 : i + 1;
+            final int dx2 = xp[next] - xp[i];
+            final int dy2 = yp[next] - yp[i];
+            sumdx += Math.abs(dx1);
+            sumdy += Math.abs(dy1);
+            final int side2 = Math.abs(dx2) + Math.abs(dy2);
+            if (side1 > 1 || !corner) {
+                corner = true;
+                nCorners++;
+            } else {
+                corner = false;
+            }
+            dx1 = dx2;
+            dy1 = dy2;
+            side1 = side2;
+        }
+        return sumdx * pw + sumdy * ph - (nCorners * ((pw + ph) - Math.sqrt(pw * pw + ph * ph)));
+    }
+
+    /**
+     * Convex hull of the contour vertices as interleaved x, y, without collinear points.
+     * Ordered like ImageJ's FloatPolygon.getConvexHull (start at the topmost-leftmost
+     * vertex, same turning direction) so Feret ties resolve to the same points.
+     */
+    static int[] convexHull(Contour c) {
+        final long[] pts = new long[c.n];
+        for (int i = 0; i < c.n; i++) {
+            pts[i] = ((long) c.x[i] << 32) | c.y[i];
+        }
+        Arrays.sort(pts);
+
+        // Andrew's monotone chain; pops on collinear so only true corners remain.
+        final long[] chain = new long[2 * pts.length + 1];
+        int k = 0;
+        for (int i = 0; i < pts.length; i++) {
+            while (k >= 2 && cross(chain[k - 2], chain[k - 1], pts[i]) <= 0) k--;
+            chain[k++] = pts[i];
+        }
+        for (int i = pts.length - 2, lower = k + 1; i >= 0; i--) {
+            while (k >= lower && cross(chain[k - 2], chain[k - 1], pts[i]) <= 0) k--;
+            chain[k++] = pts[i];
+        }
+        final int m = Math.max(1, k - 1);
+
+        // The chain turns the other way from ImageJ's hull: walk it backwards from the
+        // topmost-leftmost vertex.
+        int startIndex = 0;
+        for (int i = 1; i < m; i++) {
+            final int y = (int) chain[i];
+            final int sy = (int) chain[startIndex];
+            if (y < sy || (y == sy && (int) (chain[i] >> 32) < (int) (chain[startIndex] >> 32))) startIndex = i;
+        }
+        final int[] hull = new int[2 * m];
+        for (int i = 0; i < m; i++) {
+            final long p = chain[((startIndex - i) % m + m) % m];
+            hull[2 * i] = (int) (p >> 32);
+            hull[2 * i + 1] = (int) p;
+        }
+        return hull;
+    }
+
+    private static long cross(long o, long a, long b) {
+        final long ox = o >> 32, oy = (int) o;
+        return ((a >> 32) - ox) * ((long) (int) b - oy) - ((long) (int) a - oy) * ((b >> 32) - ox);
+    }
+
+    /** Analyzer.getArea on the hull polygon. */
+    private static double polygonArea(int[] hull, int m) {
+        int carea = 0;
+        for (int i = 0; i < m; i++) {
+            final int prev = i == 0 ? m - 1 : i - 1;
+            carea += (hull[2 * i] + hull[2 * prev]) * (hull[2 * i + 1] - hull[2 * prev + 1]);
+        }
+        return Math.abs(carea / 2.0);
+    }
+
+    /**
+     * Max and min Feret by rotating calipers over the hull. For each hull edge the
+     * farthest vertex is found by advancing one pointer around the hull, which yields
+     * the minimum caliper width and every antipodal pair; the diameter is the longest of
+     * those pairs. Values and tie-breaking follow Roi.getFeretValues.
+     */
+    private static void feret(int[] hull, int m, double pw, double ph, Features f, int l) {
+        final Diameter d = new Diameter(hull, pw, ph);
+        double minFeret = Double.MAX_VALUE;
+        if (m < 3) {
+            // Degenerate hull: a single pixel always has four corners, so this is defensive.
+            if (m == 2) d.consider(0, 1);
+            minFeret = 0.0;
+        } else {
+            int j = 0;
+            for (int i = 0; i < m; i++) {
+                final int a = i == 0 ? m - 1 : i - 1;
+                while (area2(hull, a, i, next(j, m)) > area2(hull, a, i, j)) {
+                    j = next(j, m);
+                }
+                // An edge parallel to the opposite one has two farthest vertices.
+                final int jEnd = area2(hull, a, i, next(j, m)) == area2(hull, a, i, j) ? next(j, m) : j;
+                double maxDist = 0;
+                for (int k = j; ; k = next(k, m)) {
+                    final double dist = edgeDistance(hull, a, i, k, pw, ph);
+                    if (dist > maxDist) maxDist = dist;
+                    d.consider(a, k);
+                    d.consider(i, k);
+                    if (k == jEnd) break;
+                }
+                if (maxDist < minFeret) minFeret = maxDist;
+            }
+        }
+        int p1 = d.p1;
+        int p2 = d.p2;
+        if (hull[2 * p1] > hull[2 * p2]) {
+            p1 = d.p2;
+            p2 = d.p1;
+        }
+        final double xf1 = hull[2 * p1], yf1 = hull[2 * p1 + 1];
+        final double xf2 = hull[2 * p2], yf2 = hull[2 * p2 + 1];
+        double angle = (180.0 / Math.PI) * Math.atan2((yf1 - yf2) * ph, (xf2 - xf1) * pw);
+        if (angle < 0.0) angle += 180.0;
+        f.feret[l] = Math.sqrt(d.sqr);
+        f.feretAngle[l] = angle;
+        f.minFeret[l] = minFeret;
+        f.feretX[l] = xf1;
+        f.feretY[l] = yf1;
+    }
+
+    /** Longest antipodal pair seen so far. */
+    private static final class Diameter {
+        final int[] hull;
+        final double pw, ph;
+        double sqr;
+        int p1, p2;
+
+        Diameter(int[] hull, double pw, double ph) {
+            this.hull = hull;
+            this.pw = pw;
+            this.ph = ph;
+        }
+
+        void consider(int u, int v) {
+            if (u == v) return;
+            final int lo = Math.min(u, v);
+            final int hi = Math.max(u, v);
+            final double dx = (hull[2 * lo] - hull[2 * hi]) * pw;
+            final double dy = (hull[2 * lo + 1] - hull[2 * hi + 1]) * ph;
+            final double dsqr = dx * dx + dy * dy;
+            // ImageJ scans all pairs in (lo, hi) order and keeps the first maximum.
+            if (dsqr > sqr || (dsqr == sqr && (lo < p1 || (lo == p1 && hi < p2)))) {
+                sqr = dsqr;
+                p1 = lo;
+                p2 = hi;
+            }
+        }
+    }
+
+    private static int next(int i, int m) {
+        return i + 1 == m ? 0 : i + 1;
+    }
+
+    /** Twice the triangle area of hull vertices a, b, k (exact, integer coordinates). */
+    private static long area2(int[] hull, int a, int b, int k) {
+        final long ax = hull[2 * a], ay = hull[2 * a + 1];
+        return Math.abs((hull[2 * b] - ax) * (hull[2 * k + 1] - ay) - (hull[2 * b + 1] - ay) * (hull[2 * k] - ax));
+    }
+
+    /** Calibrated distance of vertex k from the line through edge (a, b), as Roi.getFeretValues computes it. */
+    private static double edgeDistance(int[] hull, int a, int b, int k, double pw, double ph) {
+        final double xprev = hull[2 * a], yprev = hull[2 * a + 1];
+        final double x0 = hull[2 * b], y0 = hull[2 * b + 1];
+        double xnorm = (y0 - yprev) * ph;
+        double ynorm = (xprev - x0) * pw;
+        final double normalizationFactor = 1 / Math.sqrt(xnorm * xnorm + ynorm * ynorm);
+        xnorm *= normalizationFactor * pw;
+        ynorm *= normalizationFactor * ph;
+        return Math.abs((hull[2 * k] - x0) * xnorm + (hull[2 * k + 1] - y0) * ynorm);
+    }
+
+    /**
+     * Major and minor axis (uncalibrated) of the ellipse with the same second moments
+     * and area as the label, following ImageJ's EllipseFitter step for step. Moments
+     * are summed per span instead of per pixel; the sums are exact integers either way.
+     */
+    private static double[] ellipseAxes(LabelSpans spans, int l, ConnectedComponents.Stats s) {
+        double xsum = 0.0, ysum = 0.0, x2sum = 0.0, y2sum = 0.0, xysum = 0.0;
+        int bitCount = 0;
+        for (int i = spans.start[l], end = spans.start[l + 1]; i < end; i++) {
+            final long y = spans.spanY[i] - s.minY;
+            final long a = spans.spanX0[i] - s.minX;
+            final long b = spans.spanX1[i] - s.minX - 1;
+            final long n = b - a + 1;
+            final long sx = n * (a + b) / 2;
+            final long sx2 = sumOfSquares(b) - sumOfSquares(a - 1);
+            xsum += sx;
+            ysum += n * y;
+            x2sum += sx2;
+            xysum += (double) sx * y;
+            y2sum += (double) y * y * n;
+            bitCount += n;
+        }
+
+        x2sum += 0.08333333 * bitCount;
+        y2sum += 0.08333333 * bitCount;
+        final double n = bitCount;
+        final double x1 = xsum / n;
+        final double y1 = ysum / n;
+        final double u20 = x2sum / n - (x1 * x1);
+        final double u02 = y2sum / n - (y1 * y1);
+        final double u11 = xysum / n - x1 * y1;
+
+        double m4 = 4.0 * Math.abs(u02 * u20 - u11 * u11);
+        if (m4 < 0.000001) m4 = 0.000001;
+        double a11 = u02 / m4;
+        final double a12 = u11 / m4;
+        double a22 = u20 / m4;
+
+        double tmp = a11 - a22;
+        if (tmp == 0.0) tmp = 0.000001;
+        double theta = 0.5 * Math.atan(2.0 * a12 / tmp);
+        if (theta < 0.0) theta += HALFPI;
+        if (a12 > 0.0) {
+            theta += HALFPI;
+        } else if (a12 == 0.0) {
+            if (a22 > a11) {
+                theta = 0.0;
+                tmp = a22;
+                a22 = a11;
+                a11 = tmp;
+            } else if (a11 != a22) {
+                theta = HALFPI;
+            }
+        }
+        tmp = Math.sin(theta);
+        if (tmp == 0.0) tmp = 0.000001;
+        final double z = a12 * Math.cos(theta) / tmp;
+        double major = Math.sqrt(1.0 / Math.abs(a22 + z));
+        double minor = Math.sqrt(1.0 / Math.abs(a11 - z));
+        final double scale = Math.sqrt(bitCount / (Math.PI * major * minor));
+        major = major * scale * 2.0;
+        minor = minor * scale * 2.0;
+        return major < minor ? new double[] {minor, major} : new double[] {major, minor};
+    }
+
+    /** 0^2 + 1^2 + ... + k^2 (0 for k < 0). */
+    private static long sumOfSquares(long k) {
+        return k < 0 ? 0 : k * (k + 1) * (2 * k + 1) / 6;
+    }
+
+    /** Growable contour vertex list, reused across labels by one worker. */
+    static final class Contour {
+        int[] x = new int[256];
+        int[] y = new int[256];
+        int n;
+
+        void add(int px, int py) {
+            if (n == x.length) {
+                x = Arrays.copyOf(x, n * 2);
+                y = Arrays.copyOf(y, n * 2);
+            }
+            x[n] = px;
+            y[n] = py;
+            n++;
+        }
+    }
+
+    /** Outline values per label; index 0 is unused. */
+    private static final class Features {
+        final int count;
+        final double[] perimeter, circularity, aspectRatio, roundness, solidity;
+        final double[] feret, feretAngle, minFeret, feretX, feretY;
+
+        Features(int count) {
+            this.count = count;
+            perimeter = nanArray(count + 1);
+            circularity = nanArray(count + 1);
+            aspectRatio = nanArray(count + 1);
+            roundness = nanArray(count + 1);
+            solidity = nanArray(count + 1);
+            feret = nanArray(count + 1);
+            feretAngle = nanArray(count + 1);
+            minFeret = nanArray(count + 1);
+            feretX = nanArray(count + 1);
+            feretY = nanArray(count + 1);
+        }
+
+        private static double[] nanArray(int n) {
+            final double[] a = new double[n];
+            Arrays.fill(a, Double.NaN);
+            return a;
+        }
+
+        /** Columns in the order and under the names Analyzer uses. */
+        ResultsTable toTable(int measurements) {
+            final ResultsTable rt = new ResultsTable();
+            rt.setDefaultHeadings();
+            for (int l = 1; l <= count; l++) {
+                rt.incrementCounter();
+                if ((measurements & Measurements.PERIMETER) != 0) {
+                    rt.addValue(ResultsTable.PERIMETER, perimeter[l]);
+                }
+                if ((measurements & Measurements.SHAPE_DESCRIPTORS) != 0) {
+                    rt.addValue(ResultsTable.CIRCULARITY, circularity[l]);
+                    rt.addValue(ResultsTable.ASPECT_RATIO, aspectRatio[l]);
+                    rt.addValue(ResultsTable.ROUNDNESS, roundness[l]);
+                    rt.addValue(ResultsTable.SOLIDITY, solidity[l]);
+                }
+                if ((measurements & Measurements.FERET) != 0) {
+                    rt.addValue(ResultsTable.FERET, feret[l]);
+                    rt.addValue(ResultsTable.FERET_X, feretX[l]);
+                    rt.addValue(ResultsTable.FERET_Y, feretY[l]);
+                    rt.addValue(ResultsTable.FERET_ANGLE, feretAngle[l]);
+                    rt.addValue(ResultsTable.MIN_FERET, minFeret[l]);
+                }
+            }
+            return rt;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.will.cellseg;
+
+import java.util.Arrays;
+
+/**
+ * Run-length index of a label raster: for each label, its horizontal pixel runs in
+ * raster order plus the frame-independent geometry (area, bounds, coordinate sums).
+ * Built once per segmentation and replayed against every plane that is measured with
+ * it, so per-frame work only touches the labelled pixels and no ROI state is rebuilt.
+ */
+public final class LabelSpans {
+
+    public final int width;
+    public final int height;
+    public final int count;
+    /** The raster the spans were built from; not copied, so it must not change afterwards. */
+    final int[] labels;
+    /** Spans of label l are indices [start[l], start[l + 1]). */
+    final int[] start;
+    final int[] spanY;
+    final int[] spanX0;
+    /** Exclusive end column. */
+    final int[] spanX1;
+    /** Geometry per label; index 0 is unused, null for labels without pixels. */
+    private final ConnectedComponents.Stats[] stats;
+
+    private LabelSpans(int width, int height, int count, int[] labels, int[] start, int[] spanY, int[] spanX0,
+                       int[] spanX1, ConnectedComponents.Stats[] stats) {
+        this.width = width;
+        this.height = height;
+        this.count = count;
+        this.labels = labels;
+        this.start = start;
+        this.spanY = spanY;
+        this.spanX0 = spanX0;
+        this.spanX1 = spanX1;
+        this.stats = stats;
+    }
+
+    /** Indexes labels 1..count of {@code labels}; other values are treated as background. */
+    public static LabelSpans fromLabels(int[] labels, int w, int h, int count) {
+        if (labels == null || labels.length != w * h) throw new IllegalArgumentException("labels must be length w*h");
+        if (count < 0) throw new IllegalArgumentException("count must be >= 0");
+
+        // Pass 1: spans per label, and the geometry the spans make cheap to sum.
+        final int[] spans = new int[count + 2];
+        final int[] area = new int[count + 1];
+        final int[] border = new int[count + 1];
+        final int[] minX = new int[count + 1];
+        final int[] minY = new int[count + 1];
+        final int[] maxX = new int[count + 1];
+        final int[] maxY = new int[count + 1];
+        final long[] sumX = new long[count + 1];
+        final long[] sumY = new long[count + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, Integer.MIN_VALUE);
+        Arrays.fill(maxY, Integer.MIN_VALUE);
+        for (int y = 0; y < h; y++) {
+            final int row = y * w;
+            final int rowBorder = (y == 0 ? ConnectedComponents.TOP : 0)
+                    | (y == h - 1 ? ConnectedComponents.BOTTOM : 0);
+            int x = 0;
+            while (x < w) {
+                final int l = labels[row + x];
+                final int x0 = x;
+                while (x < w && labels[row + x] == l) x++;
+                if (l <= 0 || l > count) continue;
+                final int n = x - x0;
+                spans[l + 1]++;
+                area[l] += n;
+                // Sum of x0..x-1.
+                sumX[l] += (long) n * (x0 + x - 1) / 2;
+                sumY[l] += (long) n * y;
+                if (x0 < minX[l]) minX[l] = x0;
+                if (x - 1 > maxX[l]) maxX[l] = x - 1;
+                if (y < minY[l]) minY[l] = y;
+                if (y > maxY[l]) maxY[l] = y;
+                border[l] |= rowBorder | (x0 == 0 ? ConnectedComponents.LEFT : 0)
+                        | (x == w ? ConnectedComponents.RIGHT : 0);
+            }
+        }
+
+        final int[] start = new int[count + 2];
+        for (int l = 1; l <= count; l++) start[l + 1] = start[l] + spans[l + 1];
+        final int total = start[count + 1];
+        final int[] spanY = new int[total];
+        final int[] spanX0 = new int[total];
+        final int[] spanX1 = new int[total];
+
+        // Pass 2: fill each label's slice in raster order.
+        final int[] next = Arrays.copyOf(start, count + 1);
+        for (int y = 0; y < h; y++) {
+            final int row = y * w;
+            int x = 0;
+            while (x < w) {
+                final int l = labels[row + x];
+                final int x0 = x;
+                while (x < w && labels[row + x] == l) x++;
+                if (l <= 0 || l > count) continue;
+                final int s = next[l]++;
+                spanY[s] = y;
+                spanX0[s] = x0;
+                spanX1[s] = x;
+            }
+        }
+
+        final ConnectedComponents.Stats[] stats = new ConnectedComponents.Stats[count + 1];
+        for (int l = 1; l <= count; l++) {
+            if (area[l] > 0) {
+                stats[l] = new ConnectedComponents.Stats(area[l], border[l], minX[l], minY[l], maxX[l], maxY[l],
+                        sumX[l], sumY[l]);
+            }
+        }
+        return new LabelSpans(w, h, count, labels, start, spanY, spanX0, spanX1, stats);
+    }
+
+    /** Geometry of {@code label}, or null if it has no pixels. */
+    public ConnectedComponents.Stats stats(int label) {
+        if (label < 1 || label > count) throw new IllegalArgumentException("label out of range: " + label);
+        return stats[label];
+    }
+
+    /** Total number of runs over all labels. */
+    public int spanCount() {
+        return start[count + 1];
+    }
+}
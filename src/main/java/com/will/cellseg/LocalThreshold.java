@@ -0,0 +1,234 @@
+package com.will.cellseg;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Adaptive (local) thresholding from integral images of sum and sum-of-squares, so
+ * each pixel's window mean and standard deviation cost O(1) regardless of radius.
+ * Integral images are built per row band (plus a radius-sized halo) rather than for
+ * the whole plane, which lets bands run in parallel. Bands are further cut into chunks
+ * of at most {@link #MAX_CHUNK_ROWS} rows (or a few windows, for large radii), so memory
+ * stays bounded on large mosaics even when everything runs on one thread.
+ */
+public final class LocalThreshold {
+
+    private LocalThreshold() {}
+
+    /** Rows per integral-image chunk, before the halo; about 16 bytes per pixel each. */
+    static final int MAX_CHUNK_ROWS = 256;
+
+    /** Local threshold rules; {@code k} and {@code offset} follow Auto_Local_Threshold. */
+    public enum Method {
+        /** T = mean + k * std - offset. */
+        NIBLACK("Niblack", 0.2),
+        /** T = mean * (1 + k * (std / R - 1)) - offset, R = half the data range unless set. */
+        SAUVOLA("Sauvola", 0.5),
+        /**
+         * T = mean - offset, but windows whose std is below k (a minimum contrast in
+         * pixel units) are treated as background, as in Bernsen's method.
+         */
+        MEAN_CONTRAST("Mean (contrast)", 0.0);
+
+        public final String label;
+        public final double defaultK;
+
+        Method(String label, double defaultK) {
+            this.label = label;
+            this.defaultK = defaultK;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        /** Returns null for "None" or unknown labels, meaning global thresholding. */
+        public static Method fromLabel(String s) {
+            if (s == null) return null;
+            for (Method m : values()) {
+                if (m.label.equalsIgnoreCase(s.trim())) return m;
+            }
+            return null;
+        }
+    }
+
+    /** Immutable local-threshold settings, shared by params and threshold configs. */
+    public static final class Settings {
+        public final Method method;
+        public final int radius;
+        public final double k;
+        public final double offset;
+        /** Sauvola dynamic range of the std; 0 means half the plane's data range. */
+        public final double dynamicRange;
+
+        public Settings(Method method, int radius, double k, double offset, double dynamicRange) {
+            if (method == null) {
+                throw new IllegalArgumentException("method is required");
+            }
+            if (radius < 1) {
+                throw new IllegalArgumentException("radius must be >= 1");
+            }
+            this.method = method;
+            this.radius = radius;
+            this.k = k;
+            this.offset = offset;
+            this.dynamicRange = Math.max(0.0, dynamicRange);
+        }
+
+        /**
+         * Settings from the command UI: returns null (global thresholding) for "None",
+         * and a k of 0 selects the method's default.
+         */
+        public static Settings fromLabel(String label, int radius, double k, double offset) {
+            final Method method = Method.fromLabel(label);
+            if (method == null) {
+                return null;
+            }
+            return new Settings(method, Math.max(1, radius), k != 0.0 ? k : method.defaultK, offset, 0.0);
+        }
+
+        /** Settings with the method's default k, no offset and automatic Sauvola range. */
+        public static Settings of(Method method, int radius) {
+            return new Settings(method, radius, method.defaultK, 0.0, 0.0);
+        }
+
+        @Override
+        public String toString() {
+            return method.label + " r=" + radius + " k=" + k + " c=" + offset;
+        }
+    }
+
+    /**
+     * Returns a binary plane (255 = foreground). With {@code aboveIsForeground} pixels
+     * above their local threshold are foreground, otherwise pixels at or below it.
+     */
+    public static byte[] apply(final Object pixels, final int w, final int h, final Settings settings,
+                               final boolean aboveIsForeground, ForkJoinPool pool) {
+        EdgeFilter.checkPlane(pixels, w, h);
+        if (settings == null) {
+            throw new IllegalArgumentException("settings are required");
+        }
+        final double range = settings.method == Method.SAUVOLA && settings.dynamicRange <= 0.0
+                ? halfRange(pixels)
+                : settings.dynamicRange;
+        final byte[] out = new byte[w * h];
+        // Chunks (and bands) shorter than the window would rebuild mostly halo rows.
+        final int chunkRows = Math.max(MAX_CHUNK_ROWS, 4 * settings.radius);
+        RowBands.forEach(pool, h, Math.max(RowBands.DEFAULT_MIN_ROWS, 2 * settings.radius), new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                // A serial run is one band over the whole plane; never integrate all of it at once.
+                for (int c0 = y0; c0 < y1; c0 += chunkRows) {
+                    thresholdRows(pixels, w, h, settings, range, aboveIsForeground, out, c0, Math.min(y1, c0 + chunkRows));
+                }
+            }
+        });
+        return out;
+    }
+
+    private static void thresholdRows(Object pixels, int w, int h, Settings s, double range,
+                                      boolean aboveIsForeground, byte[] out, int y0, int y1) {
+        final int r = s.radius;
+        final int top = Math.max(0, y0 - r);
+        final int bottom = Math.min(h, y1 + r);
+        final int stride = w + 1;
+        final int rows = bottom - top;
+
+        // Row 0 / column 0 of the integral images are zero so window sums need no bounds checks.
+        final double[] sum = new double[(rows + 1) * stride];
+        final double[] sumSq = new double[(rows + 1) * stride];
+        final float[] row = new float[w];
+        for (int y = top; y < bottom; y++) {
+            readRow(pixels, w, y, row);
+            final int cur = (y - top + 1) * stride;
+            final int prev = cur - stride;
+            double rowSum = 0.0;
+            double rowSumSq = 0.0;
+            for (int x = 0; x < w; x++) {
+                final double v = row[x];
+                rowSum += v;
+                rowSumSq += v * v;
+                sum[cur + x + 1] = sum[prev + x + 1] + rowSum;
+                sumSq[cur + x + 1] = sumSq[prev + x + 1] + rowSumSq;
+            }
+        }
+
+        for (int y = y0; y < y1; y++) {
+            readRow(pixels, w, y, row);
+            final int wy0 = Math.max(0, y - r) - top;
+            final int wy1 = Math.min(h - 1, y + r) - top + 1;
+            final int a = wy0 * stride;
+            final int b = wy1 * stride;
+            final int offsetOut = y * w;
+            for (int x = 0; x < w; x++) {
+                final int wx0 = Math.max(0, x - r);
+                final int wx1 = Math.min(w - 1, x + r) + 1;
+                final double n = (double) (wy1 - wy0) * (wx1 - wx0);
+                final double windowSum = sum[b + wx1] - sum[b + wx0] - sum[a + wx1] + sum[a + wx0];
+                final double windowSumSq = sumSq[b + wx1] - sumSq[b + wx0] - sumSq[a + wx1] + sumSq[a + wx0];
+                final double mean = windowSum / n;
+                // Rounding can push the variance slightly negative in flat regions.
+                final double std = Math.sqrt(Math.max(0.0, windowSumSq / n - mean * mean));
+
+                final double v = row[x];
+                final boolean foreground;
+                switch (s.method) {
+                    case SAUVOLA: {
+                        final double t = range > 0.0
+                                ? mean * (1.0 + s.k * (std / range - 1.0)) - s.offset
+                                : mean - s.offset;
+                        foreground = aboveIsForeground ? v > t : v <= t;
+                        break;
+                    }
+                    case MEAN_CONTRAST: {
+                        final double t = mean - s.offset;
+                        foreground = std >= s.k && (aboveIsForeground ? v > t : v <= t);
+                        break;
+                    }
+                    case NIBLACK:
+                    default: {
+                        final double t = mean + s.k * std - s.offset;
+                        foreground = aboveIsForeground ? v > t : v <= t;
+                        break;
+                    }
+                }
+                out[offsetOut + x] = foreground ? (byte) 255 : 0;
+            }
+        }
+    }
+
+    private static void readRow(Object pixels, int w, int y, float[] dst) {
+        final int offset = y * w;
+        if (pixels instanceof float[]) {
+            System.arraycopy((float[]) pixels, offset, dst, 0, w);
+        } else if (pixels instanceof short[]) {
+            final short[] s = (short[]) pixels;
+            for (int x = 0; x < w; x++) dst[x] = s[offset + x] & 0xFFFF;
+        } else {
+            final byte[] b = (byte[]) pixels;
+            for (int x = 0; x < w; x++) dst[x] = b[offset + x] & 0xFF;
+        }
+    }
+
+    private static double halfRange(Object pixels) {
+        if (pixels instanceof byte[]) {
+            // Sauvola's classic R = 128 for 8-bit data.
+            return 128.0;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        if (pixels instanceof short[]) {
+            for (short s : (short[]) pixels) {
+                final int v = s & 0xFFFF;
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+        } else {
+            for (float f : (float[]) pixels) {
+                if (f < min) min = f;
+                if (f > max) max = f;
+            }
+        }
+        return max > min ? (max - min) / 2.0 : 0.0;
+    }
+}
@@ -0,0 +1,271 @@
+package com.will.cellseg;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.RoiEncoder;
+import ij.io.TiffEncoder;
+import ij.measure.ResultsTable;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writer stage of the batch: TIFFs, CSV tables and ROI ZIPs are encoded and written on
+ * a pool of writer threads, so the compute stage moves on as soon as an output is built.
+ * Jobs wait in a bounded queue; when it is full, submitting through a {@link Group}
+ * blocks, which keeps the compute stage from building outputs faster than the disk
+ * takes them.
+ *
+ * <p>Each file is written under a temporary name next to its target and renamed once
+ * complete, so an interrupted or failed batch never leaves a truncated output behind.
+ * Failures are not logged here; they are collected per {@link Group}, and the producer
+ * learns of them from {@link Group#await()}.
+ *
+ * <p>A writer with no threads writes on the calling thread. Images handed over are owned
+ * by the writer and closed once written.
+ */
+public final class OutputWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String TEMP_PREFIX = ".~";
+
+    /**
+     * Writes of one producer (a batch pair): it submits through the group, then waits on
+     * it to learn whether everything it produced reached disk.
+     */
+    public static final class Group {
+        private final OutputWriter writer;
+        private int pending;
+        private IOException failure;
+
+        private Group(OutputWriter writer) {
+            this.writer = writer;
+        }
+
+        public void tiff(final ImagePlus imp, File out) throws InterruptedException {
+            if (imp == null || out == null) return;
+            writer.submit(new Job(this, out) {
+                @Override
+                void write(File temp) throws IOException {
+                    writeTiff(imp, temp);
+                }
+
+                @Override
+                void release() {
+                    imp.changes = false;
+                    imp.close();
+                }
+            });
+        }
+
+        public void table(final ResultsTable rt, File out) throws InterruptedException {
+            if (rt == null || out == null) return;
+            writer.submit(new Job(this, out) {
+                @Override
+                void write(File temp) throws IOException {
+                    // The temporary name keeps the extension, which picks the delimiter.
+                    rt.saveAs(temp.getAbsolutePath());
+                }
+            });
+        }
+
+        /**
+         * ROI ZIP of {@code rois}, or straight from the label contours when {@code labels}
+         * is given (the unreviewed case, where both describe the same particles).
+         */
+        public void rois(final Roi[] rois, final LabelImage labels, File out) throws InterruptedException {
+            if (out == null) return;
+            writer.submit(new Job(this, out) {
+                @Override
+                void write(File temp) throws IOException {
+                    if (labels != null) {
+                        RoiZipWriter.writeLabels(labels.toSpans(), temp);
+                    } else {
+                        RoiZipWriter.write(rois, temp);
+                    }
+                }
+            });
+        }
+
+        private synchronized void started() {
+            pending++;
+        }
+
+        private synchronized void finished(IOException e) {
+            if (e != null && failure == null) {
+                failure = e;
+            }
+            pending--;
+            notifyAll();
+        }
+
+        /** True once every write submitted so far has finished. */
+        public synchronized boolean isDone() {
+            return pending == 0;
+        }
+
+        /** Waits for every write submitted to this group; throws the first that failed. */
+        public synchronized void await() throws IOException, InterruptedException {
+            while (pending > 0) {
+                wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /** One file to write; {@link #write(File)} writes it to the given temporary file. */
+    private abstract static class Job {
+        final Group group;
+        final File target;
+
+        Job(Group group, File target) {
+            this.group = group;
+            this.target = target;
+        }
+
+        abstract void write(File temp) throws IOException;
+
+        /** Releases what the job holds, written or not. */
+        void release() {
+        }
+    }
+
+    private static final Job STOP = new Job(null, null) {
+        @Override
+        void write(File temp) {
+        }
+    };
+
+    private final BlockingQueue<Job> queue;
+    private final Thread[] threads;
+    private boolean closed;
+
+    /**
+     * @param threads  writer threads; 0 writes on the submitting thread
+     * @param capacity jobs that may wait for a writer before submitting blocks
+     */
+    public OutputWriter(int threads, int capacity) {
+        if (threads < 0) throw new IllegalArgumentException("threads must be >= 0");
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be >= 1");
+        queue = threads > 0 ? new ArrayBlockingQueue<Job>(capacity) : null;
+        this.threads = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            this.threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "CellSegmentation output writer " + (t + 1));
+            this.threads[t].setDaemon(true);
+            this.threads[t].start();
+        }
+    }
+
+    public Group group() {
+        return new Group(this);
+    }
+
+    /** Waits until every queued job is written, then stops the writer threads. */
+    public void close() throws InterruptedException {
+        if (queue == null || closed) return;
+        closed = true;
+        for (int t = 0; t < threads.length; t++) {
+            queue.put(STOP);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void submit(Job job) throws InterruptedException {
+        job.group.started();
+        if (queue == null) {
+            run(job);
+            return;
+        }
+        try {
+            queue.put(job);
+        } catch (InterruptedException e) {
+            job.release();
+            job.group.finished(null);
+            throw e;
+        }
+    }
+
+    private void drain() {
+        try {
+            for (Job job = queue.take(); job != STOP; job = queue.take()) {
+                run(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void run(Job job) {
+        IOException failure = null;
+        final File temp = new File(job.target.getParentFile(), TEMP_PREFIX + job.target.getName());
+        try {
+            job.write(temp);
+            moveIntoPlace(temp, job.target);
+        } catch (Throwable t) {
+            failure = new IOException("Could not write " + job.target.getAbsolutePath() + ": " + t.getMessage(), t);
+            try {
+                Files.deleteIfExists(temp.toPath());
+            } catch (IOException ignored) {
+            }
+        } finally {
+            job.release();
+            // Always reached, so a producer waiting on the group is never left hanging.
+            job.group.finished(failure);
+        }
+    }
+
+    private static void moveIntoPlace(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * What {@link FileSaver#saveAsTiff(String)} writes for a single image, but with
+     * errors thrown rather than shown in a dialog, which a writer thread cannot do.
+     */
+    static void writeTiff(ImagePlus imp, File out) throws IOException {
+        if (imp.getStackSize() > 1) {
+            if (!new FileSaver(imp).saveAsTiffStack(out.getAbsolutePath())) {
+                throw new IOException("TIFF stack not written");
+            }
+            return;
+        }
+        final FileInfo fi = imp.getFileInfo();
+        fi.info = imp.getInfoProperty();
+        final String label = imp.hasImageStack() ? imp.getStack().getSliceLabel(1) : null;
+        if (label != null) {
+            fi.sliceLabels = new String[] {label};
+        }
+        fi.description = new FileSaver(imp).getDescriptionString();
+        fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
+        fi.overlay = FileSaver.getOverlay(imp);
+        fi.properties = imp.getPropertiesAsArray();
+        final OutputStream stream = new BufferedOutputStream(Files.newOutputStream(out.toPath()), BUFFER_SIZE);
+        try {
+            new TiffEncoder(fi).write(stream);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.will.cellseg;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes ROI sets in the ROI Manager's ZIP format (one {@code .roi} entry per ROI,
+ * encoded by ImageJ's RoiEncoder) straight to a buffered file stream, without filling a
+ * hidden RoiManager first. Names follow the ROI Manager's Add and Save: a ROI keeps its
+ * own name unless it has none or one that looks like a generated "yyyy-xxxx" name, which
+ * is then derived again from its bounds centre; an entry name already in the file is
+ * made unique the way the ROI Manager does it, while the ROI inside keeps its label.
+ */
+public final class RoiZipWriter {
+
+    private RoiZipWriter() {}
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Writes every non-null ROI in array order. Caller ROIs are not modified. */
+    public static void write(Roi[] rois, File out) throws IOException {
+        if (out == null) throw new IllegalArgumentException("out must not be null");
+        final List<Roi> kept = new ArrayList<Roi>();
+        if (rois != null) {
+            for (Roi roi : rois) {
+                // The ROI Manager does not add empty polygons.
+                if (roi != null && !(roi instanceof PolygonRoi && ((PolygonRoi) roi).getNCoordinates() == 0)) {
+                    kept.add(roi);
+                }
+            }
+        }
+        final String[] labels = new String[kept.size()];
+        for (int i = 0; i < labels.length; i++) {
+            final Roi roi = kept.get(i);
+            labels[i] = roi.getName() != null && !isStandardName(roi.getName())
+                    ? roi.getName() : standardName(roi.getBounds());
+        }
+        final Writer writer = new Writer(out, labels);
+        try {
+            for (Roi roi : kept) {
+                writer.add(roi);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes one traced polygon per label of {@code spans}, in label order, directly from
+     * the label contours. The polygons are the ones ParticleAnalyzer's Wand would trace,
+     * so the file matches saving the particle ROIs, without ever holding them all.
+     */
+    public static void writeLabels(LabelSpans spans, File out) throws IOException {
+        if (out == null) throw new IllegalArgumentException("out must not be null");
+        // Names come from the bounds, which the span index already has.
+        final List<String> labels = new ArrayList<String>();
+        for (int l = 1; l <= spans.count; l++) {
+            final ConnectedComponents.Stats g = spans.stats(l);
+            if (g != null) labels.add(standardName(new Rectangle(g.minX, g.minY, g.width(), g.height())));
+        }
+        final Writer writer = new Writer(out, labels.toArray(new String[0]));
+        try {
+            final LabelShapes.Contour contour = new LabelShapes.Contour();
+            for (int l = 1; l <= spans.count; l++) {
+                if (spans.stats(l) == null) continue;
+                final int first = spans.start[l];
+                LabelShapes.traceOuterContour(spans.labels, spans.width, spans.height, l,
+                        spans.spanX1[first], spans.spanY[first], contour);
+                writer.add(new PolygonRoi(Arrays.copyOf(contour.x, contour.n), Arrays.copyOf(contour.y, contour.n),
+                        contour.n, Roi.TRACED_ROI));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** One open ZIP; ROIs are encoded one at a time as they are added, in label order. */
+    private static final class Writer {
+        private final ZipOutputStream zip;
+        private final RoiEncoder encoder;
+        private final String[] labels;
+        /** The ROI Manager's list names, as its Save renames them; starts as the labels. */
+        private final String[] names;
+        private final Set<String> entries = new HashSet<String>();
+        private int next;
+
+        Writer(File out, String[] labels) throws IOException {
+            this.labels = labels;
+            this.names = labels.clone();
+            final OutputStream file = new BufferedOutputStream(Files.newOutputStream(out.toPath()), BUFFER_SIZE);
+            zip = new ZipOutputStream(file);
+            // ROI entries are small; compression ratio barely changes with the level.
+            zip.setLevel(Deflater.BEST_SPEED);
+            encoder = new RoiEncoder(zip);
+        }
+
+        void add(Roi roi) throws IOException {
+            final int index = next++;
+            final String label = labels[index];
+            String entry = label.endsWith(".roi") ? label : label + ".roi";
+            if (!entries.add(entry)) {
+                // Where the ROI Manager's Save hits a duplicate entry and renames it.
+                entry = uniqueName(names, index);
+                if (!entry.endsWith(".roi")) entry += ".roi";
+                entries.add(entry);
+            }
+            // RoiEncoder stores the name too: the label, even where the entry was renamed.
+            final Roi named = label.equals(roi.getName()) ? roi : (Roi) roi.clone();
+            named.setName(label);
+            zip.putNextEntry(new ZipEntry(entry));
+            encoder.write(named);
+            zip.closeEntry();
+        }
+
+        void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * RoiManager's rename of a duplicate: appends "-1", "-2", ... after dropping a short
+     * "-n" suffix, until no other name in {@code names} matches; records it in place.
+     */
+    static String uniqueName(String[] names, int index) {
+        String name = names[index];
+        int n = 1;
+        while (indexOf(names, index, name) != -1) {
+            final int lastDash = name.lastIndexOf('-');
+            if (lastDash != -1 && name.length() - lastDash < 5) {
+                name = name.substring(0, lastDash);
+            }
+            name = name + "-" + n++;
+        }
+        names[index] = name;
+        return name;
+    }
+
+    private static int indexOf(String[] names, int skip, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (i != skip && names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /** RoiManager's test for a generated "yyyy-xxxx" (or "zzzz-yyyy-xxxx") name it derives again. */
+    static boolean isStandardName(String name) {
+        final int len = name.length();
+        if (len < 9 || !Character.isDigit(name.charAt(0))) return false;
+        return len >= 14 && name.charAt(4) == '-' && name.charAt(9) == '-'
+                || len >= 17 && name.charAt(5) == '-' && name.charAt(11) == '-'
+                || name.charAt(4) == '-' && Character.isDigit(name.charAt(5))
+                || len >= 11 && name.charAt(5) == '-' && Character.isDigit(name.charAt(6));
+    }
+
+    /** RoiManager's label for an unnamed ROI: bounds centre as zero-padded "y-x". */
+    static String standardName(Rectangle r) {
+        final int xc = Math.max(0, r.x + r.width / 2);
+        final int yc = Math.max(0, r.y + r.height / 2);
+        final String xs = Integer.toString(xc);
+        final String ys = Integer.toString(yc);
+        final int digits = Math.max(4, Math.max(xs.length(), ys.length()));
+        return pad(ys, digits) + "-" + pad(xs, digits);
+    }
+
+    private static String pad(String s, int digits) {
+        final StringBuilder sb = new StringBuilder(digits);
+        for (int i = s.length(); i < digits; i++) sb.append('0');
+        return sb.append(s).toString();
+    }
+}
@@ -0,0 +1,86 @@
+package com.will.cellseg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Splits a plane into horizontal row bands and runs them on a fork-join pool. */
+public final class RowBands {
+
+    private RowBands() {}
+
+    /** Work for one band of rows [y0, y1). Bands never overlap, so tasks may write in place. */
+    public interface Task {
+        void run(int y0, int y1);
+    }
+
+    /** Rows below this count are not worth a fork; small planes just run inline. */
+    public static final int DEFAULT_MIN_ROWS = 32;
+
+    // Pools are cached per requested size so repeated pipeline runs do not keep
+    // spinning up (and leaking) worker threads.
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> POOLS =
+            new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+    /** Returns the pool for a thread count; 0 or less means the common pool (all cores). */
+    public static ForkJoinPool pool(int threads) {
+        if (threads <= 0) {
+            return ForkJoinPool.commonPool();
+        }
+        ForkJoinPool pool = POOLS.get(threads);
+        if (pool == null) {
+            final ForkJoinPool created = new ForkJoinPool(threads);
+            pool = POOLS.putIfAbsent(threads, created);
+            if (pool == null) {
+                pool = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        return pool;
+    }
+
+    public static void forEach(ForkJoinPool pool, int rows, Task task) {
+        forEach(pool, rows, DEFAULT_MIN_ROWS, task);
+    }
+
+    public static void forEach(ForkJoinPool pool, int rows, int minRows, Task task) {
+        if (rows <= 0) {
+            return;
+        }
+        final int parallelism = pool != null ? pool.getParallelism() : 1;
+        // A few bands per worker keeps cores busy when some bands finish early.
+        final int bands = Math.min(parallelism * 4, rows / Math.max(1, minRows));
+        if (pool == null || parallelism <= 1 || bands <= 1) {
+            task.run(0, rows);
+            return;
+        }
+        pool.invoke(new BandAction(task, 0, rows, bands));
+    }
+
+    private static final class BandAction extends RecursiveAction {
+        private final Task task;
+        private final int y0;
+        private final int y1;
+        private final int bands;
+
+        private BandAction(Task task, int y0, int y1, int bands) {
+            this.task = task;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.bands = bands;
+        }
+
+        @Override
+        protected void compute() {
+            if (bands <= 1) {
+                task.run(y0, y1);
+                return;
+            }
+            final int leftBands = bands / 2;
+            final int mid = y0 + (int) ((long) (y1 - y0) * leftBands / bands);
+            invokeAll(new BandAction(task, y0, mid, leftBands),
+                    new BandAction(task, mid, y1, bands - leftBands));
+        }
+    }
+}
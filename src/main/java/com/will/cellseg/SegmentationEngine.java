@@ -0,0 +1,146 @@
+package com.will.cellseg;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless segmentation on primitive planes: edge detection, threshold, hole filling,
+ * watershed and labeling, each a pure function of arrays and parameters. No ImagePlus,
+ * IJ.run, WindowManager or Prefs is involved, so any number of threads can segment
+ * different planes at once. {@link CellSegmentationPipeline} adapts ImagePlus inputs to
+ * these stages and adds the interactive stop-points on top.
+ */
+public final class SegmentationEngine {
+
+    private SegmentationEngine() {}
+
+    /** One grayscale plane: byte[], short[] (unsigned) or float[] pixels, row-major. */
+    public static final class Plane {
+        public final Object pixels;
+        public final int width;
+        public final int height;
+        /**
+         * True if the plane is displayed with an inverted LUT; auto thresholds flip
+         * polarity for it exactly as ImageJ does.
+         */
+        public final boolean invertedLut;
+
+        private Plane(Object pixels, int width, int height, boolean invertedLut) {
+            EdgeFilter.checkPlane(pixels, width, height);
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.invertedLut = invertedLut;
+        }
+
+        public static Plane of(byte[] pixels, int width, int height) {
+            return new Plane(pixels, width, height, false);
+        }
+
+        public static Plane of(short[] pixels, int width, int height) {
+            return new Plane(pixels, width, height, false);
+        }
+
+        public static Plane of(float[] pixels, int width, int height) {
+            return new Plane(pixels, width, height, false);
+        }
+
+        /** Wraps the processor's pixels (not copied) and LUT polarity. */
+        public static Plane of(ImageProcessor ip) {
+            if (!supports(ip)) {
+                throw new IllegalArgumentException("8-bit, 16-bit or 32-bit image required");
+            }
+            return new Plane(ip.getPixels(), ip.getWidth(), ip.getHeight(), ip.isInvertedLut());
+        }
+
+        public static boolean supports(ImageProcessor ip) {
+            return ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor;
+        }
+    }
+
+    /**
+     * True if {@code config} can be evaluated without ImageJ: manual levels, adaptive
+     * settings or a known auto method (null means {@link ThresholdConfig#forParams}).
+     */
+    public static boolean supports(ThresholdConfig config) {
+        return config == null || config.isManual() || config.isLocal()
+                || ThresholdEngine.Method.fromLabel(config.getMethod()) != null;
+    }
+
+    /**
+     * Full segmentation of {@code source}: labels 1..count of the particles of at least
+     * {@code p.minArea} pixels, in ParticleAnalyzer's order. The source is not modified.
+     */
+    public static LabelImage segment(Plane source, CellSegmentationParams p, ThresholdConfig config) {
+        final ForkJoinPool pool = RowBands.pool(p.threads);
+        final byte[] mask = mask(source, p, config, pool);
+        return LabelImage.fromMask(mask, source.width, source.height, p.minArea, pool);
+    }
+
+    /**
+     * Every stage before labeling: the watershed-split binary mask (255 = foreground)
+     * that ParticleAnalyzer or {@link LabelImage#fromMask} take from here.
+     */
+    public static byte[] mask(Plane source, CellSegmentationParams p, ThresholdConfig config, ForkJoinPool pool) {
+        final ThresholdConfig c = config != null ? config : ThresholdConfig.forParams(p);
+        final Plane gradient = gradient(source, p.edgeDetector, p.gradientMagnitude, pool);
+        final byte[] mask = threshold(gradient, c, pool);
+        fillHoles(mask, source.width, source.height);
+        watershed(mask, source.width, source.height, p.watershedTolerance, p.watershedMethod, pool);
+        return mask;
+    }
+
+    /** Edge magnitude of {@code source} as a float plane; the source itself for NONE. */
+    public static Plane gradient(Plane source, EdgeDetector edgeDetector, EdgeFilter.Magnitude magnitude,
+                                 ForkJoinPool pool) {
+        final EdgeDetector detector = edgeDetector != null ? edgeDetector : EdgeDetector.SOBEL;
+        if (detector == EdgeDetector.NONE) {
+            return source;
+        }
+        final float[] out = EdgeFilter.apply(source.pixels, source.width, source.height, detector,
+                magnitude != null ? magnitude : EdgeFilter.Magnitude.EUCLIDEAN, pool);
+        // EdgeFilter keeps the source LUT on its processors, so polarity carries over.
+        return new Plane(out, source.width, source.height, source.invertedLut);
+    }
+
+    /** Binary mask (255 = foreground) of {@code plane} under {@code config}. */
+    public static byte[] threshold(Plane plane, ThresholdConfig config, ForkJoinPool pool) {
+        if (config.isManual()) {
+            return threshold(plane, config.getMinThreshold(), config.getMaxThreshold(), pool);
+        }
+        if (config.isLocal()) {
+            return LocalThreshold.apply(plane.pixels, plane.width, plane.height, config.getLocalSettings(),
+                    config.isDarkObjects() != plane.invertedLut, pool);
+        }
+        final ThresholdEngine.Method method = ThresholdEngine.Method.fromLabel(config.getMethod());
+        if (method == null) {
+            throw new IllegalArgumentException("Unknown threshold method: " + config.getMethod());
+        }
+        final ThresholdEngine.Levels levels = ThresholdEngine.compute(plane.pixels, plane.width, plane.height,
+                method, config.isDarkObjects(), plane.invertedLut, config.getHistogramBins(), pool);
+        return threshold(plane, levels.lower, levels.upper, pool);
+    }
+
+    /** Binary mask of the pixels inside [lower, upper], as "Convert to Mask" makes it. */
+    public static byte[] threshold(Plane plane, double lower, double upper, ForkJoinPool pool) {
+        return ThresholdEngine.mask(plane.pixels, plane.width, plane.height, lower, upper, pool);
+    }
+
+    /** Fills enclosed and edge-open holes in place. */
+    public static void fillHoles(byte[] mask, int w, int h) {
+        HoleFiller.fillEdgeOpenHoles(mask, w, h);
+    }
+
+    /** Cuts touching particles apart in place with the chosen watershed. */
+    public static void watershed(byte[] mask, int w, int h, double tolerance, Watershed.Method method,
+                                 ForkJoinPool pool) {
+        if (method == Watershed.Method.EDT) {
+            Watershed.split(mask, w, h, tolerance, pool);
+        } else {
+            Watershed.splitLikeImageJ(mask, w, h, tolerance);
+        }
+    }
+}
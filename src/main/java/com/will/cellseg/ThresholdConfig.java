@@ -2,7 +2,10 @@ package com.will.cellseg;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
+import java.util.concurrent.ForkJoinPool;
 
 /** Concrete threshold settings that can be reused across batch runs. */
 public final class ThresholdConfig {
@@ -10,22 +13,69 @@ public final class ThresholdConfig {
     private final boolean darkObjects;
     private final Double minThreshold;
     private final Double maxThreshold;
+    private final int histogramBins;
+    private final LocalThreshold.Settings local;
 
-    private ThresholdConfig(String method, boolean darkObjects, Double minThreshold, Double maxThreshold) {
+    private ThresholdConfig(
+            String method,
+            boolean darkObjects,
+            Double minThreshold,
+            Double maxThreshold,
+            int histogramBins,
+            LocalThreshold.Settings local) {
         this.method = sanitizeMethod(method);
         this.darkObjects = darkObjects;
         this.minThreshold = minThreshold;
         this.maxThreshold = maxThreshold;
+        this.histogramBins = histogramBins;
+        this.local = local;
+    }
+
+    /** Starting config for a run: local mode when the params ask for it, else global auto. */
+    public static ThresholdConfig forParams(CellSegmentationParams p) {
+        if (p.localThreshold != null) {
+            return local(p.thrMethod, p.darkObjects, p.localThreshold);
+        }
+        return auto(p.thrMethod, p.darkObjects);
     }
 
     public static ThresholdConfig auto(String method, boolean darkObjects) {
+        return auto(method, darkObjects, Histogram.DEFAULT_BINS);
+    }
+
+    /**
+     * Auto mode with a custom histogram size for 16-bit/float data. 256 bins reproduce
+     * ImageJ's own auto-threshold; more bins resolve narrow float gradient ranges better.
+     */
+    public static ThresholdConfig auto(String method, boolean darkObjects, int histogramBins) {
+        if (histogramBins < 2) {
+            throw new IllegalArgumentException("histogramBins must be >= 2");
+        }
         // "Auto" means "rerun ImageJ's threshold method", not "capture the current
         // threshold slider positions".
-        return new ThresholdConfig(method, darkObjects, null, null);
+        return new ThresholdConfig(method, darkObjects, null, null, histogramBins, null);
+    }
+
+    /**
+     * Adaptive threshold: every pixel is compared against statistics of its own
+     * neighbourhood, so uneven illumination does not need a hand-tuned global level.
+     * {@code method} is only kept as the global method name for display/fallback.
+     */
+    public static ThresholdConfig local(String method, boolean darkObjects, LocalThreshold.Settings settings) {
+        if (settings == null) {
+            throw new IllegalArgumentException("settings are required");
+        }
+        return new ThresholdConfig(method, darkObjects, null, null, Histogram.DEFAULT_BINS, settings);
     }
 
     public static ThresholdConfig manual(String method, boolean darkObjects, double minThreshold, double maxThreshold) {
-        return new ThresholdConfig(method, darkObjects, Double.valueOf(minThreshold), Double.valueOf(maxThreshold));
+        return new ThresholdConfig(
+                method,
+                darkObjects,
+                Double.valueOf(minThreshold),
+                Double.valueOf(maxThreshold),
+                Histogram.DEFAULT_BINS,
+                null);
     }
 
     public String getMethod() {
@@ -36,6 +86,18 @@ public final class ThresholdConfig {
         return darkObjects;
     }
 
+    public int getHistogramBins() {
+        return histogramBins;
+    }
+
+    public boolean isLocal() {
+        return local != null;
+    }
+
+    public LocalThreshold.Settings getLocalSettings() {
+        return local;
+    }
+
     public boolean isManual() {
         return minThreshold != null && maxThreshold != null;
     }
@@ -49,6 +111,11 @@ public final class ThresholdConfig {
     }
 
     public void applyTo(ImagePlus image) {
+        applyTo(image, null);
+    }
+
+    /** Applies the threshold; auto-mode histograms are built on {@code pool} when given. */
+    public void applyTo(ImagePlus image, ForkJoinPool pool) {
         if (image == null) {
             return;
         }
@@ -59,12 +126,57 @@ public final class ThresholdConfig {
             image.updateAndDraw();
             return;
         }
+        if (isLocal()) {
+            applyLocal(image, pool);
+            return;
+        }
+
+        final ThresholdEngine.Levels levels = computeAutoLevels(image, pool);
+        if (levels != null) {
+            image.getProcessor().setThreshold(levels.lower, levels.upper, ImageProcessor.RED_LUT);
+            image.updateAndDraw();
+            return;
+        }
 
-        // For auto mode we delegate back to ImageJ's built-in threshold implementation.
+        // RGB data, ROI-restricted histograms and unknown method names still go through
+        // ImageJ's built-in implementation (which also logs bad method names).
         final String darkOrLight = darkObjects ? "dark" : "light";
         IJ.setAutoThreshold(image, method + " " + darkOrLight);
     }
 
+    /**
+     * Auto-threshold levels computed directly from the image pixels, or null when the
+     * image needs ImageJ's own implementation.
+     */
+    public ThresholdEngine.Levels computeAutoLevels(ImagePlus image) {
+        return computeAutoLevels(image, null);
+    }
+
+    public ThresholdEngine.Levels computeAutoLevels(ImagePlus image, ForkJoinPool pool) {
+        final ThresholdEngine.Method m = ThresholdEngine.Method.fromLabel(method);
+        if (image == null || m == null || image.getRoi() != null) {
+            return null;
+        }
+        return ThresholdEngine.compute(image.getProcessor(), m, darkObjects, histogramBins, pool);
+    }
+
+    private void applyLocal(ImagePlus image, ForkJoinPool pool) {
+        final ImageProcessor ip = image.getProcessor();
+        final Object pixels = ip instanceof ColorProcessor ? ip.convertToFloatProcessor().getPixels() : ip.getPixels();
+        // Same polarity rule as the global path: "dark" keeps the high side unless the
+        // LUT is inverted.
+        final boolean aboveIsForeground = darkObjects != ip.isInvertedLut();
+        final byte[] binary = LocalThreshold.apply(
+                pixels, ip.getWidth(), ip.getHeight(), local, aboveIsForeground, pool);
+
+        // The result is already binary; selecting 255 lets "Convert to Mask" and the
+        // Threshold window treat it like any other thresholded image.
+        final ByteProcessor bp = new ByteProcessor(ip.getWidth(), ip.getHeight(), binary);
+        image.setProcessor(bp);
+        bp.setThreshold(255, 255, ImageProcessor.RED_LUT);
+        image.updateAndDraw();
+    }
+
     private static String sanitizeMethod(String method) {
         return (method == null || method.trim().isEmpty()) ? "Default" : method.trim();
     }
@@ -0,0 +1,203 @@
+package com.will.cellseg;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless auto-threshold: one histogram pass over the raw pixels, then any of ImageJ's
+ * histogram methods, returning numeric threshold levels in pixel units. Holds no state,
+ * so worker threads can call it concurrently.
+ */
+public final class ThresholdEngine {
+
+    private ThresholdEngine() {}
+
+    /** ImageJ auto-threshold methods and their names in the UI / macro language. */
+    public enum Method {
+        DEFAULT("Default"),
+        HUANG("Huang"),
+        INTERMODES("Intermodes"),
+        ISODATA("IsoData"),
+        IJ_ISODATA("IJ_IsoData"),
+        LI("Li"),
+        MAX_ENTROPY("MaxEntropy"),
+        MEAN("Mean"),
+        MIN_ERROR("MinError"),
+        MINIMUM("Minimum"),
+        MOMENTS("Moments"),
+        OTSU("Otsu"),
+        PERCENTILE("Percentile"),
+        RENYI_ENTROPY("RenyiEntropy"),
+        SHANBHAG("Shanbhag"),
+        TRIANGLE("Triangle"),
+        YEN("Yen");
+
+        public final String label;
+
+        Method(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        /** Returns null for names ImageJ would not recognise either. */
+        public static Method fromLabel(String s) {
+            if (s == null) return null;
+            final String name = s.trim();
+            for (Method m : values()) {
+                if (m.label.equals(name)) return m;
+            }
+            return null;
+        }
+    }
+
+    /** Threshold levels in pixel units, ready for {@link ImageProcessor#setThreshold}. */
+    public static final class Levels {
+        public final double lower;
+        public final double upper;
+        /** Histogram bin picked by the method. */
+        public final int bin;
+
+        private Levels(double lower, double upper, int bin) {
+            this.lower = lower;
+            this.upper = upper;
+            this.bin = bin;
+        }
+    }
+
+    /** Threshold bin for an arbitrary-length histogram. */
+    public static int threshold(Method method, int[] histogram) {
+        return ThresholdMethods.threshold(method != null ? method : Method.DEFAULT, histogram);
+    }
+
+    /** Same as {@link #compute(Object, int, int, Method, boolean, boolean, int)} with 256 bins and a normal LUT. */
+    public static Levels compute(Object pixels, int w, int h, Method method, boolean darkBackground) {
+        return compute(pixels, w, h, method, darkBackground, false, Histogram.DEFAULT_BINS);
+    }
+
+    public static Levels compute(Object pixels, int w, int h, Method method, boolean darkBackground,
+                                 boolean invertedLut, int bins) {
+        return compute(pixels, w, h, method, darkBackground, invertedLut, bins, null);
+    }
+
+    /** As above, building the histogram in parallel stripes on {@code pool} (null = serial). */
+    public static Levels compute(Object pixels, int w, int h, Method method, boolean darkBackground,
+                                 boolean invertedLut, int bins, ForkJoinPool pool) {
+        return compute(Histogram.of(pixels, w, h, bins, pool), method, darkBackground, invertedLut);
+    }
+
+    /**
+     * Picks the bin and converts it back to pixel units the way
+     * {@code ImageProcessor.setAutoThreshold} / {@code scaleAndSetThreshold} do.
+     */
+    public static Levels compute(Histogram histogram, Method method, boolean darkBackground, boolean invertedLut) {
+        final int top = histogram.bins() - 1;
+        final int t = threshold(method, histogram.counts);
+
+        double lower, upper;
+        // Pixels above the bin are foreground on a dark background; an inverted LUT
+        // flips which side that is, exactly as ImageJ does.
+        if (darkBackground != invertedLut) {
+            lower = t + 1;
+            upper = top;
+        } else {
+            lower = 0;
+            upper = t;
+        }
+        if (lower > top) lower = top;
+
+        if (histogram.bitDepth == 8) {
+            return new Levels(lower, upper, t);
+        }
+        final double min = histogram.min;
+        final double max = histogram.max;
+        if (!(max > min)) {
+            return new Levels(min, min, t);
+        }
+        if (lower == 0.0) {
+            // Open-ended at the bottom; ImageJ avoids -Float.MAX_VALUE for float data.
+            if (histogram.bitDepth == 32) lower = Math.min(min, -1e30);
+        } else {
+            lower = min + (lower / top) * (max - min);
+        }
+        if (upper == top) {
+            upper = histogram.bitDepth == 16 ? 65535 : Math.max(max, 1e30);
+        } else {
+            upper = min + (upper / top) * (max - min);
+        }
+        if (histogram.bitDepth == 16) {
+            // ShortProcessor.setThreshold stores whole grey levels.
+            lower = Math.round(lower);
+            upper = Math.round(upper);
+        }
+        return new Levels(lower, upper, t);
+    }
+
+    /**
+     * Binary plane (255 = foreground) of the pixels inside [lower, upper], with the
+     * comparisons "Convert to Mask" makes: 8-bit values against the levels as given,
+     * 16-bit and float values as floats, 16-bit levels clamped and rounded the way
+     * {@code ShortProcessor.setThreshold} stores them.
+     */
+    public static byte[] mask(final Object pixels, final int w, int h, double lower, double upper,
+                              ForkJoinPool pool) {
+        EdgeFilter.checkPlane(pixels, w, h);
+        if (pixels instanceof short[]) {
+            lower = Math.round(Math.max(lower, 0.0));
+            upper = Math.round(Math.min(upper, 65535.0));
+        }
+        final double lo = lower;
+        final double hi = upper;
+        final float loF = (float) lower;
+        final float hiF = (float) upper;
+        final byte[] out = new byte[w * h];
+        RowBands.forEach(pool, h, new RowBands.Task() {
+            @Override
+            public void run(int y0, int y1) {
+                final int i1 = y1 * w;
+                if (pixels instanceof byte[]) {
+                    final byte[] p = (byte[]) pixels;
+                    for (int i = y0 * w; i < i1; i++) {
+                        final int v = p[i] & 0xFF;
+                        if (v >= lo && v <= hi) out[i] = (byte) 255;
+                    }
+                } else if (pixels instanceof short[]) {
+                    final short[] p = (short[]) pixels;
+                    for (int i = y0 * w; i < i1; i++) {
+                        final float v = p[i] & 0xFFFF;
+                        if (v >= loF && v <= hiF) out[i] = (byte) 255;
+                    }
+                } else {
+                    final float[] p = (float[]) pixels;
+                    for (int i = y0 * w; i < i1; i++) {
+                        if (p[i] >= loF && p[i] <= hiF) out[i] = (byte) 255;
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Computes levels for a grayscale processor, honouring its LUT. Returns null for
+     * processors whose pixels cannot be read directly (RGB).
+     */
+    public static Levels compute(ImageProcessor ip, Method method, boolean darkBackground, int bins) {
+        return compute(ip, method, darkBackground, bins, null);
+    }
+
+    public static Levels compute(ImageProcessor ip, Method method, boolean darkBackground, int bins,
+                                 ForkJoinPool pool) {
+        if (!(ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor)) {
+            return null;
+        }
+        return compute(ip.getPixels(), ip.getWidth(), ip.getHeight(), method, darkBackground,
+                ip.isInvertedLut(), bins, pool);
+    }
+}
@@ -0,0 +1,723 @@
+package com.will.cellseg;
+
+import ij.IJ;
+
+/**
+ * ImageJ's AutoThresholder methods (G. Landini's Auto_Threshold) generalized from a
+ * fixed 256-bin histogram to any bin count. For 256 bins every method returns the same
+ * bin as {@code ij.process.AutoThresholder}, including its integer moment sums.
+ */
+final class ThresholdMethods {
+
+    private static final double DBL_EPSILON = 2.220446049250313E-16;
+
+    private ThresholdMethods() {}
+
+    /** Threshold bin for the method; pixels in bins above it are "high". */
+    static int threshold(ThresholdEngine.Method method, int[] data) {
+        if (data == null || data.length < 2) {
+            throw new IllegalArgumentException("histogram must have at least 2 bins");
+        }
+        int threshold = bilevel(data);
+        if (threshold >= 0) {
+            return threshold;
+        }
+        switch (method) {
+            case HUANG: threshold = huang(data); break;
+            case INTERMODES: threshold = intermodes(data); break;
+            case ISODATA: threshold = isoData(data); break;
+            case IJ_ISODATA: threshold = ijIsoData(data); break;
+            case LI: threshold = li(data); break;
+            case MAX_ENTROPY: threshold = maxEntropy(data); break;
+            case MEAN: threshold = mean(data); break;
+            case MIN_ERROR: threshold = minErrorI(data); break;
+            case MINIMUM: threshold = minimum(data); break;
+            case MOMENTS: threshold = moments(data); break;
+            case OTSU: threshold = otsu(data); break;
+            case PERCENTILE: threshold = percentile(data); break;
+            case RENYI_ENTROPY: threshold = renyiEntropy(data); break;
+            case SHANBHAG: threshold = shanbhag(data); break;
+            case TRIANGLE: threshold = triangle(data); break;
+            case YEN: threshold = yen(data); break;
+            case DEFAULT:
+            default: threshold = defaultIsoData(data); break;
+        }
+        return threshold == -1 ? 0 : threshold;
+    }
+
+    private static int bilevel(int[] hist) {
+        int nonZeroBins = 0;
+        int nonZeroBin1 = -1, nonZeroBin2 = -1;
+        for (int i = 0; i < hist.length; i++) {
+            if (hist[i] > 0) {
+                nonZeroBins++;
+                if (nonZeroBins > 2) return -1;
+                if (nonZeroBin1 == -1) nonZeroBin1 = i;
+                else nonZeroBin2 = i;
+            }
+        }
+        return nonZeroBins == 2 ? nonZeroBin2 - 1 : -1;
+    }
+
+    /** Modified IsoData used by ImageJ's "Default" mode: clips a dominant mode first. */
+    private static int defaultIsoData(int[] data) {
+        final int n = data.length;
+        final int[] data2 = data.clone();
+        int mode = 0, maxCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (data2[i] > maxCount) {
+                maxCount = data2[i];
+                mode = i;
+            }
+        }
+        int maxCount2 = 0;
+        for (int i = 0; i < n; i++) {
+            if (data2[i] > maxCount2 && i != mode) maxCount2 = data2[i];
+        }
+        if (maxCount > maxCount2 * 2 && maxCount2 != 0) {
+            data2[mode] = (int) (maxCount2 * 1.5);
+        }
+        return ijIsoData(data2);
+    }
+
+    /** Original ImageJ IsoData; ignores the two end bins (erased areas / saturation). */
+    private static int ijIsoData(int[] histogram) {
+        final int[] data = histogram.clone();
+        final int maxValue = data.length - 1;
+        data[0] = 0;
+        data[maxValue] = 0;
+        int min = 0;
+        while (data[min] == 0 && min < maxValue) min++;
+        int max = maxValue;
+        while (data[max] == 0 && max > 0) max--;
+        if (min >= max) {
+            return data.length / 2;
+        }
+        int movingIndex = min;
+        double result;
+        do {
+            double sum1 = 0, sum2 = 0, sum3 = 0, sum4 = 0;
+            for (int i = min; i <= movingIndex; i++) {
+                sum1 += (double) i * data[i];
+                sum2 += data[i];
+            }
+            for (int i = movingIndex + 1; i <= max; i++) {
+                sum3 += (double) i * data[i];
+                sum4 += data[i];
+            }
+            result = (sum1 / sum2 + sum3 / sum4) / 2.0;
+            movingIndex++;
+        } while ((movingIndex + 1) <= result && movingIndex < max - 1);
+        return (int) Math.round(result);
+    }
+
+    private static int huang(int[] data) {
+        // Huang L.-K. and Wang M.-J.J. (1995) fuzzy thresholding (Shannon entropy).
+        final int n = data.length;
+        int firstBin = 0;
+        for (int ih = 0; ih < n; ih++) {
+            if (data[ih] != 0) {
+                firstBin = ih;
+                break;
+            }
+        }
+        int lastBin = n - 1;
+        for (int ih = n - 1; ih >= firstBin; ih--) {
+            if (data[ih] != 0) {
+                lastBin = ih;
+                break;
+            }
+        }
+        final double term = 1.0 / (double) (lastBin - firstBin);
+        final double[] mu0 = new double[n];
+        double sumPix = 0, numPix = 0;
+        for (int ih = firstBin; ih < n; ih++) {
+            sumPix += (double) ih * data[ih];
+            numPix += data[ih];
+            mu0[ih] = sumPix / numPix;
+        }
+        final double[] mu1 = new double[n];
+        sumPix = numPix = 0;
+        for (int ih = lastBin; ih > 0; ih--) {
+            sumPix += (double) ih * data[ih];
+            numPix += data[ih];
+            mu1[ih - 1] = sumPix / numPix;
+        }
+
+        int threshold = -1;
+        double minEnt = Double.MAX_VALUE;
+        for (int it = 0; it < n; it++) {
+            double ent = 0.0;
+            for (int ih = 0; ih <= it; ih++) {
+                final double muX = 1.0 / (1.0 + term * Math.abs(ih - mu0[it]));
+                if (!(muX < 1e-06 || muX > 0.999999)) {
+                    ent += data[ih] * (-muX * Math.log(muX) - (1.0 - muX) * Math.log(1.0 - muX));
+                }
+            }
+            for (int ih = it + 1; ih < n; ih++) {
+                final double muX = 1.0 / (1.0 + term * Math.abs(ih - mu1[it]));
+                if (!(muX < 1e-06 || muX > 0.999999)) {
+                    ent += data[ih] * (-muX * Math.log(muX) - (1.0 - muX) * Math.log(1.0 - muX));
+                }
+            }
+            if (ent < minEnt) {
+                minEnt = ent;
+                threshold = it;
+            }
+        }
+        return threshold;
+    }
+
+    private static boolean bimodalTest(double[] y) {
+        int modes = 0;
+        for (int k = 1; k < y.length - 1; k++) {
+            if (y[k - 1] < y[k] && y[k + 1] < y[k]) {
+                modes++;
+                if (modes > 2) return false;
+            }
+        }
+        return modes == 2;
+    }
+
+    private static int intermodes(int[] data) {
+        // Prewitt & Mendelsohn (1966): smooth until bimodal, threshold midway between peaks.
+        int minbin = -1, maxbin = -1;
+        for (int i = 0; i < data.length; i++) if (data[i] > 0) maxbin = i;
+        for (int i = data.length - 1; i >= 0; i--) if (data[i] > 0) minbin = i;
+        final int length = (maxbin - minbin) + 1;
+        final double[] hist = new double[length];
+        for (int i = minbin; i <= maxbin; i++) hist[i - minbin] = data[i];
+
+        int iter = 0;
+        while (!bimodalTest(hist)) {
+            double previous = 0, current = 0, next = hist[0];
+            for (int i = 0; i < length - 1; i++) {
+                previous = current;
+                current = next;
+                next = hist[i + 1];
+                hist[i] = (previous + current + next) / 3;
+            }
+            hist[length - 1] = (current + next) / 3;
+            iter++;
+            if (iter > 10000) {
+                IJ.log("[CellSegmentation] Intermodes threshold not found after 10000 iterations.");
+                return -1;
+            }
+        }
+        int tt = 0;
+        for (int i = 1; i < length - 1; i++) {
+            if (hist[i - 1] < hist[i] && hist[i + 1] < hist[i]) tt += i;
+        }
+        return (int) Math.floor(tt / 2.0) + minbin;
+    }
+
+    private static int isoData(int[] data) {
+        // Ridler & Calvard (1978) intermeans. Integer means mirror ImageJ exactly.
+        final int n = data.length;
+        int g = 0;
+        for (int i = 1; i < n; i++) {
+            if (data[i] > 0) {
+                g = i + 1;
+                break;
+            }
+        }
+        while (true) {
+            int l = 0;
+            int totl = 0;
+            for (int i = 0; i < g; i++) {
+                totl = totl + data[i];
+                l = l + (data[i] * i);
+            }
+            double h = 0;
+            double toth = 0;
+            for (int i = g + 1; i < n; i++) {
+                toth += data[i];
+                h += ((double) data[i] * i);
+            }
+            if (totl > 0 && toth > 0) {
+                l /= totl;
+                h /= toth;
+                if (g == (int) Math.round((l + h) / 2.0)) break;
+            }
+            g++;
+            if (g > n - 2) return -1;
+        }
+        return g;
+    }
+
+    private static int li(int[] data) {
+        // Li & Tam (1998) iterative minimum cross entropy.
+        final int n = data.length;
+        final double tolerance = 0.5;
+        double numPixels = 0;
+        for (int ih = 0; ih < n; ih++) numPixels += data[ih];
+
+        double mean = 0.0;
+        for (int ih = 1; ih < n; ih++) mean += (double) ih * data[ih];
+        mean /= numPixels;
+
+        double newThresh = mean;
+        double oldThresh;
+        int threshold;
+        do {
+            oldThresh = newThresh;
+            threshold = (int) (oldThresh + 0.5);
+            double sumBack = 0, numBack = 0;
+            for (int ih = 0; ih <= threshold; ih++) {
+                sumBack += (double) ih * data[ih];
+                numBack += data[ih];
+            }
+            final double meanBack = numBack == 0 ? 0.0 : sumBack / numBack;
+            double sumObj = 0, numObj = 0;
+            for (int ih = threshold + 1; ih < n; ih++) {
+                sumObj += (double) ih * data[ih];
+                numObj += data[ih];
+            }
+            final double meanObj = numObj == 0 ? 0.0 : sumObj / numObj;
+
+            final double temp = (meanBack - meanObj) / (Math.log(meanBack) - Math.log(meanObj));
+            newThresh = temp < -DBL_EPSILON ? (int) (temp - 0.5) : (int) (temp + 0.5);
+        } while (Math.abs(newThresh - oldThresh) > tolerance);
+        return threshold;
+    }
+
+    private static int maxEntropy(int[] data) {
+        // Kapur, Sahoo & Wong (1985) maximum entropy.
+        final int n = data.length;
+        final double[] normHisto = normalized(data);
+        final double[] p1 = new double[n];
+        final double[] p2 = new double[n];
+        cumulative(normHisto, p1, p2);
+        final int firstBin = firstNonZero(p1);
+        final int lastBin = lastNonZero(p2, firstBin);
+
+        int threshold = -1;
+        double maxEnt = Double.MIN_VALUE;
+        for (int it = firstBin; it <= lastBin; it++) {
+            double entBack = 0.0;
+            for (int ih = 0; ih <= it; ih++) {
+                if (data[ih] != 0) entBack -= (normHisto[ih] / p1[it]) * Math.log(normHisto[ih] / p1[it]);
+            }
+            double entObj = 0.0;
+            for (int ih = it + 1; ih < n; ih++) {
+                if (data[ih] != 0) entObj -= (normHisto[ih] / p2[it]) * Math.log(normHisto[ih] / p2[it]);
+            }
+            final double totEnt = entBack + entObj;
+            if (maxEnt < totEnt) {
+                maxEnt = totEnt;
+                threshold = it;
+            }
+        }
+        return threshold;
+    }
+
+    private static int mean(int[] data) {
+        // Glasbey (1993): the threshold is the mean grey level.
+        double tot = 0, sum = 0;
+        for (int i = 0; i < data.length; i++) {
+            tot += data[i];
+            sum += (double) i * data[i];
+        }
+        return (int) Math.floor(sum / tot);
+    }
+
+    private static int minErrorI(int[] data) {
+        // Kittler & Illingworth (1986) minimum error, iterative version.
+        final int last = data.length - 1;
+        int threshold = mean(data);
+        int tPrev = -2;
+        while (threshold != tPrev) {
+            final double mu = sumB(data, threshold) / sumA(data, threshold);
+            final double nu = (sumB(data, last) - sumB(data, threshold)) / (sumA(data, last) - sumA(data, threshold));
+            final double p = sumA(data, threshold) / sumA(data, last);
+            final double q = (sumA(data, last) - sumA(data, threshold)) / sumA(data, last);
+            final double sigma2 = sumC(data, threshold) / sumA(data, threshold) - (mu * mu);
+            final double tau2 = (sumC(data, last) - sumC(data, threshold))
+                    / (sumA(data, last) - sumA(data, threshold)) - (nu * nu);
+
+            final double w0 = 1.0 / sigma2 - 1.0 / tau2;
+            final double w1 = mu / sigma2 - nu / tau2;
+            final double w2 = (mu * mu) / sigma2 - (nu * nu) / tau2 + Math.log10((sigma2 * (q * q)) / (tau2 * (p * p)));
+
+            final double sqterm = (w1 * w1) - w0 * w2;
+            if (sqterm < 0) {
+                IJ.log("[CellSegmentation] MinError(I) threshold not converging.");
+                return threshold;
+            }
+            tPrev = threshold;
+            final double temp = (w1 + Math.sqrt(sqterm)) / w0;
+            threshold = Double.isNaN(temp) ? tPrev : (int) Math.floor(temp);
+        }
+        return threshold;
+    }
+
+    private static double sumA(int[] y, int j) {
+        if (j >= y.length) j = y.length - 1;
+        double x = 0;
+        for (int i = 0; i <= j; i++) x += y[i];
+        return x;
+    }
+
+    // The int products below overflow exactly where ImageJ's do; kept for parity.
+    private static double sumB(int[] y, int j) {
+        if (j >= y.length) j = y.length - 1;
+        double x = 0;
+        for (int i = 0; i <= j; i++) x += i * y[i];
+        return x;
+    }
+
+    private static double sumC(int[] y, int j) {
+        if (j >= y.length) j = y.length - 1;
+        double x = 0;
+        for (int i = 0; i <= j; i++) x += i * i * y[i];
+        return x;
+    }
+
+    private static int minimum(int[] data) {
+        // Prewitt & Mendelsohn (1966): smooth until bimodal, threshold at the valley.
+        final int n = data.length;
+        final double[] iHisto = new double[n];
+        for (int i = 0; i < n; i++) iHisto[i] = data[i];
+        final double[] tHisto = new double[n];
+
+        int iter = 0;
+        while (!bimodalTest(iHisto)) {
+            for (int i = 1; i < n - 1; i++) tHisto[i] = (iHisto[i - 1] + iHisto[i] + iHisto[i + 1]) / 3;
+            tHisto[0] = (iHisto[0] + iHisto[1]) / 3;
+            tHisto[n - 1] = (iHisto[n - 2] + iHisto[n - 1]) / 3;
+            System.arraycopy(tHisto, 0, iHisto, 0, n);
+            iter++;
+            if (iter > 10000) {
+                IJ.log("[CellSegmentation] Minimum threshold not found after 10000 iterations.");
+                return -1;
+            }
+        }
+        for (int i = 1; i < n - 1; i++) {
+            if (iHisto[i - 1] > iHisto[i] && iHisto[i + 1] >= iHisto[i]) return i;
+        }
+        return -1;
+    }
+
+    private static int moments(int[] data) {
+        // Tsai (1985) moment-preserving thresholding.
+        final int n = data.length;
+        double total = 0;
+        for (int i = 0; i < n; i++) total += data[i];
+        final double[] histo = new double[n];
+        for (int i = 0; i < n; i++) histo[i] = data[i] / total;
+
+        final double m0 = 1.0;
+        double m1 = 0.0, m2 = 0.0, m3 = 0.0;
+        for (int i = 0; i < n; i++) {
+            final double di = i;
+            m1 += di * histo[i];
+            m2 += di * di * histo[i];
+            m3 += di * di * di * histo[i];
+        }
+        final double cd = m0 * m2 - m1 * m1;
+        final double c0 = (-m2 * m2 + m1 * m3) / cd;
+        final double c1 = (m0 * -m3 + m2 * m1) / cd;
+        final double z0 = 0.5 * (-c1 - Math.sqrt(c1 * c1 - 4.0 * c0));
+        final double z1 = 0.5 * (-c1 + Math.sqrt(c1 * c1 - 4.0 * c0));
+        final double p0 = (z1 - m1) / (z1 - z0);
+
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += histo[i];
+            if (sum > p0) return i;
+        }
+        return -1;
+    }
+
+    private static int otsu(int[] data) {
+        // Otsu (1979) maximum between-class variance.
+        final int n = data.length;
+        double s = 0, total = 0;
+        for (int k = 0; k < n; k++) {
+            s += (double) k * data[k];
+            total += data[k];
+        }
+        double sk = 0;
+        double n1 = data[0];
+        double bcvMax = 0;
+        int kStar = 0;
+        for (int k = 1; k < n - 1; k++) {
+            sk += (double) k * data[k];
+            n1 += data[k];
+            final double denom = n1 * (total - n1);
+            double bcv = 0;
+            if (denom != 0) {
+                final double num = (n1 / total) * s - sk;
+                bcv = (num * num) / denom;
+            }
+            if (bcv >= bcvMax) {
+                bcvMax = bcv;
+                kStar = k;
+            }
+        }
+        return kStar;
+    }
+
+    private static int percentile(int[] data) {
+        // Doyle (1962): half of the pixels end up on each side.
+        final double ptile = 0.5;
+        final double total = sumA(data, data.length - 1);
+        int threshold = -1;
+        double best = 1.0;
+        double partial = 0;
+        for (int i = 0; i < data.length; i++) {
+            partial += data[i];
+            final double a = Math.abs((partial / total) - ptile);
+            if (a < best) {
+                best = a;
+                threshold = i;
+            }
+        }
+        return threshold;
+    }
+
+    private static int renyiEntropy(int[] data) {
+        // Kapur, Sahoo & Wong (1985) with Renyi entropies of order 0.5, 1 and 2.
+        final int n = data.length;
+        final double[] normHisto = normalized(data);
+        final double[] p1 = new double[n];
+        final double[] p2 = new double[n];
+        cumulative(normHisto, p1, p2);
+        final int firstBin = firstNonZero(p1);
+        final int lastBin = lastNonZero(p2, firstBin);
+
+        // Alpha = 1: maximum entropy.
+        int threshold = 0;
+        double maxEnt = 0.0;
+        for (int it = firstBin; it <= lastBin; it++) {
+            double entBack = 0.0;
+            for (int ih = 0; ih <= it; ih++) {
+                if (data[ih] != 0) entBack -= (normHisto[ih] / p1[it]) * Math.log(normHisto[ih] / p1[it]);
+            }
+            double entObj = 0.0;
+            for (int ih = it + 1; ih < n; ih++) {
+                if (data[ih] != 0) entObj -= (normHisto[ih] / p2[it]) * Math.log(normHisto[ih] / p2[it]);
+            }
+            final double totEnt = entBack + entObj;
+            if (maxEnt < totEnt) {
+                maxEnt = totEnt;
+                threshold = it;
+            }
+        }
+        int tStar2 = threshold;
+
+        // Alpha = 0.5.
+        threshold = 0;
+        maxEnt = 0.0;
+        double term = 1.0 / (1.0 - 0.5);
+        for (int it = firstBin; it <= lastBin; it++) {
+            double entBack = 0.0;
+            for (int ih = 0; ih <= it; ih++) entBack += Math.sqrt(normHisto[ih] / p1[it]);
+            double entObj = 0.0;
+            for (int ih = it + 1; ih < n; ih++) entObj += Math.sqrt(normHisto[ih] / p2[it]);
+            final double totEnt = term * ((entBack * entObj) > 0.0 ? Math.log(entBack * entObj) : 0.0);
+            if (totEnt > maxEnt) {
+                maxEnt = totEnt;
+                threshold = it;
+            }
+        }
+        int tStar1 = threshold;
+
+        // Alpha = 2.
+        threshold = 0;
+        maxEnt = 0.0;
+        term = 1.0 / (1.0 - 2.0);
+        for (int it = firstBin; it <= lastBin; it++) {
+            double entBack = 0.0;
+            for (int ih = 0; ih <= it; ih++) entBack += (normHisto[ih] * normHisto[ih]) / (p1[it] * p1[it]);
+            double entObj = 0.0;
+            for (int ih = it + 1; ih < n; ih++) entObj += (normHisto[ih] * normHisto[ih]) / (p2[it] * p2[it]);
+            final double totEnt = term * ((entBack * entObj) > 0.0 ? Math.log(entBack * entObj) : 0.0);
+            if (totEnt > maxEnt) {
+                maxEnt = totEnt;
+                threshold = it;
+            }
+        }
+        int tStar3 = threshold;
+
+        int tmp;
+        if (tStar2 < tStar1) { tmp = tStar1; tStar1 = tStar2; tStar2 = tmp; }
+        if (tStar3 < tStar2) { tmp = tStar2; tStar2 = tStar3; tStar3 = tmp; }
+        if (tStar2 < tStar1) { tmp = tStar1; tStar1 = tStar2; tStar2 = tmp; }
+
+        final int beta1, beta2, beta3;
+        if (Math.abs(tStar1 - tStar2) <= 5) {
+            if (Math.abs(tStar2 - tStar3) <= 5) {
+                beta1 = 1; beta2 = 2; beta3 = 1;
+            } else {
+                beta1 = 0; beta2 = 1; beta3 = 3;
+            }
+        } else {
+            if (Math.abs(tStar2 - tStar3) <= 5) {
+                beta1 = 3; beta2 = 1; beta3 = 0;
+            } else {
+                beta1 = 1; beta2 = 2; beta3 = 1;
+            }
+        }
+        final double omega = p1[tStar3] - p1[tStar1];
+        return (int) (tStar1 * (p1[tStar1] + 0.25 * omega * beta1)
+                + 0.25 * tStar2 * omega * beta2
+                + tStar3 * (p2[tStar3] + 0.25 * omega * beta3));
+    }
+
+    private static int shanbhag(int[] data) {
+        // Shanbhag (1994) information-measure thresholding.
+        final int n = data.length;
+        final double[] normHisto = normalized(data);
+        final double[] p1 = new double[n];
+        final double[] p2 = new double[n];
+        cumulative(normHisto, p1, p2);
+        final int firstBin = firstNonZero(p1);
+        final int lastBin = lastNonZero(p2, firstBin);
+
+        int threshold = -1;
+        double minEnt = Double.MAX_VALUE;
+        for (int it = firstBin; it <= lastBin; it++) {
+            double entBack = 0.0;
+            double term = 0.5 / p1[it];
+            for (int ih = 1; ih <= it; ih++) {
+                entBack -= normHisto[ih] * Math.log(1.0 - term * p1[ih - 1]);
+            }
+            entBack *= term;
+
+            double entObj = 0.0;
+            term = 0.5 / p2[it];
+            for (int ih = it + 1; ih < n; ih++) {
+                entObj -= normHisto[ih] * Math.log(1.0 - term * p2[ih]);
+            }
+            entObj *= term;
+
+            final double totEnt = Math.abs(entBack - entObj);
+            if (totEnt < minEnt) {
+                minEnt = totEnt;
+                threshold = it;
+            }
+        }
+        return threshold;
+    }
+
+    private static int triangle(int[] histogram) {
+        // Zack, Rogers & Latt (1977), using the longer tail side of the peak.
+        final int n = histogram.length;
+        final int[] data = histogram.clone();
+        int min = 0, dmax = 0, max = 0, min2 = 0;
+        for (int i = 0; i < n; i++) {
+            if (data[i] > 0) {
+                min = i;
+                break;
+            }
+        }
+        if (min > 0) min--;
+        for (int i = n - 1; i > 0; i--) {
+            if (data[i] > 0) {
+                min2 = i;
+                break;
+            }
+        }
+        if (min2 < n - 1) min2++;
+        for (int i = 0; i < n; i++) {
+            if (data[i] > dmax) {
+                max = i;
+                dmax = data[i];
+            }
+        }
+
+        boolean inverted = false;
+        if ((max - min) < (min2 - max)) {
+            inverted = true;
+            for (int left = 0, right = n - 1; left < right; left++, right--) {
+                final int temp = data[left];
+                data[left] = data[right];
+                data[right] = temp;
+            }
+            min = n - 1 - min2;
+            max = n - 1 - max;
+        }
+        if (min == max) {
+            return min;
+        }
+
+        double nx = data[max];
+        double ny = min - max;
+        double d = Math.sqrt(nx * nx + ny * ny);
+        nx /= d;
+        ny /= d;
+        d = nx * min + ny * data[min];
+
+        int split = min;
+        double splitDistance = 0;
+        for (int i = min + 1; i <= max; i++) {
+            final double newDistance = nx * i + ny * data[i] - d;
+            if (newDistance > splitDistance) {
+                split = i;
+                splitDistance = newDistance;
+            }
+        }
+        split--;
+        return inverted ? (n - 1 - split) : split;
+    }
+
+    private static int yen(int[] data) {
+        // Yen, Chang & Chang (1995) maximum correlation criterion.
+        final int n = data.length;
+        final double[] normHisto = normalized(data);
+        final double[] p1 = new double[n];
+        final double[] p1Sq = new double[n];
+        final double[] p2Sq = new double[n];
+
+        p1[0] = normHisto[0];
+        for (int ih = 1; ih < n; ih++) p1[ih] = p1[ih - 1] + normHisto[ih];
+        p1Sq[0] = normHisto[0] * normHisto[0];
+        for (int ih = 1; ih < n; ih++) p1Sq[ih] = p1Sq[ih - 1] + normHisto[ih] * normHisto[ih];
+        p2Sq[n - 1] = 0.0;
+        for (int ih = n - 2; ih >= 0; ih--) p2Sq[ih] = p2Sq[ih + 1] + normHisto[ih + 1] * normHisto[ih + 1];
+
+        int threshold = -1;
+        double maxCrit = Double.MIN_VALUE;
+        for (int it = 0; it < n; it++) {
+            final double crit = -1.0 * ((p1Sq[it] * p2Sq[it]) > 0.0 ? Math.log(p1Sq[it] * p2Sq[it]) : 0.0)
+                    + 2 * ((p1[it] * (1.0 - p1[it])) > 0.0 ? Math.log(p1[it] * (1.0 - p1[it])) : 0.0);
+            if (crit > maxCrit) {
+                maxCrit = crit;
+                threshold = it;
+            }
+        }
+        return threshold;
+    }
+
+    private static double[] normalized(int[] data) {
+        double total = 0;
+        for (int count : data) total += count;
+        final double[] norm = new double[data.length];
+        for (int i = 0; i < data.length; i++) norm[i] = data[i] / total;
+        return norm;
+    }
+
+    private static void cumulative(double[] normHisto, double[] p1, double[] p2) {
+        p1[0] = normHisto[0];
+        p2[0] = 1.0 - p1[0];
+        for (int ih = 1; ih < normHisto.length; ih++) {
+            p1[ih] = p1[ih - 1] + normHisto[ih];
+            p2[ih] = 1.0 - p1[ih];
+        }
+    }
+
+    private static int firstNonZero(double[] p1) {
+        for (int ih = 0; ih < p1.length; ih++) {
+            if (!(Math.abs(p1[ih]) < DBL_EPSILON)) return ih;
+        }
+        return 0;
+    }
+
+    private static int lastNonZero(double[] p2, int firstBin) {
+        for (int ih = p2.length - 1; ih >= firstBin; ih--) {
+            if (!(Math.abs(p2[ih]) < DBL_EPSILON)) return ih;
+        }
+        return p2.length - 1;
+    }
+}
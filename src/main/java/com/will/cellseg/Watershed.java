@@ -0,0 +1,369 @@
+package com.will.cellseg;
+
+import ij.plugin.filter.EDM;
+import ij.plugin.filter.MaximumFinder;
+import ij.process.Blitter;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Watershed splitting of touching objects in a binary mask: ImageJ's Process &gt; Binary
+ * &gt; Watershed ({@link #splitLikeImageJ}), and an in-project distance-transform
+ * watershed ({@link #split}) whose EDT runs in parallel.
+ *
+ * <p>Seeds are maxima of the EDT that stand out from everything they connect to by more
+ * than {@code tolerance} (ImageJ uses 0.5). Seeds are flooded downhill with a bucket
+ * queue, and wherever two basins meet the lower pixel of each touching pair is cleared,
+ * giving a one pixel line that separates the objects in 8-connectivity.
+ */
+public final class Watershed {
+
+    private Watershed() {}
+
+    /** Seed tolerance used by ImageJ's binary Watershed. */
+    public static final double DEFAULT_TOLERANCE = 0.5;
+
+    /** Which watershed splits the mask, with UI labels. */
+    public enum Method {
+        /** ImageJ's EDM and MaximumFinder, as Binary &gt; Watershed runs them. */
+        IMAGEJ("ImageJ (Binary > Watershed)"),
+        /**
+         * {@link #split}; parallel EDT, but its seeds do not yet match ImageJ's on real
+         * masks (53 objects where ImageJ finds 60 on the reference plane), so opt-in only.
+         */
+        EDT("Distance transform (parallel, experimental)");
+
+        public final String label;
+
+        Method(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        /** Unknown or missing labels fall back to ImageJ's watershed. */
+        public static Method fromLabel(String s) {
+            if (s == null) return IMAGEJ;
+            for (Method m : values()) {
+                if (m.label.equalsIgnoreCase(s.trim())) return m;
+            }
+            return IMAGEJ;
+        }
+    }
+
+    // Queue resolution: distances are bucketed in 1/16 px steps.
+    private static final int BUCKETS_PER_PIXEL = 16;
+
+    private static final int[] DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+    private static final int[] DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+
+    /**
+     * Splits the mask in place exactly as Binary &gt; Watershed does on a mask with
+     * nonzero foreground (cut pixels are set to 0), with {@code tolerance} in place of
+     * its fixed 0.5. Serial; safe to call from several threads at once.
+     */
+    public static void splitLikeImageJ(byte[] mask, int w, int h, double tolerance) {
+        if (mask == null || mask.length != w * h) {
+            throw new IllegalArgumentException("mask must be length w*h");
+        }
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("tolerance must be >= 0");
+        }
+        final ByteProcessor ip = new ByteProcessor(w, h, mask);
+        final FloatProcessor edm = new EDM().makeFloatEDM(ip, 0, false);
+        final ByteProcessor segmented = new MaximumFinder().findMaxima(edm, tolerance,
+                ImageProcessor.NO_THRESHOLD, MaximumFinder.SEGMENTED, false, true);
+        if (segmented != null) ip.copyBits(segmented, 0, 0, Blitter.AND);
+    }
+
+    /**
+     * Splits the mask in place (nonzero = foreground; cut pixels are set to 0) and
+     * returns the number of basins. The EDT runs on {@code pool}; the flooding is serial.
+     */
+    public static int split(byte[] mask, int w, int h, double tolerance, ForkJoinPool pool) {
+        final float[] edt = DistanceTransform.edt(mask, w, h, false, pool);
+        final int[] labels = new int[w * h];
+        final int basins = label(mask, edt, w, h, tolerance, labels);
+        cutLines(mask, edt, labels, w, h);
+        return basins;
+    }
+
+    /**
+     * Labels every foreground pixel with its basin (1..n, background 0) and returns n.
+     * {@code labels} must be length w*h.
+     */
+    public static int label(byte[] mask, float[] edt, int w, int h, double tolerance, int[] labels) {
+        if (mask == null || edt == null || labels == null
+                || mask.length != w * h || edt.length != w * h || labels.length != w * h) {
+            throw new IllegalArgumentException("mask, edt and labels must be length w*h");
+        }
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("tolerance must be >= 0");
+        }
+        Arrays.fill(labels, 0);
+        final int basins = findSeeds(mask, edt, w, h, (float) tolerance, labels);
+        flood(mask, edt, w, h, labels);
+        return basins;
+    }
+
+    /**
+     * Marks seed plateaus with labels 1..n, following MaximumFinder: candidates are taken
+     * highest first, and one is kept only if flooding down to {@code value - tolerance}
+     * meets neither a higher pixel nor the area of a maximum already kept.
+     */
+    private static int findSeeds(byte[] mask, float[] edt, int w, int h, float tolerance, int[] labels) {
+        final int n = w * h;
+        final int[] order = sortedForeground(mask, edt, n);
+        final float[] height = ridgeHeights(mask, edt, w, h);
+
+        // Per-pixel state: bit 0 = claimed by a kept maximum's area, bit 1 = already
+        // ruled out as a candidate (equal to, or inside the area of, an earlier one).
+        final byte[] state = new byte[n];
+        final int[] visitMark = new int[n];
+        int visit = 0;
+        IntStack area = new IntStack();
+        int next = 0;
+
+        for (int oi = 0; oi < order.length; oi++) {
+            final int start = order[oi];
+            if (state[start] != 0) continue;
+            if (hasHigherNeighbour(mask, edt, w, h, start, edt[start])) continue;
+            final float v0 = height[start];
+
+            visit++;
+            area.clear();
+            area.push(start);
+            visitMark[start] = visit;
+            boolean isMax = true;
+            for (int ai = 0; ai < area.size; ai++) {
+                final int p = area.data[ai];
+                final int x = p % w;
+                final int y = p / w;
+                for (int k = 0; k < 8; k++) {
+                    final int xx = x + DX[k];
+                    final int yy = y + DY[k];
+                    if (xx < 0 || yy < 0 || xx >= w || yy >= h) continue;
+                    final int q = yy * w + xx;
+                    if (mask[q] == 0 || visitMark[q] == visit) continue;
+                    final float v = height[q];
+                    if (v > v0 || (state[q] & 1) != 0) {
+                        isMax = false;
+                        break;
+                    }
+                    if (v >= v0 - tolerance) {
+                        visitMark[q] = visit;
+                        area.push(q);
+                    }
+                }
+                if (!isMax) break;
+            }
+
+            if (isMax) {
+                next++;
+                for (int ai = 0; ai < area.size; ai++) {
+                    final int p = area.data[ai];
+                    state[p] |= 3;
+                    // The seed itself is the plateau at the maximum's height.
+                    if (edt[p] == edt[start]) labels[p] = next;
+                }
+            } else {
+                for (int ai = 0; ai < area.size; ai++) {
+                    final int p = area.data[ai];
+                    if (edt[p] == edt[start]) state[p] |= 2;
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * EDT values corrected to the height of the ridge through each pixel, as ImageJ's
+     * MaximumFinder does for EDMs. A ridge pixel's grid value understates the ridge
+     * between two pixel centres, which otherwise splits elongated objects into several
+     * maxima; the estimate is capped by each neighbour pair plus the step to it.
+     */
+    private static float[] ridgeHeights(byte[] mask, float[] edt, int w, int h) {
+        final float[] out = edt.clone();
+        final float sqrt2 = (float) Math.sqrt(2.0);
+        // Opposite neighbour pairs: N/S, NE/SW, E/W, SE/NW.
+        final int[] dA = {-w, -w + 1, 1, w + 1};
+        final int[] dB = {w, w - 1, -1, -w - 1};
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1; x < w - 1; x++) {
+                final int p = y * w + x;
+                final float v = edt[p];
+                if (mask[p] == 0 || v == 0f) continue;
+                float trueHeight = v + 0.5f * sqrt2;
+                boolean ridgeOrMax = false;
+                for (int d = 0; d < 4; d++) {
+                    final float v1 = edt[p + dA[d]];
+                    final float v2 = edt[p + dB[d]];
+                    float hd;
+                    if (v >= v1 && v >= v2) {
+                        ridgeOrMax = true;
+                        hd = (v1 + v2) / 2f;
+                    } else {
+                        hd = Math.min(v1, v2);
+                    }
+                    hd += (d % 2 == 0) ? 1f : sqrt2;
+                    if (trueHeight > hd) trueHeight = hd;
+                }
+                if (ridgeOrMax) out[p] = trueHeight;
+            }
+        }
+        return out;
+    }
+
+    private static boolean hasHigherNeighbour(byte[] mask, float[] edt, int w, int h, int p, float v0) {
+        final int x = p % w;
+        final int y = p / w;
+        for (int k = 0; k < 8; k++) {
+            final int xx = x + DX[k];
+            final int yy = y + DY[k];
+            if (xx < 0 || yy < 0 || xx >= w || yy >= h) continue;
+            final int q = yy * w + xx;
+            if (mask[q] != 0 && edt[q] > v0) return true;
+        }
+        return false;
+    }
+
+    /** Grows labels downhill from the seeds, highest distance first, in 8-connectivity. */
+    private static void flood(byte[] mask, float[] edt, int w, int h, int[] labels) {
+        final int n = w * h;
+        float max = 0f;
+        for (int i = 0; i < n; i++) {
+            if (mask[i] != 0 && edt[i] > max && edt[i] != Float.MAX_VALUE) max = edt[i];
+        }
+        final IntStack[] buckets = new IntStack[bucket(max) + 1];
+        final boolean[] queued = new boolean[n];
+        int top = -1;
+
+        for (int p = 0; p < n; p++) {
+            if (labels[p] == 0) continue;
+            top = Math.max(top, enqueueNeighbours(mask, edt, w, h, p, labels, queued, buckets));
+        }
+
+        while (top >= 0) {
+            final IntStack bucket = buckets[top];
+            if (bucket == null || bucket.size == 0) {
+                top--;
+                continue;
+            }
+            final int p = bucket.pop();
+            labels[p] = uphillLabel(mask, edt, w, h, p, labels);
+            top = Math.max(top, enqueueNeighbours(mask, edt, w, h, p, labels, queued, buckets));
+        }
+    }
+
+    /** Queues unlabelled foreground neighbours of p; returns the highest bucket used or -1. */
+    private static int enqueueNeighbours(byte[] mask, float[] edt, int w, int h, int p, int[] labels,
+                                         boolean[] queued, IntStack[] buckets) {
+        final int x = p % w;
+        final int y = p / w;
+        int highest = -1;
+        for (int k = 0; k < 8; k++) {
+            final int xx = x + DX[k];
+            final int yy = y + DY[k];
+            if (xx < 0 || yy < 0 || xx >= w || yy >= h) continue;
+            final int q = yy * w + xx;
+            if (mask[q] == 0 || labels[q] != 0 || queued[q]) continue;
+            queued[q] = true;
+            final int b = Math.min(buckets.length - 1, bucket(edt[q]));
+            if (buckets[b] == null) buckets[b] = new IntStack();
+            buckets[b].push(q);
+            if (b > highest) highest = b;
+        }
+        return highest;
+    }
+
+    /** Label of the highest labelled neighbour, so basins grow along the steepest path. */
+    private static int uphillLabel(byte[] mask, float[] edt, int w, int h, int p, int[] labels) {
+        final int x = p % w;
+        final int y = p / w;
+        int best = 0;
+        float bestValue = Float.NEGATIVE_INFINITY;
+        for (int k = 0; k < 8; k++) {
+            final int xx = x + DX[k];
+            final int yy = y + DY[k];
+            if (xx < 0 || yy < 0 || xx >= w || yy >= h) continue;
+            final int q = yy * w + xx;
+            if (labels[q] > 0 && edt[q] > bestValue) {
+                best = labels[q];
+                bestValue = edt[q];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Clears one pixel of every 8-adjacent pair from different basins: the one with the
+     * lower distance, ties going to the higher label. Every such pair loses a pixel, so
+     * the remaining basins never touch.
+     */
+    private static void cutLines(byte[] mask, float[] edt, int[] labels, int w, int h) {
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                final int p = y * w + x;
+                final int lp = labels[p];
+                if (lp == 0) continue;
+                for (int k = 0; k < 8; k++) {
+                    final int xx = x + DX[k];
+                    final int yy = y + DY[k];
+                    if (xx < 0 || yy < 0 || xx >= w || yy >= h) continue;
+                    final int q = yy * w + xx;
+                    final int lq = labels[q];
+                    if (lq == 0 || lq == lp) continue;
+                    if (edt[q] > edt[p] || (edt[q] == edt[p] && lq < lp)) {
+                        mask[p] = 0;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Foreground pixel indices sorted by EDT, highest first. */
+    private static int[] sortedForeground(byte[] mask, float[] edt, int n) {
+        int count = 0;
+        for (int i = 0; i < n; i++) if (mask[i] != 0) count++;
+        // Positive floats order like their bit patterns; pack bits and index into a long.
+        final long[] keys = new long[count];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (mask[i] != 0) keys[j++] = ((long) Float.floatToIntBits(edt[i]) << 32) | i;
+        }
+        Arrays.sort(keys);
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) order[i] = (int) keys[count - 1 - i];
+        return order;
+    }
+
+    private static int bucket(float v) {
+        return (int) (v * BUCKETS_PER_PIXEL);
+    }
+
+    /** Growable int stack; used for flood areas and queue buckets. */
+    private static final class IntStack {
+        int[] data = new int[16];
+        int size;
+
+        void push(int v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        int pop() {
+            return data[--size];
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
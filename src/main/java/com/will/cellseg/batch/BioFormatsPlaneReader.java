@@ -1,17 +1,35 @@
 package com.will.cellseg.batch;
 
 import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import java.awt.image.ColorModel;
 import java.io.File;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
 import loci.formats.ImageReader;
+import loci.formats.Memoizer;
 import loci.plugins.BF;
 import loci.plugins.in.ImporterOptions;
 
 public class BioFormatsPlaneReader implements InputResolver.MetadataProvider {
 
+    /** Open readers kept per thread; the least recently used one is closed beyond this. */
+    private static final int OPEN_READERS_PER_THREAD = 4;
+
     public static class BioFormatsUnavailableException extends RuntimeException {
         public BioFormatsUnavailableException(String message, Throwable cause) {
             super(message, cause);
@@ -30,10 +48,69 @@ public class BioFormatsPlaneReader implements InputResolver.MetadataProvider {
         }
     }
 
-    private final Map<String, FileMetadata> cache = new HashMap<String, FileMetadata>();
+    /**
+     * How the importer presents one channel of a series: calibration, LUT and whether it
+     * autoscales the display range. Taken from the first plane opened through
+     * {@code BF.openImagePlus} and the options it was opened with, then applied to raw
+     * planes read with {@code openBytes}.
+     * Null {@link #processorType} means the importer converts the pixels in some way the
+     * raw path does not reproduce (signed, RGB, 32-bit int...), so it keeps being used.
+     */
+    private static final class PlaneTemplate {
+        private final Class<? extends ImageProcessor> processorType;
+        private final int width;
+        private final int height;
+        private final Calibration calibration;
+        private final ColorModel colorModel;
+        private final boolean autoscale;
+        private final double displayMin;
+        private final double displayMax;
+
+        private PlaneTemplate(Class<? extends ImageProcessor> processorType, ImagePlus imp, boolean autoscale) {
+            final ImageProcessor ip = imp.getProcessor();
+            this.processorType = processorType;
+            this.width = imp.getWidth();
+            this.height = imp.getHeight();
+            this.calibration = imp.getCalibration().copy();
+            this.colorModel = ip.getColorModel();
+            this.displayMin = ip.getMin();
+            this.displayMax = ip.getMax();
+            // Without autoscaling the importer shows every plane over the same range.
+            this.autoscale = autoscale;
+        }
+    }
+
+    private final Map<String, FileMetadata> cache = new ConcurrentHashMap<String, FileMetadata>();
+    private final Map<String, PlaneTemplate> templates = new ConcurrentHashMap<String, PlaneTemplate>();
+    // Readers are not thread-safe, so each thread keeps its own; all are tracked for close().
+    private final Set<IFormatReader> openReaders =
+            Collections.newSetFromMap(new ConcurrentHashMap<IFormatReader, Boolean>());
+    private final ThreadLocal<Map<String, IFormatReader>> threadReaders = new ThreadLocal<Map<String, IFormatReader>>() {
+        @Override
+        protected Map<String, IFormatReader> initialValue() {
+            return new LinkedHashMap<String, IFormatReader>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, IFormatReader> eldest) {
+                    if (size() <= OPEN_READERS_PER_THREAD) return false;
+                    closeReader(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+    };
+    // Raw bytes of wider pixel types, decoded from here into pooled arrays.
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+    private final File memoDir = new File(System.getProperty("java.io.tmpdir"), "cellseg-bfmemo");
+    private final PlaneCache planeCache;
 
     public BioFormatsPlaneReader() {
+        this(0L);
+    }
+
+    /** @param cacheBytes budget of the plane cache every {@code openPlane} goes through; 0 = none */
+    public BioFormatsPlaneReader(long cacheBytes) {
         ensureAvailable();
+        planeCache = new PlaneCache(cacheBytes);
     }
 
     private void ensureAvailable() {
@@ -64,6 +141,94 @@ public class BioFormatsPlaneReader implements InputResolver.MetadataProvider {
     }
 
     public ImagePlus openPlane(File file, int seriesIndex, int channelIndex, int timeIndex) throws Exception {
+        return openPlane(file, seriesIndex, 0, channelIndex, timeIndex, null);
+    }
+
+    public ImagePlus openPlane(File file, int seriesIndex, int channelIndex, int timeIndex, PlaneBufferPool buffers)
+            throws Exception {
+        return openPlane(file, seriesIndex, 0, channelIndex, timeIndex, buffers);
+    }
+
+    public ImagePlus openPlane(File file, int seriesIndex, int zIndex, int channelIndex, int timeIndex)
+            throws Exception {
+        return openPlane(file, seriesIndex, zIndex, channelIndex, timeIndex, null);
+    }
+
+    /**
+     * One plane as the Bio-Formats importer would open it. The first plane of each
+     * channel goes through the importer; later ones are read with {@code openBytes} from
+     * a reader this thread keeps open, so the container header is not parsed again for
+     * every plane.
+     *
+     * <p>Planes the raw path can produce are kept in the reader's {@link PlaneCache}, so
+     * asking for the same plane again does not touch the file.
+     *
+     * <p>With {@code buffers}, raw planes are decoded into pixel arrays taken from the
+     * pool; hand the image back with {@link PlaneBufferPool#release(ImagePlus)} once done.
+     */
+    public ImagePlus openPlane(File file, int seriesIndex, int zIndex, int channelIndex, int timeIndex,
+                               PlaneBufferPool buffers) throws Exception {
+        final String key = file.getAbsolutePath() + "|s=" + seriesIndex + "|c=" + channelIndex;
+        PlaneTemplate template = templates.get(key);
+        if (template == null) {
+            final ImporterOptions options = importOptions(file, seriesIndex, zIndex, channelIndex, timeIndex);
+            final ImagePlus imp = importPlane(options, file, seriesIndex, zIndex, channelIndex, timeIndex);
+            template = new PlaneTemplate(rawProcessorType(file, seriesIndex, imp), imp, options.isAutoscale());
+            templates.put(key, template);
+            if (template.processorType != null) {
+                // The raw path reproduces these pixels, so later hits can stand in for them.
+                planeCache.put(planeKey(key, zIndex, timeIndex), imp.getProcessor().getPixels());
+            }
+            return imp;
+        }
+        if (template.processorType == null) {
+            return importPlane(importOptions(file, seriesIndex, zIndex, channelIndex, timeIndex),
+                    file, seriesIndex, zIndex, channelIndex, timeIndex);
+        }
+
+        final String planeKey = planeKey(key, zIndex, timeIndex);
+        final Object cached = planeCache.get(planeKey, buffers);
+        final ImageProcessor ip;
+        if (cached != null) {
+            ip = processor(cached, template.width, template.height);
+        } else {
+            final IFormatReader reader = readerFor(file);
+            reader.setSeries(seriesIndex);
+            final int no = reader.getIndex(zIndex, channelIndex, timeIndex);
+            ip = buffers != null
+                    ? readProcessor(reader, no, buffers)
+                    : decode(reader.openBytes(no), reader.getSizeX(), reader.getSizeY(),
+                            reader.getPixelType(), reader.isLittleEndian(), null);
+            planeCache.put(planeKey, ip.getPixels());
+        }
+        ip.setColorModel(template.colorModel);
+        if (template.autoscale) {
+            setDataRange(ip);
+        } else {
+            ip.setMinAndMax(template.displayMin, template.displayMax);
+        }
+        final ImagePlus imp = new ImagePlus(planeTitle(file, seriesIndex, zIndex, channelIndex, timeIndex), ip);
+        imp.setCalibration(template.calibration.copy());
+        return imp;
+    }
+
+    public PlaneCache getPlaneCache() {
+        return planeCache;
+    }
+
+    /** Closes every reader this instance opened, on any thread. */
+    public void close() {
+        for (IFormatReader reader : openReaders) {
+            closeReader(reader);
+        }
+    }
+
+    /**
+     * Importer options for one plane. Everything not set here, autoscaling included,
+     * keeps the importer's saved defaults, as it would for a user opening the file.
+     */
+    static ImporterOptions importOptions(File file, int seriesIndex, int zIndex, int channelIndex, int timeIndex)
+            throws Exception {
         // Bio-Formats can read arbitrarily large multidimensional containers; here we
         // restrict it to a single plane so the batch loop only loads what it needs.
         final ImporterOptions options = new ImporterOptions();
@@ -73,13 +238,17 @@ public class BioFormatsPlaneReader implements InputResolver.MetadataProvider {
         options.clearSeries();
         options.setSeriesOn(seriesIndex, true);
 
-        options.setZBegin(seriesIndex, 0);
-        options.setZEnd(seriesIndex, 0);
+        options.setZBegin(seriesIndex, zIndex);
+        options.setZEnd(seriesIndex, zIndex);
         options.setCBegin(seriesIndex, channelIndex);
         options.setCEnd(seriesIndex, channelIndex);
         options.setTBegin(seriesIndex, timeIndex);
         options.setTEnd(seriesIndex, timeIndex);
+        return options;
+    }
 
+    private ImagePlus importPlane(ImporterOptions options, File file, int seriesIndex, int zIndex, int channelIndex,
+                                  int timeIndex) throws Exception {
         final ImagePlus[] imps = BF.openImagePlus(options);
         if (imps == null || imps.length == 0 || imps[0] == null) {
             throw new FormatException("Bio-Formats returned no image for " + file.getName()
@@ -87,39 +256,186 @@ public class BioFormatsPlaneReader implements InputResolver.MetadataProvider {
         }
 
         final ImagePlus imp = imps[0];
-        imp.setTitle(file.getName() + "_S" + seriesIndex + "_C" + channelIndex + "_T" + timeIndex);
+        imp.setTitle(planeTitle(file, seriesIndex, zIndex, channelIndex, timeIndex));
         return imp;
     }
 
+    private static String planeKey(String channelKey, int zIndex, int timeIndex) {
+        return channelKey + "|z=" + zIndex + "|t=" + timeIndex;
+    }
+
+    private static ImageProcessor processor(Object pixels, int w, int h) {
+        if (pixels instanceof byte[]) return new ByteProcessor(w, h, (byte[]) pixels);
+        if (pixels instanceof short[]) return new ShortProcessor(w, h, (short[]) pixels, null);
+        return new FloatProcessor(w, h, (float[]) pixels, null);
+    }
+
+    private static String planeTitle(File file, int seriesIndex, int zIndex, int channelIndex, int timeIndex) {
+        return file.getName() + "_S" + seriesIndex + (zIndex != 0 ? "_Z" + zIndex : "")
+                + "_C" + channelIndex + "_T" + timeIndex;
+    }
+
+    /**
+     * Processor class the raw path produces for this series, or null if the importer
+     * did not produce that class itself (pixel types it converts, RGB, stacks).
+     */
+    private Class<? extends ImageProcessor> rawProcessorType(File file, int seriesIndex, ImagePlus imported)
+            throws Exception {
+        final IFormatReader reader = readerFor(file);
+        reader.setSeries(seriesIndex);
+        if (reader.getRGBChannelCount() != 1 || imported.getStackSize() != 1) {
+            return null;
+        }
+        final Class<? extends ImageProcessor> type;
+        switch (reader.getPixelType()) {
+            case FormatTools.UINT8:
+                type = ByteProcessor.class;
+                break;
+            case FormatTools.UINT16:
+                type = ShortProcessor.class;
+                break;
+            case FormatTools.FLOAT:
+                type = FloatProcessor.class;
+                break;
+            default:
+                return null;
+        }
+        return type.equals(imported.getProcessor().getClass()) ? type : null;
+    }
+
+    /**
+     * Plane {@code no} decoded into pixel arrays from {@code buffers}. 8-bit planes are
+     * read straight into the pooled array; wider types go through this thread's scratch
+     * bytes and are decoded from there.
+     */
+    private ImageProcessor readProcessor(IFormatReader reader, int no, PlaneBufferPool buffers) throws Exception {
+        final int w = reader.getSizeX();
+        final int h = reader.getSizeY();
+        final int pixelType = reader.getPixelType();
+        if (pixelType == FormatTools.UINT8) {
+            final byte[] pixels = buffers.bytes(w * h);
+            reader.openBytes(no, pixels);
+            return new ByteProcessor(w, h, pixels);
+        }
+        final int size = w * h * FormatTools.getBytesPerPixel(pixelType);
+        byte[] raw = scratch.get();
+        if (raw == null || raw.length < size) {
+            raw = new byte[size];
+            scratch.set(raw);
+        }
+        reader.openBytes(no, raw);
+        return decode(raw, w, h, pixelType, reader.isLittleEndian(), buffers);
+    }
+
+    /**
+     * The first {@code w * h} pixels of {@code raw}, in the given Bio-Formats pixel type
+     * and byte order, as a processor over arrays from {@code buffers} (null allocates;
+     * an 8-bit plane of exactly {@code w * h} bytes is then used as is).
+     */
+    static ImageProcessor decode(byte[] raw, int w, int h, int pixelType, boolean littleEndian,
+                                 PlaneBufferPool buffers) {
+        final int length = w * h;
+        final ByteBuffer buffer = ByteBuffer.wrap(raw).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        switch (pixelType) {
+            case FormatTools.UINT8: {
+                final byte[] pixels;
+                if (buffers != null) {
+                    pixels = buffers.bytes(length);
+                    System.arraycopy(raw, 0, pixels, 0, length);
+                } else {
+                    pixels = raw.length == length ? raw : Arrays.copyOf(raw, length);
+                }
+                return new ByteProcessor(w, h, pixels);
+            }
+            case FormatTools.UINT16: {
+                final short[] pixels = buffers != null ? buffers.shorts(length) : new short[length];
+                buffer.asShortBuffer().get(pixels);
+                return new ShortProcessor(w, h, pixels, null);
+            }
+            case FormatTools.FLOAT: {
+                final float[] pixels = buffers != null ? buffers.floats(length) : new float[length];
+                buffer.asFloatBuffer().get(pixels);
+                return new FloatProcessor(w, h, pixels, null);
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported pixel type: " + FormatTools.getPixelTypeString(pixelType));
+        }
+    }
+
+    /**
+     * Display range set to the data range as {@code getStats()} reports it, without the
+     * 64K-bin histogram that would allocate for every 16-bit plane.
+     */
+    private static void setDataRange(ImageProcessor ip) {
+        if (ip instanceof ShortProcessor) {
+            ip.resetMinAndMax();
+        } else if (ip instanceof ByteProcessor) {
+            int min = 255;
+            int max = 0;
+            for (byte b : (byte[]) ip.getPixels()) {
+                final int v = b & 0xFF;
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            ip.setMinAndMax(min, max);
+        } else {
+            // Float statistics skip infinities, which resetMinAndMax would not.
+            final ImageStatistics data = ip.getStats();
+            ip.setMinAndMax(data.min, data.max);
+        }
+    }
+
+    /** This thread's open reader for {@code file}, opening (and memoizing) it if needed. */
+    private IFormatReader readerFor(File file) throws Exception {
+        final String path = file.getAbsolutePath();
+        final Map<String, IFormatReader> readers = threadReaders.get();
+        IFormatReader reader = readers.get(path);
+        if (reader != null && openReaders.contains(reader)) {
+            return reader;
+        }
+        // The memo keeps the parsed header on local disk, so other threads (and later
+        // batches) opening the same container skip the full parse.
+        reader = new Memoizer(new ImageReader(), Memoizer.DEFAULT_MINIMUM_ELAPSED, memoDir);
+        try {
+            reader.setId(path);
+        } catch (Exception e) {
+            reader.close();
+            throw e;
+        }
+        openReaders.add(reader);
+        readers.put(path, reader);
+        return reader;
+    }
+
+    private void closeReader(IFormatReader reader) {
+        if (!openReaders.remove(reader)) return;
+        try {
+            reader.close();
+        } catch (Exception ignored) {
+        }
+    }
+
     private FileMetadata getOrLoadMetadata(File file) throws Exception {
         final String path = file.getAbsolutePath();
         FileMetadata md = cache.get(path);
         if (md != null) return md;
 
-        // `ImageReader` exposes metadata without materializing pixels, which keeps the
-        // input-resolution phase cheap compared with opening full images.
-        final IFormatReader reader = new ImageReader();
-        try {
-            reader.setId(path);
-            final int seriesCount = reader.getSeriesCount();
-            final SeriesMetadata[] series = new SeriesMetadata[seriesCount];
-            for (int s = 0; s < seriesCount; s++) {
-                reader.setSeries(s);
-                series[s] = new SeriesMetadata(
-                        reader.getSizeX(),
-                        reader.getSizeY(),
-                        reader.getSizeC(),
-                        reader.getSizeT()
-                );
-            }
-            md = new FileMetadata(seriesCount, series);
-            cache.put(path, md);
-            return md;
-        } finally {
-            try {
-                reader.close();
-            } catch (Exception ignored) {
-            }
+        // The reader only exposes metadata here; no pixels are read. It stays open so
+        // plane reads on this thread reuse it.
+        final IFormatReader reader = readerFor(file);
+        final int seriesCount = reader.getSeriesCount();
+        final SeriesMetadata[] series = new SeriesMetadata[seriesCount];
+        for (int s = 0; s < seriesCount; s++) {
+            reader.setSeries(s);
+            series[s] = new SeriesMetadata(
+                    reader.getSizeX(),
+                    reader.getSizeY(),
+                    reader.getSizeC(),
+                    reader.getSizeT()
+            );
         }
+        md = new FileMetadata(seriesCount, series);
+        cache.put(path, md);
+        return md;
     }
 }
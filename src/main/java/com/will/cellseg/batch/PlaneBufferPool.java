@@ -0,0 +1,102 @@
+package com.will.cellseg.batch;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pixel arrays of recurring plane sizes, handed back once a plane is done with so the
+ * next read of the same size and type decodes into them instead of allocating. A long
+ * time-lapse reads thousands of identical planes; without this each one is a fresh
+ * multi-megabyte array that lives just long enough to be measured.
+ *
+ * <p>Arrays are kept per element type and length, at most {@code arraysPerShape} of
+ * each; extra ones are left to the garbage collector. Safe for use from any thread.
+ */
+public final class PlaneBufferPool {
+
+    private final int arraysPerShape;
+    private final ConcurrentHashMap<String, ArrayDeque<Object>> free =
+            new ConcurrentHashMap<String, ArrayDeque<Object>>();
+
+    public PlaneBufferPool(int arraysPerShape) {
+        if (arraysPerShape < 1) throw new IllegalArgumentException("arraysPerShape must be >= 1");
+        this.arraysPerShape = arraysPerShape;
+    }
+
+    public byte[] bytes(int length) {
+        final Object pixels = take(byte[].class, length);
+        return pixels != null ? (byte[]) pixels : new byte[length];
+    }
+
+    public short[] shorts(int length) {
+        final Object pixels = take(short[].class, length);
+        return pixels != null ? (short[]) pixels : new short[length];
+    }
+
+    public float[] floats(int length) {
+        final Object pixels = take(float[].class, length);
+        return pixels != null ? (float[]) pixels : new float[length];
+    }
+
+    /**
+     * Closes {@code imp} and keeps its pixels for reuse. Only for images nothing else
+     * refers to any more: the next plane read overwrites the array. The processor is
+     * detached from the array first, so a stray reference to the image fails instead of
+     * reading another plane's pixels.
+     */
+    public void release(ImagePlus imp) {
+        if (imp == null) return;
+        final ImageProcessor ip = imp.getStackSize() == 1 ? imp.getProcessor() : null;
+        imp.changes = false;
+        imp.close();
+        if (ip != null) {
+            final Object pixels = ip.getPixels();
+            ip.setPixels(null);
+            release(pixels);
+        }
+    }
+
+    /**
+     * Keeps a byte[], short[] or float[] for reuse; anything else is ignored. Releasing
+     * an array that is already kept does nothing, so a duplicate release before the
+     * array is taken again cannot hand it to two readers.
+     */
+    public void release(Object pixels) {
+        final int length;
+        if (pixels instanceof byte[]) {
+            length = ((byte[]) pixels).length;
+        } else if (pixels instanceof short[]) {
+            length = ((short[]) pixels).length;
+        } else if (pixels instanceof float[]) {
+            length = ((float[]) pixels).length;
+        } else {
+            return;
+        }
+        final ArrayDeque<Object> shelf = shelf(pixels.getClass(), length);
+        synchronized (shelf) {
+            if (shelf.size() < arraysPerShape && !shelf.contains(pixels)) {
+                shelf.push(pixels);
+            }
+        }
+    }
+
+    private Object take(Class<?> type, int length) {
+        final ArrayDeque<Object> shelf = shelf(type, length);
+        synchronized (shelf) {
+            return shelf.poll();
+        }
+    }
+
+    private ArrayDeque<Object> shelf(Class<?> type, int length) {
+        final String key = type.getSimpleName() + length;
+        ArrayDeque<Object> shelf = free.get(key);
+        if (shelf == null) {
+            shelf = new ArrayDeque<Object>(arraysPerShape);
+            final ArrayDeque<Object> raced = free.putIfAbsent(key, shelf);
+            if (raced != null) shelf = raced;
+        }
+        return shelf;
+    }
+}
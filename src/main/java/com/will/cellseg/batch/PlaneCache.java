@@ -0,0 +1,115 @@
+package com.will.cellseg.batch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded pixels of recently read planes, so a plane asked for again (a RICM shared by
+ * several pairs, a re-read after a stop-point, a preview before segmentation) comes
+ * from memory instead of the container. Planes are evicted least recently used first
+ * once their pixels exceed the byte budget; a budget of 0 caches nothing.
+ *
+ * <p>The cache keeps its own copies and hands out copies, so callers may modify, close
+ * or recycle what they get. Copies are made under the cache's lock, which keeps an
+ * evicted array from being reused while another thread still reads it; copying a plane
+ * costs far less than reading it. Arrays of evicted planes are reused for new entries.
+ */
+public final class PlaneCache {
+
+    private final long byteBudget;
+    private final LinkedHashMap<String, Object> planes = new LinkedHashMap<String, Object>(16, 0.75f, true);
+    // Arrays of evicted planes, so a full cache takes in new planes without allocating.
+    private final PlaneBufferPool spare = new PlaneBufferPool(2);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PlaneCache(long byteBudget) {
+        if (byteBudget < 0) throw new IllegalArgumentException("byteBudget must be >= 0");
+        this.byteBudget = byteBudget;
+    }
+
+    public boolean isEnabled() {
+        return byteBudget > 0;
+    }
+
+    /**
+     * A copy of the pixels cached under {@code key}, in an array from {@code buffers} if
+     * given, or null if the plane is not cached.
+     */
+    public synchronized Object get(String key, PlaneBufferPool buffers) {
+        if (!isEnabled()) return null;
+        final Object pixels = planes.get(key);
+        if (pixels == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy(pixels, buffers);
+    }
+
+    /** Caches a copy of {@code pixels} under {@code key}; planes over the whole budget are not kept. */
+    public synchronized void put(String key, Object pixels) {
+        final long size = sizeOf(pixels);
+        if (!isEnabled() || size == 0 || size > byteBudget) return;
+        final Object replaced = planes.remove(key);
+        if (replaced != null) {
+            bytes -= sizeOf(replaced);
+            spare.release(replaced);
+        }
+        final Iterator<Map.Entry<String, Object>> eldest = planes.entrySet().iterator();
+        while (bytes + size > byteBudget && eldest.hasNext()) {
+            final Object evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= sizeOf(evicted);
+            evictions++;
+            spare.release(evicted);
+        }
+        planes.put(key, copy(pixels, spare));
+        bytes += size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static Object copy(Object pixels, PlaneBufferPool buffers) {
+        if (pixels instanceof byte[]) {
+            final byte[] src = (byte[]) pixels;
+            final byte[] dst = buffers != null ? buffers.bytes(src.length) : new byte[src.length];
+            System.arraycopy(src, 0, dst, 0, src.length);
+            return dst;
+        }
+        if (pixels instanceof short[]) {
+            final short[] src = (short[]) pixels;
+            final short[] dst = buffers != null ? buffers.shorts(src.length) : new short[src.length];
+            System.arraycopy(src, 0, dst, 0, src.length);
+            return dst;
+        }
+        final float[] src = (float[]) pixels;
+        final float[] dst = buffers != null ? buffers.floats(src.length) : new float[src.length];
+        System.arraycopy(src, 0, dst, 0, src.length);
+        return dst;
+    }
+
+    private static long sizeOf(Object pixels) {
+        if (pixels instanceof byte[]) return ((byte[]) pixels).length;
+        if (pixels instanceof short[]) return 2L * ((short[]) pixels).length;
+        if (pixels instanceof float[]) return 4L * ((float[]) pixels).length;
+        return 0L;
+    }
+}
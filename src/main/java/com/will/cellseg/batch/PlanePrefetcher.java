@@ -0,0 +1,277 @@
+package com.will.cellseg.batch;
+
+import ij.ImagePlus;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reader stage of the batch: walks the whole batch plan, every plane of every pair in
+ * the order the pairs will ask for them, and reads ahead of the consumers on a shared
+ * reader pool. So the next pair's RICM plane is already being read while the current
+ * pair measures its last frames, and compute does not wait on disk between pairs.
+ *
+ * <p>At most {@code depth} planes are read (or being read) but not yet taken, and a new
+ * read only starts while the planes held plus the reads in flight stay under the byte
+ * budget. Reads in flight are counted at the size of the largest plane seen so far, so
+ * until the first read ahead has finished only one runs at a time; a plane larger than
+ * the whole budget is still read, one at a time.
+ *
+ * <p>Each pair takes its planes from its own {@link Sequence}, in order. A plane the pool
+ * has not started yet is read by the consumer itself, so a busy or full window never
+ * stalls it; without a pool every read happens that way. A pair that will not take its
+ * remaining planes must close its sequence, or they keep their place in the window.
+ */
+public final class PlanePrefetcher {
+
+    private final ExecutorService readers;
+    private final int depth;
+    private final long byteBudget;
+    /** Where planes read ahead but dropped hand back their pixels; null only closes them. */
+    private final PlaneBufferPool buffers;
+    /** Planned planes not yet considered for reading ahead, in plan order. */
+    private final ArrayDeque<Read> upcoming = new ArrayDeque<Read>();
+    private final List<Sequence> sequences = new ArrayList<Sequence>();
+    /** Entries read ahead, or being read ahead, and not yet taken or dropped. */
+    private int ahead;
+    private int reading;
+    private long heldBytes;
+    private long largestPlane;
+    private boolean closed;
+
+    /** One planned plane. Guarded by the prefetcher. */
+    private final class Read extends FutureTask<ImagePlus> {
+        private final Callable<ImagePlus> source;
+        private boolean prefetched;
+        private boolean taken;
+        /** Set once a thread runs it; a read that has started is never cancelled. */
+        private boolean started;
+        private long bytes;
+
+        Read(Callable<ImagePlus> source) {
+            super(source);
+            this.source = source;
+        }
+
+        @Override
+        public void run() {
+            if (start(this)) super.run();
+        }
+
+        @Override
+        protected void done() {
+            finished(this);
+        }
+    }
+
+    /** The planes of one consumer, taken in the order they were planned. */
+    public final class Sequence {
+        // Slots are cleared as planes are taken, so nothing here keeps a plane alive.
+        private final Read[] reads;
+        private int next;
+
+        private Sequence(Read[] reads) {
+            this.reads = reads;
+        }
+
+        public synchronized boolean hasNext() {
+            return next < reads.length;
+        }
+
+        /** The next plane, waiting for its read if it is still running. */
+        public ImagePlus next() throws Exception {
+            final Read read;
+            synchronized (this) {
+                if (!hasNext()) throw new NoSuchElementException();
+                read = reads[next];
+                reads[next++] = null;
+            }
+            if (!take(read)) {
+                // Not read ahead: read it here. The cancelled entry may still sit in the
+                // plan queue, so it must not be the one holding the plane.
+                read.cancel(false);
+                return read.source.call();
+            }
+            try {
+                // Runs it here if the pool has not started it yet; no-op otherwise.
+                read.run();
+                return read.get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+            }
+        }
+
+        /** Drops the planes not taken yet; those read, or still being read, are closed. */
+        public void close() {
+            final List<Read> dropped = new ArrayList<Read>();
+            synchronized (this) {
+                for (; next < reads.length; next++) {
+                    dropped.add(reads[next]);
+                    reads[next] = null;
+                }
+            }
+            drop(dropped);
+        }
+    }
+
+    /**
+     * @param readers    pool the reads ahead run on; null reads every plane on demand
+     * @param depth      planes that may be read ahead of the consumers
+     * @param byteBudget bytes the planes read ahead may take
+     */
+    public PlanePrefetcher(ExecutorService readers, int depth, long byteBudget) {
+        this(readers, depth, byteBudget, null);
+    }
+
+    /** @param buffers pool that the pixels of planes read ahead but never taken go back to */
+    public PlanePrefetcher(ExecutorService readers, int depth, long byteBudget, PlaneBufferPool buffers) {
+        if (depth < 0) throw new IllegalArgumentException("depth must be >= 0");
+        if (byteBudget < 1) throw new IllegalArgumentException("byteBudget must be >= 1");
+        this.readers = readers;
+        this.depth = readers != null ? depth : 0;
+        this.byteBudget = byteBudget;
+        this.buffers = buffers;
+    }
+
+    /** Reads one plane of {@code file}; the unit a {@link Sequence} is planned in. */
+    public static Callable<ImagePlus> plane(
+            final BioFormatsPlaneReader reader,
+            final File file,
+            final int seriesIndex,
+            final int channelIndex,
+            final int timeIndex,
+            final PlaneBufferPool buffers) {
+        return new Callable<ImagePlus>() {
+            @Override
+            public ImagePlus call() throws Exception {
+                return reader.openPlane(file, seriesIndex, channelIndex, timeIndex, buffers);
+            }
+        };
+    }
+
+    /**
+     * Appends the planes of the next consumer to the plan. Reading ahead reaches them
+     * once every earlier planned plane has been read ahead, taken or dropped.
+     */
+    public synchronized Sequence add(List<? extends Callable<ImagePlus>> reads) {
+        final Read[] planned = new Read[reads.size()];
+        for (int i = 0; i < planned.length; i++) {
+            planned[i] = new Read(reads.get(i));
+            upcoming.add(planned[i]);
+        }
+        final Sequence sequence = new Sequence(planned);
+        sequences.add(sequence);
+        fill();
+        return sequence;
+    }
+
+    /** Stops reading ahead and drops every plane not taken yet. */
+    public void close() {
+        final List<Sequence> open;
+        synchronized (this) {
+            closed = true;
+            upcoming.clear();
+            open = new ArrayList<Sequence>(sequences);
+        }
+        for (Sequence sequence : open) {
+            sequence.close();
+        }
+    }
+
+    /** Marks {@code read} taken; true if it was read ahead. */
+    private synchronized boolean take(Read read) {
+        final boolean prefetched = release(read);
+        fill();
+        return prefetched;
+    }
+
+    private void drop(List<Read> reads) {
+        final List<Read> started = new ArrayList<Read>();
+        synchronized (this) {
+            // All of them first, so refilling the window does not start any of them.
+            for (Read read : reads) {
+                release(read);
+            }
+            // Only reads no thread has started are cancelled: cancelling a running one
+            // would end its future early, so it would stop counting as in flight and
+            // its plane would never be closed. Those are waited for below instead.
+            for (Read read : reads) {
+                if (read.started) started.add(read);
+                else read.cancel(false);
+            }
+            fill();
+        }
+        for (Read read : started) {
+            try {
+                final ImagePlus imp = read.get();
+                if (imp == null) continue;
+                if (buffers != null) {
+                    buffers.release(imp);
+                } else {
+                    imp.changes = false;
+                    imp.close();
+                }
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /** Marks {@code read} started; false if it was cancelled or has already run. */
+    private synchronized boolean start(Read read) {
+        if (read.started || read.isDone()) return false;
+        read.started = true;
+        return true;
+    }
+
+    private boolean release(Read read) {
+        if (read.taken) return false;
+        read.taken = true;
+        if (!read.prefetched) return false;
+        ahead--;
+        heldBytes -= read.bytes;
+        read.bytes = 0;
+        return true;
+    }
+
+    private synchronized void finished(Read read) {
+        if (!read.prefetched) return;
+        reading--;
+        if (!read.taken && !read.isCancelled()) {
+            try {
+                final ImagePlus imp = read.get();
+                read.bytes = imp != null ? (long) imp.getSizeInBytes() : 0L;
+            } catch (Exception e) {
+                // The consumer gets the failure when it takes the plane.
+            }
+            heldBytes += read.bytes;
+            largestPlane = Math.max(largestPlane, read.bytes);
+        }
+        fill();
+    }
+
+    private void fill() {
+        while (!closed && !upcoming.isEmpty() && ahead < depth && withinBudget()) {
+            final Read read = upcoming.poll();
+            if (read.taken) continue;
+            read.prefetched = true;
+            ahead++;
+            reading++;
+            readers.execute(read);
+        }
+    }
+
+    /** Room for one more read ahead; the first one always fits, so consumers never starve. */
+    private boolean withinBudget() {
+        if (ahead == 0) return true;
+        // No plane size known yet: a second read could already overshoot the budget.
+        if (largestPlane == 0) return reading == 0 && heldBytes == 0;
+        return heldBytes + (reading + 1) * largestPlane <= byteBudget;
+    }
+}
@@ -0,0 +1,228 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * {@link BitMask} against a pixel-by-pixel reference on boolean planes, at widths around
+ * the 64-bit word size, one-pixel images, and with the outside of the image as background
+ * or foreground.
+ */
+public class BitMaskTest {
+
+    private static final int[][] SIZES = {
+            {1, 1}, {1, 7}, {7, 1}, {2, 2}, {63, 3}, {64, 4}, {65, 5}, {127, 2}, {128, 3}, {130, 6}, {200, 9},
+    };
+
+    @Test
+    public void packsAndUnpacksEveryPixel() {
+        final Random random = new Random(7);
+        for (int[] size : SIZES) {
+            final int w = size[0];
+            final int h = size[1];
+            final byte[] pixels = randomBytes(random, w * h, 50);
+            final BitMask m = BitMask.fromBytes(pixels, w, h);
+            long expectedCount = 0;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    assertEquals(pixels[y * w + x] != 0, m.get(x, y));
+                    if (pixels[y * w + x] != 0) expectedCount++;
+                }
+            }
+            assertEquals(expectedCount, m.count());
+            assertArrayEquals(as255(pixels), m.toBytes(null));
+
+            m.set(w - 1, h - 1, true);
+            assertTrue(m.get(w - 1, h - 1));
+            m.set(0, 0, false);
+            assertFalse(m.get(0, 0));
+        }
+    }
+
+    @Test
+    public void setOperationsKeepBitsPastTheRowWidthClear() {
+        final Random random = new Random(11);
+        for (int[] size : SIZES) {
+            final int w = size[0];
+            final int h = size[1];
+            final byte[] a = randomBytes(random, w * h, 40);
+            final byte[] b = randomBytes(random, w * h, 60);
+            final byte[] or = new byte[w * h];
+            final byte[] and = new byte[w * h];
+            final byte[] andNot = new byte[w * h];
+            final byte[] not = new byte[w * h];
+            for (int i = 0; i < w * h; i++) {
+                or[i] = (byte) (a[i] != 0 || b[i] != 0 ? 255 : 0);
+                and[i] = (byte) (a[i] != 0 && b[i] != 0 ? 255 : 0);
+                andNot[i] = (byte) (a[i] != 0 && b[i] == 0 ? 255 : 0);
+                not[i] = (byte) (a[i] == 0 ? 255 : 0);
+            }
+            final BitMask ma = BitMask.fromBytes(a, w, h);
+            final BitMask mb = BitMask.fromBytes(b, w, h);
+            assertEquals(BitMask.fromBytes(or, w, h), ma.copy().or(mb));
+            assertEquals(BitMask.fromBytes(and, w, h), ma.copy().and(mb));
+            assertEquals(BitMask.fromBytes(andNot, w, h), ma.copy().andNot(mb));
+            // not() and fill(true) must leave the unused high bits zero, or counts drift.
+            final BitMask inverted = ma.copy().not();
+            assertEquals(BitMask.fromBytes(not, w, h), inverted);
+            assertEquals(w * h - ma.count(), inverted.count());
+            assertEquals((long) w * h, new BitMask(w, h).fill(true).count());
+            assertEquals(0, ma.copy().fill(false).count());
+        }
+    }
+
+    @Test
+    public void morphologyMatchesReference() {
+        final Random random = new Random(5);
+        final ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (int[] size : SIZES) {
+                final int w = size[0];
+                final int h = size[1];
+                for (int density : new int[] {15, 50, 85}) {
+                    final byte[] pixels = randomBytes(random, w * h, density);
+                    for (BitMask.Shape shape : BitMask.Shape.values()) {
+                        for (boolean outside : new boolean[] {false, true}) {
+                            for (int iterations = 1; iterations <= 3; iterations++) {
+                                final String what = w + "x" + h + " " + shape + " outside=" + outside
+                                        + " n=" + iterations;
+                                final boolean[] src = toBooleans(pixels);
+                                for (ForkJoinPool p : new ForkJoinPool[] {null, pool}) {
+                                    assertSame(what + " dilate", morph(src, w, h, true, iterations, shape, outside),
+                                            BitMask.fromBytes(pixels, w, h).dilate(iterations, shape, outside, p));
+                                    assertSame(what + " erode", morph(src, w, h, false, iterations, shape, outside),
+                                            BitMask.fromBytes(pixels, w, h).erode(iterations, shape, outside, p));
+                                    assertSame(what + " close", closeOrOpen(src, w, h, true, iterations, shape, outside),
+                                            BitMask.fromBytes(pixels, w, h).close(iterations, shape, outside, p));
+                                    assertSame(what + " open", closeOrOpen(src, w, h, false, iterations, shape, outside),
+                                            BitMask.fromBytes(pixels, w, h).open(iterations, shape, outside, p));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void closingPadsAcrossWordBoundaries() {
+        // Margins of 63, 64 and 65 pixels shift the plane by whole and partial words.
+        final Random random = new Random(3);
+        for (int[] size : new int[][] {{1, 1}, {3, 2}, {65, 2}}) {
+            final int w = size[0];
+            final int h = size[1];
+            final byte[] pixels = randomBytes(random, w * h, 50);
+            for (int iterations : new int[] {63, 64, 65}) {
+                for (boolean outside : new boolean[] {false, true}) {
+                    final String what = w + "x" + h + " outside=" + outside + " n=" + iterations;
+                    assertSame(what, closeOrOpen(toBooleans(pixels), w, h, true, iterations, BitMask.Shape.CROSS, outside),
+                            BitMask.fromBytes(pixels, w, h).close(iterations, BitMask.Shape.CROSS, outside, null));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shapeLabelsRoundTripAndDefaultToSquare() {
+        for (BitMask.Shape s : BitMask.Shape.values()) {
+            assertEquals(s, BitMask.Shape.fromLabel(s.label));
+        }
+        assertEquals(BitMask.Shape.SQUARE, BitMask.Shape.fromLabel(null));
+        assertEquals(BitMask.Shape.SQUARE, BitMask.Shape.fromLabel("octagon"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMismatchedSizes() {
+        new BitMask(64, 2).or(new BitMask(65, 2));
+    }
+
+    /** Reference dilation/erosion: every iteration reads the previous plane only. */
+    private static boolean[] morph(boolean[] src, int w, int h, boolean dilate, int iterations,
+                                   BitMask.Shape shape, boolean outside) {
+        boolean[] cur = src.clone();
+        for (int it = 0; it < iterations; it++) {
+            final boolean[] next = new boolean[w * h];
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    boolean v = !dilate;
+                    for (int dy = -1; dy <= 1; dy++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            if (shape == BitMask.Shape.CROSS && dx != 0 && dy != 0) continue;
+                            final int nx = x + dx;
+                            final int ny = y + dy;
+                            final boolean n = nx < 0 || ny < 0 || nx >= w || ny >= h ? outside : cur[ny * w + nx];
+                            v = dilate ? v || n : v && n;
+                        }
+                    }
+                    next[y * w + x] = v;
+                }
+            }
+            cur = next;
+        }
+        return cur;
+    }
+
+    /** Reference closing/opening: pad by the iteration count, dilate and erode, crop back. */
+    private static boolean[] closeOrOpen(boolean[] src, int w, int h, boolean close, int iterations,
+                                         BitMask.Shape shape, boolean outside) {
+        final int pw = w + 2 * iterations;
+        final int ph = h + 2 * iterations;
+        boolean[] padded = new boolean[pw * ph];
+        for (int y = 0; y < ph; y++) {
+            for (int x = 0; x < pw; x++) {
+                final int sx = x - iterations;
+                final int sy = y - iterations;
+                padded[y * pw + x] = sx < 0 || sy < 0 || sx >= w || sy >= h ? outside : src[sy * w + sx];
+            }
+        }
+        padded = morph(padded, pw, ph, close, iterations, shape, outside);
+        padded = morph(padded, pw, ph, !close, iterations, shape, outside);
+        final boolean[] out = new boolean[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) out[y * w + x] = padded[(y + iterations) * pw + x + iterations];
+        }
+        return out;
+    }
+
+    private static void assertSame(String what, boolean[] expected, BitMask actual) {
+        for (int y = 0; y < actual.height; y++) {
+            for (int x = 0; x < actual.width; x++) {
+                assertEquals(what + " at (" + x + "," + y + ")", expected[y * actual.width + x], actual.get(x, y));
+            }
+        }
+        // Bits past the row width stay clear, so count() sees only real pixels.
+        long count = 0;
+        for (boolean b : expected) if (b) count++;
+        assertEquals(what + " count", count, actual.count());
+    }
+
+    private static byte[] randomBytes(Random random, int n, int percentForeground) {
+        final byte[] out = new byte[n];
+        for (int i = 0; i < n; i++) {
+            // Any nonzero value is foreground, not only 255.
+            if (random.nextInt(100) < percentForeground) out[i] = (byte) (1 + random.nextInt(255));
+        }
+        return out;
+    }
+
+    private static boolean[] toBooleans(byte[] pixels) {
+        final boolean[] out = new boolean[pixels.length];
+        for (int i = 0; i < pixels.length; i++) out[i] = pixels[i] != 0;
+        return out;
+    }
+
+    private static byte[] as255(byte[] pixels) {
+        final byte[] out = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; i++) out[i] = pixels[i] != 0 ? (byte) 255 : 0;
+        return out;
+    }
+}
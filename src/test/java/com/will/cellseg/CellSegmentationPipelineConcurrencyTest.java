@@ -0,0 +1,163 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+/**
+ * Many planes segmented at once, as the batch does with parallel pairs, must give
+ * exactly the labels, ROIs and measurements of one-at-a-time runs.
+ */
+public class CellSegmentationPipelineConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int PLANES = 12;
+    private static final int ROUNDS = 3;
+    private static final int MEASUREMENTS = Measurements.AREA | Measurements.MEAN | Measurements.STD_DEV
+            | Measurements.MIN_MAX | Measurements.CENTROID | Measurements.PERIMETER | Measurements.SHAPE_DESCRIPTORS;
+
+    @Test
+    public void parallelRunsMatchSerialRuns() throws Exception {
+        stress(params(false, 1));
+    }
+
+    @Test
+    public void parallelLabelImageFirstRunsMatchSerialRuns() throws Exception {
+        stress(params(true, 1));
+    }
+
+    @Test
+    public void parallelRunsWithPlanePoolsMatchSerialRuns() throws Exception {
+        // Each run also splits its own stages over a pool, so pools are shared too.
+        stress(params(false, 3));
+    }
+
+    private static void stress(final CellSegmentationParams p) throws Exception {
+        final List<ImagePlus> planes = new ArrayList<ImagePlus>();
+        final List<Outcome> expected = new ArrayList<Outcome>();
+        for (int i = 0; i < PLANES; i++) {
+            final ImagePlus imp = syntheticPlane(i);
+            planes.add(imp);
+            expected.add(new Outcome(CellSegmentationPipeline.run(imp, p)));
+            assertTrue("plane " + i + " found no cells", expected.get(i).rois.length > 0);
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Integer> order = new ArrayList<Integer>();
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < PLANES; i++) order.add(i);
+            }
+            Collections.shuffle(order, new Random(18));
+
+            final List<Future<Outcome>> results = new ArrayList<Future<Outcome>>();
+            for (final int i : order) {
+                results.add(pool.submit(new Callable<Outcome>() {
+                    @Override
+                    public Outcome call() {
+                        return new Outcome(CellSegmentationPipeline.run(planes.get(i), p));
+                    }
+                }));
+            }
+            for (int k = 0; k < order.size(); k++) {
+                expected.get(order.get(k)).assertSame("plane " + order.get(k), results.get(k).get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static CellSegmentationParams params(boolean labelImageFirst, int threads) {
+        return new CellSegmentationParams(20, "Default", false, false, false, false, false,
+                EdgeDetector.SOBEL, MEASUREMENTS, "None", false, false,
+                EdgeFilter.Magnitude.EUCLIDEAN, threads, null, Watershed.DEFAULT_TOLERANCE, Watershed.Method.IMAGEJ,
+                labelImageFirst);
+    }
+
+    /** 16-bit noisy background with bright, partly touching cells of varying size. */
+    private static ImagePlus syntheticPlane(int seed) {
+        final int w = 160;
+        final int h = 120;
+        final Random random = new Random(seed);
+        final short[] pixels = new short[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) (1000 + random.nextGaussian() * 20);
+        }
+        final int cells = 6 + random.nextInt(8);
+        for (int c = 0; c < cells; c++) {
+            final int cx = random.nextInt(w);
+            final int cy = random.nextInt(h);
+            final int r = 6 + random.nextInt(12);
+            final int level = 2500 + random.nextInt(2000);
+            for (int y = Math.max(0, cy - r); y < Math.min(h, cy + r + 1); y++) {
+                for (int x = Math.max(0, cx - r); x < Math.min(w, cx + r + 1); x++) {
+                    if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r) {
+                        pixels[y * w + x] = (short) (level + random.nextGaussian() * 40);
+                    }
+                }
+            }
+        }
+        return new ImagePlus("plane" + seed, new ShortProcessor(w, h, pixels, null));
+    }
+
+    /** What a run produced, copied out so later runs cannot change it. */
+    private static final class Outcome {
+        final Object labels;
+        final Polygon[] rois;
+        final String[] headings;
+        final double[][] columns;
+
+        Outcome(CellSegmentationResult result) {
+            labels = result.labels.getProcessor().convertToFloatProcessor().getPixels();
+            final Roi[] r = result.getRois();
+            rois = new Polygon[r.length];
+            for (int i = 0; i < r.length; i++) rois[i] = r[i].getPolygon();
+            final ResultsTable rt = result.resultsTable;
+            headings = rt.getHeadings();
+            columns = new double[headings.length][rt.size()];
+            for (int c = 0; c < headings.length; c++) {
+                for (int row = 0; row < rt.size(); row++) {
+                    columns[c][row] = rt.getValue(headings[c], row);
+                }
+            }
+        }
+
+        void assertSame(String what, Outcome actual) {
+            assertArrayEquals(what + " labels", (float[]) labels, (float[]) actual.labels, 0f);
+            assertEquals(what + " ROI count", rois.length, actual.rois.length);
+            for (int i = 0; i < rois.length; i++) {
+                assertArrayEquals(what + " ROI " + i + " x", xs(rois[i]), xs(actual.rois[i]));
+                assertArrayEquals(what + " ROI " + i + " y", ys(rois[i]), ys(actual.rois[i]));
+            }
+            assertArrayEquals(what + " headings", headings, actual.headings);
+            for (int c = 0; c < headings.length; c++) {
+                assertArrayEquals(what + " " + headings[c], columns[c], actual.columns[c], 0.0);
+            }
+        }
+
+        private static int[] xs(Polygon p) {
+            return Arrays.copyOf(p.xpoints, p.npoints);
+        }
+
+        private static int[] ys(Polygon p) {
+            return Arrays.copyOf(p.ypoints, p.npoints);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.will.cellseg;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH comparison of {@link ConnectedComponents#label} (two-pass union-find) with the
+ * boxed-queue BFS it replaced, kept here as {@link #bfs}. Both compute the same per-component
+ * stats. Run {@link #main} from the test classpath, e.g.
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.will.cellseg.ConnectedComponentsBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectedComponentsBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    /** "cells": sparse discs; "noise": dense random pixels with many small components. */
+    @Param({"cells", "noise"})
+    public String mask;
+
+    @Param({"false", "true"})
+    public boolean eightConnected;
+
+    private byte[] pix;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(9);
+        pix = new byte[size * size];
+        if ("noise".equals(mask)) {
+            for (int i = 0; i < pix.length; i++) {
+                if (random.nextInt(100) < 45) pix[i] = (byte) 255;
+            }
+            return;
+        }
+        final int cells = size * size / 2000;
+        for (int n = 0; n < cells; n++) {
+            final int cx = random.nextInt(size);
+            final int cy = random.nextInt(size);
+            final int r = 6 + random.nextInt(10);
+            for (int y = Math.max(0, cy - r); y < Math.min(size, cy + r + 1); y++) {
+                for (int x = Math.max(0, cx - r); x < Math.min(size, cx + r + 1); x++) {
+                    if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r) pix[y * size + x] = (byte) 255;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int unionFind() {
+        return ConnectedComponents.label(pix, size, size, eightConnected).count;
+    }
+
+    @Benchmark
+    public int unionFindStreaming() {
+        final int[] count = new int[1];
+        ConnectedComponents.forEachForegroundComponent(pix, size, size, eightConnected,
+                new ConnectedComponents.ComponentHandler() {
+                    @Override public void handle(ConnectedComponents.ComponentView c) {
+                        count[0] += c.area();
+                    }
+                });
+        return count[0];
+    }
+
+    @Benchmark
+    public long bfs() {
+        return bfs(pix, size, size, eightConnected);
+    }
+
+    /**
+     * The previous flood fill: one boxed ArrayDeque BFS per component, with the stats
+     * ConnectedComponents.Stats holds accumulated per pixel. Returns a checksum of them.
+     */
+    static long bfs(byte[] pix, int w, int h, boolean eightConnected) {
+        final boolean[] visited = new boolean[w * h];
+        final ArrayDeque<Integer> q = new ArrayDeque<>();
+        long checksum = 0;
+        for (int seed = 0; seed < pix.length; seed++) {
+            if (pix[seed] == 0 || visited[seed]) continue;
+            visited[seed] = true;
+            q.add(seed);
+            int area = 0;
+            int borderMask = 0;
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            long sumX = 0, sumY = 0;
+            while (!q.isEmpty()) {
+                final int p = q.removeFirst();
+                final int py = p / w;
+                final int px = p - py * w;
+                area++;
+                sumX += px;
+                sumY += py;
+                if (px < minX) minX = px;
+                if (py < minY) minY = py;
+                if (px > maxX) maxX = px;
+                if (py > maxY) maxY = py;
+                if (py == 0)     borderMask |= ConnectedComponents.TOP;
+                if (py == h - 1) borderMask |= ConnectedComponents.BOTTOM;
+                if (px == 0)     borderMask |= ConnectedComponents.LEFT;
+                if (px == w - 1) borderMask |= ConnectedComponents.RIGHT;
+
+                if (py > 0) visit(pix, visited, q, p - w);
+                if (py < h - 1) visit(pix, visited, q, p + w);
+                if (px > 0) visit(pix, visited, q, p - 1);
+                if (px < w - 1) visit(pix, visited, q, p + 1);
+                if (eightConnected) {
+                    if (py > 0 && px > 0) visit(pix, visited, q, p - w - 1);
+                    if (py > 0 && px < w - 1) visit(pix, visited, q, p - w + 1);
+                    if (py < h - 1 && px > 0) visit(pix, visited, q, p + w - 1);
+                    if (py < h - 1 && px < w - 1) visit(pix, visited, q, p + w + 1);
+                }
+            }
+            checksum += area + borderMask + minX + minY + maxX + maxY + sumX + sumY;
+        }
+        return checksum;
+    }
+
+    private static void visit(byte[] pix, boolean[] visited, ArrayDeque<Integer> q, int p) {
+        if (!visited[p] && pix[p] != 0) {
+            visited[p] = true;
+            q.add(p);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(ConnectedComponentsBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
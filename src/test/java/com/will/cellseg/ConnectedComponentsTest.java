@@ -0,0 +1,165 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tiled labeling must give the serial raster and stats for any pool size and tile height,
+ * including seams that cut a component into pieces joined only below or diagonally.
+ */
+public class ConnectedComponentsTest {
+
+    private static final int[] THREADS = {2, 3, 4, 7, 16};
+    private static final int[] MIN_ROWS = {1, 2, 3, RowBands.DEFAULT_MIN_ROWS};
+
+    @Test
+    public void serialLabelingMatchesFloodFill() {
+        final Random random = new Random(10);
+        for (int[] size : new int[][] {{1, 1}, {1, 40}, {40, 1}, {33, 29}, {90, 70}}) {
+            for (int density : new int[] {20, 45, 60}) {
+                final byte[] pix = random(random, size[0], size[1], density);
+                for (boolean eight : new boolean[] {false, true}) {
+                    assertArrayEquals(floodFill(pix, size[0], size[1], eight),
+                            ConnectedComponents.label(pix, size[0], size[1], eight).raster);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void uShapesCutBySeamsMatchSerial() {
+        // Each U's arms sit in upper tiles and only join in its base, rows further down;
+        // nested and inverted U's make seams merge labels in both directions.
+        final int w = 60;
+        final int h = 48;
+        final byte[] pix = new byte[w * h];
+        u(pix, w, 2, 0, 10, 30, false);
+        u(pix, w, 5, 0, 4, 24, false);
+        u(pix, w, 16, 3, 12, 40, true);
+        for (int k = 0; k < 6; k++) u(pix, w, 32 + k * 4, 0, 3, 6 + 7 * k, false);
+        // A staircase whose steps each start one row lower, joined at each step's left end.
+        for (int y = 0; y < h; y++) {
+            for (int x = 57 - y % 3; x < w; x++) pix[y * w + x] = (byte) 255;
+        }
+        assertTiledMatchesSerial(pix, w, h);
+    }
+
+    @Test
+    public void diagonalSeamConnectionsMatchSerial() {
+        // An X of one-pixel diagonals: every seam carries nothing but corner-to-corner
+        // links, so it is one component when 8-connected and one per pixel when 4-connected.
+        final int w = 41;
+        final int h = 41;
+        final byte[] pix = new byte[w * h];
+        for (int y = 0; y < h; y++) {
+            pix[y * w + y] = (byte) 255;
+            pix[y * w + (w - 1 - y)] = (byte) 255;
+        }
+        assertTiledMatchesSerial(pix, w, h);
+        assertEquals(1, ConnectedComponents.label(pix, w, h, true).count);
+        assertEquals(2 * h - 1, ConnectedComponents.label(pix, w, h, false).count);
+        for (boolean eight : new boolean[] {false, true}) {
+            assertArrayEquals(floodFill(pix, w, h, eight), ConnectedComponents.label(pix, w, h, eight).raster);
+        }
+    }
+
+    @Test
+    public void randomMasksMatchSerial() {
+        final Random random = new Random(11);
+        for (int[] size : new int[][] {{1, 64}, {64, 1}, {7, 96}, {100, 64}, {257, 130}}) {
+            for (int density : new int[] {10, 40, 55, 80}) {
+                assertTiledMatchesSerial(random(random, size[0], size[1], density), size[0], size[1]);
+            }
+        }
+    }
+
+    private static void assertTiledMatchesSerial(byte[] pix, int w, int h) {
+        for (boolean eight : new boolean[] {false, true}) {
+            final ConnectedComponents.Labels serial = ConnectedComponents.label(pix, w, h, eight);
+            for (int threads : THREADS) {
+                final ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    for (int minRows : MIN_ROWS) {
+                        final String what = w + "x" + h + " eight=" + eight + " threads=" + threads
+                                + " minRows=" + minRows;
+                        assertSame(what, serial, ConnectedComponents.label(pix, w, h, eight, pool, minRows));
+                    }
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    private static void assertSame(String what, ConnectedComponents.Labels expected, ConnectedComponents.Labels actual) {
+        assertEquals(what + " count", expected.count, actual.count);
+        assertArrayEquals(what + " raster", expected.raster, actual.raster);
+        for (int l = 1; l <= expected.count; l++) {
+            final ConnectedComponents.Stats e = expected.stats(l);
+            final ConnectedComponents.Stats a = actual.stats(l);
+            final String s = what + " label " + l;
+            assertEquals(s + " area", e.area, a.area);
+            assertEquals(s + " border", e.borderMask, a.borderMask);
+            assertEquals(s + " minX", e.minX, a.minX);
+            assertEquals(s + " minY", e.minY, a.minY);
+            assertEquals(s + " maxX", e.maxX, a.maxX);
+            assertEquals(s + " maxY", e.maxY, a.maxY);
+            assertEquals(s + " sumX", e.sumX, a.sumX);
+            assertEquals(s + " sumY", e.sumY, a.sumY);
+        }
+    }
+
+    /** Labels by breadth-first flood fill, numbered in raster order of each first pixel. */
+    private static int[] floodFill(byte[] pix, int w, int h, boolean eight) {
+        final int[] labels = new int[w * h];
+        final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        int next = 0;
+        for (int seed = 0; seed < pix.length; seed++) {
+            if (pix[seed] == 0 || labels[seed] != 0) continue;
+            labels[seed] = ++next;
+            queue.add(seed);
+            while (!queue.isEmpty()) {
+                final int p = queue.poll();
+                final int px = p % w;
+                final int py = p / w;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        if ((dx == 0 && dy == 0) || (!eight && dx != 0 && dy != 0)) continue;
+                        final int x = px + dx;
+                        final int y = py + dy;
+                        if (x < 0 || y < 0 || x >= w || y >= h) continue;
+                        final int q = y * w + x;
+                        if (pix[q] != 0 && labels[q] == 0) {
+                            labels[q] = next;
+                            queue.add(q);
+                        }
+                    }
+                }
+            }
+        }
+        return labels;
+    }
+
+    /** U of the given arm width: arms from row y0 down to y1, base on the last rows; inverted opens down. */
+    private static void u(byte[] pix, int w, int x0, int y0, int size, int y1, boolean inverted) {
+        for (int y = y0; y <= y1; y++) {
+            final boolean base = inverted ? y == y0 : y == y1;
+            for (int x = x0; x < x0 + size; x++) {
+                if (base || x == x0 || x == x0 + size - 1) pix[y * w + x] = (byte) 255;
+            }
+        }
+    }
+
+    private static byte[] random(Random random, int w, int h, int percentForeground) {
+        final byte[] pix = new byte[w * h];
+        for (int i = 0; i < pix.length; i++) {
+            if (random.nextInt(100) < percentForeground) pix[i] = (byte) 255;
+        }
+        return pix;
+    }
+}
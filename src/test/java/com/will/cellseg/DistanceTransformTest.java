@@ -0,0 +1,104 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/** {@link DistanceTransform#edt} against a brute-force nearest-background search. */
+public class DistanceTransformTest {
+
+    @Test
+    public void randomMasksMatchBruteForce() {
+        final Random random = new Random(8);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final int[][] sizes = {{1, 1}, {1, 9}, {9, 1}, {2, 2}, {7, 5}, {31, 17}, {64, 3}, {65, 40}};
+            for (int[] size : sizes) {
+                for (int density : new int[] {5, 50, 95}) {
+                    final byte[] mask = randomMask(random, size[0] * size[1], density);
+                    for (boolean edges : new boolean[] {false, true}) {
+                        assertMatches(mask, size[0], size[1], edges, null);
+                        assertMatches(mask, size[0], size[1], edges, pool);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void discsMatchBruteForce() {
+        // Large round objects exercise long parabola envelopes rather than noise.
+        final int w = 90;
+        final int h = 70;
+        final byte[] mask = new byte[w * h];
+        disc(mask, w, h, 30, 35, 22);
+        disc(mask, w, h, 60, 30, 18);
+        disc(mask, w, h, 88, 68, 10);
+        for (boolean edges : new boolean[] {false, true}) {
+            assertMatches(mask, w, h, edges, null);
+        }
+    }
+
+    @Test
+    public void allForegroundWithoutEdgesHasNoDistance() {
+        final byte[] mask = new byte[12];
+        Arrays.fill(mask, (byte) 255);
+        final float[] open = DistanceTransform.edt(mask, 4, 3, false, null);
+        for (float d : open) assertEquals(Float.MAX_VALUE, d, 0f);
+        final float[] closed = DistanceTransform.edt(mask, 4, 3, true, null);
+        assertEquals(1f, closed[0], 0f);
+        assertEquals(2f, closed[5], 0f);
+    }
+
+    private static void assertMatches(byte[] mask, int w, int h, boolean edgesAreBackground, ForkJoinPool pool) {
+        final float[] edt = DistanceTransform.edt(mask, w, h, edgesAreBackground, pool);
+        final float[] expected = bruteForce(mask, w, h, edgesAreBackground);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(w + "x" + h + " edges=" + edgesAreBackground + " at (" + (i % w) + "," + (i / w) + ")",
+                    expected[i], edt[i], 1e-4f * Math.max(1f, Math.min(expected[i], 1e6f)));
+        }
+    }
+
+    private static float[] bruteForce(byte[] mask, int w, int h, boolean edgesAreBackground) {
+        final float[] d = new float[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (mask[y * w + x] == 0) continue;
+                long best = Long.MAX_VALUE;
+                for (int by = 0; by < h; by++) {
+                    for (int bx = 0; bx < w; bx++) {
+                        if (mask[by * w + bx] != 0) continue;
+                        best = Math.min(best, (long) (bx - x) * (bx - x) + (long) (by - y) * (by - y));
+                    }
+                }
+                if (edgesAreBackground) {
+                    final long edge = Math.min(Math.min(x + 1, w - x), Math.min(y + 1, h - y));
+                    best = Math.min(best, edge * edge);
+                }
+                d[y * w + x] = best == Long.MAX_VALUE ? Float.MAX_VALUE : (float) Math.sqrt(best);
+            }
+        }
+        return d;
+    }
+
+    private static byte[] randomMask(Random random, int n, int percentForeground) {
+        final byte[] mask = new byte[n];
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(100) < percentForeground) mask[i] = (byte) 255;
+        }
+        return mask;
+    }
+
+    private static void disc(byte[] mask, int w, int h, int cx, int cy, int r) {
+        for (int y = Math.max(0, cy - r); y < Math.min(h, cy + r + 1); y++) {
+            for (int x = Math.max(0, cx - r); x < Math.min(w, cx + r + 1); x++) {
+                if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r) mask[y * w + x] = (byte) 255;
+            }
+        }
+    }
+}
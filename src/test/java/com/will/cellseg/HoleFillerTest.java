@@ -0,0 +1,206 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import ij.process.ByteProcessor;
+import ij.process.FloodFiller;
+import ij.process.ImageProcessor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * {@link HoleFiller} against the ImageJ chain it replaced: Canvas Size (1px pad),
+ * Close-, Canvas Size (crop), Fill Holes, Invert, Fill Holes, remove 4-connected
+ * components touching 3+ edges, OR. {@code IJ.run} needs a GUI, so the reference calls
+ * the same ImageJ code those commands run, with black background and one iteration.
+ */
+public class HoleFillerTest {
+
+    @Test
+    public void matchesOldChainOnRandomMasks() {
+        final Random random = new Random(6);
+        for (int n = 0; n < 200; n++) {
+            final int w = 1 + random.nextInt(40);
+            final int h = 1 + random.nextInt(40);
+            final double density = random.nextDouble();
+            final byte[] mask = new byte[w * h];
+            for (int i = 0; i < mask.length; i++) {
+                if (random.nextDouble() < density) mask[i] = (byte) 255;
+            }
+            assertMatches("random " + n + " " + w + "x" + h, mask, w, h);
+        }
+    }
+
+    @Test
+    public void matchesOldChainOnBlobsRingsAndEdgeCases() {
+        for (Mask m : shapes()) {
+            assertMatches(m.name, m.pixels, m.w, m.h);
+        }
+    }
+
+    private static void assertMatches(String name, byte[] mask, int w, int h) {
+        for (boolean outsideForeground : new boolean[] {false, true}) {
+            final byte[] expected = oldChain(mask, w, h, outsideForeground ? 255 : 0);
+            final byte[] actual = mask.clone();
+            HoleFiller.fillEdgeOpenHoles(actual, w, h, outsideForeground, HoleFiller.DEFAULT_MIN_BORDER_COUNT);
+            assertArrayEquals(name + " outsideForeground=" + outsideForeground, expected, actual);
+        }
+    }
+
+    // ---- reference: the old command chain -------------------------------------------
+
+    private static byte[] oldChain(byte[] mask, int w, int h, int padValue) {
+        // I1: pad by 1px with the background colour, Close-, crop back.
+        final ByteProcessor padded = new ByteProcessor(w + 2, h + 2);
+        padded.setValue(padValue);
+        padded.fill();
+        padded.insert(new ByteProcessor(w, h, binary(mask), null), 1, 1);
+        padded.dilate(1, 0);
+        padded.erode(1, 0);
+        padded.setRoi(1, 1, w, h);
+        final ImageProcessor i1 = padded.crop();
+
+        // I2 = Fill Holes(I1); I3 = Invert(I2); I4 = Fill Holes(I3).
+        final ImageProcessor i2 = i1.duplicate();
+        fillHoles(i2);
+        final ImageProcessor i4 = i2.duplicate();
+        i4.invert();
+        fillHoles(i4);
+
+        // I5: I4 without the 4-connected components touching 3+ edges.
+        final byte[] i5 = (byte[]) i4.getPixels();
+        removeBorderComponents(i5, w, h, 3);
+
+        final byte[] i2p = (byte[]) i2.getPixels();
+        final byte[] out = new byte[w * h];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = i2p[i] != 0 || i5[i] != 0 ? (byte) 255 : 0;
+        }
+        return out;
+    }
+
+    /** Binary.fill with foreground 255, background 0, as Fill Holes runs it. */
+    private static void fillHoles(ImageProcessor ip) {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final FloodFiller ff = new FloodFiller(ip);
+        ip.setColor(127);
+        for (int y = 0; y < height; y++) {
+            if (ip.getPixel(0, y) == 0) ff.fill(0, y);
+            if (ip.getPixel(width - 1, y) == 0) ff.fill(width - 1, y);
+        }
+        for (int x = 0; x < width; x++) {
+            if (ip.getPixel(x, 0) == 0) ff.fill(x, 0);
+            if (ip.getPixel(x, height - 1) == 0) ff.fill(x, height - 1);
+        }
+        final byte[] pixels = (byte[]) ip.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = pixels[i] == 127 ? 0 : (byte) 255;
+        }
+    }
+
+    private static void removeBorderComponents(byte[] pix, int w, int h, int minBorderCount) {
+        final boolean[] seen = new boolean[w * h];
+        final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        final List<Integer> component = new ArrayList<Integer>();
+        for (int start = 0; start < pix.length; start++) {
+            if (pix[start] == 0 || seen[start]) continue;
+            component.clear();
+            int edges = 0;
+            seen[start] = true;
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                final int i = queue.poll();
+                component.add(i);
+                final int x = i % w;
+                final int y = i / w;
+                if (x == 0) edges |= 1;
+                if (x == w - 1) edges |= 2;
+                if (y == 0) edges |= 4;
+                if (y == h - 1) edges |= 8;
+                if (x > 0) visit(pix, seen, queue, i - 1);
+                if (x < w - 1) visit(pix, seen, queue, i + 1);
+                if (y > 0) visit(pix, seen, queue, i - w);
+                if (y < h - 1) visit(pix, seen, queue, i + w);
+            }
+            if (Integer.bitCount(edges) >= minBorderCount) {
+                for (int i : component) pix[i] = 0;
+            }
+        }
+    }
+
+    private static void visit(byte[] pix, boolean[] seen, ArrayDeque<Integer> queue, int i) {
+        if (pix[i] != 0 && !seen[i]) {
+            seen[i] = true;
+            queue.add(i);
+        }
+    }
+
+    private static byte[] binary(byte[] mask) {
+        final byte[] out = new byte[mask.length];
+        for (int i = 0; i < mask.length; i++) {
+            out[i] = mask[i] != 0 ? (byte) 255 : 0;
+        }
+        return out;
+    }
+
+    // ---- test masks -------------------------------------------------------------------
+
+    private static final class Mask {
+        final String name;
+        final byte[] pixels;
+        final int w;
+        final int h;
+
+        Mask(String name, int w, int h) {
+            this.name = name;
+            this.pixels = new byte[w * h];
+            this.w = w;
+            this.h = h;
+        }
+
+        Mask rect(int x0, int y0, int x1, int y1, boolean on) {
+            for (int y = Math.max(0, y0); y < Math.min(h, y1); y++) {
+                for (int x = Math.max(0, x0); x < Math.min(w, x1); x++) {
+                    pixels[y * w + x] = on ? (byte) 255 : 0;
+                }
+            }
+            return this;
+        }
+
+        Mask ring(int cx, int cy, int r0, int r1) {
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    final int d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                    if (d2 >= r0 * r0 && d2 <= r1 * r1) pixels[y * w + x] = (byte) 255;
+                }
+            }
+            return this;
+        }
+    }
+
+    private static List<Mask> shapes() {
+        final List<Mask> masks = new ArrayList<Mask>();
+        masks.add(new Mask("empty", 17, 11));
+        masks.add(new Mask("full", 17, 11).rect(0, 0, 17, 11, true));
+        masks.add(new Mask("single pixel", 1, 1).rect(0, 0, 1, 1, true));
+        masks.add(new Mask("single row", 25, 1).rect(3, 0, 9, 1, true).rect(14, 0, 20, 1, true));
+        masks.add(new Mask("single column", 1, 25).rect(0, 2, 1, 12, true));
+        masks.add(new Mask("blob with hole", 30, 24).rect(5, 5, 20, 18, true).rect(9, 9, 14, 13, false));
+        masks.add(new Mask("closed ring", 40, 40).ring(20, 20, 8, 11));
+        masks.add(new Mask("ring cut by the left edge", 40, 40).ring(3, 20, 8, 11));
+        masks.add(new Mask("ring in a corner", 40, 40).ring(0, 0, 10, 13));
+        masks.add(new Mask("ring over three edges", 24, 40).ring(12, 20, 11, 14));
+        masks.add(new Mask("frame touching all edges", 30, 20).rect(0, 0, 30, 20, true).rect(1, 1, 29, 19, false));
+        masks.add(new Mask("frame open at the top", 30, 20).rect(0, 0, 30, 20, true).rect(1, 0, 29, 19, false));
+        masks.add(new Mask("edge bar with notch", 30, 20).rect(0, 8, 30, 12, true).rect(10, 9, 12, 11, false));
+        masks.add(new Mask("corner L", 20, 20).rect(0, 0, 3, 20, true).rect(0, 17, 20, 20, true));
+        masks.add(new Mask("one-pixel gap", 30, 30).ring(15, 15, 6, 8).rect(14, 6, 16, 10, false));
+        masks.add(new Mask("diagonal touch", 10, 10).rect(2, 2, 4, 4, true).rect(4, 4, 6, 6, true));
+        masks.add(new Mask("U open to the bottom", 30, 30).rect(5, 5, 25, 30, true).rect(10, 10, 20, 30, false));
+        return masks;
+    }
+}
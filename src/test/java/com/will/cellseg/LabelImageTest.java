@@ -0,0 +1,142 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * {@link LabelImage#fromMask} and {@link LabelImage#getRois} stand in for
+ * {@code ParticleAnalyzer.analyze(mask)}: same particles kept at each minimum size, same
+ * order, same traced outlines.
+ */
+public class LabelImageTest {
+
+    private static final int W = 80;
+    private static final int H = 60;
+
+    @Test
+    public void holesNestingAndLinesMatchParticleAnalyzer() {
+        final byte[] mask = new byte[W * H];
+        // Ring with a particle in its hole, and a ring inside that particle's own hole.
+        rect(mask, 2, 2, 30, 30, true);
+        rect(mask, 5, 5, 24, 24, false);
+        rect(mask, 8, 8, 18, 18, true);
+        rect(mask, 11, 11, 12, 12, false);
+        rect(mask, 14, 14, 6, 6, true);
+        // Ring whose inner block touches a spur of the ring only diagonally: one 8-connected particle.
+        rect(mask, 40, 2, 14, 14, true);
+        rect(mask, 43, 5, 8, 8, false);
+        mask[5 * W + 43] = (byte) 255;
+        rect(mask, 44, 6, 3, 3, true);
+        // One-pixel-wide lines, a diagonal chain and single pixels.
+        rect(mask, 60, 2, 1, 12, true);
+        rect(mask, 62, 4, 15, 1, true);
+        for (int i = 0; i < 8; i++) mask[(20 + i) * W + 62 + i] = (byte) 255;
+        mask[40 * W + 5] = (byte) 255;
+        mask[59 * W + 79] = (byte) 255;
+        // A C-shape whose arms reach the image edge.
+        rect(mask, 40, 36, 40, 24, true);
+        rect(mask, 46, 42, 34, 12, false);
+
+        for (int minArea = 0; minArea <= 40; minArea++) {
+            assertMatchesParticleAnalyzer("minArea " + minArea, mask, minArea);
+        }
+        assertMatchesParticleAnalyzer("minArea 400", mask, 400);
+    }
+
+    @Test
+    public void particlesAtTheMinimumSizeMatchParticleAnalyzer() {
+        // Particles of 1..12 pixels, each in a shape whose bounding box holds more pixels.
+        final byte[] mask = new byte[W * H];
+        for (int n = 1; n <= 12; n++) {
+            final int x0 = 2 + (n - 1) % 6 * 12;
+            final int y0 = 2 + (n - 1) / 6 * 14;
+            for (int k = 0; k < n; k++) {
+                // An L that turns after four pixels, so area < width * height.
+                final int x = k < 4 ? x0 : x0 + k - 3;
+                final int y = k < 4 ? y0 + k : y0 + 3;
+                mask[y * W + x] = (byte) 255;
+            }
+        }
+        for (int minArea = 0; minArea <= 13; minArea++) {
+            assertMatchesParticleAnalyzer("minArea " + minArea, mask, minArea);
+        }
+    }
+
+    @Test
+    public void randomMasksMatchParticleAnalyzer() {
+        final Random random = new Random(18);
+        for (int round = 0; round < 6; round++) {
+            final byte[] mask = new byte[W * H];
+            for (int i = 0; i < mask.length; i++) {
+                if (random.nextInt(100) < 35 + round * 5) mask[i] = (byte) 255;
+            }
+            for (int minArea : new int[] {0, 1, 2, 3, 5, 8, 20}) {
+                assertMatchesParticleAnalyzer("round " + round + " minArea " + minArea, mask, minArea);
+            }
+        }
+    }
+
+    private static void assertMatchesParticleAnalyzer(String what, byte[] mask, int minArea) {
+        final List<Polygon> expected = new ArrayList<Polygon>();
+        final List<Integer> expectedAreas = new ArrayList<Integer>();
+        analyze(mask.clone(), minArea, expected, expectedAreas);
+
+        final LabelImage labels = LabelImage.fromMask(mask.clone(), W, H, minArea, null);
+        final Roi[] actual = labels.getRois();
+        assertEquals(what + " count", expected.size(), labels.count);
+        assertEquals(what + " ROI count", expected.size(), actual.length);
+        for (int i = 0; i < actual.length; i++) {
+            final Polygon e = expected.get(i);
+            final Polygon a = actual[i].getPolygon();
+            assertArrayEquals(what + " ROI " + i + " x", xs(e), xs(a));
+            assertArrayEquals(what + " ROI " + i + " y", ys(e), ys(a));
+            assertEquals(what + " ROI " + i + " type", Roi.TRACED_ROI, actual[i].getType());
+            assertEquals(what + " ROI " + i + " area", (int) expectedAreas.get(i), labels.stats(i + 1).area);
+        }
+    }
+
+    /** ParticleAnalyzer on the mask as the pipeline used to run it, without a ROI Manager. */
+    private static void analyze(byte[] mask, int minArea, final List<Polygon> rois, final List<Integer> areas) {
+        final ByteProcessor ip = new ByteProcessor(W, H, mask);
+        ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        final ParticleAnalyzer pa = new ParticleAnalyzer(0, 0, new ResultsTable(), minArea, Double.POSITIVE_INFINITY) {
+            @Override
+            protected void saveResults(ImageStatistics stats, Roi roi) {
+                // The ROI shares the Wand's point arrays, which the next trace overwrites.
+                assertEquals(Roi.TRACED_ROI, roi.getType());
+                rois.add(roi.getPolygon());
+                areas.add((int) stats.pixelCount);
+            }
+        };
+        pa.setHideOutputImage(true);
+        pa.analyze(new ImagePlus("mask", ip));
+    }
+
+    private static void rect(byte[] mask, int x0, int y0, int w, int h, boolean on) {
+        for (int y = y0; y < y0 + h; y++) {
+            Arrays.fill(mask, y * W + x0, y * W + x0 + w, on ? (byte) 255 : 0);
+        }
+    }
+
+    private static int[] xs(Polygon p) {
+        return Arrays.copyOf(p.xpoints, p.npoints);
+    }
+
+    private static int[] ys(Polygon p) {
+        return Arrays.copyOf(p.ypoints, p.npoints);
+    }
+}
@@ -0,0 +1,181 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The label sweep against Analyzer's intensity and geometry columns, and when
+ * {@link LabelShapes} may stand in for Analyzer's outline columns.
+ */
+public class LabelMeasurementsTest {
+
+    private static final int W = 64;
+    private static final int H = 48;
+
+    @Test
+    public void sweepColumnsMatchAnalyzer() {
+        final Roi[] rois = tracedRois();
+        final LabelSpans spans = spans(rois);
+        final Random random = new Random(12);
+        final byte[] b = new byte[W * H];
+        final short[] s = new short[W * H];
+        final float[] f = new float[W * H];
+        for (int i = 0; i < W * H; i++) {
+            b[i] = (byte) random.nextInt(256);
+            s[i] = (short) (900 + random.nextInt(20000));
+            f[i] = (float) (random.nextGaussian() * 37.5 - 4.2);
+        }
+        // Non-square pixels, an offset origin and Y measured upwards, as a scope calibration gives.
+        final Calibration spatial = new Calibration();
+        spatial.pixelWidth = 0.37;
+        spatial.pixelHeight = 0.52;
+        spatial.xOrigin = 5.5;
+        spatial.yOrigin = 3.25;
+        spatial.setInvertY(true);
+        final Calibration rising = spatial.copy();
+        rising.setFunction(Calibration.STRAIGHT_LINE, new double[] {-12.0, 0.75}, "nM");
+        final Calibration falling = spatial.copy();
+        falling.setFunction(Calibration.STRAIGHT_LINE, new double[] {3000.0, -0.125}, "nM");
+
+        assertSweepMatchesAnalyzer("8-bit", rois, spans, new ByteProcessor(W, H, b), new Calibration());
+        assertSweepMatchesAnalyzer("8-bit scaled", rois, spans, new ByteProcessor(W, H, b), spatial);
+        assertSweepMatchesAnalyzer("16-bit", rois, spans, new ShortProcessor(W, H, s, null), spatial);
+        assertSweepMatchesAnalyzer("16-bit rising", rois, spans, new ShortProcessor(W, H, s, null), rising);
+        assertSweepMatchesAnalyzer("16-bit falling", rois, spans, new ShortProcessor(W, H, s, null), falling);
+        assertSweepMatchesAnalyzer("32-bit", rois, spans, new FloatProcessor(W, H, f), spatial);
+    }
+
+    @Test
+    public void tracedSegmentationOutlinesMatchAnalyzer() {
+        final Roi[] rois = tracedRois();
+        final LabelSpans spans = spans(rois);
+        assertTrue(LabelMeasurements.outlinesMatchLabels(rois, spans));
+
+        final Calibration cal = new Calibration();
+        cal.pixelWidth = 0.5;
+        cal.pixelHeight = 0.5;
+        assertColumnsEqual(analyzerOutlines(rois, cal),
+                LabelShapes.measure(spans, LabelMeasurements.OUTLINE_MEASUREMENTS, cal, null));
+    }
+
+    @Test
+    public void editedRoisAreNotMeasuredFromLabels() {
+        final Roi[] traced = tracedRois();
+
+        // A reviewer swaps one cell for an oval drawn over it.
+        final Roi[] oval = traced.clone();
+        oval[1] = new OvalRoi(36, 8, 16, 12);
+        assertFalse(LabelMeasurements.outlinesMatchLabels(oval, spans(oval)));
+
+        // Same pixels as a freehand outline instead of a traced one.
+        final Roi[] freehand = traced.clone();
+        final Polygon p = traced[0].getPolygon();
+        freehand[0] = new PolygonRoi(p.xpoints, p.ypoints, p.npoints, Roi.FREEROI);
+        assertFalse(LabelMeasurements.outlinesMatchLabels(freehand, spans(freehand)));
+
+        // A traced polygon with one vertex dragged inwards.
+        final Roi[] edited = traced.clone();
+        final Polygon q = traced[2].getPolygon();
+        q.xpoints[0] += 1;
+        edited[2] = new PolygonRoi(q.xpoints, q.ypoints, q.npoints, Roi.TRACED_ROI);
+        assertFalse(LabelMeasurements.outlinesMatchLabels(edited, spans(edited)));
+
+        // Why it matters: the oval's outline is the ellipse, not the pixel boundary its
+        // rasterized label traces, so perimeter, Feret and solidity all come out different.
+        final ResultsTable fromLabels = LabelShapes.measure(spans(oval), LabelMeasurements.OUTLINE_MEASUREMENTS,
+                new Calibration(), null);
+        final ResultsTable fromRois = analyzerOutlines(oval, new Calibration());
+        for (String heading : new String[] {"Perim.", "Feret", "Solidity"}) {
+            assertTrue(heading, Math.abs(fromRois.getValue(heading, 1) - fromLabels.getValue(heading, 1)) > 0.01);
+        }
+    }
+
+    private static void assertSweepMatchesAnalyzer(String what, Roi[] rois, LabelSpans spans, ImageProcessor ip,
+                                                   Calibration cal) {
+        final ImagePlus imp = new ImagePlus(what, ip);
+        imp.setCalibration(cal);
+        final ResultsTable expected = new ResultsTable();
+        final Analyzer analyzer = new Analyzer(imp, LabelMeasurements.SWEEP_MEASUREMENTS, expected);
+        for (Roi roi : rois) {
+            imp.setRoi(roi);
+            analyzer.measure();
+        }
+        final ResultsTable actual = LabelMeasurements.measure(spans, ip, LabelMeasurements.SWEEP_MEASUREMENTS,
+                imp.getCalibration());
+        assertEquals(what, expected.size(), actual.size());
+        for (String heading : new String[] {"Area", "Mean", "StdDev", "Min", "Max", "X", "Y", "BX", "BY",
+                "Width", "Height", "IntDen", "RawIntDen"}) {
+            assertTrue(what + " " + heading, actual.columnExists(heading));
+            for (int row = 0; row < actual.size(); row++) {
+                final double e = expected.getValue(heading, row);
+                // Sums run in a different order than ImageStatistics', so allow rounding.
+                assertEquals(what + " " + heading + " row " + row, e, actual.getValue(heading, row),
+                        1e-9 * Math.max(1.0, Math.abs(e)));
+            }
+        }
+    }
+
+    private static Roi[] tracedRois() {
+        final byte[] mask = new byte[W * H];
+        disc(mask, 14, 14, 9);
+        disc(mask, 44, 14, 7);
+        for (int y = 30; y < 44; y++) {
+            for (int x = 6; x < 58; x++) {
+                if ((x / 5 + y / 3) % 3 != 0) mask[y * W + x] = (byte) 255;
+            }
+        }
+        return LabelImage.fromMask(mask, W, H, 0, null).getRois();
+    }
+
+    private static void disc(byte[] mask, int cx, int cy, int r) {
+        for (int y = cy - r; y <= cy + r; y++) {
+            for (int x = cx - r; x <= cx + r; x++) {
+                if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r) mask[y * W + x] = (byte) 255;
+            }
+        }
+    }
+
+    private static LabelSpans spans(Roi[] rois) {
+        return LabelSpans.fromLabels(LabelMeasurements.rasterize(rois, W, H), W, H, rois.length);
+    }
+
+    private static ResultsTable analyzerOutlines(Roi[] rois, Calibration cal) {
+        final ImagePlus imp = new ImagePlus("blank", new ByteProcessor(W, H));
+        imp.setCalibration(cal);
+        final ResultsTable rt = new ResultsTable();
+        final Analyzer analyzer = new Analyzer(imp, LabelMeasurements.OUTLINE_MEASUREMENTS, rt);
+        for (Roi roi : rois) {
+            imp.setRoi(roi);
+            analyzer.measure();
+        }
+        return rt;
+    }
+
+    private static void assertColumnsEqual(ResultsTable expected, ResultsTable actual) {
+        assertEquals(expected.size(), actual.size());
+        for (String heading : actual.getHeadings()) {
+            final int e = expected.getColumnIndex(heading);
+            final int a = actual.getColumnIndex(heading);
+            for (int row = 0; row < actual.size(); row++) {
+                assertEquals(heading + " row " + row, expected.getValueAsDouble(e, row),
+                        actual.getValueAsDouble(a, row), 1e-9);
+            }
+        }
+    }
+}
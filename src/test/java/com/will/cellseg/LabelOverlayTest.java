@@ -0,0 +1,174 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ContrastEnhancer;
+import ij.plugin.LutLoader;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * {@link LabelOverlay} against the overlay it replaced: labels coloured with the LUT
+ * command, source and labels converted to RGB, blended at one half, label 0 left out.
+ * Every source type and display range, every label type, pixel for pixel.
+ */
+public class LabelOverlayTest {
+
+    private static final int W = 67;
+    private static final int H = 41;
+    private static final String[] LUTS = {"Fire", "Spectrum", "3-3-2 RGB", "Ice"};
+
+    @Test
+    public void matchesConvertingToRgbAndBlending() {
+        final ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (ImagePlus source : sources()) {
+                for (ImagePlus labels : labels()) {
+                    for (String lut : LUTS) {
+                        for (boolean stretched : new boolean[] {false, true}) {
+                            final ImagePlus prepared = prepareLabels(labels, lut, stretched);
+                            final String what = source.getTitle() + " / " + labels.getTitle() + " / " + lut
+                                    + (stretched ? " stretched" : "");
+                            final int[] expected = (int[]) oldOverlay(source, prepared, lut).getPixels();
+                            for (ForkJoinPool p : new ForkJoinPool[] {null, pool}) {
+                                final ColorProcessor actual = LabelOverlay.render(source, prepared.getProcessor(), lut,
+                                        LabelOverlay.DEFAULT_ALPHA, p);
+                                assertArrayEquals(what, expected, (int[]) actual.getPixels());
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Labels as the pipeline leaves them: LUT applied, then "Enhance Contrast" at 0% saturated. */
+    private static ImagePlus prepareLabels(ImagePlus labels, String lut, boolean stretched) {
+        final ImagePlus prepared = labels.duplicate();
+        prepared.setTitle(labels.getTitle());
+        applyLut(prepared, lut);
+        if (stretched) {
+            new ContrastEnhancer().stretchHistogram(prepared, 0.0);
+        }
+        return prepared;
+    }
+
+    /** The removed createLabelOverlay: duplicates, LUT command, RGB conversions and blend. */
+    private static ColorProcessor oldOverlay(ImagePlus imp, ImagePlus labelsOut, String lut) {
+        final ImagePlus base = imp.duplicate();
+        final ImagePlus labels = labelsOut.duplicate();
+        applyLut(labels, lut);
+        new ImageConverter(base).convertToRGB();
+        new ImageConverter(labels).convertToRGB();
+        final int[] bpx = (int[]) base.getProcessor().getPixels();
+        final int[] opx = (int[]) labels.getProcessor().getPixels();
+        final ImageProcessor zp = labelsOut.getProcessor();
+        final float alpha = 0.5f;
+        final float inv = 1.0f - alpha;
+        final int[] out = new int[bpx.length];
+        for (int i = 0; i < out.length; i++) {
+            final boolean zero = zp instanceof FloatProcessor ? Math.round(zp.getf(i)) == 0 : zp.get(i) == 0;
+            if (zero) {
+                out[i] = bpx[i];
+                continue;
+            }
+            final int bc = bpx[i];
+            final int oc = opx[i];
+            final int r = Math.round(((bc >> 16) & 0xFF) * inv + ((oc >> 16) & 0xFF) * alpha);
+            final int g = Math.round(((bc >> 8) & 0xFF) * inv + ((oc >> 8) & 0xFF) * alpha);
+            final int b = Math.round((bc & 0xFF) * inv + (oc & 0xFF) * alpha);
+            out[i] = (0xFF << 24) | (r << 16) | (g << 8) | b;
+        }
+        return new ColorProcessor(W, H, out);
+    }
+
+    /** What the LUT menu command does to a single-channel image without a window. */
+    private static void applyLut(ImagePlus imp, String lut) {
+        final ImageProcessor ip = imp.getProcessor();
+        ip.setColorModel(LutLoader.getLut(lut));
+        imp.setProcessor(ip);
+    }
+
+    private static List<ImagePlus> sources() {
+        final Random random = new Random(16);
+        final List<ImagePlus> sources = new ArrayList<ImagePlus>();
+
+        final byte[] b = new byte[W * H];
+        final short[] s = new short[W * H];
+        final float[] f = new float[W * H];
+        final int[] rgb = new int[W * H];
+        for (int i = 0; i < W * H; i++) {
+            b[i] = (byte) random.nextInt(256);
+            s[i] = (short) random.nextInt(12000);
+            f[i] = (float) (random.nextGaussian() * 2.0 + 0.3);
+            rgb[i] = random.nextInt(1 << 24);
+        }
+        sources.add(new ImagePlus("8-bit", new ByteProcessor(W, H, b.clone())));
+        final ImagePlus byteRange = new ImagePlus("8-bit range", new ByteProcessor(W, H, b.clone()));
+        byteRange.setDisplayRange(30, 200);
+        sources.add(byteRange);
+        final ByteProcessor inverted = new ByteProcessor(W, H, b.clone());
+        inverted.invertLut();
+        sources.add(new ImagePlus("8-bit inverted", inverted));
+        final ByteProcessor fire = new ByteProcessor(W, H, b.clone());
+        fire.setColorModel(LutLoader.getLut("Fire"));
+        fire.setMinAndMax(12, 240);
+        sources.add(new ImagePlus("8-bit fire", fire));
+
+        sources.add(new ImagePlus("16-bit", new ShortProcessor(W, H, s.clone(), null)));
+        final ImagePlus shortRange = new ImagePlus("16-bit range", new ShortProcessor(W, H, s.clone(), null));
+        shortRange.setDisplayRange(500, 9000);
+        sources.add(shortRange);
+
+        sources.add(new ImagePlus("32-bit", new FloatProcessor(W, H, f.clone())));
+        final ImagePlus floatRange = new ImagePlus("32-bit range", new FloatProcessor(W, H, f.clone()));
+        floatRange.setDisplayRange(-1.5, 3.2);
+        sources.add(floatRange);
+
+        sources.add(new ImagePlus("RGB", new ColorProcessor(W, H, rgb)));
+
+        final ImageStack channels = new ImageStack(W, H);
+        channels.addSlice(new ByteProcessor(W, H, b.clone()));
+        channels.addSlice(new ShortProcessor(W, H, s.clone(), null).convertToByte(true));
+        final ImagePlus merged = new ImagePlus("composite", channels);
+        merged.setDimensions(2, 1, 1);
+        sources.add(new CompositeImage(merged, IJ.COMPOSITE));
+        return sources;
+    }
+
+    /** Cells as 8-, 16- and 32-bit label images; the 32-bit one has fractional ids near 0. */
+    private static List<ImagePlus> labels() {
+        final byte[] b = new byte[W * H];
+        final short[] s = new short[W * H];
+        final float[] f = new float[W * H];
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                final int i = y * W + x;
+                final int cell = (x / 3 + 1) * ((y / 3) % 4 == 0 ? 0 : 1) + (y / 3) * 23;
+                b[i] = (byte) Math.min(255, cell % 97);
+                s[i] = (short) (cell * 7 % 700);
+                f[i] = x % 5 == 0 ? 0.4f : cell * 0.75f;
+            }
+        }
+        final List<ImagePlus> labels = new ArrayList<ImagePlus>();
+        labels.add(new ImagePlus("8-bit labels", new ByteProcessor(W, H, b)));
+        labels.add(new ImagePlus("16-bit labels", new ShortProcessor(W, H, s, null)));
+        labels.add(new ImagePlus("32-bit labels", new FloatProcessor(W, H, f)));
+        return labels;
+    }
+}
@@ -0,0 +1,185 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Failures reach the producer and leave nothing half-written, close() writes everything
+ * already queued, and a full queue holds the producer back.
+ */
+public class OutputWriterTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10000)
+    public void failedWriteReachesAwaitAndLeavesNoTempFile() throws Exception {
+        for (int threads : new int[] {0, 2}) {
+            final File dir = folder.newFolder("threads" + threads);
+            final File target = new File(dir, "mask.tif");
+            final byte[] previous = "previous run".getBytes(StandardCharsets.UTF_8);
+            Files.write(target.toPath(), previous);
+            final boolean[] closed = new boolean[1];
+            // The encoder writes the TIFF header, then fails on the missing pixels.
+            final ImagePlus imp = new ImagePlus("mask", new ByteProcessor(16, 8)) {
+                @Override
+                public FileInfo getFileInfo() {
+                    final FileInfo fi = super.getFileInfo();
+                    fi.pixels = null;
+                    return fi;
+                }
+
+                @Override
+                public void close() {
+                    closed[0] = true;
+                }
+            };
+
+            final OutputWriter writer = new OutputWriter(threads, 4);
+            final OutputWriter.Group group = writer.group();
+            group.tiff(imp, target);
+            group.table(table(), new File(dir, "cells.csv"));
+            try {
+                group.await();
+                fail("threads " + threads + ": failed write not reported");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(target.getAbsolutePath()));
+            }
+            writer.close();
+
+            assertTrue("threads " + threads + ": image not closed", closed[0]);
+            assertArrayEquals(previous, Files.readAllBytes(target.toPath()));
+            // The other write of the group still completes.
+            assertTrue(new File(dir, "cells.csv").isFile());
+            assertEquals(2, dir.list().length);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void closeWritesEveryQueuedJob() throws Exception {
+        final File dir = folder.getRoot();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final OutputWriter writer = new OutputWriter(1, 8);
+        final OutputWriter.Group group = writer.group();
+        group.table(blockingTable(started, gate), new File(dir, "first.csv"));
+        started.await();
+        for (int i = 0; i < 5; i++) {
+            group.table(table(), new File(dir, "queued" + i + ".csv"));
+        }
+
+        final Thread closer = closeOnNewThread(writer);
+        awaitWaiting(closer);
+        assertFalse(group.isDone());
+        gate.countDown();
+        closer.join();
+
+        assertTrue(group.isDone());
+        group.await();
+        assertTrue(new File(dir, "first.csv").isFile());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(new File(dir, "queued" + i + ".csv").isFile());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueBlocksTheProducer() throws Exception {
+        final File dir = folder.getRoot();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final OutputWriter writer = new OutputWriter(1, 2);
+        final OutputWriter.Group group = writer.group();
+        group.table(blockingTable(started, gate), new File(dir, "first.csv"));
+        started.await();
+        // The writer holds the first job, so these two fill the queue.
+        group.table(table(), new File(dir, "second.csv"));
+        group.table(table(), new File(dir, "third.csv"));
+
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    group.table(table(), new File(dir, "fourth.csv"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        awaitWaiting(producer);
+        assertFalse(new File(dir, "second.csv").exists());
+
+        gate.countDown();
+        producer.join();
+        group.await();
+        writer.close();
+        for (String name : new String[] {"first", "second", "third", "fourth"}) {
+            assertTrue(name, new File(dir, name + ".csv").isFile());
+        }
+    }
+
+    private static ResultsTable table() {
+        final ResultsTable rt = new ResultsTable();
+        rt.incrementCounter();
+        rt.addValue("Area", 12.5);
+        return rt;
+    }
+
+    /** Table that signals {@code started} when its write begins, then waits for {@code gate}. */
+    private static ResultsTable blockingTable(final CountDownLatch started, final CountDownLatch gate) {
+        final ResultsTable rt = new ResultsTable() {
+            @Override
+            public void saveAs(String path) throws IOException {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.saveAs(path);
+            }
+        };
+        rt.incrementCounter();
+        rt.addValue("Area", 1.0);
+        return rt;
+    }
+
+    private static Thread closeOnNewThread(final OutputWriter writer) {
+        final Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        closer.start();
+        return closer;
+    }
+
+    /** Waits until {@code thread} is parked: blocked on the queue or joining the writers. */
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.isAlive() && thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        assertTrue(thread.isAlive());
+    }
+}
@@ -0,0 +1,200 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.plugin.frame.RoiManager;
+import java.awt.GraphicsEnvironment;
+import java.awt.Polygon;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * ROI ZIPs read back as the ROI Manager's Open reads them: same entry names, same order,
+ * same outlines as the ROI Manager's Save of the same ROIs.
+ */
+public class RoiZipWriterTest {
+
+    private static final int W = 90;
+    private static final int H = 70;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsThroughRoiDecoderWithTheRoiManagersNames() throws Exception {
+        final Roi[] rois = {
+                named(new Roi(10, 20, 30, 40), null),
+                // Same bounds centre as the first: the second entry gets "-1".
+                named(new Roi(15, 25, 20, 30), null),
+                named(new OvalRoi(100, 50, 21, 11), null),
+                polygon("nucleus", 3, 4, 12, 4, 12, 9),
+                null,
+                // The ROI Manager does not add empty polygons.
+                new PolygonRoi(new int[0], new int[0], 0, Roi.POLYGON),
+                // A generated name no longer at the bounds centre is derived again.
+                named(new Roi(60, 60, 10, 10), "0001-0001"),
+                polygon("cell", 1, 1, 5, 1, 5, 5),
+                polygon("cell", 2, 2, 6, 2, 6, 6),
+                polygon("cell-1", 3, 3, 7, 3, 7, 7),
+        };
+        final File out = folder.newFile("rois.zip");
+        RoiZipWriter.write(rois, out);
+
+        final Map<String, Roi> opened = open(out);
+        assertEquals(Arrays.asList("0040-0025", "0040-0025-1", "0055-0110", "nucleus", "0065-0065",
+                "cell", "cell-2", "cell-1"), new ArrayList<String>(opened.keySet()));
+        // The ROI keeps its list label even where its entry had to be renamed.
+        final List<String> stored = new ArrayList<String>();
+        for (Roi roi : opened.values()) stored.add(roi.getName());
+        assertEquals(Arrays.asList("0040-0025", "0040-0025", "0055-0110", "nucleus", "0065-0065",
+                "cell", "cell", "cell-1"), stored);
+
+        final Roi[] kept = {rois[0], rois[1], rois[2], rois[3], rois[6], rois[7], rois[8], rois[9]};
+        int i = 0;
+        for (Roi roi : opened.values()) {
+            assertSameOutline("entry " + i, kept[i++], roi);
+        }
+        // Caller ROIs keep their names.
+        assertEquals(null, rois[0].getName());
+        assertEquals("0001-0001", rois[6].getName());
+    }
+
+    @Test
+    public void labelContoursWriteTheSameFileAsTheirRois() throws Exception {
+        final LabelImage labels = LabelImage.fromMask(nestedParticles(), W, H, 0, null);
+        final File fromRois = folder.newFile("rois.zip");
+        final File fromLabels = folder.newFile("labels.zip");
+        RoiZipWriter.write(labels.getRois(), fromRois);
+        RoiZipWriter.writeLabels(labels.toSpans(), fromLabels);
+        assertSameEntries(entries(fromRois), entries(fromLabels));
+
+        final Roi[] rois = labels.getRois();
+        final Map<String, Roi> opened = open(fromLabels);
+        assertEquals(rois.length, opened.size());
+        int i = 0;
+        for (Roi roi : opened.values()) {
+            assertSameOutline("label " + (i + 1), rois[i++], roi);
+        }
+    }
+
+    @Test
+    public void matchesTheRoiManagersSave() throws Exception {
+        // The ROI Manager is a window, so this needs a display.
+        Assume.assumeFalse(GraphicsEnvironment.isHeadless());
+        final List<Roi> rois = new ArrayList<Roi>(Arrays.asList(LabelImage.fromMask(nestedParticles(), W, H, 0, null)
+                .getRois()));
+        rois.add(polygon("cell", 1, 1, 5, 1, 5, 5));
+        rois.add(polygon("cell", 2, 2, 6, 2, 6, 6));
+        rois.add(polygon("cell-1", 3, 3, 7, 3, 7, 7));
+        rois.add(named(new OvalRoi(40, 30, 9, 13), "0001-0001"));
+
+        final File expected = folder.newFile("manager.zip");
+        final RoiManager manager = new RoiManager(false);
+        try {
+            for (Roi roi : rois) {
+                manager.addRoi((Roi) roi.clone());
+            }
+            manager.runCommand("Save", expected.getAbsolutePath());
+        } finally {
+            manager.close();
+        }
+        final File actual = folder.newFile("writer.zip");
+        RoiZipWriter.write(rois.toArray(new Roi[0]), actual);
+        assertSameEntries(entries(expected), entries(actual));
+    }
+
+    /** Particles nested in each other's holes, so several share a bounds centre. */
+    private static byte[] nestedParticles() {
+        final byte[] mask = new byte[W * H];
+        for (int ring = 0; ring < 4; ring++) {
+            final int inset = 2 + ring * 5;
+            for (int y = inset; y < 60 - inset; y++) {
+                for (int x = inset; x < 60 - inset; x++) {
+                    final int edge = Math.min(Math.min(x - inset, 59 - inset - x), Math.min(y - inset, 59 - inset - y));
+                    if (edge < 2) mask[y * W + x] = (byte) 255;
+                }
+            }
+        }
+        mask[65 * W + 70] = (byte) 255;
+        for (int x = 66; x < 88; x++) mask[10 * W + x] = (byte) 255;
+        return mask;
+    }
+
+    /** Entry names and ROIs in file order, read as {@code RoiManager.openZip} reads them. */
+    private static Map<String, Roi> open(File zip) throws IOException {
+        final Map<String, Roi> rois = new LinkedHashMap<String, Roi>();
+        for (Map.Entry<String, byte[]> entry : entries(zip).entrySet()) {
+            final String name = entry.getKey();
+            final Roi roi = new RoiDecoder(entry.getValue(), name).getRoi();
+            rois.put(name.substring(0, name.length() - ".roi".length()), roi);
+        }
+        return rois;
+    }
+
+    private static Map<String, byte[]> entries(File zip) throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        final InputStream file = Files.newInputStream(zip.toPath());
+        try {
+            final ZipInputStream in = new ZipInputStream(file);
+            final byte[] buffer = new byte[4096];
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (int n = in.read(buffer); n > 0; n = in.read(buffer)) bytes.write(buffer, 0, n);
+                entries.put(entry.getName(), bytes.toByteArray());
+            }
+        } finally {
+            file.close();
+        }
+        return entries;
+    }
+
+    private static void assertSameEntries(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(actual.keySet()));
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    private static void assertSameOutline(String what, Roi expected, Roi actual) {
+        assertEquals(what + " type", expected.getType(), actual.getType());
+        assertEquals(what + " bounds", expected.getBounds(), actual.getBounds());
+        final Polygon e = expected.getPolygon();
+        final Polygon a = actual.getPolygon();
+        assertArrayEquals(what + " x", Arrays.copyOf(e.xpoints, e.npoints), Arrays.copyOf(a.xpoints, a.npoints));
+        assertArrayEquals(what + " y", Arrays.copyOf(e.ypoints, e.npoints), Arrays.copyOf(a.ypoints, a.npoints));
+    }
+
+    private static Roi named(Roi roi, String name) {
+        roi.setName(name);
+        return roi;
+    }
+
+    private static Roi polygon(String name, int... xy) {
+        final int[] x = new int[xy.length / 2];
+        final int[] y = new int[xy.length / 2];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = xy[2 * i];
+            y[i] = xy[2 * i + 1];
+        }
+        return named(new PolygonRoi(x, y, x.length, Roi.POLYGON), name);
+    }
+}
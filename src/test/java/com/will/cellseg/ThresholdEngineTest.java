@@ -0,0 +1,136 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * {@link ThresholdEngine} and {@link Histogram} against ImageJ: every method, on 8-bit,
+ * 16-bit and 32-bit planes, for dark and light backgrounds and inverted LUTs, must give
+ * the bin AutoThresholder picks and the levels {@code ImageProcessor.setAutoThreshold} sets.
+ */
+public class ThresholdEngineTest {
+
+    private static final int W = 97;
+    private static final int H = 61;
+
+    @Test
+    public void histogramsMatchImageJsEightBitCopy() {
+        for (ImageProcessor ip : planes()) {
+            final ImageProcessor copy = ip.duplicate();
+            copy.resetMinAndMax();
+            final int[] expected = copy.convertToByte(true).getHistogram();
+            final Histogram actual = Histogram.of(ip.getPixels(), W, H);
+            assertArrayEquals(describe(ip), expected, actual.counts);
+        }
+    }
+
+    @Test
+    public void binsMatchAutoThresholder() {
+        final AutoThresholder thresholder = new AutoThresholder();
+        for (ImageProcessor ip : planes()) {
+            final int[] histogram = Histogram.of(ip.getPixels(), W, H).counts;
+            for (ThresholdEngine.Method m : ThresholdEngine.Method.values()) {
+                final AutoThresholder.Method ijMethod = AutoThresholder.Method.valueOf(m.label);
+                assertEquals(describe(ip) + " " + m, thresholder.getThreshold(ijMethod, histogram.clone()),
+                        ThresholdEngine.threshold(m, histogram.clone()));
+            }
+        }
+    }
+
+    @Test
+    public void levelsMatchSetAutoThreshold() {
+        for (ImageProcessor ip : planes()) {
+            for (boolean inverted : new boolean[] {false, true}) {
+                final ImageProcessor plane = ip.duplicate();
+                if (inverted) plane.invertLut();
+                for (ThresholdEngine.Method m : ThresholdEngine.Method.values()) {
+                    for (boolean dark : new boolean[] {false, true}) {
+                        final ImageProcessor ij = plane.duplicate();
+                        if (inverted != ij.isInvertedLut()) ij.invertLut();
+                        ij.setAutoThreshold(m.label + (dark ? " dark" : "") + " no-lut");
+                        final ThresholdEngine.Levels levels = ThresholdEngine.compute(plane, m, dark,
+                                Histogram.DEFAULT_BINS);
+                        final String what = describe(plane) + " inverted=" + inverted + " " + m + " dark=" + dark;
+                        assertEquals(what + " lower", ij.getMinThreshold(), levels.lower, 0.0);
+                        assertEquals(what + " upper", ij.getMaxThreshold(), levels.upper, 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void masksMatchImageJsThresholdedPixels() {
+        for (ImageProcessor ip : planes()) {
+            for (boolean dark : new boolean[] {false, true}) {
+                final ImageProcessor ij = ip.duplicate();
+                ij.setAutoThreshold("Default" + (dark ? " dark" : "") + " no-lut");
+                final double lower = ij.getMinThreshold();
+                final double upper = ij.getMaxThreshold();
+                final byte[] mask = ThresholdEngine.mask(ip.getPixels(), W, H, lower, upper, null);
+                final byte[] expected = new byte[mask.length];
+                for (int i = 0; i < mask.length; i++) {
+                    final float v = ip.getf(i);
+                    if (v >= (float) lower && v <= (float) upper) expected[i] = (byte) 255;
+                }
+                assertArrayEquals(describe(ip) + " dark=" + dark, expected, mask);
+            }
+        }
+    }
+
+    /**
+     * Bimodal noise at each bit depth, plus ranges that stress the 8-bit scaling: narrow
+     * 16-bit data, float data with awkward offsets and spans, values on bin boundaries,
+     * and a constant plane.
+     */
+    private static ImageProcessor[] planes() {
+        final Random random = new Random(3);
+        final byte[] b = new byte[W * H];
+        final short[] s = new short[W * H];
+        final short[] narrow = new short[W * H];
+        final float[] f = new float[W * H];
+        final float[] tiny = new float[W * H];
+        final float[] wide = new float[W * H];
+        final float[] flat = new float[W * H];
+        final float[] ties = new float[W * H];
+        for (int i = 0; i < W * H; i++) {
+            final boolean object = random.nextInt(100) < 30;
+            final double g = random.nextGaussian();
+            b[i] = (byte) clamp(object ? 170 + 20 * g : 60 + 15 * g, 0, 255);
+            s[i] = (short) clamp(object ? 3100 + 400 * g : 1000 + 250 * g, 0, 65535);
+            narrow[i] = (short) clamp(object ? 212 + 6 * g : 200 + 5 * g, 0, 65535);
+            f[i] = (float) (object ? 0.73 + 0.11 * g : -0.21 + 0.09 * g);
+            tiny[i] = (float) (1000.0 + (object ? 3e-4 : 1e-4) + 5e-5 * g);
+            wide[i] = (float) (object ? 7.3e5 + 9e4 * g : -1.7e3 + 2e4 * g);
+            flat[i] = 4.25f;
+            // Values on the half-bin boundaries between 8-bit levels, where rounding decides.
+            ties[i] = i == 0 ? -0.3f : i == 1 ? 1.7f : (float) (-0.3 + (i % 255 + 0.5) * 2.0 / 255);
+        }
+        return new ImageProcessor[] {
+                new ByteProcessor(W, H, b),
+                new ShortProcessor(W, H, s, null),
+                new ShortProcessor(W, H, narrow, null),
+                new FloatProcessor(W, H, f),
+                new FloatProcessor(W, H, tiny),
+                new FloatProcessor(W, H, wide),
+                new FloatProcessor(W, H, flat),
+                new FloatProcessor(W, H, ties),
+        };
+    }
+
+    private static double clamp(double v, double lo, double hi) {
+        return Math.max(lo, Math.min(hi, Math.round(v)));
+    }
+
+    private static String describe(ImageProcessor ip) {
+        return ip.getBitDepth() + "-bit [" + ip.getStatistics().min + ", " + ip.getStatistics().max + "]";
+    }
+}
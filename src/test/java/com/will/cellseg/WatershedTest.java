@@ -0,0 +1,165 @@
+package com.will.cellseg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Both watersheds on synthetic touching discs: one seed and basin per disc, every
+ * foreground pixel flooded, and cut lines that separate the discs only where they meet.
+ */
+public class WatershedTest {
+
+    private static final int W = 160;
+    private static final int H = 120;
+
+    /** Scenes of {cx, cy, r} discs; each disc touches at least one other. */
+    private static final int[][][] SCENES = {
+            {{40, 40, 15}, {65, 40, 15}},
+            {{30, 60, 14}, {55, 60, 14}, {80, 60, 14}},
+            {{50, 40, 16}, {78, 40, 16}, {50, 68, 16}, {78, 68, 16}},
+            {{60, 60, 22}, {93, 60, 14}},
+            {{20, 20, 12}, {40, 25, 12}, {110, 80, 18}, {137, 90, 15}},
+    };
+
+    @Test
+    public void edtWatershedSeedsAndFloodsOneBasinPerDisc() {
+        for (int[][] discs : SCENES) {
+            final byte[] mask = mask(discs);
+            final float[] edt = DistanceTransform.edt(mask, W, H, false, null);
+            final int[] labels = new int[W * H];
+            final int basins = Watershed.label(mask, edt, W, H, Watershed.DEFAULT_TOLERANCE, labels);
+            assertEquals(discs.length, basins);
+
+            // Flooding reaches every foreground pixel and nothing else.
+            for (int i = 0; i < mask.length; i++) {
+                assertEquals("pixel " + i, mask[i] != 0, labels[i] != 0);
+                assertTrue(labels[i] >= 0 && labels[i] <= basins);
+            }
+            // Each disc's centre sits in its own basin.
+            final Set<Integer> centres = new HashSet<Integer>();
+            for (int[] d : discs) centres.add(labels[d[1] * W + d[0]]);
+            assertEquals(discs.length, centres.size());
+        }
+    }
+
+    @Test
+    public void edtWatershedCutsTouchingDiscsApart() {
+        for (int[][] discs : SCENES) {
+            final byte[] mask = mask(discs);
+            assertEquals(discs.length, Watershed.split(mask, W, H, Watershed.DEFAULT_TOLERANCE, null));
+            assertSeparated(discs, mask);
+        }
+    }
+
+    @Test
+    public void imageJWatershedCutsTouchingDiscsApart() {
+        for (int[][] discs : SCENES) {
+            final byte[] mask = mask(discs);
+            Watershed.splitLikeImageJ(mask, W, H, Watershed.DEFAULT_TOLERANCE);
+            assertSeparated(discs, mask);
+        }
+    }
+
+    @Test
+    public void singleDiscIsNotSplit() {
+        final int[][] disc = {{80, 60, 25}};
+        final byte[] edt = mask(disc);
+        assertEquals(1, Watershed.split(edt, W, H, Watershed.DEFAULT_TOLERANCE, null));
+        assertArrayEqualsMask(mask(disc), edt);
+
+        final byte[] imagej = mask(disc);
+        Watershed.splitLikeImageJ(imagej, W, H, Watershed.DEFAULT_TOLERANCE);
+        assertArrayEqualsMask(mask(disc), imagej);
+    }
+
+    @Test
+    public void highToleranceKeepsShallowNecksWhole() {
+        // Two heavily overlapping discs: the neck is barely lower than the centres.
+        final int[][] discs = {{70, 60, 20}, {88, 60, 20}};
+        final byte[] low = mask(discs);
+        assertEquals(2, Watershed.split(low, W, H, Watershed.DEFAULT_TOLERANCE, null));
+        final byte[] high = mask(discs);
+        assertEquals(1, Watershed.split(high, W, H, 10, null));
+        assertArrayEqualsMask(mask(discs), high);
+
+        final byte[] imagej = mask(discs);
+        Watershed.splitLikeImageJ(imagej, W, H, 10);
+        assertArrayEqualsMask(mask(discs), imagej);
+    }
+
+    @Test
+    public void methodLabelsRoundTripAndDefaultToImageJ() {
+        for (Watershed.Method m : Watershed.Method.values()) {
+            assertEquals(m, Watershed.Method.fromLabel(m.label));
+        }
+        assertEquals(Watershed.Method.IMAGEJ, Watershed.Method.fromLabel(null));
+        assertEquals(Watershed.Method.IMAGEJ, Watershed.Method.fromLabel("unknown"));
+    }
+
+    /**
+     * After the split: one 8-connected object per disc, centres in different objects, and
+     * every cleared pixel lies where two discs overlap.
+     */
+    private static void assertSeparated(int[][] discs, byte[] split) {
+        final ConnectedComponents.Labels objects = ConnectedComponents.label(split, W, H, true);
+        assertEquals(discs.length, objects.count);
+        final Set<Integer> centres = new HashSet<Integer>();
+        for (int[] d : discs) {
+            final int label = objects.raster[d[1] * W + d[0]];
+            assertNotEquals(0, label);
+            centres.add(label);
+        }
+        assertEquals(discs.length, centres.size());
+
+        final byte[] whole = mask(discs);
+        int cut = 0;
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                final int i = y * W + x;
+                if (whole[i] == 0 || split[i] != 0) continue;
+                cut++;
+                assertTrue("stray cut at (" + x + "," + y + ")", inAnOverlap(discs, x, y));
+            }
+        }
+        assertTrue("no cut line", cut > 0);
+    }
+
+    private static boolean inAnOverlap(int[][] discs, int x, int y) {
+        for (int a = 0; a < discs.length; a++) {
+            for (int b = a + 1; b < discs.length; b++) {
+                // Slack for a straight, 8-connected line crossing the curved lens.
+                if (Math.hypot(x - discs[a][0], y - discs[a][1]) <= discs[a][2] + 2
+                        && Math.hypot(x - discs[b][0], y - discs[b][1]) <= discs[b][2] + 2) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void assertArrayEqualsMask(byte[] expected, byte[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("pixel (" + (i % W) + "," + (i / W) + ")", expected[i], actual[i]);
+        }
+    }
+
+    private static byte[] mask(int[][] discs) {
+        final byte[] mask = new byte[W * H];
+        for (int[] d : discs) {
+            final int cx = d[0];
+            final int cy = d[1];
+            final int r = d[2];
+            for (int y = Math.max(0, cy - r); y < Math.min(H, cy + r + 1); y++) {
+                for (int x = Math.max(0, cx - r); x < Math.min(W, cx + r + 1); x++) {
+                    if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r) mask[y * W + x] = (byte) 255;
+                }
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,197 @@
+package com.will.cellseg.batch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import loci.formats.FormatTools;
+import loci.plugins.BF;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Raw plane bytes to ImageJ pixels, in either byte order, with and without a pool; and
+ * planes from the raw path against the same planes opened through the importer.
+ */
+public class BioFormatsPlaneReaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int W = 5;
+    private static final int H = 3;
+
+    private static final short[] SHORTS = {
+            0, 1, 255, 256, 4095,
+            (short) 32767, (short) 32768, (short) 40000, (short) 65534, (short) 65535,
+            0x0102, 0x0201, (short) 0xFF00, 0x00FF, 12345
+    };
+
+    private static final float[] FLOATS = {
+            0f, -0f, 1f, -1f, 0.5f,
+            1e-30f, -3.25e12f, Float.MIN_VALUE, Float.MAX_VALUE, Float.NaN,
+            Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 123.456f, -0.001f, 65535.5f
+    };
+
+    @Test
+    public void decodesUnsigned16BitInBothByteOrders() {
+        for (boolean littleEndian : new boolean[] {true, false}) {
+            final ByteBuffer raw = buffer(2 * SHORTS.length, littleEndian);
+            raw.asShortBuffer().put(SHORTS);
+            final ImageProcessor ip = BioFormatsPlaneReader.decode(raw.array(), W, H, FormatTools.UINT16,
+                    littleEndian, null);
+            assertTrue(ip instanceof ShortProcessor);
+            assertArrayEquals(SHORTS, (short[]) ip.getPixels());
+            // Values above 32767 stay unsigned.
+            assertTrue(ip.get(2, 1) == 40000 && ip.get(4, 1) == 65535);
+        }
+    }
+
+    @Test
+    public void decodesFloatInBothByteOrders() {
+        for (boolean littleEndian : new boolean[] {true, false}) {
+            final ByteBuffer raw = buffer(4 * FLOATS.length, littleEndian);
+            raw.asFloatBuffer().put(FLOATS);
+            final ImageProcessor ip = BioFormatsPlaneReader.decode(raw.array(), W, H, FormatTools.FLOAT,
+                    littleEndian, null);
+            assertTrue(ip instanceof FloatProcessor);
+            assertArrayEquals(FLOATS, (float[]) ip.getPixels(), 0f);
+        }
+    }
+
+    @Test
+    public void byteOrderMatters() {
+        final ByteBuffer raw = buffer(2 * SHORTS.length, true);
+        raw.asShortBuffer().put(SHORTS);
+        final short[] swapped = (short[]) BioFormatsPlaneReader.decode(raw.array(), W, H, FormatTools.UINT16,
+                false, null).getPixels();
+        assertTrue(swapped[3] == Short.reverseBytes(SHORTS[3]));
+    }
+
+    @Test
+    public void decodesOnlyTheFirstPlaneOfALargerScratchBuffer() {
+        // Scratch bytes are reused across planes and may be longer than this one.
+        final ByteBuffer raw = buffer(2 * SHORTS.length + 64, false);
+        raw.asShortBuffer().put(SHORTS);
+        for (int i = 2 * SHORTS.length; i < raw.capacity(); i++) raw.put(i, (byte) 0x7F);
+        final ImageProcessor ip = BioFormatsPlaneReader.decode(raw.array(), W, H, FormatTools.UINT16, false, null);
+        assertArrayEquals(SHORTS, (short[]) ip.getPixels());
+
+        final byte[] bytes = new byte[W * H + 7];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) (i * 17);
+        final ImageProcessor bp = BioFormatsPlaneReader.decode(bytes, W, H, FormatTools.UINT8, true, null);
+        assertTrue(bp instanceof ByteProcessor);
+        assertTrue(((byte[]) bp.getPixels()).length == W * H);
+        assertTrue(bp.get(4, 2) == ((14 * 17) & 0xFF));
+    }
+
+    @Test
+    public void decodesIntoPooledArrays() {
+        final PlaneBufferPool pool = new PlaneBufferPool(2);
+        final ByteBuffer first = buffer(2 * SHORTS.length, true);
+        first.asShortBuffer().put(SHORTS);
+        final ImageProcessor a = BioFormatsPlaneReader.decode(first.array(), W, H, FormatTools.UINT16, true, pool);
+        final short[] pooled = (short[]) a.getPixels();
+        pool.release(pooled);
+
+        // The next plane of that shape reuses the array and overwrites every pixel.
+        final short[] next = new short[SHORTS.length];
+        for (int i = 0; i < next.length; i++) next[i] = (short) (SHORTS.length - i);
+        final ByteBuffer second = buffer(2 * next.length, false);
+        second.asShortBuffer().put(next);
+        final ImageProcessor b = BioFormatsPlaneReader.decode(second.array(), W, H, FormatTools.UINT16, false, pool);
+        assertSame(pooled, b.getPixels());
+        assertArrayEquals(next, (short[]) b.getPixels());
+
+        final ByteBuffer floats = buffer(4 * FLOATS.length, false);
+        floats.asFloatBuffer().put(FLOATS);
+        final float[] f = (float[]) BioFormatsPlaneReader.decode(floats.array(), W, H, FormatTools.FLOAT, false, pool)
+                .getPixels();
+        pool.release(f);
+        assertSame(f, BioFormatsPlaneReader.decode(floats.array(), W, H, FormatTools.FLOAT, false, pool).getPixels());
+
+        final byte[] bytes = new byte[W * H];
+        final byte[] b8 = (byte[]) BioFormatsPlaneReader.decode(bytes, W, H, FormatTools.UINT8, true, pool).getPixels();
+        // With a pool the raw bytes are copied, since the caller reuses them for the next plane.
+        assertTrue(b8 != bytes);
+    }
+
+    @Test
+    public void rawPlanesMatchTheImporter() throws Exception {
+        // Needs the real Bio-Formats at test time; it opens planes of its fake format.
+        Assume.assumeTrue(hasClass("loci.formats.in.FakeReader"));
+        for (String pixelType : new String[] {"uint8", "uint16", "float"}) {
+            // The fake format takes its dimensions from the name; the file itself is empty.
+            final File file = folder.newFile("planes&pixelType=" + pixelType
+                    + "&sizeX=48&sizeY=32&sizeC=2&sizeT=4&physicalSizeX=0.4&physicalSizeY=0.65.fake");
+            final BioFormatsPlaneReader reader = new BioFormatsPlaneReader(1L << 20);
+            final PlaneBufferPool buffers = new PlaneBufferPool(2);
+            try {
+                // The first plane of each channel is imported, later ones are raw reads, and
+                // the second pass is served from the plane cache.
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int t = 0; t < 4; t++) {
+                        for (int c = 0; c < 2; c++) {
+                            final ImagePlus expected = BF.openImagePlus(
+                                    BioFormatsPlaneReader.importOptions(file, 0, 0, c, t))[0];
+                            final ImagePlus actual = reader.openPlane(file, 0, c, t, t % 2 == 0 ? buffers : null);
+                            assertSamePlane(pixelType + " pass " + pass + " C" + c + " T" + t, expected, actual);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static void assertSamePlane(String what, ImagePlus expected, ImagePlus actual) {
+        final ImageProcessor e = expected.getProcessor();
+        final ImageProcessor a = actual.getProcessor();
+        assertEquals(what + " type", e.getClass(), a.getClass());
+        if (e instanceof ByteProcessor) {
+            assertArrayEquals(what + " pixels", (byte[]) e.getPixels(), (byte[]) a.getPixels());
+        } else if (e instanceof ShortProcessor) {
+            assertArrayEquals(what + " pixels", (short[]) e.getPixels(), (short[]) a.getPixels());
+        } else {
+            assertArrayEquals(what + " pixels", (float[]) e.getPixels(), (float[]) a.getPixels(), 0f);
+        }
+        assertEquals(what + " display min", e.getMin(), a.getMin(), 0.0);
+        assertEquals(what + " display max", e.getMax(), a.getMax(), 0.0);
+        assertArrayEquals(what + " LUT", e.getLut().getBytes(), a.getLut().getBytes());
+
+        final Calibration ec = expected.getCalibration();
+        final Calibration ac = actual.getCalibration();
+        assertEquals(what + " pixel width", ec.pixelWidth, ac.pixelWidth, 0.0);
+        assertEquals(what + " pixel height", ec.pixelHeight, ac.pixelHeight, 0.0);
+        assertEquals(what + " pixel depth", ec.pixelDepth, ac.pixelDepth, 0.0);
+        assertEquals(what + " unit", ec.getUnit(), ac.getUnit());
+        assertEquals(what + " function", ec.getFunction(), ac.getFunction());
+        assertArrayEquals(what + " coefficients", ec.getCoefficients(), ac.getCoefficients(), 0.0);
+    }
+
+    private static boolean hasClass(String name) {
+        try {
+            Class.forName(name);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static ByteBuffer buffer(int size, boolean littleEndian) {
+        return ByteBuffer.allocate(size).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+}
@@ -0,0 +1,110 @@
+package com.will.cellseg.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class PlaneBufferPoolTest {
+
+    @Test
+    public void reusesReleasedArraysPerTypeAndLength() {
+        final PlaneBufferPool pool = new PlaneBufferPool(2);
+        final short[] s = pool.shorts(100);
+        pool.release(s);
+        assertNotSame(s, pool.shorts(99));
+        assertNotSame(s, pool.floats(100));
+        assertSame(s, pool.shorts(100));
+        // Taken again, so the shelf is empty.
+        assertNotSame(s, pool.shorts(100));
+    }
+
+    @Test
+    public void keepsAtMostArraysPerShape() {
+        final PlaneBufferPool pool = new PlaneBufferPool(2);
+        final byte[] a = new byte[16];
+        final byte[] b = new byte[16];
+        final byte[] c = new byte[16];
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        final byte[] first = pool.bytes(16);
+        final byte[] second = pool.bytes(16);
+        final byte[] third = pool.bytes(16);
+        assertTrue(first != c && second != c && third != c);
+        assertTrue(third != a && third != b);
+    }
+
+    @Test
+    public void anArrayReleasedTwiceIsHandedOutOnce() {
+        final PlaneBufferPool pool = new PlaneBufferPool(4);
+        final float[] f = pool.floats(64);
+        pool.release(f);
+        pool.release(f);
+        final float[] first = pool.floats(64);
+        final float[] second = pool.floats(64);
+        assertSame(f, first);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void releasedImageNoLongerSeesTheArray() {
+        final PlaneBufferPool pool = new PlaneBufferPool(2);
+        final short[] pixels = pool.shorts(12);
+        final ShortProcessor ip = new ShortProcessor(4, 3, pixels, null);
+        final ImagePlus imp = new ImagePlus("frame", ip);
+        pool.release(imp);
+        // The next plane may overwrite the array; the old frame must not read it.
+        assertNull(ip.getPixels());
+        assertSame(pixels, pool.shorts(12));
+    }
+
+    @Test
+    public void concurrentUsersNeverShareAnArray() throws Exception {
+        final PlaneBufferPool pool = new PlaneBufferPool(4);
+        final Map<Object, Boolean> inUse = Collections.synchronizedMap(new IdentityHashMap<Object, Boolean>());
+        final AtomicInteger conflicts = new AtomicInteger();
+        final ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> done = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                final short mark = (short) (t + 1);
+                done.add(threads.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < 20000; i++) {
+                            final short[] s = pool.shorts(256);
+                            if (inUse.put(s, Boolean.TRUE) != null) conflicts.incrementAndGet();
+                            s[0] = mark;
+                            s[255] = mark;
+                            Thread.yield();
+                            if (s[0] != mark || s[255] != mark) conflicts.incrementAndGet();
+                            inUse.remove(s);
+                            pool.release(s);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : done) f.get();
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(0, conflicts.get());
+    }
+}
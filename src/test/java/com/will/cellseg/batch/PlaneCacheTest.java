@@ -0,0 +1,111 @@
+package com.will.cellseg.batch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class PlaneCacheTest {
+
+    @Test
+    public void zeroBudgetCachesNothing() {
+        final PlaneCache cache = new PlaneCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put("a", new byte[10]);
+        assertNull(cache.get("a", null));
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() {
+        // Room for three 100-byte planes.
+        final PlaneCache cache = new PlaneCache(300);
+        cache.put("a", plane(100, 1));
+        cache.put("b", plane(100, 2));
+        cache.put("c", plane(100, 3));
+        // Reading "a" makes "b" the eldest.
+        assertNotNull(cache.get("a", null));
+        cache.put("d", plane(100, 4));
+
+        assertNull(cache.get("b", null));
+        assertNotNull(cache.get("a", null));
+        assertNotNull(cache.get("c", null));
+        assertNotNull(cache.get("d", null));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(300, cache.getBytes());
+    }
+
+    @Test
+    public void keepsWithinTheByteBudgetAcrossPixelTypes() {
+        final PlaneCache cache = new PlaneCache(1000);
+        cache.put("floats", new float[200]);   // 800 bytes
+        cache.put("shorts", new short[100]);   // 200 bytes
+        assertEquals(1000, cache.getBytes());
+        cache.put("bytes", new byte[1]);
+        assertEquals(201, cache.getBytes());
+        assertNull(cache.get("floats", null));
+        assertEquals(1, cache.getEvictions());
+
+        // A plane over the whole budget is not kept and evicts nothing.
+        cache.put("huge", new byte[1001]);
+        assertNull(cache.get("huge", null));
+        assertEquals(201, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+
+        // Replacing a key swaps its bytes rather than adding them.
+        cache.put("shorts", new short[300]);
+        assertEquals(601, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        final PlaneCache cache = new PlaneCache(1000);
+        assertNull(cache.get("a", null));
+        cache.put("a", plane(10, 7));
+        cache.get("a", null);
+        cache.get("a", null);
+        cache.get("b", null);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void storesAndHandsOutCopies() {
+        final PlaneCache cache = new PlaneCache(1000);
+        final byte[] source = plane(10, 5);
+        cache.put("a", source);
+        // Later changes to the caller's array, e.g. a recycled frame, do not reach the cache.
+        source[0] = 99;
+        final byte[] first = (byte[]) cache.get("a", null);
+        assertArrayEquals(plane(10, 5), first);
+        first[1] = 99;
+        assertArrayEquals(plane(10, 5), (byte[]) cache.get("a", null));
+        assertNotSame(first, cache.get("a", null));
+    }
+
+    @Test
+    public void copiesIntoPooledArrays() {
+        final PlaneCache cache = new PlaneCache(1000);
+        cache.put("a", new short[] {1, 2, 3});
+        final PlaneBufferPool pool = new PlaneBufferPool(1);
+        final short[] recycled = new short[3];
+        pool.release(recycled);
+        final Object copy = cache.get("a", pool);
+        assertSame(recycled, copy);
+        assertArrayEquals(new short[] {1, 2, 3}, recycled);
+    }
+
+    private static byte[] plane(int size, int value) {
+        final byte[] pixels = new byte[size];
+        for (int i = 0; i < size; i++) pixels[i] = (byte) (value + i);
+        return pixels;
+    }
+}
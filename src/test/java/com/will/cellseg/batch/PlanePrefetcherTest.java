@@ -0,0 +1,251 @@
+package com.will.cellseg.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Reads ahead are counted where the pool hands them out: the prefetcher starts reads only
+ * from add, take, drop and the end of a read, all before the pool counts that read done.
+ * So once the expected reads are done, the number started is final and checked exactly.
+ */
+public class PlanePrefetcherTest {
+
+    /** Bytes of every test plane. */
+    private static final int PLANE = 1000;
+
+    /** Reads the prefetcher handed to the pool, and reads the pool has finished running. */
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final ThreadPoolExecutor readers = new ThreadPoolExecutor(
+            8, 8, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+        @Override
+        public void execute(Runnable command) {
+            submitted.incrementAndGet();
+            super.execute(command);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            completed.incrementAndGet();
+        }
+    };
+    /** Sources by name in the order they were called. */
+    private final List<String> calls = new ArrayList<String>();
+    private final Set<String> closed = new HashSet<String>();
+    private final Map<String, Object> pixels = new HashMap<String, Object>();
+    /** Permits for sources to finish; unlimited unless a test holds them back. */
+    private final Semaphore gate = new Semaphore(Integer.MAX_VALUE / 2);
+
+    @After
+    public void shutDown() {
+        gate.release(1000);
+        readers.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void onlyOneReadRunsUntilAPlaneSizeIsKnown() throws Exception {
+        gate.drainPermits();
+        final PlanePrefetcher prefetcher = new PlanePrefetcher(readers, 8, 3 * PLANE);
+        final PlanePrefetcher.Sequence sequence = prefetcher.add(planes("a", 10));
+        assertEquals(1, submitted.get());
+
+        // Once a size is known the budget holds three planes: the one held and two reads.
+        gate.release(1);
+        awaitCompleted(1);
+        assertEquals(3, submitted.get());
+        awaitCalls(3);
+        assertEquals(new HashSet<String>(Arrays.asList("a0", "a1", "a2")), new HashSet<String>(calls()));
+
+        // All three held: the budget is full, so nothing else starts.
+        gate.release(2);
+        awaitCompleted(3);
+        assertEquals(3, submitted.get());
+
+        // Taking a plane frees its bytes for the next read.
+        assertEquals("a0", sequence.next().getTitle());
+        assertEquals(4, submitted.get());
+        awaitCalls(4);
+        assertEquals("a3", calls().get(3));
+        // Closing waits for a3, which is still being read.
+        gate.release(1);
+        prefetcher.close();
+    }
+
+    @Test(timeout = 10000)
+    public void planeOverTheBudgetIsReadOneAtATime() throws Exception {
+        final PlanePrefetcher prefetcher = new PlanePrefetcher(readers, 8, PLANE / 2);
+        final PlanePrefetcher.Sequence sequence = prefetcher.add(planes("a", 4));
+        awaitCompleted(1);
+        assertEquals(1, submitted.get());
+        assertEquals("a0", sequence.next().getTitle());
+        awaitCompleted(2);
+        assertEquals(2, submitted.get());
+        assertEquals(Arrays.asList("a0", "a1"), calls());
+        prefetcher.close();
+    }
+
+    @Test(timeout = 10000)
+    public void readsAheadAcrossSequencesInPlanOrder() throws Exception {
+        final PlanePrefetcher prefetcher = new PlanePrefetcher(readers, 5, 100L * PLANE);
+        final PlanePrefetcher.Sequence a = prefetcher.add(planes("a", 4));
+        final PlanePrefetcher.Sequence b = prefetcher.add(planes("b", 4));
+        awaitCompleted(5);
+        assertEquals(5, submitted.get());
+        assertEquals(new HashSet<String>(Arrays.asList("a0", "a1", "a2", "a3", "b0")), new HashSet<String>(calls()));
+
+        // Each consumer gets its own planes in order, whichever runs first.
+        assertEquals(Arrays.asList("b0", "b1", "b2", "b3"), drain(b));
+        assertEquals(Arrays.asList("a0", "a1", "a2", "a3"), drain(a));
+        assertEquals(8, calls().size());
+        assertEquals(8, new HashSet<String>(calls()).size());
+        prefetcher.close();
+    }
+
+    @Test(timeout = 10000)
+    public void closedSequenceDropsItsPlanesAndMakesRoomForTheNext() throws Exception {
+        final PlanePrefetcher prefetcher = new PlanePrefetcher(readers, 4, 100L * PLANE);
+        final PlanePrefetcher.Sequence a = prefetcher.add(planes("a", 6));
+        final PlanePrefetcher.Sequence b = prefetcher.add(planes("b", 3));
+        awaitCompleted(4);
+        assertEquals(4, submitted.get());
+        assertEquals("a0", a.next().getTitle());
+        awaitCompleted(5);
+        assertEquals(5, submitted.get());
+
+        // a1..a4 were read ahead and are closed; a5 is never read; b fills the window.
+        a.close();
+        assertEquals(8, submitted.get());
+        assertFalse(a.hasNext());
+        assertEquals(new HashSet<String>(Arrays.asList("a1", "a2", "a3", "a4")), closed());
+        assertEquals(Arrays.asList("b0", "b1", "b2"), drain(b));
+        assertFalse(calls().contains("a5"));
+        assertEquals(8, calls().size());
+        prefetcher.close();
+    }
+
+    @Test(timeout = 10000)
+    public void readsStillRunningWhenDroppedAreWaitedForAndReleased() throws Exception {
+        gate.drainPermits();
+        final PlaneBufferPool buffers = new PlaneBufferPool(4);
+        final PlanePrefetcher prefetcher = new PlanePrefetcher(readers, 8, 2 * PLANE, buffers);
+        final PlanePrefetcher.Sequence a = prefetcher.add(planes("a", 4));
+        gate.release(1);
+        awaitCompleted(1);
+        assertEquals(2, submitted.get());
+        assertEquals("a0", a.next().getTitle());
+        assertEquals(3, submitted.get());
+        // a1 and a2 are running, both held at the gate; they fill the budget.
+        awaitCalls(3);
+        final PlanePrefetcher.Sequence b = prefetcher.add(planes("b", 3));
+        assertEquals(3, submitted.get());
+
+        final Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                a.close();
+            }
+        });
+        closer.start();
+        while (closer.isAlive() && closer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        // Still in flight, a1 and a2 leave room for one read only, and nothing is closed.
+        assertEquals(4, submitted.get());
+        assertTrue(closed().isEmpty());
+
+        gate.release(1000);
+        closer.join();
+        assertEquals(new HashSet<String>(Arrays.asList("a1", "a2")), closed());
+        final Object reused = buffers.bytes(PLANE);
+        assertTrue(reused == pixels("a1") || reused == pixels("a2"));
+        assertEquals(Arrays.asList("b0", "b1", "b2"), drain(b));
+        assertFalse(calls().contains("a3"));
+        prefetcher.close();
+    }
+
+    private List<Callable<ImagePlus>> planes(final String prefix, int count) {
+        final List<Callable<ImagePlus>> reads = new ArrayList<Callable<ImagePlus>>();
+        for (int i = 0; i < count; i++) {
+            final String name = prefix + i;
+            reads.add(new Callable<ImagePlus>() {
+                @Override
+                public ImagePlus call() throws Exception {
+                    synchronized (calls) {
+                        calls.add(name);
+                    }
+                    gate.acquire();
+                    final ByteProcessor ip = new ByteProcessor(PLANE / 10, 10);
+                    synchronized (pixels) {
+                        pixels.put(name, ip.getPixels());
+                    }
+                    return new ImagePlus(name, ip) {
+                        @Override
+                        public void close() {
+                            synchronized (closed) {
+                                closed.add(name);
+                            }
+                        }
+                    };
+                }
+            });
+        }
+        return reads;
+    }
+
+    private static List<String> drain(PlanePrefetcher.Sequence sequence) throws Exception {
+        final List<String> titles = new ArrayList<String>();
+        while (sequence.hasNext()) {
+            titles.add(sequence.next().getTitle());
+        }
+        return titles;
+    }
+
+    private List<String> calls() {
+        synchronized (calls) {
+            return new ArrayList<String>(calls);
+        }
+    }
+
+    private Set<String> closed() {
+        synchronized (closed) {
+            return new HashSet<String>(closed);
+        }
+    }
+
+    private Object pixels(String name) {
+        synchronized (pixels) {
+            return pixels.get(name);
+        }
+    }
+
+    private void awaitCalls(int n) throws InterruptedException {
+        while (calls().size() < n) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitCompleted(int n) throws InterruptedException {
+        while (completed.get() < n) {
+            Thread.sleep(1);
+        }
+    }
+}